@@ -102,6 +102,30 @@ public final class ContextOptions {
      */
     public int mMaxRuntimeProgramCacheSize = 256;
 
+    /**
+     * Cache in which to store compiled programs across processes, e.g. GL program binaries,
+     * so that they are not recompiled on the next launch. If null, programs are always compiled.
+     *
+     * @see FilePersistentCache
+     */
+    public PersistentCache mPersistentCache = null;
+
+    /**
+     * If true, a draw whose program is still being generated or compiled is skipped, and
+     * {@link DirectContext#checkRedrawRequested()} returns true, so the client can draw the
+     * frame again later. Otherwise, the draw waits for the program. Polling the driver requires
+     * KHR_parallel_shader_compile, without it only the code generation is not waited for.
+     */
+    public boolean mSkipDrawsWithPendingPipelines = false;
+
+    /**
+     * Unlocked resources that have not been used in this many frames are purged by
+     * {@link DirectContext#performDeferredCleanup()}, even if the cache is under budget.
+     * This keeps the GPU memory low after a burst of resources, e.g. on low-VRAM machines.
+     * If 0, resources are only purged to become under budget.
+     */
+    public int mResourceExpiryFrames = 0;
+
     /**
      * In vulkan backend a single Context submit equates to the submission of a single
      * primary command buffer to the VkQueue. This value specifies how many vulkan secondary command
@@ -22,7 +22,9 @@ import icyllis.arc3d.opengl.GLServer;
 import icyllis.arc3d.vulkan.VkBackendContext;
 import org.jetbrains.annotations.ApiStatus;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Collection;
 
 /**
  * Represents a backend context of 3D graphics API (OpenGL or Vulkan) on the render thread.
@@ -134,6 +136,61 @@ public final class DirectContext extends RecordingContext {
         mServer.markContextDirty(state);
     }
 
+    /**
+     * Declares pipelines that will be drawn, so that their programs are created ahead of
+     * their first use, e.g. during startup or a loading screen. Shader code is generated on
+     * worker threads, and the driver compiles the programs when they are ready, at the end
+     * of each flush or {@link #checkPrecompiledPipelines()}.
+     *
+     * @param pipelineInfos the pipelines to precompile
+     */
+    public void precompilePipelines(@Nonnull Collection<PipelineInfo> pipelineInfos) {
+        checkOwnerThread();
+        final PipelineStateCache cache = getPipelineStateCache();
+        for (PipelineInfo pipelineInfo : pipelineInfos) {
+            cache.precompile(new PipelineDesc(), pipelineInfo);
+        }
+    }
+
+    /**
+     * Advances the precompilation without waiting, see {@link #precompilePipelines(Collection)}.
+     *
+     * @return the number of declared pipelines that are not ready yet
+     */
+    public int checkPrecompiledPipelines() {
+        checkOwnerThread();
+        return getPipelineStateCache().checkPrecompiling();
+    }
+
+    /**
+     * Returns whether a draw was skipped since the last call because its program was not
+     * ready, in which case the client should draw the frame again.
+     *
+     * @see ContextOptions#mSkipDrawsWithPendingPipelines
+     */
+    public boolean checkRedrawRequested() {
+        checkOwnerThread();
+        return mServer.checkRedrawRequested();
+    }
+
+    /**
+     * Call this between frames, typically after the frame is submitted. This purges unlocked
+     * resources that have expired, see {@link ContextOptions#mResourceExpiryFrames}, and then
+     * purges resources in LRU order until the cache is under budget, see
+     * {@link ResourceCache#setCacheLimit(long)}.
+     */
+    public void performDeferredCleanup() {
+        checkOwnerThread();
+        if (isDiscarded()) {
+            return;
+        }
+        final int expiryFrames = getOptions().mResourceExpiryFrames;
+        if (expiryFrames > 0) {
+            mResourceCache.purgeUnlockedNotUsedInFrames(expiryFrames, false);
+        }
+        mResourceCache.advanceFrame();
+    }
+
     @ApiStatus.Internal
     public Server getServer() {
         return mServer;
@@ -164,6 +221,7 @@ public final class DirectContext extends RecordingContext {
         assert getThreadSafeCache() != null;
 
         mResourceCache = new ResourceCache(getContextID());
+        mResourceCache.setThreadSafeCache(getThreadSafeCache());
         mResourceProvider = mServer.getResourceProvider();
         return true;
     }
@@ -108,6 +108,10 @@ public class DrawingManager {
 
         clearTasks();
 
+        // the ops of this flush have been dropped
+        server.getPipelineStateCache().purgeEvicted();
+        server.getPipelineStateCache().checkPrecompiling();
+
         if (purge) {
             context.getResourceCache().purge();
         }
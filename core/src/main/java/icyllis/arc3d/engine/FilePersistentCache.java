@@ -0,0 +1,103 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.arc3d.engine;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link PersistentCache} that stores each entry in a file of the given directory.
+ * The file name is the SHA-256 of the key, and the file begins with the full key, so
+ * that a hash collision or a truncated file is just a cache miss.
+ * <p>
+ * Files are written asynchronously to a temporary file and then atomically moved, a
+ * concurrent process sees either the old or the new entry. I/O errors are ignored,
+ * because the cache is only an optimization.
+ */
+public class FilePersistentCache implements PersistentCache {
+
+    private final Path mDirectory;
+
+    /**
+     * @param directory the directory to store entries, created on first store
+     */
+    public FilePersistentCache(@Nonnull Path directory) {
+        mDirectory = directory;
+    }
+
+    @Nullable
+    @Override
+    public byte[] load(@Nonnull byte[] key) {
+        final byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(mDirectory.resolve(getFileName(key)));
+        } catch (IOException e) {
+            return null;
+        }
+        if (bytes.length < 4) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int keyLength = buffer.getInt();
+        if (keyLength != key.length || buffer.remaining() < keyLength ||
+                !Arrays.equals(bytes, 4, 4 + keyLength, key, 0, keyLength)) {
+            return null;
+        }
+        return Arrays.copyOfRange(bytes, 4 + keyLength, bytes.length);
+    }
+
+    @Override
+    public void store(@Nonnull byte[] key, @Nonnull byte[] data) {
+        final String name = getFileName(key);
+        CompletableFuture.runAsync(() -> {
+            try {
+                Files.createDirectories(mDirectory);
+                Path temp = Files.createTempFile(mDirectory, name, ".tmp");
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(4 + key.length + data.length);
+                    buffer.putInt(key.length).put(key).put(data);
+                    Files.write(temp, buffer.array());
+                    Files.move(temp, mDirectory.resolve(name),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    @Nonnull
+    private static String getFileName(@Nonnull byte[] key) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new AssertionError(e);
+        }
+    }
+}
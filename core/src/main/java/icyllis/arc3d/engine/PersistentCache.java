@@ -0,0 +1,53 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.arc3d.engine;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Interface to cache compiled programs (e.g. GL program binaries) across processes,
+ * see {@link ContextOptions#mPersistentCache}. The key contains everything that makes
+ * the data usable, including the driver information, so implementations only need to
+ * map bytes to bytes.
+ *
+ * @see FilePersistentCache
+ */
+@ThreadSafe
+public interface PersistentCache {
+
+    /**
+     * Returns the data previously stored for the key, or null.
+     *
+     * @param key the key, must not be modified
+     * @return the data, or null if not found
+     */
+    @Nullable
+    byte[] load(@Nonnull byte[] key);
+
+    /**
+     * Stores the data for the key, replacing the previous data. This may be called
+     * on the render thread, implementations should not block on I/O.
+     *
+     * @param key  the key, must not be modified
+     * @param data the data, must not be modified
+     */
+    void store(@Nonnull byte[] key, @Nonnull byte[] data);
+}
@@ -33,6 +33,28 @@ public abstract class PipelineStateCache {
     public abstract PipelineState findOrCreatePipelineState(final PipelineDesc desc,
                                                             final PipelineInfo pipelineInfo);
 
+    /**
+     * Creates the pipeline state ahead of its first use, the creation is advanced by
+     * {@link #checkPrecompiling()}.
+     */
+    public abstract void precompile(final PipelineDesc desc,
+                                    final PipelineInfo pipelineInfo);
+
+    /**
+     * Advances the creation of precompiling pipeline states without waiting, called on
+     * the render thread at the end of each flush.
+     *
+     * @return the number of precompiling pipeline states that are not ready yet
+     */
+    public abstract int checkPrecompiling();
+
+    /**
+     * Releases the pipeline states that were evicted before the previous flush, called at the
+     * end of each flush. Recently evicted pipeline states may still be referenced by draw ops
+     * that are prepared but not yet executed.
+     */
+    protected abstract void purgeEvicted();
+
     protected abstract void close();
 
     public final Stats getStats() {
@@ -51,6 +73,13 @@ public abstract class PipelineStateCache {
         private final AtomicInteger mNumPartialCompilationSuccesses = new AtomicInteger();
         private final AtomicInteger mNumCompilationSuccesses = new AtomicInteger();
 
+        private final AtomicInteger mNumBinaryCacheHits = new AtomicInteger();
+        private final AtomicInteger mNumBinaryCacheMisses = new AtomicInteger();
+
+        private final AtomicInteger mNumCacheHits = new AtomicInteger();
+        private final AtomicInteger mNumCacheMisses = new AtomicInteger();
+        private final AtomicInteger mNumEvictions = new AtomicInteger();
+
         public int shaderCompilations() {
             return mShaderCompilations.get();
         }
@@ -99,6 +128,64 @@ public abstract class PipelineStateCache {
             mNumCompilationSuccesses.getAndIncrement();
         }
 
+        /**
+         * Returns the number of programs loaded from the persistent cache, these are not
+         * counted as compilation successes.
+         */
+        public int numBinaryCacheHits() {
+            return mNumBinaryCacheHits.get();
+        }
+
+        public void incNumBinaryCacheHits() {
+            mNumBinaryCacheHits.getAndIncrement();
+        }
+
+        /**
+         * Returns the number of programs that were compiled because the persistent cache
+         * had no binary or the driver rejected it.
+         */
+        public int numBinaryCacheMisses() {
+            return mNumBinaryCacheMisses.get();
+        }
+
+        public void incNumBinaryCacheMisses() {
+            mNumBinaryCacheMisses.getAndIncrement();
+        }
+
+        /**
+         * Returns the number of lookups that found a pipeline state in the runtime cache.
+         */
+        public int numCacheHits() {
+            return mNumCacheHits.get();
+        }
+
+        public void incNumCacheHits() {
+            mNumCacheHits.getAndIncrement();
+        }
+
+        /**
+         * Returns the number of lookups that created a new pipeline state.
+         */
+        public int numCacheMisses() {
+            return mNumCacheMisses.get();
+        }
+
+        public void incNumCacheMisses() {
+            mNumCacheMisses.getAndIncrement();
+        }
+
+        /**
+         * Returns the number of pipeline states evicted because the runtime cache was full,
+         * a high value relative to misses means the cache is too small.
+         */
+        public int numEvictions() {
+            return mNumEvictions.get();
+        }
+
+        public void incNumEvictions() {
+            mNumEvictions.getAndIncrement();
+        }
+
         @Override
         public String toString() {
             return "PipelineStateCache.Stats{" +
@@ -108,6 +195,11 @@ public abstract class PipelineStateCache {
                     ", numCompilationFailures=" + mNumCompilationFailures +
                     ", numPartialCompilationSuccesses=" + mNumPartialCompilationSuccesses +
                     ", numCompilationSuccesses=" + mNumCompilationSuccesses +
+                    ", numBinaryCacheHits=" + mNumBinaryCacheHits +
+                    ", numBinaryCacheMisses=" + mNumBinaryCacheMisses +
+                    ", numCacheHits=" + mNumCacheHits +
+                    ", numCacheMisses=" + mNumCacheMisses +
+                    ", numEvictions=" + mNumEvictions +
                     '}';
         }
     }
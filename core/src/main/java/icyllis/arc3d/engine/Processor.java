@@ -37,7 +37,8 @@ public abstract class Processor {
             Circle_Geom_ClassID = 2,
             RoundRect_GeoProc_ClassID = 3,
             DefaultGeoProc_ClassID = 4,
-            SDFRect_GeoProc_ClassID = 5;
+            SDFRect_GeoProc_ClassID = 5,
+            SDFShape_GeoProc_ClassID = 6;
 
     protected final int mClassID;
 
@@ -90,6 +90,8 @@ public abstract class Resource {
     // this is maintained by the cache
     int mTimestamp;
     private long mCleanUpTime;
+    // the frame index of the cache when this resource became cleanable
+    int mCleanUpFrame;
 
     // null meaning invalid, lazy initialized
     Object mScratchKey;
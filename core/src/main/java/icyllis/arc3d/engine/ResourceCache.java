@@ -20,6 +20,7 @@ package icyllis.arc3d.engine;
 
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.util.*;
@@ -128,6 +129,27 @@ public final class ResourceCache implements AutoCloseable {
     private long mCleanableBytes = 0;
     private int mFlushableCount = 0;
 
+    /**
+     * Categories of resources, see {@link #getResourceBytes(int)}.
+     */
+    public static final int
+            CATEGORY_TEXTURE = 0,
+            CATEGORY_BUFFER = 1,
+            CATEGORY_ATTACHMENT = 2,
+            CATEGORY_OTHER = 3;
+    private static final int CATEGORY_COUNT = 4;
+
+    // bytes of all resources and budgeted resources, by category
+    private final long[] mCategoryBytes = new long[CATEGORY_COUNT];
+    private final long[] mCategoryBudgetedBytes = new long[CATEGORY_COUNT];
+
+    // incremented by advanceFrame(), resources are tagged with it when they become cleanable
+    private int mFrameIndex = 0;
+
+    private final Stats mStats = new Stats();
+    // the reason of purging a resource that becomes cleanable while over budget
+    private int mOverBudgetPurgeReason = PURGE_BUDGET;
+
     private final int mContextID;
 
     /**
@@ -150,9 +172,14 @@ public final class ResourceCache implements AutoCloseable {
         return mContextID;
     }
 
+    void setThreadSafeCache(ThreadSafeCache threadSafeCache) {
+        mThreadSafeCache = threadSafeCache;
+    }
+
     /**
      * Sets the max GPU memory byte size of the cache.
-     * A {@link #purge()} is followed by this method call.
+     * A {@link #purge()} is followed by this method call, and the cache is kept under the
+     * limit between frames, see {@link #advanceFrame()}.
      * The passed value can be retrieved by {@link #getMaxResourceBytes()}.
      */
     public void setCacheLimit(long maxBytes) {
@@ -203,12 +230,55 @@ public final class ResourceCache implements AutoCloseable {
         return mMaxBytes;
     }
 
+    /**
+     * Returns the number of bytes consumed by resources of the given category.
+     *
+     * @param category one of {@link #CATEGORY_TEXTURE}, {@link #CATEGORY_BUFFER},
+     *                 {@link #CATEGORY_ATTACHMENT} and {@link #CATEGORY_OTHER}
+     */
+    public long getResourceBytes(int category) {
+        return mCategoryBytes[category];
+    }
+
+    /**
+     * Returns the number of bytes consumed by budgeted resources of the given category.
+     *
+     * @param category one of {@link #CATEGORY_TEXTURE}, {@link #CATEGORY_BUFFER},
+     *                 {@link #CATEGORY_ATTACHMENT} and {@link #CATEGORY_OTHER}
+     */
+    public long getBudgetedResourceBytes(int category) {
+        return mCategoryBudgetedBytes[category];
+    }
+
+    /**
+     * Returns the statistics of purging, which are not reset by the cache.
+     */
+    @Nonnull
+    public Stats getStats() {
+        return mStats;
+    }
+
+    private static int getCategory(Resource resource) {
+        if (resource instanceof Texture) {
+            return CATEGORY_TEXTURE;
+        }
+        if (resource instanceof Buffer) {
+            return CATEGORY_BUFFER;
+        }
+        if (resource instanceof Attachment) {
+            return CATEGORY_ATTACHMENT;
+        }
+        return CATEGORY_OTHER;
+    }
+
     /**
      * Releases the backend API resources owned by all Resource objects and removes them from
      * the cache.
      */
     public void releaseAll() {
-        //fThreadSafeCache->dropAllRefs();
+        if (mThreadSafeCache != null) {
+            mThreadSafeCache.dropAllRefs();
+        }
 
         //this->processFreedGpuResources();
 
@@ -262,7 +332,10 @@ public final class ResourceCache implements AutoCloseable {
             top.discard();
         }
 
-        //fThreadSafeCache -> dropAllRefs();
+        // resources are discarded, this just drops the Java references
+        if (mThreadSafeCache != null) {
+            mThreadSafeCache.dropAllRefs();
+        }
 
         assert mScratchMap.isEmpty();
         assert mUniqueMap.isEmpty();
@@ -313,29 +386,56 @@ public final class ResourceCache implements AutoCloseable {
      * keys.
      */
     public void purge() {
+        purge(PURGE_BUDGET);
+    }
+
+    private void purge(int reason) {
         //this->processFreedGpuResources();
 
         boolean stillOverBudget = isOverBudget();
         while (stillOverBudget && !mCleanableQueue.isEmpty()) {
             Resource resource = mCleanableQueue.peek();
             assert (resource.isCleanable());
-            resource.release();
+            purgeResource(resource, reason);
             stillOverBudget = isOverBudget();
         }
 
-        if (stillOverBudget) {
+        if (stillOverBudget && mThreadSafeCache != null) {
+            // dropped resources are purged by notifyACntReachedZero() for the same reason
+            mOverBudgetPurgeReason = reason;
             mThreadSafeCache.dropUniqueRefs(this);
+            mOverBudgetPurgeReason = PURGE_BUDGET;
 
             stillOverBudget = isOverBudget();
             while (stillOverBudget && !mCleanableQueue.isEmpty()) {
                 Resource resource = mCleanableQueue.peek();
                 assert (resource.isCleanable());
-                resource.release();
+                purgeResource(resource, reason);
                 stillOverBudget = isOverBudget();
             }
         }
     }
 
+    /**
+     * Called between frames, typically after the frame is submitted. This advances the frame
+     * index used by {@link #purgeUnlockedNotUsedInFrames(int, boolean)}, and purges resources
+     * to become under budget, in case the budget was exceeded by resources that were locked.
+     */
+    public void advanceFrame() {
+        mFrameIndex++;
+        mStats.mFrames++;
+        if (isOverBudget()) {
+            purge();
+        }
+    }
+
+    /**
+     * Returns the current frame index, see {@link #advanceFrame()}.
+     */
+    public int getFrameIndex() {
+        return mFrameIndex;
+    }
+
     /**
      * Purge unlocked resources as much as possible. If <code>scratchOnly</code> is true,
      * the cleanable resources containing persistent data are skipped. Otherwise, all cleanable
@@ -357,11 +457,49 @@ public final class ResourceCache implements AutoCloseable {
      * @param scratchOnly if true, only shared resources will be purged
      */
     public void purgeUnlockedSince(long purgeTime, boolean scratchOnly) {
+        if (!scratchOnly && mThreadSafeCache != null) {
+            if (purgeTime > 0) {
+                mThreadSafeCache.dropUniqueRefsSince(purgeTime);
+            } else {
+                mThreadSafeCache.dropUniqueRefs(null);
+            }
+        }
+        purgeUnlocked(purgeTime, false, scratchOnly);
+    }
+
+    /**
+     * Purge unlocked resources that have not been used in the last <code>frames</code> frames,
+     * see {@link #advanceFrame()}. If <code>scratchOnly</code> is true, the cleanable resources
+     * containing persistent data are skipped.
+     * <p>
+     * Refs held by the {@link ThreadSafeCache} are not dropped here, they are dropped under
+     * budget pressure or by {@link #purgeUnlockedSince(long, boolean)}.
+     *
+     * @param frames      the number of frames, must be positive
+     * @param scratchOnly if true, only shared resources will be purged
+     */
+    public void purgeUnlockedNotUsedInFrames(int frames, boolean scratchOnly) {
+        assert frames > 0;
+        // the frames in [purgeFrame, mFrameIndex] are the last frames
+        purgeUnlocked(mFrameIndex - frames + 1, true, scratchOnly);
+    }
+
+    // resources in the queue are in LRU order, so are the times and frames they became cleanable
+    private static boolean isUsedSince(Resource resource, long purgeTime, boolean frameBased) {
+        if (frameBased) {
+            // handle overflow
+            return resource.mCleanUpFrame - (int) purgeTime >= 0;
+        }
+        return purgeTime > 0 && resource.getCleanUpTime() >= purgeTime;
+    }
+
+    private void purgeUnlocked(long purgeTime, boolean frameBased, boolean scratchOnly) {
+        final int reason = frameBased || purgeTime > 0 ? PURGE_EXPIRED : PURGE_REQUESTED;
         if (scratchOnly) {
             // Early out if the very first item is too new to purge to avoid sorting the queue when
             // nothing will be deleted.
-            if (purgeTime > 0 && !mCleanableQueue.isEmpty() &&
-                    mCleanableQueue.peek().getCleanUpTime() >= purgeTime) {
+            if (mCleanableQueue.isEmpty() ||
+                    isUsedSince(mCleanableQueue.peek(), purgeTime, frameBased)) {
                 return;
             }
 
@@ -373,7 +511,7 @@ public final class ResourceCache implements AutoCloseable {
             for (int i = 0; i < mCleanableQueue.size(); i++) {
                 Resource resource = mCleanableQueue.elementAt(i);
 
-                if (purgeTime > 0 && resource.getCleanUpTime() >= purgeTime) {
+                if (isUsedSince(resource, purgeTime, frameBased)) {
                     // scratch or not, all later iterations will be too recently used to purge.
                     break;
                 }
@@ -385,20 +523,16 @@ public final class ResourceCache implements AutoCloseable {
 
             // Delete the scratch resources. This must be done as a separate pass
             // to avoid messing up the sorted order of the queue
-            scratchResources.forEach(Resource::release);
-        } else {
-            if (purgeTime > 0) {
-                mThreadSafeCache.dropUniqueRefsSince(purgeTime);
-            } else {
-                mThreadSafeCache.dropUniqueRefs(null);
+            for (Resource resource : scratchResources) {
+                purgeResource(resource, reason);
             }
-
+        } else {
             // We could disable maintaining the heap property here, but it would add a lot of
             // complexity. Moreover, this is rarely called.
             while (!mCleanableQueue.isEmpty()) {
                 Resource resource = mCleanableQueue.peek();
 
-                if (purgeTime > 0 && resource.getCleanUpTime() >= purgeTime) {
+                if (isUsedSince(resource, purgeTime, frameBased)) {
                     // Resources were given both LRU timestamps and tagged with a frame number when
                     // they first became cleanable. The LRU timestamp won't change again until the
                     // resource is made non-cleanable again. So, at this point all the remaining
@@ -408,7 +542,7 @@ public final class ResourceCache implements AutoCloseable {
                 }
 
                 assert (resource.isCleanable());
-                resource.release();
+                purgeResource(resource, reason);
             }
         }
 
@@ -427,7 +561,43 @@ public final class ResourceCache implements AutoCloseable {
      * @param preferScratch if true, scratch resources will be purged prior to other resource types
      */
     public void purgeUnlockedAtMost(long bytesToPurge, boolean preferScratch) {
-        //TODO
+        if (bytesToPurge <= 0) {
+            return;
+        }
+        final long tmpByteBudget = Math.max(0, mBudgetedBytes - bytesToPurge);
+        boolean stillOverBudget = tmpByteBudget < mBudgetedBytes;
+
+        if (preferScratch) {
+            // Sort the queue
+            mCleanableQueue.sort();
+
+            // Make a list of the scratch resources to delete
+            List<Resource> scratchResources = new ArrayList<>();
+            long scratchByteCount = 0;
+            for (int i = 0; i < mCleanableQueue.size() && scratchByteCount < bytesToPurge; i++) {
+                Resource resource = mCleanableQueue.elementAt(i);
+                assert (resource.isCleanable());
+                if (resource.isScratch()) {
+                    scratchResources.add(resource);
+                    scratchByteCount += resource.getMemorySize();
+                }
+            }
+
+            // Delete the scratch resources. This must be done as a separate pass
+            // to avoid messing up the sorted order of the queue
+            for (Resource resource : scratchResources) {
+                purgeResource(resource, PURGE_REQUESTED);
+            }
+            stillOverBudget = tmpByteBudget < mBudgetedBytes;
+        }
+
+        // Purge as if we have a lower budget, including unique-key resources in LRU order
+        if (stillOverBudget) {
+            final long cachedByteCount = mMaxBytes;
+            mMaxBytes = tmpByteBudget;
+            purge(PURGE_REQUESTED);
+            mMaxBytes = cachedByteCount;
+        }
     }
 
     /**
@@ -435,7 +605,37 @@ public final class ResourceCache implements AutoCloseable {
      * headroom, do so and return true. If it's not possible, do nothing and return false.
      */
     public boolean purgeUnlockedAtLeast(long bytesToMake) {
-        return false;
+        final long projectedBudget = mBudgetedBytes + bytesToMake;
+        if (projectedBudget <= mMaxBytes) {
+            return true;
+        }
+        final long bytesToPurge = projectedBudget - mMaxBytes;
+        if (bytesToPurge > mCleanableBytes) {
+            return false;
+        }
+
+        // Sort the queue
+        mCleanableQueue.sort();
+
+        // Find the budgeted resources to delete in LRU order, unbudgeted ones don't help
+        List<Resource> resources = new ArrayList<>();
+        long purgedBytes = 0;
+        for (int i = 0; i < mCleanableQueue.size() && purgedBytes < bytesToPurge; i++) {
+            Resource resource = mCleanableQueue.elementAt(i);
+            assert (resource.isCleanable());
+            if (resource.getBudgetType() == Engine.BudgetType.Budgeted) {
+                resources.add(resource);
+                purgedBytes += resource.getMemorySize();
+            }
+        }
+        if (purgedBytes < bytesToPurge) {
+            return false;
+        }
+
+        for (Resource resource : resources) {
+            purgeResource(resource, PURGE_BUDGET);
+        }
+        return true;
     }
 
     /**
@@ -484,6 +684,7 @@ public final class ResourceCache implements AutoCloseable {
         removeFromNonCleanableArray(resource);
         mCleanableQueue.add(resource);
         resource.setCleanUpTime();
+        resource.mCleanUpFrame = mFrameIndex;
         mCleanableBytes += resource.getMemorySize();
 
         boolean hasUniqueKey = resource.mUniqueKey != null;
@@ -514,7 +715,12 @@ public final class ResourceCache implements AutoCloseable {
         }
 
         int beforeCount = getResourceCount();
-        resource.release();
+        if (isOverBudget()) {
+            purgeResource(resource, mOverBudgetPurgeReason);
+        } else {
+            // not reusable, this is not a purge
+            resource.release();
+        }
         // We should at least free this resource, perhaps dependent resources as well.
         assert getResourceCount() < beforeCount;
     }
@@ -531,11 +737,14 @@ public final class ResourceCache implements AutoCloseable {
         addToNonCleanableArray(resource);
 
         long size = resource.getMemorySize();
+        int category = getCategory(resource);
         mCount++;
         mBytes += size;
+        mCategoryBytes[category] += size;
         if (resource.getBudgetType() == Engine.BudgetType.Budgeted) {
             mBudgetedCount++;
             mBudgetedBytes += size;
+            mCategoryBudgetedBytes[category] += size;
         }
 
         assert !resource.isUsableAsScratch();
@@ -553,11 +762,14 @@ public final class ResourceCache implements AutoCloseable {
             removeFromNonCleanableArray(resource);
         }
 
+        int category = getCategory(resource);
         mCount--;
         mBytes -= size;
+        mCategoryBytes[category] -= size;
         if (resource.getBudgetType() == Engine.BudgetType.Budgeted) {
             mBudgetedCount--;
             mBudgetedBytes -= size;
+            mCategoryBudgetedBytes[category] -= size;
         }
 
         if (resource.isUsableAsScratch()) {
@@ -640,6 +852,7 @@ public final class ResourceCache implements AutoCloseable {
         if (resource.getBudgetType() == Engine.BudgetType.Budgeted) {
             mBudgetedCount++;
             mBudgetedBytes += size;
+            mCategoryBudgetedBytes[getCategory(resource)] += size;
             if (!resource.isCleanable() &&
                     !resource.hasRefOrCommandBufferUsage()) {
                 mFlushableCount++;
@@ -652,6 +865,7 @@ public final class ResourceCache implements AutoCloseable {
             assert resource.getBudgetType() == Engine.BudgetType.WrapCacheable;
             mBudgetedCount--;
             mBudgetedBytes -= size;
+            mCategoryBudgetedBytes[getCategory(resource)] -= size;
             if (!resource.isCleanable() &&
                     !resource.hasRefOrCommandBufferUsage()) {
                 mFlushableCount--;
@@ -671,6 +885,31 @@ public final class ResourceCache implements AutoCloseable {
         }
     }
 
+    // reasons of purging, for stats
+    private static final int
+            PURGE_BUDGET = 0,
+            PURGE_EXPIRED = 1,
+            PURGE_REQUESTED = 2;
+
+    private void purgeResource(Resource resource, int reason) {
+        long size = resource.getMemorySize();
+        switch (reason) {
+            case PURGE_BUDGET -> {
+                mStats.mNumBudgetPurges++;
+                mStats.mBudgetPurgedBytes += size;
+            }
+            case PURGE_EXPIRED -> {
+                mStats.mNumExpiryPurges++;
+                mStats.mExpiryPurgedBytes += size;
+            }
+            default -> {
+                mStats.mNumRequestedPurges++;
+                mStats.mRequestedPurgedBytes += size;
+            }
+        }
+        resource.release();
+    }
+
     private void refAndMakeResourceMRU(Resource resource) {
         assert isInCache(resource);
 
@@ -779,4 +1018,84 @@ public final class ResourceCache implements AutoCloseable {
     public void close() {
         releaseAll();
     }
+
+    /**
+     * Purge events of the cache, the number and bytes of resources purged for each reason.
+     * Many budget purges mean the budget is too small for the working set, and many expiry
+     * purges followed by re-creation mean the expiry is too short.
+     */
+    public static final class Stats {
+
+        private int mFrames = 0;
+        private int mNumBudgetPurges = 0;
+        private long mBudgetPurgedBytes = 0;
+        private int mNumExpiryPurges = 0;
+        private long mExpiryPurgedBytes = 0;
+        private int mNumRequestedPurges = 0;
+        private long mRequestedPurgedBytes = 0;
+
+        public void reset() {
+            mFrames = 0;
+            mNumBudgetPurges = 0;
+            mBudgetPurgedBytes = 0;
+            mNumExpiryPurges = 0;
+            mExpiryPurgedBytes = 0;
+            mNumRequestedPurges = 0;
+            mRequestedPurgedBytes = 0;
+        }
+
+        /**
+         * Returns the number of calls to {@link #advanceFrame()}.
+         */
+        public int numFrames() {
+            return mFrames;
+        }
+
+        /**
+         * Returns the number of resources purged to become under budget.
+         */
+        public int numBudgetPurges() {
+            return mNumBudgetPurges;
+        }
+
+        public long budgetPurgedBytes() {
+            return mBudgetPurgedBytes;
+        }
+
+        /**
+         * Returns the number of resources purged because they were not used for a while.
+         */
+        public int numExpiryPurges() {
+            return mNumExpiryPurges;
+        }
+
+        public long expiryPurgedBytes() {
+            return mExpiryPurgedBytes;
+        }
+
+        /**
+         * Returns the number of resources purged by {@link #purgeUnlocked(boolean)} and
+         * {@link #purgeUnlockedAtMost(long, boolean)}.
+         */
+        public int numRequestedPurges() {
+            return mNumRequestedPurges;
+        }
+
+        public long requestedPurgedBytes() {
+            return mRequestedPurgedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "ResourceCache.Stats{" +
+                    "frames=" + mFrames +
+                    ", numBudgetPurges=" + mNumBudgetPurges +
+                    ", budgetPurgedBytes=" + mBudgetPurgedBytes +
+                    ", numExpiryPurges=" + mNumExpiryPurges +
+                    ", expiryPurgedBytes=" + mExpiryPurgedBytes +
+                    ", numRequestedPurges=" + mNumRequestedPurges +
+                    ", requestedPurgedBytes=" + mRequestedPurgedBytes +
+                    '}';
+        }
+    }
 }
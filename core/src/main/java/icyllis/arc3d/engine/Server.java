@@ -60,6 +60,7 @@ public abstract class Server implements Engine {
 
     private final ArrayList<FlushInfo.SubmittedCallback> mSubmittedCallbacks = new ArrayList<>();
     private int mResetBits = ~0;
+    private boolean mRedrawRequested;
 
     protected Server(DirectContext context, Caps caps) {
         assert context != null && caps != null;
@@ -105,6 +106,24 @@ public abstract class Server implements Engine {
         return mStats;
     }
 
+    /**
+     * Called when a draw is skipped because its pipeline state is not ready.
+     *
+     * @see ContextOptions#mSkipDrawsWithPendingPipelines
+     */
+    public final void requestRedraw() {
+        mRedrawRequested = true;
+    }
+
+    /**
+     * Returns whether a redraw was requested since the last call, and clears the request.
+     */
+    public final boolean checkRedrawRequested() {
+        boolean requested = mRedrawRequested;
+        mRedrawRequested = false;
+        return requested;
+    }
+
     /**
      * The engine object normally assumes that no outsider is setting state
      * within the underlying 3D API's context/device/whatever. This call informs
@@ -18,13 +18,136 @@
 
 package icyllis.arc3d.engine;
 
+import icyllis.arc3d.core.SharedPtr;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds refs on resources with unique keys that can be shared by multiple threads, e.g.
+ * the resources created by recording contexts. The cache keeps them alive, so they are
+ * never cleanable in {@link ResourceCache}, until the refs are dropped by the resource
+ * cache under budget pressure, or when they are not used for a while.
+ * <p>
+ * Lookups and additions can happen on any thread, but dropping refs must happen on the
+ * owner thread of the direct context, since it may release the resources.
+ */
+@ThreadSafe
 public final class ThreadSafeCache {
 
-    public void dropUniqueRefs(ResourceCache resourceCache) {
+    // access-ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<Object, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Find a resource that matches a unique key.
+     *
+     * @return a new ref on the resource, or null
+     */
+    @Nullable
+    @SharedPtr
+    public Resource find(@Nonnull Object key) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.mLastAccess = System.nanoTime();
+            entry.mResource.ref();
+            return entry.mResource;
+        }
+    }
+
+    /**
+     * Adds a resource with the given unique key, if another thread has already added a resource
+     * with the key, that resource is returned instead.
+     *
+     * @param resource the resource to add, ref is added by the cache
+     * @return a new ref on the resource in the cache
+     */
+    @Nonnull
+    @SharedPtr
+    public Resource add(@Nonnull Object key, @Nonnull Resource resource) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                resource.ref();
+                entry = new Entry(resource);
+                mEntries.put(key, entry);
+            }
+            entry.mLastAccess = System.nanoTime();
+            entry.mResource.ref();
+            return entry.mResource;
+        }
+    }
+
+    /**
+     * Drops refs on all resources in the cache.
+     */
+    public void dropAllRefs() {
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                entry.mResource.unref();
+            }
+            mEntries.clear();
+        }
+    }
 
+    /**
+     * Drops refs on resources that are only referenced by this cache, in LRU order. If the
+     * resource cache is given, stop as soon as the resource cache is under budget.
+     *
+     * @param resourceCache the resource cache, or null to drop all unique refs
+     */
+    public void dropUniqueRefs(@Nullable ResourceCache resourceCache) {
+        synchronized (mEntries) {
+            for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+                if (resourceCache != null && !resourceCache.isOverBudget()) {
+                    break;
+                }
+                Entry entry = it.next();
+                if (entry.mResource.unique()) {
+                    it.remove();
+                    // this makes the resource cleanable
+                    entry.mResource.unref();
+                }
+            }
+        }
     }
 
+    /**
+     * Drops refs on resources that are only referenced by this cache, and not used since
+     * the passed point in time. The time-base is {@link System#nanoTime()}.
+     *
+     * @param purgeTime the resources not used since this time will be dropped
+     */
     public void dropUniqueRefsSince(long purgeTime) {
+        synchronized (mEntries) {
+            for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.mLastAccess >= purgeTime) {
+                    // all later entries are used more recently
+                    break;
+                }
+                if (entry.mResource.unique()) {
+                    it.remove();
+                    entry.mResource.unref();
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        @SharedPtr
+        final Resource mResource;
+        long mLastAccess;
 
+        Entry(@SharedPtr Resource resource) {
+            mResource = resource;
+        }
     }
 }
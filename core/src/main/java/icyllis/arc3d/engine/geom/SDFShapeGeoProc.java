@@ -0,0 +1,102 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.arc3d.engine.geom;
+
+import icyllis.arc3d.engine.*;
+
+import javax.annotation.Nonnull;
+
+import static icyllis.arc3d.engine.Engine.*;
+
+/**
+ * The vertex format of the SDF shapes drawn by the canvas. Each shape is an instance of
+ * a static quad, the bounds, the corner colors and the shape parameters (the inner rect,
+ * the radius, the center and so on, depending on the shape) are per-instance attributes,
+ * so a run of shapes of the same kind can be drawn with one instanced draw call.
+ */
+public final class SDFShapeGeoProc extends GeometryProcessor {
+
+    public static final int FLAG_TEX_COORD_ATTRIBUTE = 0x1;
+
+    /**
+     * Per-vertex attributes.
+     */
+    // {(0,1), (1,1), (0,0), (1,0)}, the factors to the bounds
+    public static final Attribute
+            CORNER = new Attribute("Corner", VertexAttribType.kFloat2, SLDataType.kFloat2);
+    /**
+     * Per-instance attributes.
+     */
+    // left, top, right, bottom
+    public static final Attribute
+            BOUNDS = new Attribute("Bounds", VertexAttribType.kFloat4, SLDataType.kFloat4);
+    // pre-multiplied colors of four corners
+    public static final Attribute
+            COLOR_UL = new Attribute("ColorUL", VertexAttribType.kUByte4_norm, SLDataType.kFloat4),
+            COLOR_UR = new Attribute("ColorUR", VertexAttribType.kUByte4_norm, SLDataType.kFloat4),
+            COLOR_LR = new Attribute("ColorLR", VertexAttribType.kUByte4_norm, SLDataType.kFloat4),
+            COLOR_LL = new Attribute("ColorLL", VertexAttribType.kUByte4_norm, SLDataType.kFloat4);
+    // shape parameters, the same as the old uniform blocks
+    public static final Attribute
+            PARAMS0 = new Attribute("Params0", VertexAttribType.kFloat4, SLDataType.kFloat4),
+            PARAMS1 = new Attribute("Params1", VertexAttribType.kFloat4, SLDataType.kFloat4);
+    // u1, v1, u2, v2
+    public static final Attribute
+            TEX_RECT = new Attribute("TexRect", VertexAttribType.kFloat4, SLDataType.kFloat4);
+
+    public static final AttributeSet VERTEX_ATTRIBS = AttributeSet.makeImplicit(
+            CORNER);
+    public static final AttributeSet INSTANCE_ATTRIBS = AttributeSet.makeImplicit(
+            BOUNDS, COLOR_UL, COLOR_UR, COLOR_LR, COLOR_LL, PARAMS0, PARAMS1, TEX_RECT);
+
+    private final int mFlags;
+
+    public SDFShapeGeoProc(int flags) {
+        super(SDFShape_GeoProc_ClassID);
+        mFlags = flags;
+        int mask = 0x7F;
+        if ((flags & FLAG_TEX_COORD_ATTRIBUTE) != 0) {
+            mask |= 0x80;
+        }
+        setVertexAttributes(VERTEX_ATTRIBS, 0x1);
+        setInstanceAttributes(INSTANCE_ATTRIBS, mask);
+    }
+
+    @Nonnull
+    @Override
+    public String name() {
+        return "SDFShape_GeomProc";
+    }
+
+    @Override
+    public byte primitiveType() {
+        return PrimitiveType.TriangleStrip;
+    }
+
+    @Override
+    public void addToKey(Key.Builder b) {
+        b.addBits(1, mFlags, "gpFlags");
+    }
+
+    @Nonnull
+    @Override
+    public ProgramImpl makeProgramImpl(ShaderCaps caps) {
+        return null;
+    }
+}
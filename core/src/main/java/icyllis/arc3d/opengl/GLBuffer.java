@@ -36,6 +36,8 @@ public final class GLBuffer extends Buffer {
     private boolean mLocked;
 
     private long mMappedBuffer;
+    // the offset of the locked range, if persistently mapped
+    private int mLockOffset;
     @SharedPtr
     private CpuBuffer mStagingBuffer;
 
@@ -232,6 +234,15 @@ public final class GLBuffer extends Buffer {
         return mBuffer;
     }
 
+    /**
+     * Returns whether the buffer is created with {@link Engine.BufferUsageFlags#kStreaming}
+     * and persistently mapped (coherent). If so, data written to the locked pointer is visible
+     * to subsequent GL commands without an upload, and unlocking is a no-op.
+     */
+    public boolean isPersistentlyMapped() {
+        return mPersistentlyMapped;
+    }
+
     @Override
     protected void onSetLabel(@Nonnull String label) {
         if (getServer().getCaps().hasDebugSupport()) {
@@ -276,7 +287,8 @@ public final class GLBuffer extends Buffer {
 
         if (mPersistentlyMapped) {
             assert (mMappedBuffer != NULL);
-            return mMappedBuffer;
+            mLockOffset = offset;
+            return mMappedBuffer + offset;
         }
 
         if (mode == kRead_LockMode) {
@@ -334,6 +346,9 @@ public final class GLBuffer extends Buffer {
     @Override
     public long getLockedBuffer() {
         if (mLocked) {
+            if (mPersistentlyMapped) {
+                return mMappedBuffer + mLockOffset;
+            }
             return mMappedBuffer != NULL ? mMappedBuffer : mStagingBuffer.data();
         }
         return NULL;
@@ -23,8 +23,10 @@ import icyllis.modernui.annotation.NonNull;
 import icyllis.modernui.annotation.Nullable;
 import icyllis.arc3d.core.ImageInfo;
 import org.jetbrains.annotations.VisibleForTesting;
+import org.lwjgl.opengl.ARBParallelShaderCompile;
 import org.lwjgl.opengl.GL46C;
 import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.opengl.KHRParallelShaderCompile;
 import org.lwjgl.system.MemoryStack;
 
 import java.nio.IntBuffer;
@@ -41,8 +43,13 @@ public final class GLCaps extends Caps {
     public static final List<String> MISSING_EXTENSIONS = new ArrayList<>();
 
     public final int[] mProgramBinaryFormats;
+    final boolean mProgramBinarySupport;
+    final boolean mParallelShaderCompileSupport;
+    // vendor, renderer and version, program binaries are valid only for the same driver
+    final String mDriverInfo;
 
     final int mMaxFragmentUniformVectors;
+    final int mUniformBufferOffsetAlignment;
     private float mMaxTextureMaxAnisotropy = 1.f;
     final boolean mSupportsProtected = false;
     private boolean mSkipErrorChecks = false;
@@ -180,6 +187,7 @@ public final class GLCaps extends Caps {
         }
 
         mMaxFragmentUniformVectors = glGetInteger(GL_MAX_FRAGMENT_UNIFORM_VECTORS);
+        mUniformBufferOffsetAlignment = glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
         mMaxVertexAttributes = Math.min(32, glGetInteger(GL_MAX_VERTEX_ATTRIBS));
 
         if (caps.OpenGL43 || caps.GL_ARB_invalidate_subdata) {
@@ -244,6 +252,19 @@ public final class GLCaps extends Caps {
         if (count > 0) {
             glGetIntegerv(GL_PROGRAM_BINARY_FORMATS, mProgramBinaryFormats);
         }
+        mProgramBinarySupport = (caps.OpenGL41 || caps.GL_ARB_get_program_binary) && count > 0;
+        if (caps.GL_KHR_parallel_shader_compile) {
+            // let the driver choose the number of threads
+            KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+            mParallelShaderCompileSupport = true;
+        } else if (caps.GL_ARB_parallel_shader_compile) {
+            ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB(0xFFFFFFFF);
+            mParallelShaderCompileSupport = true;
+        } else {
+            mParallelShaderCompileSupport = false;
+        }
+        mDriverInfo = glGetString(GL_VENDOR) + '\n' + glGetString(GL_RENDERER) + '\n' +
+                glGetString(GL_VERSION);
 
         initFormatTable(caps);
 
@@ -1240,6 +1261,30 @@ public final class GLCaps extends Caps {
         return mDebugSupport;
     }
 
+    /**
+     * Returns whether program binaries can be retrieved and loaded, that is, ARB_get_program_binary
+     * is supported and the driver has at least one binary format.
+     */
+    public boolean hasProgramBinarySupport() {
+        return mProgramBinarySupport;
+    }
+
+    /**
+     * Returns whether KHR_parallel_shader_compile or ARB_parallel_shader_compile is supported,
+     * that is, the completion of compiling and linking can be polled without blocking.
+     */
+    public boolean hasParallelShaderCompileSupport() {
+        return mParallelShaderCompileSupport;
+    }
+
+    /**
+     * Returns the vendor, renderer and version strings of the driver, which are part of
+     * the key of persistent program binaries.
+     */
+    public String getDriverInfo() {
+        return mDriverInfo;
+    }
+
     public boolean hasBaseInstanceSupport() {
         return mBaseInstanceSupport;
     }
@@ -1248,6 +1293,13 @@ public final class GLCaps extends Caps {
         return mBufferStorageSupport;
     }
 
+    /**
+     * @return the minimum alignment of the offset when binding a range of uniform buffer
+     */
+    public int getUniformBufferOffsetAlignment() {
+        return mUniformBufferOffsetAlignment;
+    }
+
     @Override
     public boolean isFormatTexturable(BackendFormat format) {
         return isFormatTexturable(format.getGLFormat());
@@ -1548,7 +1600,10 @@ public final class GLCaps extends Caps {
     public String toString() {
         return "GLCaps{" +
                 "mProgramBinaryFormats=" + Arrays.toString(mProgramBinaryFormats) +
+                ", mProgramBinarySupport=" + mProgramBinarySupport +
+                ", mParallelShaderCompileSupport=" + mParallelShaderCompileSupport +
                 ", mMaxFragmentUniformVectors=" + mMaxFragmentUniformVectors +
+                ", mUniformBufferOffsetAlignment=" + mUniformBufferOffsetAlignment +
                 ", mMaxTextureMaxAnisotropy=" + mMaxTextureMaxAnisotropy +
                 ", mSupportsProtected=" + mSupportsProtected +
                 ", mSkipErrorChecks=" + mSkipErrorChecks +
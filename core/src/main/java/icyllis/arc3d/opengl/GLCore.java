@@ -66,6 +66,12 @@ public final class GLCore extends GL45C {
 
     public static final int DEFAULT_TEXTURE = 0;
 
+    /**
+     * KHR_parallel_shader_compile and ARB_parallel_shader_compile, query whether the
+     * compilation or linking is complete without waiting.
+     */
+    public static final int GL_COMPLETION_STATUS_KHR = 0x91B1;
+
     private GLCore() {
         throw new UnsupportedOperationException();
     }
@@ -216,13 +216,20 @@ public final class GLFramebufferCompat extends GLObjectCompat {
         throw new IllegalStateException("No attachment " + attachmentPoint);
     }
 
-    public void makeBuffers(int width, int height, boolean exact) {
+    /**
+     * Makes the attachments at least the given size.
+     *
+     * @return true if any attachment was reallocated, its content is undefined
+     */
+    public boolean makeBuffers(int width, int height, boolean exact) {
         if (mAttachments == null) {
-            return;
+            return false;
         }
+        boolean reallocated = false;
         for (Attachment attachment : mAttachments.values()) {
-            attachment.make(width, height, exact);
+            reallocated |= attachment.make(width, height, exact);
         }
+        return reallocated;
     }
 
     @Override
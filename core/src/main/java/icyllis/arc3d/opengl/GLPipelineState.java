@@ -56,7 +56,10 @@ public class GLPipelineState extends PipelineState {
 
     private int mNumTextureSamplers;
 
+    // generating shader code on a worker thread
     private CompletableFuture<GLPipelineStateBuilder> mAsyncWork;
+    // compiling and linking by the driver
+    private GLPipelineStateBuilder mBuilder;
 
     GLPipelineState(GLServer server,
                     CompletableFuture<GLPipelineStateBuilder> asyncWork) {
@@ -82,6 +85,8 @@ public class GLPipelineState extends PipelineState {
             mAsyncWork.cancel(true);
             mAsyncWork = null;
         }
+        // the context is lost, nothing to delete
+        mBuilder = null;
         if (mProgram != null) {
             mProgram.discard();
             if (mVertexArray.unique()) {
@@ -91,26 +96,60 @@ public class GLPipelineState extends PipelineState {
     }
 
     public void release() {
+        if (mAsyncWork != null) {
+            // evicted before use, nothing to finish
+            mAsyncWork.cancel(true);
+            mAsyncWork = null;
+        }
+        if (mBuilder != null) {
+            // the program was never used
+            mBuilder.abandon();
+            mBuilder = null;
+        }
         mProgram = RefCnt.move(mProgram);
         mVertexArray = RefCnt.move(mVertexArray);
         mDataManager = RefCnt.move(mDataManager);
     }
 
-    private void checkAsyncWork() {
+    /**
+     * Advances the creation of this pipeline state, must be called on the render thread.
+     *
+     * @param wait whether to wait for the code generation and the driver
+     * @return true if the creation is done, successful or not; false if it is still pending,
+     * only when not waiting
+     */
+    boolean checkAsyncWork(boolean wait) {
         if (mAsyncWork != null) {
-            boolean success = mAsyncWork.join().finish(this);
-            var stats = mServer.getPipelineStateCache().getStats();
-            if (success) {
-                stats.incNumCompilationSuccesses();
-            } else {
-                stats.incNumCompilationFailures();
+            if (!wait && !mAsyncWork.isDone()) {
+                return false;
             }
+            GLPipelineStateBuilder builder = mAsyncWork.join();
             mAsyncWork = null;
+            if (builder.start()) {
+                mBuilder = builder;
+            } else {
+                mServer.getPipelineStateCache().getStats().incNumCompilationFailures();
+            }
+        }
+        if (mBuilder != null) {
+            if (!wait && !mBuilder.isComplete()) {
+                return false;
+            }
+            // successes and binary cache hits are counted by the builder
+            if (!mBuilder.finish(this)) {
+                mServer.getPipelineStateCache().getStats().incNumCompilationFailures();
+            }
+            mBuilder = null;
         }
+        return true;
     }
 
     public boolean bindPipeline(GLCommandBuffer commandBuffer) {
-        checkAsyncWork();
+        if (!checkAsyncWork(!mServer.getContext().getOptions().mSkipDrawsWithPendingPipelines)) {
+            // skip the draw, rather than stalling the frame
+            mServer.requestRedraw();
+            return false;
+        }
         if (mProgram != null) {
             assert (mVertexArray != null);
             commandBuffer.bindPipeline(mProgram, mVertexArray);
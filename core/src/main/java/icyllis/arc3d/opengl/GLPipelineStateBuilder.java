@@ -22,11 +22,16 @@ import icyllis.arc3d.engine.*;
 import icyllis.arc3d.engine.shading.*;
 import icyllis.arc3d.core.SharedPtr;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.CompletableFuture;
 
 import static icyllis.arc3d.opengl.GLCore.*;
@@ -41,6 +46,13 @@ public class GLPipelineStateBuilder extends ProgramBuilder {
     private String mVertSource;
     private String mFragSource;
 
+    // the following are used on the render thread
+    private int mProgram;
+    private int mVertShader;
+    private int mFragShader;
+    private byte[] mBinaryKey;
+    private boolean mFromBinary;
+
     private GLPipelineStateBuilder(GLServer server,
                                    PipelineDesc desc,
                                    PipelineInfo pipelineInfo) {
@@ -79,68 +91,82 @@ public class GLPipelineStateBuilder extends ProgramBuilder {
         System.out.printf("%s: %s\n", Thread.currentThread(), allShaders);
     }
 
-    boolean finish(GLPipelineState result) {
+    /**
+     * Starts compiling and linking the program on the render thread, or loads it from the
+     * persistent cache. With parallel shader compile, this does not wait for the driver.
+     *
+     * @return false if failed
+     */
+    boolean start() {
         if (mVertSource == null || mFragSource == null) {
             return false;
         }
-        int program = glCreateProgram();
-        if (program == 0) {
-            return false;
+        final PersistentCache persistentCache = mServer.getContext().getOptions().mPersistentCache;
+        if (persistentCache != null && mServer.getCaps().hasProgramBinarySupport()) {
+            mBinaryKey = makeBinaryKey();
+            mProgram = loadProgramBinary(persistentCache.load(mBinaryKey));
+            if (mProgram != 0) {
+                mFromBinary = true;
+                return true;
+            }
         }
-
-        PrintWriter errorWriter = mServer.getContext().getErrorWriter();
-
-        int frag = glCompileAndAttachShader(program, GL_FRAGMENT_SHADER, mFragSource,
-                mServer.getPipelineStateCache().getStats(), errorWriter);
-        if (frag == 0) {
-            glDeleteProgram(program);
+        final PipelineStateCache.Stats stats = mServer.getPipelineStateCache().getStats();
+        mProgram = glCreateProgram();
+        if (mProgram == 0) {
             return false;
         }
-
-        int vert = glCompileAndAttachShader(program, GL_VERTEX_SHADER, mVertSource,
-                mServer.getPipelineStateCache().getStats(), errorWriter);
-        if (vert == 0) {
-            glDeleteProgram(program);
-            glDeleteShader(frag);
+        // compile status is checked after linking, so that compilation can be in parallel
+        mFragShader = compileAndAttachShader(GL_FRAGMENT_SHADER, mFragSource, stats);
+        mVertShader = compileAndAttachShader(GL_VERTEX_SHADER, mVertSource, stats);
+        if (mFragShader == 0 || mVertShader == 0) {
+            deleteProgramAndShaders();
             return false;
         }
+        if (mBinaryKey != null) {
+            // must be set before linking, otherwise the driver may not keep the binary
+            glProgramParameteri(mProgram, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        }
+        glLinkProgram(mProgram);
+        return true;
+    }
 
-        glLinkProgram(program);
+    /**
+     * Returns whether {@link #finish(GLPipelineState)} can be called without waiting for
+     * the driver. This is always true if parallel shader compile is not supported, since
+     * the driver has compiled the program in {@link #start()}.
+     */
+    boolean isComplete() {
+        return mFromBinary || !mServer.getCaps().hasParallelShaderCompileSupport() ||
+                glGetProgrami(mProgram, GL_COMPLETION_STATUS_KHR) != GL_FALSE;
+    }
 
-        if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
-            try {
-                String allShaders = String.format("""
-                        // Vertex GLSL
-                        %s
-                        // Fragment GLSL
-                        %s
-                        """, mVertSource, mFragSource);
-                String log = glGetProgramInfoLog(program).trim();
-                GLCore.handleCompileError(errorWriter, allShaders, log);
+    /**
+     * Checks the link status and initializes the pipeline state, waits for the driver
+     * if it is not complete.
+     *
+     * @return false if failed
+     */
+    boolean finish(GLPipelineState result) {
+        final PipelineStateCache.Stats stats = mServer.getPipelineStateCache().getStats();
+        if (!mFromBinary) {
+            if (glGetProgrami(mProgram, GL_LINK_STATUS) == GL_FALSE) {
+                handleLinkError();
+                deleteProgramAndShaders();
                 return false;
-            } finally {
-                glDeleteProgram(program);
-                glDeleteShader(frag);
-                glDeleteShader(vert);
             }
-        }
 
-        // the shaders can be detached after the linking
-        glDetachShader(program, vert);
-        glDetachShader(program, frag);
+            // the shaders can be detached after the linking
+            glDetachShader(mProgram, mVertShader);
+            glDetachShader(mProgram, mFragShader);
 
-        glDeleteShader(frag);
-        glDeleteShader(vert);
+            glDeleteShader(mFragShader);
+            glDeleteShader(mVertShader);
+            mFragShader = mVertShader = 0;
 
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            IntBuffer pLength = stack.mallocInt(1);
-            IntBuffer pBinaryFormat = stack.mallocInt(1);
-            glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH, pLength);
-            System.out.println(pLength.get(0));
-            if (pLength.get(0) > 0) {
-                ByteBuffer pBinary = stack.malloc(pLength.get(0));
-                glGetProgramBinary(program, pLength, pBinaryFormat, pBinary);
-                System.out.println(pBinaryFormat.get(0));
+            if (mBinaryKey != null) {
+                stats.incNumBinaryCacheMisses();
+                storeProgramBinary(mProgram,
+                        mServer.getContext().getOptions().mPersistentCache, mBinaryKey);
             }
         }
 
@@ -148,19 +174,173 @@ public class GLPipelineStateBuilder extends ProgramBuilder {
         @SharedPtr
         GLVertexArray vertexArray = GLVertexArray.make(mServer, mPipelineInfo.geomProc());
         if (vertexArray == null) {
-            glDeleteProgram(program);
+            glDeleteProgram(mProgram);
             return false;
         }
 
-        result.init(new GLProgram(mServer, program),
+        result.init(new GLProgram(mServer, mProgram),
                 vertexArray,
                 mUniformHandler.mUniforms,
                 mUniformHandler.mCurrentOffset,
                 mUniformHandler.mSamplers,
                 mGPImpl);
+        if (mFromBinary) {
+            stats.incNumBinaryCacheHits();
+        } else {
+            stats.incNumCompilationSuccesses();
+        }
         return true;
     }
 
+    private int compileAndAttachShader(int shaderType, String source, PipelineStateCache.Stats stats) {
+        int shader = glCreateShader(shaderType);
+        if (shader == 0) {
+            return 0;
+        }
+        glShaderSource(shader, source);
+        glCompileShader(shader);
+        stats.incShaderCompilations();
+        glAttachShader(mProgram, shader);
+        return shader;
+    }
+
+    private void handleLinkError() {
+        PrintWriter errorWriter = mServer.getContext().getErrorWriter();
+        // report the shader that failed to compile, otherwise the program log
+        if (glGetShaderi(mFragShader, GL_COMPILE_STATUS) == GL_FALSE) {
+            GLCore.handleCompileError(errorWriter, mFragSource,
+                    glGetShaderInfoLog(mFragShader, 8192).trim());
+        } else if (glGetShaderi(mVertShader, GL_COMPILE_STATUS) == GL_FALSE) {
+            GLCore.handleCompileError(errorWriter, mVertSource,
+                    glGetShaderInfoLog(mVertShader, 8192).trim());
+        } else {
+            String allShaders = String.format("""
+                    // Vertex GLSL
+                    %s
+                    // Fragment GLSL
+                    %s
+                    """, mVertSource, mFragSource);
+            GLCore.handleCompileError(errorWriter, allShaders,
+                    glGetProgramInfoLog(mProgram).trim());
+        }
+    }
+
+    /**
+     * Deletes the program that was started but will not be finished.
+     */
+    void abandon() {
+        deleteProgramAndShaders();
+    }
+
+    private void deleteProgramAndShaders() {
+        if (mProgram != 0) {
+            glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+        if (mFragShader != 0) {
+            glDeleteShader(mFragShader);
+            mFragShader = 0;
+        }
+        if (mVertShader != 0) {
+            glDeleteShader(mVertShader);
+            mVertShader = 0;
+        }
+    }
+
+    /**
+     * The key of persistent cache: the driver info, the pipeline desc and the SHA-1 digest of
+     * the generated sources, the latter is in case the shader code generation is changed between
+     * versions but the desc is not.
+     */
+    @Nonnull
+    private byte[] makeBinaryKey() {
+        byte[] driverInfo = mServer.getCaps().getDriverInfo().getBytes(StandardCharsets.UTF_8);
+        byte[] sourceDigest;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            // the length separates the two sources
+            byte[] vertSource = mVertSource.getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).putInt(vertSource.length).array());
+            digest.update(vertSource);
+            digest.update(mFragSource.getBytes(StandardCharsets.UTF_8));
+            sourceDigest = digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new AssertionError(e);
+        }
+        int descSize = mDesc.size();
+        ByteBuffer key = ByteBuffer.allocate(4 + driverInfo.length + 4 * descSize +
+                sourceDigest.length);
+        key.putInt(driverInfo.length).put(driverInfo);
+        for (int i = 0; i < descSize; i++) {
+            key.putInt(mDesc.getInt(i));
+        }
+        key.put(sourceDigest);
+        return key.array();
+    }
+
+    /**
+     * Creates a program from the data of persistent cache, which is the binary format
+     * followed by the binary.
+     *
+     * @return the program or 0 if the data is absent or rejected by the driver
+     */
+    private int loadProgramBinary(@Nullable byte[] data) {
+        if (data == null || data.length <= 4) {
+            return 0;
+        }
+        int binaryFormat = ByteBuffer.wrap(data).getInt();
+        boolean supported = false;
+        for (int format : mServer.getCaps().mProgramBinaryFormats) {
+            if (format == binaryFormat) {
+                supported = true;
+                break;
+            }
+        }
+        if (!supported) {
+            return 0;
+        }
+        int program = glCreateProgram();
+        if (program == 0) {
+            return 0;
+        }
+        ByteBuffer binary = MemoryUtil.memAlloc(data.length - 4);
+        try {
+            binary.put(data, 4, data.length - 4).flip();
+            glProgramBinary(program, binaryFormat, binary);
+        } finally {
+            MemoryUtil.memFree(binary);
+        }
+        // the driver may reject binaries of another driver version, just recompile
+        if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+            glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private static void storeProgramBinary(int program, PersistentCache persistentCache, byte[] key) {
+        int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) {
+            return;
+        }
+        ByteBuffer binary = MemoryUtil.memAlloc(length);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer pLength = stack.mallocInt(1);
+            IntBuffer pBinaryFormat = stack.mallocInt(1);
+            glGetProgramBinary(program, pLength, pBinaryFormat, binary);
+            length = pLength.get(0);
+            if (length <= 0) {
+                return;
+            }
+            byte[] data = new byte[4 + length];
+            ByteBuffer.wrap(data).putInt(pBinaryFormat.get(0)).put(binary.limit(length));
+            persistentCache.store(key, data);
+        } finally {
+            MemoryUtil.memFree(binary);
+        }
+    }
+
     @Override
     public Caps caps() {
         return mServer.getCaps();
@@ -20,35 +20,60 @@ package icyllis.arc3d.opengl;
 
 import icyllis.arc3d.engine.*;
 import icyllis.modernui.annotation.Nullable;
-import it.unimi.dsi.fastutil.Hash;
 import org.jetbrains.annotations.VisibleForTesting;
 
 import javax.annotation.Nonnull;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
 
-//TODO cache trim
+/**
+ * Caches {@link GLPipelineState}s by {@link PipelineDesc}, with at most cacheSize entries.
+ * The least recently used pipeline state is evicted when the cache is full. Draw ops that
+ * have been prepared may still hold an evicted pipeline state, so it is released at the end
+ * of the second flush after the eviction, by then these ops have been executed. The GL driver
+ * keeps the program alive while it is referenced by submitted commands.
+ */
 public class GLPipelineStateCache extends PipelineStateCache {
 
     private final GLServer mServer;
 
     private final int mCacheSize;
-    private final ConcurrentHashMap<Key, GLPipelineState> mCache;
+    // access-ordered, guarded by itself
+    private final LinkedHashMap<Key, GLPipelineState> mCache;
+
+    // evicted since the last flush, and evicted before the last flush
+    private ArrayList<GLPipelineState> mEvicted = new ArrayList<>();
+    private ArrayList<GLPipelineState> mPendingRelease = new ArrayList<>();
+
+    // declared by precompile() and not ready yet
+    private final ArrayList<GLPipelineState> mPrecompiling = new ArrayList<>();
 
     @VisibleForTesting
     public GLPipelineStateCache(GLServer server, int cacheSize) {
+        assert (cacheSize > 0);
         mServer = server;
         mCacheSize = cacheSize;
-        mCache = new ConcurrentHashMap<>(cacheSize, Hash.FAST_LOAD_FACTOR);
+        mCache = new LinkedHashMap<>(16, 0.75f, /*accessOrder*/true);
     }
 
     public void discard() {
-        mCache.values().forEach(GLPipelineState::discard);
+        synchronized (mCache) {
+            mCache.values().forEach(GLPipelineState::discard);
+            mEvicted.forEach(GLPipelineState::discard);
+            mPendingRelease.forEach(GLPipelineState::discard);
+        }
         release();
     }
 
     public void release() {
-        mCache.values().forEach(GLPipelineState::release);
-        mCache.clear();
+        synchronized (mCache) {
+            mCache.values().forEach(GLPipelineState::release);
+            mCache.clear();
+            mEvicted.forEach(GLPipelineState::release);
+            mEvicted.clear();
+            mPendingRelease.forEach(GLPipelineState::release);
+            mPendingRelease.clear();
+            mPrecompiling.clear();
+        }
     }
 
     @Nullable
@@ -65,28 +90,62 @@ public class GLPipelineStateCache extends PipelineStateCache {
     @Nonnull
     private GLPipelineState findOrCreatePipelineStateImpl(PipelineDesc desc,
                                                           final PipelineInfo pipelineInfo) {
-        GLPipelineState existing = mCache.get(desc);
-        if (existing != null) {
-            return existing;
+        synchronized (mCache) {
+            GLPipelineState existing = mCache.get(desc);
+            if (existing != null) {
+                mStats.incNumCacheHits();
+                return existing;
+            }
+            // We have a cache miss, the compilation is async so this is cheap
+            mStats.incNumCacheMisses();
+            desc = new PipelineDesc(desc);
+            GLPipelineState newPipelineState = GLPipelineStateBuilder.createPipelineState(mServer, desc, pipelineInfo);
+            mCache.put(desc.toKey(), newPipelineState);
+            if (mCache.size() > mCacheSize) {
+                Iterator<GLPipelineState> it = mCache.values().iterator();
+                mEvicted.add(it.next());
+                it.remove();
+                mStats.incNumEvictions();
+                assert (mCache.size() == mCacheSize);
+            }
+            return newPipelineState;
+        }
+    }
+
+    @Override
+    public void precompile(final PipelineDesc desc,
+                           final PipelineInfo pipelineInfo) {
+        GLPipelineState pipelineState = findOrCreatePipelineState(desc, pipelineInfo);
+        synchronized (mCache) {
+            mPrecompiling.add(pipelineState);
+        }
+    }
+
+    @Override
+    public int checkPrecompiling() {
+        synchronized (mCache) {
+            // evicted ones are released and done
+            mPrecompiling.removeIf(pipelineState -> pipelineState.checkAsyncWork(/*wait*/false));
+            return mPrecompiling.size();
         }
-        // We have a cache miss
-        desc = new PipelineDesc(desc);
-        GLPipelineState newPipelineState = GLPipelineStateBuilder.createPipelineState(mServer, desc, pipelineInfo);
-        existing = mCache.putIfAbsent(desc.toKey(), newPipelineState);
-        if (existing != null) {
-            // there's a race, reuse existing
-            newPipelineState.discard();
-            return existing;
+    }
+
+    @Override
+    protected void purgeEvicted() {
+        synchronized (mCache) {
+            if (!mPendingRelease.isEmpty()) {
+                mPendingRelease.forEach(GLPipelineState::release);
+                mPendingRelease.clear();
+            }
+            var temp = mPendingRelease;
+            mPendingRelease = mEvicted;
+            mEvicted = temp;
         }
-        /*if (mCache.size() >= mCacheSize) {
-            mCache.removeFirst().release();
-            assert (mCache.size() < mCacheSize);
-        }*/
-        return newPipelineState;
     }
 
     @Override
     public void close() {
         assert (mCache.isEmpty());
+        assert (mEvicted.isEmpty() && mPendingRelease.isEmpty());
     }
 }
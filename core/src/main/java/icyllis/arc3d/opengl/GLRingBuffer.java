@@ -0,0 +1,219 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.arc3d.opengl;
+
+import icyllis.arc3d.core.MathUtil;
+import icyllis.arc3d.core.SharedPtr;
+import icyllis.arc3d.engine.Engine;
+
+import javax.annotation.Nonnull;
+
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * A triple-buffered ring of one streaming buffer, used to sub-allocate per-frame data,
+ * such as vertices and uniform blocks. The buffer is split into {@link #REGION_COUNT}
+ * regions, each frame writes into the next region, and a fence is inserted after the
+ * frame is submitted. A region is reused only after its fence is signalled, so the CPU
+ * never overwrites data that the GPU is reading.
+ * <p>
+ * With buffer storage, the buffer is persistently mapped (coherent), data is written in
+ * place and visible to subsequent GL commands, so allocations may interleave with draw
+ * calls. Otherwise, the region is locked with a CPU staging buffer, and uploaded when
+ * {@link #end()} is called, so all data must be written before the draw calls.
+ * <p>
+ * The usage is:
+ * <pre>{@code
+ * if (!ring.begin(requiredSize)) {
+ *     // error
+ * }
+ * int offset = ring.allocate(size);
+ * write(ring.getPointer(offset), size);
+ * ring.end();
+ * // draw with ring.getBuffer() and offset
+ * ring.submit();
+ * }</pre>
+ */
+public final class GLRingBuffer {
+
+    /**
+     * The number of regions, i.e. the number of frames that the GPU may be reading.
+     */
+    public static final int REGION_COUNT = 3;
+
+    private final GLServer mServer;
+    private final int mUsage;
+    private final int mAlignment;
+    private final String mLabel;
+
+    @SharedPtr
+    private GLBuffer mBuffer;
+    private int mRegionSize;
+
+    // fences of regions, 0 if not in use
+    private final long[] mFences = new long[REGION_COUNT];
+    private int mRegion = REGION_COUNT - 1;
+
+    // the locked region, NULL if not in a frame
+    private long mRegionPtr = NULL;
+    private int mRegionOffset;
+    private int mUsedBytes;
+
+    /**
+     * @param server    the server
+     * @param usage     buffer type, {@link Engine.BufferUsageFlags#kVertex} or
+     *                  {@link Engine.BufferUsageFlags#kUniform}
+     * @param alignment the alignment of each allocation, not necessarily a power of two
+     * @param label     the label of the buffer, for debugging
+     */
+    public GLRingBuffer(GLServer server, int usage, int alignment, String label) {
+        assert alignment > 0;
+        mServer = server;
+        mUsage = usage | Engine.BufferUsageFlags.kStreaming;
+        mAlignment = alignment;
+        mLabel = label;
+    }
+
+    /**
+     * Begins a frame, waits for the GPU to finish the frame that used the next region,
+     * then locks the region. The buffer is recreated if the region is smaller than the
+     * required size.
+     *
+     * @param requiredSize the total size of allocations of this frame, including the padding
+     *                     for alignment
+     * @return true if success, false if failed to create or lock the buffer
+     */
+    public boolean begin(int requiredSize) {
+        if (mRegionPtr != NULL) {
+            // the previous frame is abandoned
+            end();
+        }
+        int region = (mRegion + 1) % REGION_COUNT;
+        if (mBuffer == null || mRegionSize < requiredSize) {
+            int regionSize = MathUtil.alignUp(Math.max(requiredSize,
+                    mRegionSize + (mRegionSize >> 1)), mAlignment);
+            @SharedPtr
+            GLBuffer buffer = GLBuffer.make(mServer, regionSize * REGION_COUNT, mUsage);
+            if (buffer == null) {
+                return false;
+            }
+            buffer.setLabel(mLabel);
+            // the old buffer may be still in use, GL deletes it after the GPU finishes
+            mBuffer = GLBuffer.move(mBuffer, buffer);
+            mRegionSize = regionSize;
+            // the new buffer is not in use
+            for (int i = 0; i < REGION_COUNT; i++) {
+                if (mFences[i] != 0) {
+                    mServer.deleteFence(mFences[i]);
+                    mFences[i] = 0;
+                }
+            }
+            region = 0;
+        } else if (mFences[region] != 0) {
+            // this rarely blocks, unless the GPU is REGION_COUNT frames behind
+            if (!mServer.checkFence(mFences[region])) {
+                mServer.waitForFence(mFences[region]);
+            }
+            mServer.deleteFence(mFences[region]);
+            mFences[region] = 0;
+        }
+        mRegion = region;
+        mRegionOffset = region * mRegionSize;
+        mUsedBytes = 0;
+        mRegionPtr = mBuffer.lock(mRegionOffset, mRegionSize);
+        return mRegionPtr != NULL;
+    }
+
+    /**
+     * Allocates a slice in the current region.
+     *
+     * @param size the size in bytes
+     * @return the offset in bytes of the slice, relative to the whole buffer
+     */
+    public int allocate(int size) {
+        assert mRegionPtr != NULL;
+        int offset = MathUtil.alignUp(mUsedBytes, mAlignment);
+        if (offset + size > mRegionSize) {
+            throw new IllegalStateException("Ring buffer " + mLabel + " overflow, required " +
+                    (offset + size) + " bytes, but begin with " + mRegionSize + " bytes");
+        }
+        mUsedBytes = offset + size;
+        return mRegionOffset + offset;
+    }
+
+    /**
+     * Returns the pointer to write the slice, valid until {@link #end()}.
+     *
+     * @param offset the offset returned by {@link #allocate(int)}
+     * @return the pointer to the slice
+     */
+    public long getPointer(int offset) {
+        assert mRegionPtr != NULL;
+        assert offset >= mRegionOffset && offset <= mRegionOffset + mUsedBytes;
+        return mRegionPtr + (offset - mRegionOffset);
+    }
+
+    /**
+     * Unlocks the current region. If not persistently mapped, this uploads the data.
+     */
+    public void end() {
+        if (mRegionPtr != NULL) {
+            mBuffer.unlock(mRegionOffset, mUsedBytes);
+            mRegionPtr = NULL;
+        }
+    }
+
+    /**
+     * Inserts a fence for the current region, after the commands that read the region
+     * have been submitted.
+     */
+    public void submit() {
+        end();
+        if (mBuffer != null && mFences[mRegion] == 0) {
+            mFences[mRegion] = mServer.insertFence();
+        }
+    }
+
+    /**
+     * @return the buffer of the current region, raw ptr
+     */
+    @Nonnull
+    public GLBuffer getBuffer() {
+        assert mBuffer != null;
+        return mBuffer;
+    }
+
+    /**
+     * @return true if data is written in place, without a CPU staging buffer
+     */
+    public boolean isPersistentlyMapped() {
+        return mBuffer != null && mBuffer.isPersistentlyMapped();
+    }
+
+    public void release() {
+        end();
+        for (int i = 0; i < REGION_COUNT; i++) {
+            if (mFences[i] != 0) {
+                mServer.deleteFence(mFences[i]);
+                mFences[i] = 0;
+            }
+        }
+        mBuffer = GLBuffer.move(mBuffer);
+    }
+}
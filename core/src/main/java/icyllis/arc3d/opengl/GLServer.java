@@ -163,7 +163,8 @@ public final class GLServer extends Server {
         mCaps = caps;
         mMainCmdBuffer = new GLCommandBuffer(this);
         mResourceProvider = new GLResourceProvider(this, context);
-        mPipelineStateCache = new GLPipelineStateCache(this, 256);
+        mPipelineStateCache = new GLPipelineStateCache(this,
+                context.getOptions().mMaxRuntimeProgramCacheSize);
         mCpuBufferCache = new CpuBufferCache(6);
         mVertexPool = BufferAllocPool.makeVertexPool(context);
         mInstancePool = BufferAllocPool.makeInstancePool(context);
@@ -607,17 +608,34 @@ public final class GLServer extends Server {
 
     @Override
     public long insertFence() {
-        return 0;
+        return glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
     }
 
     @Override
     public boolean checkFence(long fence) {
-        return false;
+        int status = glClientWaitSync(fence, 0, 0L);
+        return status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED;
+    }
+
+    /**
+     * Blocks the current thread until a fence previously returned by {@link #insertFence()}
+     * is signalled. The commands before the fence are flushed first, otherwise the fence may
+     * never be signalled.
+     *
+     * @param fence the handle to the fence, cannot be null
+     */
+    public void waitForFence(long fence) {
+        int status = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 0L);
+        while (status == GL_TIMEOUT_EXPIRED) {
+            // 1 millisecond
+            status = glClientWaitSync(fence, 0, 1_000_000L);
+        }
+        assert status != GL_WAIT_FAILED;
     }
 
     @Override
     public void deleteFence(long fence) {
-
+        glDeleteSync(fence);
     }
 
     @Override
@@ -19,6 +19,9 @@
 package icyllis.modernui;
 
 import icyllis.arc3d.core.Matrix4;
+import icyllis.arc3d.engine.ContextOptions;
+import icyllis.arc3d.engine.DirectContext;
+import icyllis.arc3d.engine.FilePersistentCache;
 import icyllis.arc3d.opengl.GLCore;
 import icyllis.arc3d.opengl.GLFramebufferCompat;
 import icyllis.modernui.annotation.*;
@@ -28,6 +31,7 @@ import icyllis.modernui.fragment.*;
 import icyllis.modernui.graphics.*;
 import icyllis.modernui.graphics.drawable.Drawable;
 import icyllis.modernui.graphics.drawable.ImageDrawable;
+import icyllis.modernui.graphics.font.GlyphManager;
 import icyllis.modernui.graphics.text.FontFamily;
 import icyllis.modernui.lifecycle.*;
 import icyllis.modernui.resources.Resources;
@@ -43,6 +47,7 @@ import org.lwjgl.glfw.GLFWMonitorCallback;
 import org.lwjgl.glfw.GLFWWindowCloseCallback;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.system.Configuration;
+import org.lwjgl.system.Platform;
 
 import java.io.*;
 import java.nio.channels.*;
@@ -85,6 +90,7 @@ public class ModernUI extends Activity implements AutoCloseable, LifecycleOwner
     private ViewRootImpl mRoot;
     private WindowGroup mDecor;
     private FragmentContainerView mFragmentContainerView;
+    private Runnable mGlyphReadyCallback;
 
     private LifecycleRegistry mLifecycleRegistry;
     private OnBackPressedDispatcher mOnBackPressedDispatcher;
@@ -249,6 +255,11 @@ public class ModernUI extends Activity implements AutoCloseable, LifecycleOwner
 
         mRoot.setView(mDecor);
 
+        // glyphs rasterized in background are drawn in the next frame, only the text
+        // that skipped them is repainted
+        mGlyphReadyCallback = () -> mRoot.mHandler.post(mRoot::invalidatePendingGlyphs);
+        GlyphManager.getInstance().addGlyphReadyCallback(mGlyphReadyCallback);
+
         LOGGER.info(MARKER, "Installing view protocol");
 
         mWindow.install(mRoot);
@@ -291,17 +302,53 @@ public class ModernUI extends Activity implements AutoCloseable, LifecycleOwner
         mFragmentController.dispatchDestroy();
         mLifecycleRegistry.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY);
 
+        // the callback holds the view hierarchy
+        GlyphManager.getInstance().removeGlyphReadyCallback(mGlyphReadyCallback);
+        mGlyphReadyCallback = null;
+
         Core.requireUiRecordingContext().unref();
         LOGGER.info(MARKER, "Quited main thread");
     }
 
+    /**
+     * Returns the directory to store caches that can be rebuilt, such as program binaries.
+     * The default is the user cache directory of the platform, which does not depend on
+     * the working directory.
+     *
+     * @return the cache directory, may not exist yet
+     */
+    @NonNull
+    protected Path getCacheDirectory() {
+        final Path base = switch (Platform.get()) {
+            case WINDOWS -> {
+                String localAppData = System.getenv("LOCALAPPDATA");
+                yield localAppData != null
+                        ? Path.of(localAppData)
+                        : Path.of(System.getProperty("user.home"), "AppData", "Local");
+            }
+            case MACOSX -> Path.of(System.getProperty("user.home"), "Library", "Caches");
+            default -> {
+                String cacheHome = System.getenv("XDG_CACHE_HOME");
+                yield cacheHome != null && !cacheHome.isEmpty()
+                        ? Path.of(cacheHome)
+                        : Path.of(System.getProperty("user.home"), ".cache");
+            }
+        };
+        return base.toAbsolutePath().resolve(ID);
+    }
+
     @RenderThread
     private void runRender(CountDownLatch latch) {
         LOGGER.info(MARKER, "Initializing render thread");
         final Window window = mWindow;
         window.makeCurrent();
         try {
-            if (!Core.initOpenGL()) {
+            final ContextOptions options = new ContextOptions();
+            // program binaries, so that shaders are not recompiled on every launch
+            options.mPersistentCache = new FilePersistentCache(getCacheDirectory().resolve("programs"));
+            // don't stall a frame on compiling shaders, draw again when they are ready
+            options.mSkipDrawsWithPendingPipelines = true;
+            if (!Core.initOpenGL(options)) {
                 GLCore.showCapsErrorDialog();
                 throw new IllegalStateException("Failed to initialize OpenGL");
             }
@@ -311,7 +358,9 @@ public class ModernUI extends Activity implements AutoCloseable, LifecycleOwner
 
         GLCore.setupDebugCallback();
 
+        // the canvas programs are compiled here, in parallel if supported
         final GLSurfaceCanvas canvas = GLSurfaceCanvas.initialize();
+        final DirectContext dContext = Core.requireDirectContext();
 
         glDisable(GL_CULL_FACE);
         glEnable(GL_BLEND);
@@ -338,6 +387,11 @@ public class ModernUI extends Activity implements AutoCloseable, LifecycleOwner
             if (mRoot != null) {
                 mRoot.mChoreographer.scheduleFrameAsync(Core.timeNanos());
             }
+            dContext.checkPrecompiledPipelines();
+            if (dContext.checkRedrawRequested() && mRoot != null) {
+                // some draws were skipped because their pipelines were not ready
+                mRoot.mHandler.post(mRoot::invalidateSkippedDraws);
+            }
             if (flushSurface) {
                 int width = window.getWidth(), height = window.getHeight();
                 if (framebuffer.getAttachment(GL_COLOR_ATTACHMENT0).getWidth() > 0) {
@@ -346,12 +400,13 @@ public class ModernUI extends Activity implements AutoCloseable, LifecycleOwner
                             width, height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
                 }
                 window.swapBuffers();
+                dContext.performDeferredCleanup();
             } else {
                 LockSupport.parkNanos((long) (1.0 / 576 * 1e9));
             }
         }
         GLSurfaceCanvas.getInstance().destroy();
-        Core.requireDirectContext().unref();
+        dContext.unref();
         LOGGER.info(MARKER, "Quited render thread");
     }
 
@@ -497,13 +552,35 @@ public class ModernUI extends Activity implements AutoCloseable, LifecycleOwner
     class ViewRootImpl extends ViewRoot {
 
         private final Rect mGlobalRect = new Rect();
+        private final Rect mPendingGlyphBounds = new Rect();
+        private final Matrix4 mProjection = new Matrix4();
 
-        @NonNull
+        @Nullable
         @Override
-        protected Canvas beginRecording(int width, int height) {
+        protected Canvas beginRecording(int width, int height, @NonNull Rect dirty) {
             GLSurfaceCanvas canvas = GLSurfaceCanvas.getInstance();
-            canvas.reset(width, height);
-            return canvas;
+            if (canvas.beginRecording(width, height, dirty)) {
+                return canvas;
+            }
+            return null;
+        }
+
+        @Override
+        protected void endRecording(@NonNull Canvas canvas) {
+            ((GLSurfaceCanvas) canvas).endRecording();
+        }
+
+        @UiThread
+        void invalidateSkippedDraws() {
+            // the skipped draws are not tracked, repaint the whole window
+            invalidate();
+        }
+
+        @UiThread
+        void invalidatePendingGlyphs() {
+            if (GLSurfaceCanvas.getInstance().takePendingGlyphBounds(mPendingGlyphBounds)) {
+                invalidateRect(mPendingGlyphBounds);
+            }
         }
 
         @Override
@@ -536,18 +613,11 @@ public class ModernUI extends Activity implements AutoCloseable, LifecycleOwner
 
         @RenderThread
         private boolean flushDrawCommands(GLSurfaceCanvas canvas, Window window, GLFramebufferCompat framebuffer) {
-            synchronized (mRenderLock) {
-                int width = window.getWidth(), height = window.getHeight();
-                if (mRedrawn) {
-                    final Matrix4 projection = new Matrix4();
-                    canvas.setProjection(projection.setOrthographic(width, height, 0, Window.LAST_SYSTEM_WINDOW * 2 + 1,
-                            true));
-                    mRedrawn = false;
-                    canvas.executeDrawOps(framebuffer);
-                    return true;
-                }
-                return false;
-            }
+            // recording is double-buffered, no lock is required
+            int width = window.getWidth(), height = window.getHeight();
+            canvas.setProjection(mProjection.setOrthographic(width, height, 0, Window.LAST_SYSTEM_WINDOW * 2 + 1,
+                    true));
+            return canvas.executeDrawOps(framebuffer);
         }
 
         @Override
@@ -0,0 +1,207 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.graphics;
+
+import icyllis.arc3d.core.Blender;
+import icyllis.arc3d.core.Matrix4;
+import icyllis.modernui.annotation.NonNull;
+import icyllis.modernui.graphics.text.Font;
+
+import java.nio.*;
+
+/**
+ * Immutable drawing operations recorded by {@link RecordingCanvas}. The operations
+ * are stored in primitive arrays and replayed in order.
+ */
+final class DisplayList {
+
+    static final byte OP_SAVE = 0;
+    static final byte OP_SAVE_LAYER = 1;
+    static final byte OP_RESTORE = 2;
+    static final byte OP_RESTORE_TO_COUNT = 3;
+    static final byte OP_SET_MATRIX = 4;
+    static final byte OP_CLIP_RECT = 5;
+    static final byte OP_DRAW_LINE = 6;
+    static final byte OP_DRAW_RECT = 7;
+    static final byte OP_DRAW_RECT_GRADIENT = 8;
+    static final byte OP_DRAW_ROUND_RECT = 9;
+    static final byte OP_DRAW_ROUND_RECT_GRADIENT = 10;
+    static final byte OP_DRAW_CIRCLE = 11;
+    static final byte OP_DRAW_ARC = 12;
+    static final byte OP_DRAW_PIE = 13;
+    static final byte OP_DRAW_BEZIER = 14;
+    static final byte OP_DRAW_IMAGE = 15;
+    static final byte OP_DRAW_IMAGE_RECT = 16;
+    static final byte OP_DRAW_ROUND_IMAGE = 17;
+    static final byte OP_DRAW_GLYPHS = 18;
+    static final byte OP_DRAW_MESH = 19;
+    static final byte OP_DRAW_CUSTOM = 20;
+    static final byte OP_DRAW_RENDER_NODE = 21;
+
+    private final byte[] mOps;
+    private final float[] mFloats;
+    private final int[] mInts;
+    private final Object[] mObjects;
+
+    final int mWidth;
+    final int mHeight;
+
+    DisplayList(byte[] ops, float[] floats, int[] ints, Object[] objects, int width, int height) {
+        mOps = ops;
+        mFloats = floats;
+        mInts = ints;
+        mObjects = objects;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    int getOpCount() {
+        return mOps.length;
+    }
+
+    /**
+     * Replays the operations to the given canvas. The current matrix of the canvas
+     * is used as the base matrix, and the canvas state will be restored after this.
+     *
+     * @param canvas     the target canvas
+     * @param baseMatrix a temporary matrix holding the base matrix
+     */
+    void replay(@NonNull Canvas canvas, @NonNull Matrix4 baseMatrix) {
+        final int restoreCount = canvas.save();
+        baseMatrix.set(canvas.getMatrix());
+
+        final float[] f = mFloats;
+        final int[] n = mInts;
+        final Object[] o = mObjects;
+        int fi = 0, ni = 0, oi = 0;
+
+        for (byte op : mOps) {
+            switch (op) {
+                case OP_SAVE -> canvas.save();
+                case OP_SAVE_LAYER -> {
+                    canvas.saveLayer(f[fi], f[fi + 1], f[fi + 2], f[fi + 3], n[ni++]);
+                    fi += 4;
+                }
+                case OP_RESTORE -> canvas.restore();
+                case OP_RESTORE_TO_COUNT -> canvas.restoreToCount(restoreCount + n[ni++]);
+                case OP_SET_MATRIX -> {
+                    Matrix4 matrix = canvas.getMatrix();
+                    matrix.set(baseMatrix);
+                    matrix.preConcat((Matrix4) o[oi++]);
+                }
+                case OP_CLIP_RECT -> {
+                    canvas.clipRect(f[fi], f[fi + 1], f[fi + 2], f[fi + 3]);
+                    fi += 4;
+                }
+                case OP_DRAW_LINE -> {
+                    canvas.drawLine(f[fi], f[fi + 1], f[fi + 2], f[fi + 3], f[fi + 4],
+                            (Paint) o[oi++]);
+                    fi += 5;
+                }
+                case OP_DRAW_RECT -> {
+                    canvas.drawRect(f[fi], f[fi + 1], f[fi + 2], f[fi + 3], (Paint) o[oi++]);
+                    fi += 4;
+                }
+                case OP_DRAW_RECT_GRADIENT -> {
+                    canvas.drawRectGradient(f[fi], f[fi + 1], f[fi + 2], f[fi + 3],
+                            n[ni], n[ni + 1], n[ni + 2], n[ni + 3], (Paint) o[oi++]);
+                    fi += 4;
+                    ni += 4;
+                }
+                case OP_DRAW_ROUND_RECT -> {
+                    canvas.drawRoundRect(f[fi], f[fi + 1], f[fi + 2], f[fi + 3], f[fi + 4],
+                            n[ni++], (Paint) o[oi++]);
+                    fi += 5;
+                }
+                case OP_DRAW_ROUND_RECT_GRADIENT -> {
+                    canvas.drawRoundRectGradient(f[fi], f[fi + 1], f[fi + 2], f[fi + 3],
+                            n[ni], n[ni + 1], n[ni + 2], n[ni + 3], f[fi + 4], (Paint) o[oi++]);
+                    fi += 5;
+                    ni += 4;
+                }
+                case OP_DRAW_CIRCLE -> {
+                    canvas.drawCircle(f[fi], f[fi + 1], f[fi + 2], (Paint) o[oi++]);
+                    fi += 3;
+                }
+                case OP_DRAW_ARC -> {
+                    canvas.drawArc(f[fi], f[fi + 1], f[fi + 2], f[fi + 3], f[fi + 4], (Paint) o[oi++]);
+                    fi += 5;
+                }
+                case OP_DRAW_PIE -> {
+                    canvas.drawPie(f[fi], f[fi + 1], f[fi + 2], f[fi + 3], f[fi + 4], (Paint) o[oi++]);
+                    fi += 5;
+                }
+                case OP_DRAW_BEZIER -> {
+                    canvas.drawBezier(f[fi], f[fi + 1], f[fi + 2], f[fi + 3], f[fi + 4], f[fi + 5],
+                            (Paint) o[oi++]);
+                    fi += 6;
+                }
+                case OP_DRAW_IMAGE -> {
+                    canvas.drawImage((Image) o[oi], f[fi], f[fi + 1], (Paint) o[oi + 1]);
+                    fi += 2;
+                    oi += 2;
+                }
+                case OP_DRAW_IMAGE_RECT -> {
+                    canvas.drawImage((Image) o[oi], f[fi], f[fi + 1], f[fi + 2], f[fi + 3],
+                            f[fi + 4], f[fi + 5], f[fi + 6], f[fi + 7], (Paint) o[oi + 1]);
+                    fi += 8;
+                    oi += 2;
+                }
+                case OP_DRAW_ROUND_IMAGE -> {
+                    canvas.drawRoundImage((Image) o[oi], f[fi], f[fi + 1], f[fi + 2], (Paint) o[oi + 1]);
+                    fi += 3;
+                    oi += 2;
+                }
+                case OP_DRAW_GLYPHS -> {
+                    int[] glyphs = (int[]) o[oi];
+                    canvas.drawGlyphs(glyphs, 0, (float[]) o[oi + 1], 0, glyphs.length,
+                            (Font) o[oi + 2], f[fi], f[fi + 1], (Paint) o[oi + 3]);
+                    fi += 2;
+                    oi += 4;
+                }
+                case OP_DRAW_MESH -> {
+                    // duplicate buffers to keep positions unchanged
+                    FloatBuffer tex = (FloatBuffer) o[oi + 3];
+                    IntBuffer color = (IntBuffer) o[oi + 2];
+                    ShortBuffer indices = (ShortBuffer) o[oi + 4];
+                    canvas.drawMesh((Canvas.VertexMode) o[oi], ((FloatBuffer) o[oi + 1]).duplicate(),
+                            color != null ? color.duplicate() : null,
+                            tex != null ? tex.duplicate() : null,
+                            indices != null ? indices.duplicate() : null,
+                            (Blender) o[oi + 5], (Paint) o[oi + 6]);
+                    oi += 7;
+                }
+                case OP_DRAW_CUSTOM -> {
+                    canvas.drawCustomDrawable((CustomDrawable) o[oi], (Matrix4) o[oi + 1]);
+                    oi += 2;
+                }
+                case OP_DRAW_RENDER_NODE -> {
+                    // the node is outside the clip (e.g. the damage region), skip the subtree
+                    RenderNode node = (RenderNode) o[oi++];
+                    if (!canvas.isClipEmpty()) {
+                        node.draw(canvas);
+                    }
+                }
+                default -> throw new IllegalStateException("Unexpected op " + op);
+            }
+        }
+
+        canvas.restoreToCount(restoreCount);
+    }
+}
@@ -104,6 +104,11 @@ public abstract class GLCanvas extends Canvas {
         return mSaves.element().mMatrix;
     }
 
+    @Override
+    public boolean isClipEmpty() {
+        return getSave().mClip.isEmpty();
+    }
+
     @Nonnull
     Save getSave() {
         return mSaves.getFirst();
@@ -21,6 +21,7 @@ package icyllis.modernui.graphics;
 import icyllis.arc3d.core.*;
 import icyllis.arc3d.engine.*;
 import icyllis.arc3d.engine.geom.DefaultGeoProc;
+import icyllis.arc3d.engine.geom.SDFShapeGeoProc;
 import icyllis.arc3d.engine.shading.UniformHandler;
 import icyllis.arc3d.opengl.*;
 import icyllis.modernui.ModernUI;
@@ -28,8 +29,8 @@ import icyllis.modernui.annotation.*;
 import icyllis.modernui.core.Core;
 import icyllis.modernui.graphics.font.GLBakedGlyph;
 import icyllis.modernui.graphics.font.GlyphManager;
-import icyllis.modernui.graphics.text.Font;
-import icyllis.modernui.graphics.text.StandardFont;
+import icyllis.modernui.graphics.text.*;
+import icyllis.modernui.text.TextUtils;
 import icyllis.modernui.view.Gravity;
 import it.unimi.dsi.fastutil.bytes.ByteArrayList;
 import it.unimi.dsi.fastutil.ints.*;
@@ -38,8 +39,10 @@ import org.lwjgl.system.MemoryUtil;
 
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static icyllis.arc3d.opengl.GLCore.*;
 import static org.lwjgl.system.MemoryUtil.*;
@@ -136,10 +139,6 @@ public final class GLSurfaceCanvas extends GLCanvas {
      */
     public static final int MATRIX_UNIFORM_SIZE = 144;
     public static final int SMOOTH_UNIFORM_SIZE = 4;
-    public static final int ARC_UNIFORM_SIZE = 24;
-    public static final int BEZIER_UNIFORM_SIZE = 28;
-    public static final int CIRCLE_UNIFORM_SIZE = 16;
-    public static final int ROUND_RECT_UNIFORM_SIZE = 24;
 
     static {
         //POS = new GLVertexAttrib(GENERIC_BINDING, GLVertexAttrib.Src.FLOAT, GLVertexAttrib.Dst.VEC2, false);
@@ -165,6 +164,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
     private GLProgram ARC_STROKE;
     private GLProgram BEZIER_CURVE;
     private GLProgram ALPHA_TEX;
+    private GLProgram GLYPH_SDF;
     private GLProgram COLOR_TEX_PRE;
     private GLProgram GLOW_WAVE;
     private GLProgram PIE_FILL;
@@ -175,48 +175,88 @@ public final class GLSurfaceCanvas extends GLCanvas {
     private GLVertexArray POS_COLOR;
     private GLVertexArray POS_COLOR_TEX;
     private GLVertexArray POS_TEX;
+    private GLVertexArray SHAPE;
+    private GLVertexArray SHAPE_TEX;
 
     /**
      * pos vec2 + color ubyte4 + uv vec2
      */
     public static final int TEXTURE_RECT_VERTEX_SIZE = 20;
 
-    // recorded operations
-    private final ByteArrayList mDrawOps = new ByteArrayList();
-    private final IntArrayList mDrawPrims = new IntArrayList();
+    /**
+     * bounds vec4 + four colors ubyte4 + two params vec4, per-instance
+     *
+     * @see SDFShapeGeoProc
+     */
+    public static final int SHAPE_INSTANCE_SIZE = 64;
+    /**
+     * shape instance + uv rect vec4, per-instance
+     */
+    public static final int SHAPE_TEX_INSTANCE_SIZE = 80;
 
-    // vertex buffer objects
-    private GLBuffer mColorMeshVertexBuffer;
-    private ByteBuffer mColorMeshStagingBuffer = memAlloc(16384);
-    private boolean mColorMeshBufferResized = true;
+    /**
+     * The number of frames that can be recorded or executed at the same time.
+     * The UI thread records frame N+1 while the render thread executes frame N.
+     */
+    public static final int MAX_FRAMES_IN_FLIGHT = 2;
 
-    private GLBuffer mTextureMeshVertexBuffer;
-    private ByteBuffer mTextureMeshStagingBuffer = memAlloc(4096);
-    private boolean mTextureMeshBufferResized = true;
+    private final Frame[] mFrames = new Frame[MAX_FRAMES_IN_FLIGHT];
+    private final ConcurrentLinkedQueue<Frame> mFreeFrames = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Frame> mPendingFrames = new ConcurrentLinkedQueue<>();
 
-    public static final int MAX_GLYPH_INDEX_COUNT = 3072;
+    // the frame being recorded on UI thread
+    private Frame mRecordingFrame;
+
+    // recorded operations, these are views of the recording frame
+    private ByteArrayList mDrawOps;
+    private IntArrayList mDrawPrims;
 
-    // dynamic update on render thread
-    private GLBuffer mGlyphVertexBuffer;
-    private ByteBuffer mGlyphStagingBuffer = memAlloc(MAX_GLYPH_INDEX_COUNT / 6 * 4 * 16); // 32KB
-    private boolean mGlyphBufferResized = true;
+    // client buffers of the recording frame
+    private ByteBuffer mColorMeshStagingBuffer;
+    private ByteBuffer mTextureMeshStagingBuffer;
+    private ByteBuffer mShapeStagingBuffer;
+    // the end of the shape instance being written
+    private int mShapeInstanceEnd;
+
+    public static final int MAX_GLYPH_INDEX_COUNT = 3072;
+    public static final int MAX_BATCH_QUAD_COUNT = MAX_GLYPH_INDEX_COUNT / 6;
+
+    // all the meshes of the executing frame are written to the ring buffer
+    private static final int VERTEX_RING_ALIGNMENT = 16;
+    private final GLRingBuffer mVertexRing;
+    private int mColorMeshOffset;
+    private int mTextureMeshOffset;
+    private int mShapeMeshOffset;
+    private int mGlyphMeshOffset;
+    // glyph vertices are written on render thread, this is a view of the ring buffer
+    private ByteBuffer mGlyphMeshWriter;
+
+    // the quad to composite a layer, updated while executing
+    @SharedPtr
+    private final GLBuffer mLayerVertexBuffer;
 
     private final GLBuffer mGlyphIndexBuffer;
 
+    // the static quad of shape instances
+    @SharedPtr
+    private final GLBuffer mShapeVertexBuffer;
+
     /*private int mModelViewVBO = INVALID_ID;
     private ByteBuffer mModelViewData = memAlloc(1024);
     private boolean mRecreateModelView = true;*/
 
     // the client buffer used for updating the uniform blocks
-    private ByteBuffer mUniformRingBuffer = memAlloc(8192);
+    private ByteBuffer mUniformRingBuffer;
 
-    // immutable uniform buffer objects
-    private final GLUniformBufferCompat mMatrixUBO = new GLUniformBufferCompat();
-    private final GLUniformBufferCompat mSmoothUBO = new GLUniformBufferCompat();
-    private final GLUniformBufferCompat mArcUBO = new GLUniformBufferCompat();
-    private final GLUniformBufferCompat mBezierUBO = new GLUniformBufferCompat();
-    private final GLUniformBufferCompat mCircleUBO = new GLUniformBufferCompat();
-    private final GLUniformBufferCompat mRoundRectUBO = new GLUniformBufferCompat();
+    // uniform blocks, the index is the binding
+    private final UniformBlock mMatrixUBO = new UniformBlock(0, MATRIX_UNIFORM_SIZE);
+    private final UniformBlock mSmoothUBO = new UniformBlock(1, SMOOTH_UNIFORM_SIZE);
+    private final UniformBlock[] mUniformBlocks = {mMatrixUBO, mSmoothUBO};
+
+    // null if persistent mapping is not supported, then uniform blocks are updated with
+    // glBufferSubData on each draw
+    @Nullable
+    private final GLRingBuffer mUniformRing;
 
     // mag filter = linear
     @SharedPtr
@@ -230,14 +270,17 @@ public final class GLSurfaceCanvas extends GLCanvas {
 
     // absolute value presents the reference value, and sign represents whether to
     // update the stencil buffer (positive = update, or just change stencil func)
-    private final IntList mClipRefs = new IntArrayList();
-    private final IntList mLayerAlphas = new IntArrayList();
+    private IntList mClipRefs;
+    private IntList mLayerAlphas;
     private final IntStack mLayerStack = new IntArrayList(3);
 
     // using textures of draw states, in the order of calling
-    private final Queue<Object> mTextures = new ArrayDeque<>();
-    private final List<DrawTextOp> mDrawTexts = new ArrayList<>();
-    private final Queue<CustomDrawable.DrawHandler> mCustoms = new ArrayDeque<>();
+    private Queue<Object> mTextures;
+    private List<DrawTextOp> mDrawTexts;
+    private Queue<CustomDrawable.DrawHandler> mCustoms;
+
+    // the device bounds of text drawn without glyphs being rasterized, guarded by itself
+    private final Rect2i mPendingGlyphBounds = new Rect2i();
 
     private final List<SurfaceProxy> mTexturesToClean = new ArrayList<>();
 
@@ -248,6 +291,16 @@ public final class GLSurfaceCanvas extends GLCanvas {
 
     private boolean mNeedsTexBinding;
 
+    // draw call statistics of the last frame
+    private int mDrawCallCount;
+    private int mUnbatchedDrawCallCount;
+    private int mDamagedPixels;
+
+    // the size of the last frame, the framebuffer content is retained if not resized
+    private int mLastFrameWidth;
+    private int mLastFrameHeight;
+    private boolean mScissorTest;
+
     @RenderThread
     public GLSurfaceCanvas(GLServer server) {
         /*mProjectionUBO = glCreateBuffers();
@@ -267,12 +320,25 @@ public final class GLSurfaceCanvas extends GLCanvas {
 
         mServer = server;
 
-        mMatrixUBO.allocate(MATRIX_UNIFORM_SIZE);
-        mSmoothUBO.allocate(SMOOTH_UNIFORM_SIZE);
-        mArcUBO.allocate(ARC_UNIFORM_SIZE);
-        mBezierUBO.allocate(BEZIER_UNIFORM_SIZE);
-        mCircleUBO.allocate(CIRCLE_UNIFORM_SIZE);
-        mRoundRectUBO.allocate(ROUND_RECT_UNIFORM_SIZE);
+        mVertexRing = new GLRingBuffer(server, Engine.BufferUsageFlags.kVertex,
+                VERTEX_RING_ALIGNMENT, "FrameVertexRing");
+        // kStreaming buffers are persistently mapped with DSA or buffer storage
+        if (server.getCaps().hasDSASupport() || server.getCaps().hasBufferStorageSupport()) {
+            mUniformRing = new GLRingBuffer(server, Engine.BufferUsageFlags.kUniform,
+                    server.getCaps().getUniformBufferOffsetAlignment(), "FrameUniformRing");
+        } else {
+            mUniformRing = null;
+            for (UniformBlock block : mUniformBlocks) {
+                block.mBuffer.allocate(block.mSize);
+            }
+        }
+
+        mLayerVertexBuffer = Objects.requireNonNull(
+                GLBuffer.make(server, TEXTURE_RECT_VERTEX_SIZE * 4,
+                        Engine.BufferUsageFlags.kVertex |
+                                Engine.BufferUsageFlags.kDynamic),
+                "Failed to create vertex buffer for layers");
+        mLayerVertexBuffer.setLabel("LayerMesh");
 
         mLinearSampler = Objects.requireNonNull(
                 server.getResourceProvider().findOrCreateCompatibleSampler(SamplerState.DEFAULT),
@@ -305,6 +371,29 @@ public final class GLSurfaceCanvas extends GLCanvas {
                 "Created glyph index buffer: {}, size: {}",
                 mGlyphIndexBuffer.getHandle(), mGlyphIndexBuffer.getSize());
 
+        {
+            // CCW, bottom left (0), bottom right (1), top left (2), top right (3)
+            FloatBuffer corners = MemoryUtil.memAllocFloat(8);
+            corners.put(0).put(1)
+                    .put(1).put(1)
+                    .put(0).put(0)
+                    .put(1).put(0);
+            corners.flip();
+            mShapeVertexBuffer = Objects.requireNonNull(
+                    GLBuffer.make(server, corners.capacity() * 4,
+                            Engine.BufferUsageFlags.kStatic |
+                                    Engine.BufferUsageFlags.kVertex),
+                    "Failed to create vertex buffer for shapes");
+            mShapeVertexBuffer.setLabel("ShapeMesh");
+            mShapeVertexBuffer.updateData(0, corners.capacity() * 4, MemoryUtil.memAddress(corners));
+            MemoryUtil.memFree(corners);
+        }
+
+        for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+            mFrames[i] = new Frame();
+            mFreeFrames.offer(mFrames[i]);
+        }
+
         mSaves.push(new Save());
 
         loadPipelines();
@@ -344,13 +433,29 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         GLVertexArray aPosUV = GLVertexArray.make(mServer,
                 new DefaultGeoProc(DefaultGeoProc.FLAG_TEX_COORD_ATTRIBUTE));
+        GLVertexArray aShape;
+        {
+            var gp = new SDFShapeGeoProc(0);
+            assert gp.instanceStride() == SHAPE_INSTANCE_SIZE;
+            aShape = GLVertexArray.make(mServer, gp);
+        }
+        GLVertexArray aShapeUV;
+        {
+            var gp = new SDFShapeGeoProc(SDFShapeGeoProc.FLAG_TEX_COORD_ATTRIBUTE);
+            assert gp.instanceStride() == SHAPE_TEX_INSTANCE_SIZE;
+            aShapeUV = GLVertexArray.make(mServer, gp);
+        }
         Objects.requireNonNull(aPosColor);
         Objects.requireNonNull(aPosColorUV);
         Objects.requireNonNull(aPosUV);
+        Objects.requireNonNull(aShape);
+        Objects.requireNonNull(aShapeUV);
 
         int posColor;
         int posColorTex;
         int posTex;
+        int sdfShape;
+        int sdfShapeTex;
 
         int colorFill;
         int colorTex;
@@ -363,6 +468,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
         int arcStroke;
         int quadBezier;
         int alphaTex;
+        int glyphSdf;
         int colorTexPre;
         int glowWave;
         int pieFill;
@@ -375,6 +481,8 @@ public final class GLSurfaceCanvas extends GLCanvas {
         posColor    = createStage( "pos_color.vert", compat);
         posColorTex = createStage( "pos_color_tex.vert", compat);
         posTex      = createStage( "pos_tex.vert", compat);
+        sdfShape    = createStage( "sdf_shape.vert", compat);
+        sdfShapeTex = createStage( "sdf_shape_tex.vert", compat);
 
         colorFill       = createStage( "color_fill.frag", compat);
         colorTex        = createStage( "color_tex.frag", compat);
@@ -387,6 +495,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
         arcStroke       = createStage( "arc_stroke.frag", compat);
         quadBezier      = createStage( "quadratic_bezier.frag", compat);
         alphaTex        = createStage( "alpha_tex.frag", compat);
+        glyphSdf        = createStage( "glyph_sdf.frag", compat);
         colorTexPre     = createStage( "color_tex_pre.frag", compat);
         glowWave        = createStage( "glow_wave.frag", compat);
         pieFill         = createStage( "pie_fill.frag", compat);
@@ -396,39 +505,43 @@ public final class GLSurfaceCanvas extends GLCanvas {
 
         int pColorFill          = createProgram(posColor,    colorFill);
         int pColorTex           = createProgram(posColorTex, colorTex);
-        int pRoundRectFill      = createProgram(posColor,    roundRectFill);
-        int pRoundRectTex       = createProgram(posColorTex, roundRectTex);
-        int pRoundRectStroke    = createProgram(posColor,    roundRectStroke);
-        int pCircleFill         = createProgram(posColor,    circleFill);
-        int pCircleStroke       = createProgram(posColor,    circleStroke);
-        int pArcFill            = createProgram(posColor,    arcFill);
-        int pArcStroke          = createProgram(posColor,    arcStroke);
-        int pBezierCurve        = createProgram(posColor,    quadBezier);
+        int pRoundRectFill      = createProgram(sdfShape,    roundRectFill);
+        int pRoundRectTex       = createProgram(sdfShapeTex, roundRectTex);
+        int pRoundRectStroke    = createProgram(sdfShape,    roundRectStroke);
+        int pCircleFill         = createProgram(sdfShape,    circleFill);
+        int pCircleStroke       = createProgram(sdfShape,    circleStroke);
+        int pArcFill            = createProgram(sdfShape,    arcFill);
+        int pArcStroke          = createProgram(sdfShape,    arcStroke);
+        int pBezierCurve        = createProgram(sdfShape,    quadBezier);
         int pAlphaTex           = createProgram(posTex,      alphaTex);
+        int pGlyphSdf           = createProgram(posTex,      glyphSdf);
         int pColorTexPre        = createProgram(posColorTex, colorTexPre);
         int pGlowWave           = createProgram(posColor,    glowWave);
-        int pPieFill            = createProgram(posColor,    pieFill);
-        int pPieStroke          = createProgram(posColor,    pieStroke);
-        int pRoundLineFill      = createProgram(posColor,    roundLineFill);
-        int pRoundLineStroke    = createProgram(posColor,    roundLineStroke);
-
-        boolean success = pColorFill != 0 &&
-        pColorTex != 0 &&
-                pRoundRectFill != 0 &&
-        pRoundRectTex != 0 &&
-                pRoundRectStroke != 0 &&
-        pCircleFill != 0 &&
-                pCircleStroke != 0 &&
-        pArcFill != 0 &&
-                pArcStroke != 0 &&
-        pBezierCurve != 0 &&
-                pAlphaTex != 0 &&
-        pColorTexPre != 0 &&
-                pGlowWave != 0 &&
-        pPieFill != 0 &&
-                pPieStroke != 0 &&
-        pRoundLineFill != 0 &&
-                pRoundLineStroke != 0;
+        int pPieFill            = createProgram(sdfShape,    pieFill);
+        int pPieStroke          = createProgram(sdfShape,    pieStroke);
+        int pRoundLineFill      = createProgram(sdfShape,    roundLineFill);
+        int pRoundLineStroke    = createProgram(sdfShape,    roundLineStroke);
+
+        // the status is checked after all programs are linked, so that the driver can
+        // compile and link them in parallel, see KHR_parallel_shader_compile
+        boolean success = checkProgram(pColorFill) &&
+                checkProgram(pColorTex) &&
+                checkProgram(pRoundRectFill) &&
+                checkProgram(pRoundRectTex) &&
+                checkProgram(pRoundRectStroke) &&
+                checkProgram(pCircleFill) &&
+                checkProgram(pCircleStroke) &&
+                checkProgram(pArcFill) &&
+                checkProgram(pArcStroke) &&
+                checkProgram(pBezierCurve) &&
+                checkProgram(pAlphaTex) &&
+                checkProgram(pGlyphSdf) &&
+                checkProgram(pColorTexPre) &&
+                checkProgram(pGlowWave) &&
+                checkProgram(pPieFill) &&
+                checkProgram(pPieStroke) &&
+                checkProgram(pRoundLineFill) &&
+                checkProgram(pRoundLineStroke);
 
         if (!success) {
             throw new RuntimeException("Failed to link shader programs");
@@ -453,63 +566,50 @@ public final class GLSurfaceCanvas extends GLCanvas {
 
             bindProgramMatrixBlock( pArcFill);
             bindProgramFragLocation(pArcFill);
-            bindProgramArcBlock(    pArcFill);
             bindProgramSmoothBlock( pArcFill);
 
             bindProgramMatrixBlock( pArcStroke);
             bindProgramFragLocation(pArcStroke);
-            bindProgramArcBlock(    pArcStroke);
             bindProgramSmoothBlock( pArcStroke);
 
             bindProgramMatrixBlock( pPieFill);
             bindProgramFragLocation(pPieFill);
-            bindProgramArcBlock(    pPieFill);
             bindProgramSmoothBlock( pPieFill);
 
             bindProgramMatrixBlock( pPieStroke);
             bindProgramFragLocation(pPieStroke);
-            bindProgramArcBlock(    pPieStroke);
             bindProgramSmoothBlock( pPieStroke);
 
             bindProgramMatrixBlock( pBezierCurve);
             bindProgramFragLocation(pBezierCurve);
-            int c3 = glGetUniformBlockIndex(pBezierCurve, "PaintBlock");
-            glUniformBlockBinding(pBezierCurve, c3, 3);
             bindProgramSmoothBlock(pBezierCurve);
 
             bindProgramMatrixBlock( pCircleFill);
             bindProgramFragLocation(pCircleFill);
-            bindProgramCircleBlock( pCircleFill);
             bindProgramSmoothBlock( pCircleFill);
 
             bindProgramMatrixBlock( pCircleStroke);
             bindProgramFragLocation(pCircleStroke);
-            bindProgramCircleBlock( pCircleStroke);
             bindProgramSmoothBlock( pCircleStroke);
 
             bindProgramMatrixBlock(   pRoundLineFill);
             bindProgramFragLocation(  pRoundLineFill);
-            bindProgramRoundRectBlock(pRoundLineFill);
             bindProgramSmoothBlock(   pRoundLineFill);
 
             bindProgramMatrixBlock(   pRoundLineStroke);
             bindProgramFragLocation(  pRoundLineStroke);
-            bindProgramRoundRectBlock(pRoundLineStroke);
             bindProgramSmoothBlock(   pRoundLineStroke);
 
             bindProgramMatrixBlock(   pRoundRectFill);
             bindProgramFragLocation(  pRoundRectFill);
-            bindProgramRoundRectBlock(pRoundRectFill);
             bindProgramSmoothBlock(   pRoundRectFill);
 
             bindProgramMatrixBlock(   pRoundRectStroke);
             bindProgramFragLocation(  pRoundRectStroke);
-            bindProgramRoundRectBlock(pRoundRectStroke);
             bindProgramSmoothBlock(   pRoundRectStroke);
 
             bindProgramMatrixBlock(   pRoundRectTex);
             bindProgramFragLocation(  pRoundRectTex);
-            bindProgramRoundRectBlock(pRoundRectTex);
             bindProgramSmoothBlock(   pRoundRectTex);
 
             mNeedsTexBinding = true;
@@ -526,6 +626,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
         ARC_STROKE = new GLProgram(mServer, pArcStroke);
         BEZIER_CURVE = new GLProgram(mServer, pBezierCurve);
         ALPHA_TEX = new GLProgram(mServer, pAlphaTex);
+        GLYPH_SDF = new GLProgram(mServer, pGlyphSdf);
         COLOR_TEX_PRE = new GLProgram(mServer, pColorTexPre);
         GLOW_WAVE = new GLProgram(mServer, pGlowWave);
         PIE_FILL = new GLProgram(mServer, pPieFill);
@@ -536,6 +637,8 @@ public final class GLSurfaceCanvas extends GLCanvas {
         POS_COLOR = aPosColor;
         POS_COLOR_TEX = aPosColorUV;
         POS_TEX = aPosUV;
+        SHAPE = aShape;
+        SHAPE_TEX = aShapeUV;
 
         ModernUI.LOGGER.info("Loaded OpenGL canvas shaders, compatibility mode: " + compat);
     }
@@ -559,9 +662,14 @@ public final class GLSurfaceCanvas extends GLCanvas {
         ByteBuffer source = null;
         try (var stream = ModernUI.getInstance().getResourceStream(ModernUI.ID, path)) {
             source = Core.readIntoNativeBuffer(stream).flip();
-            return GLCore.glCompileShader(type, source,
-                    mServer.getPipelineStateCache().getStats(),
-                    mServer.getContext().getErrorWriter());
+            int shader = GLCore.glCreateShader(type);
+            if (shader != 0) {
+                GLCore.glShaderSource(shader, MemoryUtil.memUTF8(source));
+                // the status is checked along with the program
+                GLCore.glCompileShader(shader);
+                mServer.getPipelineStateCache().getStats().incShaderCompilations();
+            }
+            return shader;
         } catch (IOException e) {
             ModernUI.LOGGER.error(GLCore.MARKER, "Failed to get shader source {}:{}\n", ModernUI.ID, path, e);
         } finally {
@@ -570,26 +678,55 @@ public final class GLSurfaceCanvas extends GLCanvas {
         return 0;
     }
 
+    /**
+     * Links a program without waiting for it, the returned program must be checked by
+     * {@link #checkProgram(int)} before use.
+     */
     public int createProgram(int... stages) {
         int program = GLCore.glCreateProgram();
         if (program == 0) {
             return 0;
         }
         for (int s : stages) {
+            if (s == 0) {
+                GLCore.glDeleteProgram(program);
+                return 0;
+            }
             GLCore.glAttachShader(program, s);
         }
         GLCore.glLinkProgram(program);
+        return program;
+    }
+
+    /**
+     * Waits for a program created by {@link #createProgram(int...)} and checks its status.
+     *
+     * @return whether the program is linked successfully
+     */
+    public boolean checkProgram(int program) {
+        if (program == 0) {
+            return false;
+        }
+        final int[] stages = new int[2];
+        final int[] count = new int[1];
+        GLCore.glGetAttachedShaders(program, count, stages);
         if (GLCore.glGetProgrami(program, GLCore.GL_LINK_STATUS) == GL_FALSE) {
+            for (int i = 0; i < count[0]; i++) {
+                if (GLCore.glGetShaderi(stages[i], GLCore.GL_COMPILE_STATUS) == GL_FALSE) {
+                    String log = GLCore.glGetShaderInfoLog(stages[i], 8192).trim();
+                    ModernUI.LOGGER.error(GLCore.MARKER, "Failed to compile shader\n{}", log);
+                }
+            }
             String log = GLCore.glGetProgramInfoLog(program, 8192);
             ModernUI.LOGGER.error(GLCore.MARKER, "Failed to link shader program\n{}", log);
             // also detaches all shaders
             GLCore.glDeleteProgram(program);
-            return 0;
+            return false;
         }
-        for (int s : stages) {
-            GLCore.glDetachShader(program, s);
+        for (int i = 0; i < count[0]; i++) {
+            GLCore.glDetachShader(program, stages[i]);
         }
-        return program;
+        return true;
     }
 
     private void bindProgramMatrixBlock(int program) {
@@ -602,21 +739,6 @@ public final class GLSurfaceCanvas extends GLCanvas {
         glUniformBlockBinding(program, c1, 1);
     }
 
-    private void bindProgramArcBlock(int program) {
-        int c2 = glGetUniformBlockIndex(program, "PaintBlock");
-        glUniformBlockBinding(program, c2, 2);
-    }
-
-    private void bindProgramCircleBlock(int program) {
-        int c4 = glGetUniformBlockIndex(program, "PaintBlock");
-        glUniformBlockBinding(program, c4, 4);
-    }
-
-    private void bindProgramRoundRectBlock(int program) {
-        int c5 = glGetUniformBlockIndex(program, "PaintBlock");
-        glUniformBlockBinding(program, c5, 5);
-    }
-
     private void bindProgramFragLocation(int program) {
         // we use draw buffer 0
         glBindFragDataLocation(program, 0, "fragColor");
@@ -632,17 +754,95 @@ public final class GLSurfaceCanvas extends GLCanvas {
 
     @Override
     public void reset(int width, int height) {
+        if (mRecordingFrame == null) {
+            throw new IllegalStateException("No recording in progress, forgot to call #beginRecording()?");
+        }
         super.reset(width, height);
-        mDrawOps.clear();
-        mClipRefs.clear();
-        mLayerAlphas.clear();
-        mDrawTexts.clear();
-        mColorMeshStagingBuffer.clear();
-        mTextureMeshStagingBuffer.clear();
-        mUniformRingBuffer.clear();
+        mRecordingFrame.mWidth = width;
+        mRecordingFrame.mHeight = height;
         mInfo = ImageInfo.make(width, height, ImageInfo.CT_RGBA_8888, ImageInfo.AT_PREMUL, null);
     }
 
+    /**
+     * Acquires a free frame and starts recording into it. If the render thread falls
+     * behind and all frames are in flight, this returns false and the caller should
+     * try again later, this is the back-pressure of the UI thread.
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @return true if recording started, false if there's no free frame
+     * @see #endRecording()
+     */
+    @UiThread
+    public boolean beginRecording(int width, int height) {
+        return beginRecording(width, height, null);
+    }
+
+    /**
+     * Acquires a free frame and starts recording into it. Only the damage region will be
+     * repainted by the render thread, and the content outside it is retained from the
+     * last frame. Drawing operations outside the damage region are rejected.
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @param damage the region to repaint, or null to repaint the whole surface
+     * @return true if recording started, false if there's no free frame
+     * @see #endRecording()
+     */
+    @UiThread
+    public boolean beginRecording(int width, int height, @Nullable Rect damage) {
+        if (mRecordingFrame != null) {
+            throw new IllegalStateException("Recording is already in progress");
+        }
+        final Frame frame = mFreeFrames.poll();
+        if (frame == null) {
+            return false;
+        }
+        mRecordingFrame = frame;
+        mDrawOps = frame.mDrawOps;
+        mDrawPrims = frame.mDrawPrims;
+        mClipRefs = frame.mClipRefs;
+        mLayerAlphas = frame.mLayerAlphas;
+        mTextures = frame.mTextures;
+        mDrawTexts = frame.mDrawTexts;
+        mCustoms = frame.mCustoms;
+        mColorMeshStagingBuffer = frame.mColorMeshStagingBuffer;
+        mTextureMeshStagingBuffer = frame.mTextureMeshStagingBuffer;
+        mShapeStagingBuffer = frame.mShapeStagingBuffer;
+        mUniformRingBuffer = frame.mUniformRingBuffer;
+        reset(width, height);
+        // the render thread scissors to the damage region, so this clip needs no stencil
+        final Rect2i clip = getSave().mClip;
+        if (damage != null && !clip.intersect(damage.left, damage.top, damage.right, damage.bottom)) {
+            clip.setEmpty();
+        }
+        frame.mDamage.set(clip);
+        return true;
+    }
+
+    /**
+     * Finishes recording and submits the frame to the render thread.
+     *
+     * @see #beginRecording(int, int)
+     */
+    @UiThread
+    public void endRecording() {
+        final Frame frame = mRecordingFrame;
+        if (frame == null) {
+            throw new IllegalStateException("No recording in progress, forgot to call #beginRecording()?");
+        }
+        if (getSaveCount() != 1) {
+            throw new IllegalStateException("Unbalanced save-restore pair: " + getSaveCount());
+        }
+        // staging buffers may be reallocated
+        frame.mColorMeshStagingBuffer = mColorMeshStagingBuffer;
+        frame.mTextureMeshStagingBuffer = mTextureMeshStagingBuffer;
+        frame.mShapeStagingBuffer = mShapeStagingBuffer;
+        frame.mUniformRingBuffer = mUniformRingBuffer;
+        mRecordingFrame = null;
+        mPendingFrames.offer(frame);
+    }
+
     public void destroy() {
         COLOR_FILL.unref();
         COLOR_TEX.unref();
@@ -655,6 +855,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
         ARC_STROKE.unref();
         BEZIER_CURVE.unref();
         ALPHA_TEX.unref();
+        GLYPH_SDF.unref();
         COLOR_TEX_PRE.unref();
         GLOW_WAVE.unref();
         PIE_FILL.unref();
@@ -665,16 +866,29 @@ public final class GLSurfaceCanvas extends GLCanvas {
         POS_COLOR.unref();
         POS_COLOR_TEX.unref();
         POS_TEX.unref();
+        SHAPE.unref();
+        SHAPE_TEX.unref();
 
         mLinearSampler.unref();
-        mTextures.forEach(o -> {
-            if (o instanceof SurfaceProxyView v) {
-                if (v.getProxy() != null) {
-                    v.getProxy().unref();
+        mVertexRing.release();
+        if (mUniformRing != null) {
+            mUniformRing.release();
+        }
+        for (UniformBlock block : mUniformBlocks) {
+            memFree(block.mData);
+        }
+        mLayerVertexBuffer.unref();
+        mShapeVertexBuffer.unref();
+        for (Frame frame : mFrames) {
+            frame.mTextures.forEach(o -> {
+                if (o instanceof SurfaceProxyView v) {
+                    if (v.getProxy() != null) {
+                        v.getProxy().unref();
+                    }
                 }
-            }
-        });
-        mTextures.clear();
+            });
+            frame.mTextures.clear();
+        }
         mTexturesToClean.forEach(SurfaceProxy::unref);
         mTexturesToClean.clear();
     }
@@ -716,8 +930,8 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
     }
 
-    private void bindNextTexture() {
-        var tex = mTextures.remove();
+    private void bindNextTexture(@NonNull Queue<Object> textures) {
+        var tex = textures.remove();
         if (tex instanceof GLTextureCompat compat) {
             bindSampler(null);
             bindTexture(compat.get());
@@ -763,31 +977,101 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
     }
 
+    /**
+     * Executes the earliest frame submitted by {@link #endRecording()}, if any.
+     *
+     * @param framebuffer the target framebuffer
+     * @return true if a frame was executed, false if there's no pending frame
+     */
     @RenderThread
     public boolean executeDrawOps(@Nullable GLFramebufferCompat framebuffer) {
         Core.checkRenderThread();
         Core.flushRenderCalls();
+        final Frame frame = mPendingFrames.poll();
+        if (frame == null) {
+            return false;
+        }
+        try {
+            executeFrame(frame, framebuffer);
+        } finally {
+            frame.clear();
+            // make it available to UI thread
+            mFreeFrames.offer(frame);
+        }
+        return true;
+    }
+
+    @RenderThread
+    private void executeFrame(@NonNull Frame frame, @Nullable GLFramebufferCompat framebuffer) {
+        // glyphs used by this frame must stay in the atlas
+        GlyphManager.getInstance().beginFrame();
+        final int width = frame.mWidth;
+        final int height = frame.mHeight;
         if (framebuffer != null) {
             framebuffer.bindDraw();
-            framebuffer.makeBuffers(mWidth, mHeight, false);
+            boolean reallocated = framebuffer.makeBuffers(width, height, false);
+            // the content outside the damage region is retained from the last frame,
+            // unless the surface was resized
+            final Rect2i damage = frame.mDamage;
+            mScissorTest = !reallocated && width == mLastFrameWidth && height == mLastFrameHeight &&
+                    !damage.contains(0, 0, width, height);
+            mLastFrameWidth = width;
+            mLastFrameHeight = height;
+            if (mScissorTest) {
+                glEnable(GL_SCISSOR_TEST);
+                // flip y, the origin of framebuffer is lower-left
+                glScissor(damage.mLeft, height - damage.mBottom, damage.width(), damage.height());
+                mDamagedPixels = damage.width() * damage.height();
+            } else {
+                mDamagedPixels = width * height;
+            }
             framebuffer.clearColorBuffer();
             framebuffer.clearDepthStencilBuffer();
         }
-        if (mDrawOps.isEmpty()) {
-            return false;
+        try {
+            executeFrameOps(frame, framebuffer, width, height);
+        } finally {
+            if (mScissorTest) {
+                // blit to the window must not be scissored
+                glDisable(GL_SCISSOR_TEST);
+                mScissorTest = false;
+            }
         }
-        if (getSaveCount() != 1) {
-            throw new IllegalStateException("Unbalanced save-restore pair: " + getSaveCount());
+    }
+
+    @RenderThread
+    private void executeFrameOps(@NonNull Frame frame, @Nullable GLFramebufferCompat framebuffer,
+                                 int width, int height) {
+        final ByteArrayList drawOps = frame.mDrawOps;
+        if (drawOps.isEmpty()) {
+            return;
         }
+        final IntList drawPrims = frame.mDrawPrims;
+        final IntList clipRefs = frame.mClipRefs;
+        final IntList layerAlphas = frame.mLayerAlphas;
+        final Queue<Object> textures = frame.mTextures;
+        final List<DrawTextOp> drawTexts = frame.mDrawTexts;
+        final Queue<CustomDrawable.DrawHandler> customs = frame.mCustoms;
         mServer.forceResetContext(Engine.GLBackendState.kPipeline);
 
+        if (mUniformRing != null) {
+            // each update writes the whole block, the matrix block is the largest one,
+            // there are at most one update per op, plus the initial bindings
+            int stride = MathUtil.alignUp(MATRIX_UNIFORM_SIZE,
+                    mServer.getCaps().getUniformBufferOffsetAlignment());
+            if (!mUniformRing.begin((drawOps.size() + 1 + mUniformBlocks.length) * stride)) {
+                throw new IllegalStateException("Failed to create uniform ring buffer");
+            }
+        }
+
         // upload projection matrix
-        mMatrixUBO.upload(0, 64, memAddress(mProjectionUpload.flip()));
+        uploadUniform(mMatrixUBO, 0, 64, memAddress(mProjectionUpload.flip()));
 
-        uploadVertexBuffers();
+        uploadVertexBuffers(frame);
 
         if (mNeedsTexBinding) {
             bindProgramTexBinding(ALPHA_TEX.getProgram());
+            bindProgramTexBinding(GLYPH_SDF.getProgram());
             bindProgramTexBinding(COLOR_TEX.getProgram());
             bindProgramTexBinding(COLOR_TEX_PRE.getProgram());
             bindProgramTexBinding(ROUND_RECT_TEX.getProgram());
@@ -796,12 +1080,13 @@ public final class GLSurfaceCanvas extends GLCanvas {
 
         // uniform bindings are globally shared, we must re-bind before we use them
         //nglBindBuffersBase(GL_UNIFORM_BUFFER, MATRIX_BLOCK_BINDING, 6, mUniformBuffers);
-        mMatrixUBO.bindBase(GL_UNIFORM_BUFFER, 0);
-        mSmoothUBO.bindBase(GL_UNIFORM_BUFFER, 1);
-        mArcUBO.bindBase(GL_UNIFORM_BUFFER, 2);
-        mBezierUBO.bindBase(GL_UNIFORM_BUFFER, 3);
-        mCircleUBO.bindBase(GL_UNIFORM_BUFFER, 4);
-        mRoundRectUBO.bindBase(GL_UNIFORM_BUFFER, 5);
+        for (UniformBlock block : mUniformBlocks) {
+            if (mUniformRing != null) {
+                bindUniformBlock(block);
+            } else {
+                block.mBuffer.bindBase(GL_UNIFORM_BUFFER, block.mBinding);
+            }
+        }
 
         glStencilFunc(GL_EQUAL, 0, 0xff);
         glStencilMask(0xff);
@@ -813,12 +1098,12 @@ public final class GLSurfaceCanvas extends GLCanvas {
         mCurrSampler = null;
         mCurrTexture = 0;
 
-        long uniformDataPtr = memAddress(mUniformRingBuffer.flip());
+        long uniformDataPtr = memAddress(frame.mUniformRingBuffer.flip());
 
         // generic array index
         int posColorIndex = 0;
-        // preserve two triangles
-        int posColorTexIndex = 4;
+        int posColorTexIndex = 0;
+        int shapeMeshPos = 0;
         int primIndex = 0;
         int clipIndex = 0;
         int textIndex = 0;
@@ -828,144 +1113,107 @@ public final class GLSurfaceCanvas extends GLCanvas {
         // draw buffers
         int colorBuffer = GL_COLOR_ATTACHMENT0;
 
-        for (int op : mDrawOps) {
+        mDrawCallCount = 0;
+        mUnbatchedDrawCallCount = 0;
+
+        final int opCount = drawOps.size();
+        for (int opIndex = 0; opIndex < opCount; opIndex++) {
+            final int op = drawOps.getByte(opIndex);
             switch (op) {
                 case DRAW_PRIM -> {
                     bindPipeline(COLOR_FILL, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    int prim = mDrawPrims.getInt(primIndex++);
+                            .bindVertexBuffer(mVertexRing.getBuffer(), mColorMeshOffset);
+                    int prim = drawPrims.getInt(primIndex++);
                     int n = prim & 0xFFFF;
                     glDrawArrays(prim >> 16, posColorIndex, n);
+                    mDrawCallCount++;
+                    mUnbatchedDrawCallCount++;
                     posColorIndex += n;
                 }
                 case DRAW_RECT -> {
+                    // rects have no uniforms, merge the run into one indexed draw
+                    int quadCount = 1;
+                    while (quadCount < MAX_BATCH_QUAD_COUNT && opIndex + 1 < opCount &&
+                            drawOps.getByte(opIndex + 1) == DRAW_RECT) {
+                        opIndex++;
+                        quadCount++;
+                    }
                     bindPipeline(COLOR_FILL, POS_COLOR).
-                            bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
-                case DRAW_ROUND_RECT_FILL -> {
-                    bindPipeline(ROUND_RECT_FILL, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mRoundRectUBO.upload(0, 20, uniformDataPtr);
-                    uniformDataPtr += 20;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
+                            bindVertexBuffer(mVertexRing.getBuffer(), mColorMeshOffset);
+                    drawQuads(POS_COLOR, posColorIndex, quadCount);
+                    posColorIndex += quadCount * 4;
                 }
-                case DRAW_ROUND_RECT_STROKE -> {
-                    bindPipeline(ROUND_RECT_STROKE, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mRoundRectUBO.upload(0, 24, uniformDataPtr);
-                    uniformDataPtr += 24;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
+                case DRAW_ROUND_RECT_FILL, DRAW_ROUND_RECT_STROKE,
+                        DRAW_ROUND_LINE_FILL, DRAW_ROUND_LINE_STROKE,
+                        DRAW_CIRCLE_FILL, DRAW_CIRCLE_STROKE,
+                        DRAW_ARC_FILL, DRAW_ARC_STROKE,
+                        DRAW_PIE_FILL, DRAW_PIE_STROKE, DRAW_BEZIER -> {
+                    // shape params are per-instance, merge the run of the same shape
+                    // into one instanced draw
+                    int instanceCount = 1;
+                    while (opIndex + 1 < opCount && drawOps.getByte(opIndex + 1) == op) {
+                        opIndex++;
+                        instanceCount++;
+                    }
+                    bindPipeline(getShapePipeline(op), SHAPE)
+                            .bindVertexBuffer(mShapeVertexBuffer, 0);
+                    SHAPE.bindInstanceBuffer(mVertexRing.getBuffer(), mShapeMeshOffset + shapeMeshPos);
+                    drawShapes(instanceCount);
+                    shapeMeshPos += instanceCount * SHAPE_INSTANCE_SIZE;
                 }
                 case DRAW_ROUND_IMAGE -> {
-                    bindPipeline(ROUND_RECT_TEX, POS_COLOR_TEX)
-                            .bindVertexBuffer(mTextureMeshVertexBuffer, 0);
-                    bindNextTexture();
-                    mRoundRectUBO.upload(0, 20, uniformDataPtr);
-                    uniformDataPtr += 20;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorTexIndex, 4);
-                    posColorTexIndex += 4;
-                }
-                case DRAW_ROUND_LINE_FILL -> {
-                    bindPipeline(ROUND_LINE_FILL, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mRoundRectUBO.upload(0, 20, uniformDataPtr);
-                    uniformDataPtr += 20;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
-                case DRAW_ROUND_LINE_STROKE -> {
-                    bindPipeline(ROUND_LINE_STROKE, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mRoundRectUBO.upload(0, 24, uniformDataPtr);
-                    uniformDataPtr += 24;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
+                    bindPipeline(ROUND_RECT_TEX, SHAPE_TEX)
+                            .bindVertexBuffer(mShapeVertexBuffer, 0);
+                    SHAPE_TEX.bindInstanceBuffer(mVertexRing.getBuffer(), mShapeMeshOffset + shapeMeshPos);
+                    final Object texture = textures.element();
+                    bindNextTexture(textures);
+                    // merge the run of round images sampling the same texture
+                    int instanceCount = 1;
+                    while (opIndex + 1 < opCount &&
+                            drawOps.getByte(opIndex + 1) == DRAW_ROUND_IMAGE &&
+                            isSameTexture(texture, textures.element())) {
+                        skipNextTexture(textures);
+                        opIndex++;
+                        instanceCount++;
+                    }
+                    drawShapes(instanceCount);
+                    shapeMeshPos += instanceCount * SHAPE_TEX_INSTANCE_SIZE;
                 }
                 case DRAW_IMAGE -> {
                     bindPipeline(COLOR_TEX, POS_COLOR_TEX)
-                            .bindVertexBuffer(mTextureMeshVertexBuffer, 0);
-                    bindNextTexture();
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorTexIndex, 4);
-                    posColorTexIndex += 4;
+                            .bindVertexBuffer(mVertexRing.getBuffer(), mTextureMeshOffset);
+                    final Object texture = textures.element();
+                    bindNextTexture(textures);
+                    // merge the run of images sampling the same texture
+                    int quadCount = 1;
+                    while (quadCount < MAX_BATCH_QUAD_COUNT && opIndex + 1 < opCount &&
+                            drawOps.getByte(opIndex + 1) == DRAW_IMAGE &&
+                            isSameTexture(texture, textures.element())) {
+                        skipNextTexture(textures);
+                        opIndex++;
+                        quadCount++;
+                    }
+                    drawQuads(POS_COLOR_TEX, posColorTexIndex, quadCount);
+                    posColorTexIndex += quadCount * 4;
                 }
                 case DRAW_IMAGE_LAYER -> {
                     bindPipeline(COLOR_TEX_PRE, POS_COLOR_TEX)
-                            .bindVertexBuffer(mTextureMeshVertexBuffer, 0);
+                            .bindVertexBuffer(mVertexRing.getBuffer(), mTextureMeshOffset);
                     bindSampler(null);
-                    bindTexture(((GLTextureCompat) mTextures.remove()).get());
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorTexIndex, 4);
+                    bindTexture(((GLTextureCompat) textures.remove()).get());
+                    drawQuad(posColorTexIndex);
                     posColorTexIndex += 4;
                 }
-                case DRAW_CIRCLE_FILL -> {
-                    bindPipeline(CIRCLE_FILL, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mCircleUBO.upload(0, 12, uniformDataPtr);
-                    uniformDataPtr += 12;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
-                case DRAW_CIRCLE_STROKE -> {
-                    bindPipeline(CIRCLE_STROKE, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mCircleUBO.upload(0, 16, uniformDataPtr);
-                    uniformDataPtr += 16;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
-                case DRAW_ARC_FILL -> {
-                    bindPipeline(ARC_FILL, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mArcUBO.upload(0, 20, uniformDataPtr);
-                    uniformDataPtr += 20;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
-                case DRAW_ARC_STROKE -> {
-                    bindPipeline(ARC_STROKE, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mArcUBO.upload(0, 24, uniformDataPtr);
-                    uniformDataPtr += 24;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
-                case DRAW_BEZIER -> {
-                    bindPipeline(BEZIER_CURVE, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mBezierUBO.upload(0, 28, uniformDataPtr);
-                    uniformDataPtr += 28;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
-                case DRAW_PIE_FILL -> {
-                    bindPipeline(PIE_FILL, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mArcUBO.upload(0, 20, uniformDataPtr);
-                    uniformDataPtr += 20;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
-                case DRAW_PIE_STROKE -> {
-                    bindPipeline(PIE_STROKE, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mArcUBO.upload(0, 24, uniformDataPtr);
-                    uniformDataPtr += 24;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
-                    posColorIndex += 4;
-                }
                 case DRAW_CLIP_PUSH -> {
-                    int clipRef = mClipRefs.getInt(clipIndex);
+                    int clipRef = clipRefs.getInt(clipIndex);
 
                     if (clipRef >= 0) {
                         glStencilOp(GL_KEEP, GL_KEEP, GL_INCR);
                         glColorMask(false, false, false, false);
 
                         bindPipeline(COLOR_FILL, POS_COLOR)
-                                .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                        glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
+                                .bindVertexBuffer(mVertexRing.getBuffer(), mColorMeshOffset);
+                        drawQuad(posColorIndex);
                         posColorIndex += 4;
 
                         glStencilOp(GL_KEEP, GL_KEEP, GL_KEEP);
@@ -976,7 +1224,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
                     clipIndex++;
                 }
                 case DRAW_CLIP_POP -> {
-                    int clipRef = mClipRefs.getInt(clipIndex);
+                    int clipRef = clipRefs.getInt(clipIndex);
 
                     if (clipRef >= 0) {
                         glStencilFunc(GL_LESS, clipRef, 0xff);
@@ -984,8 +1232,8 @@ public final class GLSurfaceCanvas extends GLCanvas {
                         glColorMask(false, false, false, false);
 
                         bindPipeline(COLOR_FILL, POS_COLOR)
-                                .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                        glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
+                                .bindVertexBuffer(mVertexRing.getBuffer(), mColorMeshOffset);
+                        drawQuad(posColorIndex);
                         posColorIndex += 4;
 
                         glStencilOp(GL_KEEP, GL_KEEP, GL_KEEP);
@@ -996,19 +1244,19 @@ public final class GLSurfaceCanvas extends GLCanvas {
                     clipIndex++;
                 }
                 case DRAW_TEXT -> {
-                    mMatrixUBO.upload(128, 16, uniformDataPtr);
+                    uploadUniform(mMatrixUBO, 128, 16, uniformDataPtr);
                     uniformDataPtr += 16;
 
-                    var textOp = mDrawTexts.get(textIndex++);
+                    var textOp = drawTexts.get(textIndex++);
                     int limit = textOp.mVisibleGlyphCount;
                     if (limit == 0) {
                         // due to deferred plotting, this can be empty
                         continue;
                     }
 
-                    bindPipeline(ALPHA_TEX, POS_TEX);
+                    bindPipeline(textOp.mDistanceField ? GLYPH_SDF : ALPHA_TEX, POS_TEX);
                     POS_TEX.bindIndexBuffer(mGlyphIndexBuffer);
-                    POS_TEX.bindVertexBuffer(mGlyphVertexBuffer, 0);
+                    POS_TEX.bindVertexBuffer(mVertexRing.getBuffer(), mGlyphMeshOffset);
                     bindSampler(mLinearSampler);
 
                     int lastPos = 0;
@@ -1019,6 +1267,8 @@ public final class GLSurfaceCanvas extends GLCanvas {
                             bindTexture(lastTex);
                             nglDrawElementsBaseVertex(GL_TRIANGLES, indexCount,
                                     GL_UNSIGNED_SHORT, 0, textBaseVertex + lastPos * 4);
+                            mDrawCallCount++;
+                            mUnbatchedDrawCallCount++;
                             lastPos = i;
                         }
                     }
@@ -1027,20 +1277,22 @@ public final class GLSurfaceCanvas extends GLCanvas {
                         bindTexture(lastTex);
                         nglDrawElementsBaseVertex(GL_TRIANGLES, indexCount,
                                 GL_UNSIGNED_SHORT, 0, textBaseVertex + lastPos * 4);
+                        mDrawCallCount++;
+                        mUnbatchedDrawCallCount++;
                     }
                     textBaseVertex += limit * 4;
                 }
                 case DRAW_MATRIX -> {
-                    mMatrixUBO.upload(64, 64, uniformDataPtr);
+                    uploadUniform(mMatrixUBO, 64, 64, uniformDataPtr);
                     uniformDataPtr += 64;
                 }
                 case DRAW_SMOOTH -> {
-                    mSmoothUBO.upload(0, 4, uniformDataPtr);
+                    uploadUniform(mSmoothUBO, 0, 4, uniformDataPtr);
                     uniformDataPtr += 4;
                 }
                 case DRAW_LAYER_PUSH -> {
                     assert framebuffer != null;
-                    mLayerStack.push(mLayerAlphas.getInt(alphaIndex));
+                    mLayerStack.push(layerAlphas.getInt(alphaIndex));
                     framebuffer.setDrawBuffer(++colorBuffer);
                     framebuffer.clearColorBuffer();
                     alphaIndex++;
@@ -1048,146 +1300,250 @@ public final class GLSurfaceCanvas extends GLCanvas {
                 case DRAW_LAYER_POP -> {
                     assert framebuffer != null;
                     GLFramebufferCompat resolve = GLFramebufferCompat.resolve(framebuffer,
-                            colorBuffer, mWidth, mHeight);
+                            colorBuffer, width, height);
                     framebuffer.setReadBuffer(GL_COLOR_ATTACHMENT0);
                     framebuffer.bindDraw();
                     GLTextureCompat layer = resolve.getAttachedTexture(GL_COLOR_ATTACHMENT0);
 
                     float alpha = mLayerStack.popInt() / 255f;
-                    putRectColorUV(mLayerImageMemory, 0, 0, mWidth, mHeight,
+                    putRectColorUV(mLayerImageMemory, 0, 0, width, height,
                             1, 1, 1, alpha,
-                            0, (float) mHeight / layer.getHeight(),
-                            (float) mWidth / layer.getWidth(), 0);
+                            0, (float) height / layer.getHeight(),
+                            (float) width / layer.getWidth(), 0);
                     mLayerImageMemory.flip();
-                    mTextureMeshVertexBuffer.updateData(0, mLayerImageMemory.remaining(),
+                    mLayerVertexBuffer.updateData(0, mLayerImageMemory.remaining(),
                             MemoryUtil.memAddress(mLayerImageMemory)
                     );
                     mLayerImageMemory.clear();
 
                     bindPipeline(COLOR_TEX_PRE, POS_COLOR_TEX)
-                            .bindVertexBuffer(mTextureMeshVertexBuffer, 0);
+                            .bindVertexBuffer(mLayerVertexBuffer, 0);
                     bindSampler(null);
                     bindTexture(layer.get());
                     framebuffer.setDrawBuffer(--colorBuffer);
-                    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+                    drawQuad(0);
                 }
                 case DRAW_CUSTOM -> {
-                    var drawable = mCustoms.remove();
+                    var drawable = customs.remove();
                     drawable.draw(mServer.getContext(), null);
                     drawable.close();
                     mServer.forceResetContext(Engine.GLBackendState.kPipeline);
+                    if (mScissorTest) {
+                        // the drawable may change the scissor state
+                        glEnable(GL_SCISSOR_TEST);
+                        glScissor(frame.mDamage.mLeft, height - frame.mDamage.mBottom,
+                                frame.mDamage.width(), frame.mDamage.height());
+                    }
                     glBindSampler(0, 0);
                     mCurrSampler = null;
                     mCurrTexture = 0;
                 }
                 case DRAW_GLOW_WAVE -> {
                     bindPipeline(GLOW_WAVE, POS_COLOR)
-                            .bindVertexBuffer(mColorMeshVertexBuffer, 0);
-                    mMatrixUBO.upload(128, 4, uniformDataPtr);
+                            .bindVertexBuffer(mVertexRing.getBuffer(), mColorMeshOffset);
+                    uploadUniform(mMatrixUBO, 128, 4, uniformDataPtr);
                     uniformDataPtr += 4;
-                    glDrawArrays(GL_TRIANGLE_STRIP, posColorIndex, 4);
+                    drawQuad(posColorIndex);
                     posColorIndex += 4;
                 }
                 default -> throw new IllegalStateException("Unexpected draw op " + op);
             }
         }
         assert mLayerStack.isEmpty();
-        assert mTextures.isEmpty();
-        assert mCustoms.isEmpty();
+        assert textures.isEmpty();
+        assert customs.isEmpty();
+
+        // regions of ring buffers can be reused after the GPU finishes this frame
+        mVertexRing.submit();
+        if (mUniformRing != null) {
+            mUniformRing.submit();
+        }
 
         bindSampler(null);
         glStencilFunc(GL_ALWAYS, 0, 0xff);
 
-        mDrawOps.clear();
-        mDrawPrims.clear();
-        mClipRefs.clear();
-        mLayerAlphas.clear();
-        mDrawTexts.clear();
-        mUniformRingBuffer.clear();
-
         for (int i = 0; i < mTexturesToClean.size(); i++) {
             mTexturesToClean.get(i).unref();
         }
         mTexturesToClean.clear();
-        return true;
     }
 
     @RenderThread
-    private void uploadVertexBuffers() {
-        if (mColorMeshBufferResized) {
-            GLBuffer newBuffer = GLBuffer.make(mServer,
-                    mColorMeshStagingBuffer.capacity(),
-                    Engine.BufferUsageFlags.kVertex |
-                            Engine.BufferUsageFlags.kDynamic);
-            if (newBuffer == null) {
-                throw new IllegalStateException("Failed to create color mesh buffer");
-            }
-            newBuffer.setLabel("ColorRectMesh");
-            mColorMeshVertexBuffer = GLBuffer.move(mColorMeshVertexBuffer, newBuffer);
-            ModernUI.LOGGER.info("Created new color mesh buffer: {}, size: {}",
-                    newBuffer.getHandle(), newBuffer.getSize());
-            mColorMeshBufferResized = false;
-        }
-        if (mColorMeshStagingBuffer.position() > 0) {
-            mColorMeshStagingBuffer.flip();
-            mColorMeshVertexBuffer.updateData(0, mColorMeshStagingBuffer.remaining(),
-                    MemoryUtil.memAddress(mColorMeshStagingBuffer)
-            );
-            mColorMeshStagingBuffer.clear();
+    private void drawQuad(int baseVertex) {
+        glDrawArrays(GL_TRIANGLE_STRIP, baseVertex, 4);
+        mDrawCallCount++;
+        mUnbatchedDrawCallCount++;
+    }
+
+    /**
+     * Draw a run of shape instances that share the same pipeline and texture.
+     * The per-vertex data is the static quad, and shape params are per-instance.
+     */
+    @RenderThread
+    private void drawShapes(int instanceCount) {
+        glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, instanceCount);
+        mDrawCallCount++;
+        mUnbatchedDrawCallCount += instanceCount;
+    }
+
+    private GLProgram getShapePipeline(int op) {
+        return switch (op) {
+            case DRAW_ROUND_RECT_FILL -> ROUND_RECT_FILL;
+            case DRAW_ROUND_RECT_STROKE -> ROUND_RECT_STROKE;
+            case DRAW_ROUND_LINE_FILL -> ROUND_LINE_FILL;
+            case DRAW_ROUND_LINE_STROKE -> ROUND_LINE_STROKE;
+            case DRAW_CIRCLE_FILL -> CIRCLE_FILL;
+            case DRAW_CIRCLE_STROKE -> CIRCLE_STROKE;
+            case DRAW_ARC_FILL -> ARC_FILL;
+            case DRAW_ARC_STROKE -> ARC_STROKE;
+            case DRAW_PIE_FILL -> PIE_FILL;
+            case DRAW_PIE_STROKE -> PIE_STROKE;
+            case DRAW_BEZIER -> BEZIER_CURVE;
+            default -> throw new IllegalStateException("Unexpected shape op " + op);
+        };
+    }
+
+    /**
+     * Draw a run of quads that share the same pipeline, texture and uniforms
+     * with a single draw call. The glyph index buffer is reused here, since
+     * quad vertices are in the same order as glyph vertices.
+     */
+    @RenderThread
+    private void drawQuads(GLVertexArray vertexArray, int baseVertex, int quadCount) {
+        if (quadCount == 1) {
+            drawQuad(baseVertex);
+            return;
         }
+        vertexArray.bindIndexBuffer(mGlyphIndexBuffer);
+        nglDrawElementsBaseVertex(GL_TRIANGLES, quadCount * 6,
+                GL_UNSIGNED_SHORT, 0, baseVertex);
+        mDrawCallCount++;
+        mUnbatchedDrawCallCount += quadCount;
+    }
 
-        int preserveForLayer = TEXTURE_RECT_VERTEX_SIZE * 4;
+    private static boolean isSameTexture(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a instanceof SurfaceProxyView va && b instanceof SurfaceProxyView vb) {
+            return va.getProxy() == vb.getProxy() && va.getSwizzle() == vb.getSwizzle();
+        }
+        if (a instanceof GLTextureCompat ta && b instanceof GLTextureCompat tb) {
+            return ta.get() == tb.get();
+        }
+        return false;
+    }
 
-        if (mTextureMeshBufferResized) {
-            GLBuffer newBuffer = GLBuffer.make(mServer,
-                    mTextureMeshStagingBuffer.capacity() + preserveForLayer,
-                    Engine.BufferUsageFlags.kVertex |
-                            Engine.BufferUsageFlags.kDynamic);
-            if (newBuffer == null) {
-                throw new IllegalStateException("Failed to create texture mesh buffer");
-            }
-            newBuffer.setLabel("TextureRectMesh");
-            mTextureMeshVertexBuffer = GLBuffer.move(mTextureMeshVertexBuffer, newBuffer);
-            ModernUI.LOGGER.info("Created new texture mesh buffer: {}, size: {}",
-                    newBuffer.getHandle(), newBuffer.getSize());
-            mTextureMeshBufferResized = false;
-        }
-        if (mTextureMeshStagingBuffer.position() > 0) {
-            // preserve memory for layer rendering
-            mTextureMeshStagingBuffer.flip();
-            mTextureMeshVertexBuffer.updateData(preserveForLayer, mTextureMeshStagingBuffer.remaining(),
-                    MemoryUtil.memAddress(mTextureMeshStagingBuffer)
-            );
-            mTextureMeshStagingBuffer.clear();
+    // the texture is the same as the last bound one, just release it
+    private void skipNextTexture(@NonNull Queue<Object> textures) {
+        if (textures.remove() instanceof SurfaceProxyView view) {
+            mTexturesToClean.add(view.getProxy());
         }
+    }
 
-        if (!mDrawTexts.isEmpty()) {
-            for (DrawTextOp textOp : mDrawTexts) {
+    /**
+     * @return the number of draw calls issued in the last frame
+     */
+    public int getDrawCallCount() {
+        return mDrawCallCount;
+    }
+
+    /**
+     * @return the number of draw calls the last frame would issue without batching
+     */
+    public int getUnbatchedDrawCallCount() {
+        return mUnbatchedDrawCallCount;
+    }
+
+    /**
+     * @return the number of pixels repainted in the last frame
+     */
+    public int getDamagedPixels() {
+        return mDamagedPixels;
+    }
+
+    public void dumpInfo(PrintWriter pw) {
+        pw.print("GLSurfaceCanvas: ");
+        pw.print("DrawCalls=" + mDrawCallCount);
+        pw.print(", UnbatchedDrawCalls=" + mUnbatchedDrawCallCount);
+        pw.print(", DamagedPixels=" + mDamagedPixels + "/" + mLastFrameWidth * mLastFrameHeight);
+        pw.println(", NativeMemoryUsage=" + TextUtils.binaryCompact(getNativeMemoryUsage()) +
+                " (" + getNativeMemoryUsage() + " bytes)");
+    }
+
+    @RenderThread
+    private void uploadUniform(@NonNull UniformBlock block, int offset, int size, long data) {
+        if (mUniformRing != null) {
+            memCopy(data, memAddress(block.mData) + offset, size);
+            bindUniformBlock(block);
+        } else {
+            block.mBuffer.upload(offset, size, data);
+        }
+    }
+
+    // the previous range may be still in use by GPU, so write the whole block to a new range
+    @RenderThread
+    private void bindUniformBlock(@NonNull UniformBlock block) {
+        assert mUniformRing != null;
+        int offset = mUniformRing.allocate(block.mSize);
+        memCopy(memAddress(block.mData), mUniformRing.getPointer(offset), block.mSize);
+        glBindBufferRange(GL_UNIFORM_BUFFER, block.mBinding,
+                mUniformRing.getBuffer().getHandle(), offset, block.mSize);
+    }
+
+    @RenderThread
+    private void uploadVertexBuffers(@NonNull Frame frame) {
+        final ByteBuffer colorMeshStagingBuffer = frame.mColorMeshStagingBuffer.flip();
+        final ByteBuffer textureMeshStagingBuffer = frame.mTextureMeshStagingBuffer.flip();
+        final ByteBuffer shapeStagingBuffer = frame.mShapeStagingBuffer.flip();
+        final List<DrawTextOp> drawTexts = frame.mDrawTexts;
+        // four vertices per glyph, the actual size is known after writing
+        int glyphMeshSize = 0;
+        for (DrawTextOp textOp : drawTexts) {
+            glyphMeshSize += textOp.mGlyphCount * 64;
+        }
+        int colorMeshSize = colorMeshStagingBuffer.remaining();
+        int textureMeshSize = textureMeshStagingBuffer.remaining();
+        int shapeMeshSize = shapeStagingBuffer.remaining();
+        if (!mVertexRing.begin(colorMeshSize + textureMeshSize + shapeMeshSize + glyphMeshSize +
+                VERTEX_RING_ALIGNMENT * 4)) {
+            throw new IllegalStateException("Failed to create vertex ring buffer");
+        }
+
+        mColorMeshOffset = mVertexRing.allocate(colorMeshSize);
+        memCopy(memAddress(colorMeshStagingBuffer),
+                mVertexRing.getPointer(mColorMeshOffset), colorMeshSize);
+        colorMeshStagingBuffer.clear();
+
+        mTextureMeshOffset = mVertexRing.allocate(textureMeshSize);
+        memCopy(memAddress(textureMeshStagingBuffer),
+                mVertexRing.getPointer(mTextureMeshOffset), textureMeshSize);
+        textureMeshStagingBuffer.clear();
+
+        mShapeMeshOffset = mVertexRing.allocate(shapeMeshSize);
+        memCopy(memAddress(shapeStagingBuffer),
+                mVertexRing.getPointer(mShapeMeshOffset), shapeMeshSize);
+        shapeStagingBuffer.clear();
+
+        // glyphs are looked up on render thread, write them in place
+        mGlyphMeshOffset = mVertexRing.allocate(glyphMeshSize);
+        if (glyphMeshSize > 0) {
+            mGlyphMeshWriter = memByteBuffer(mVertexRing.getPointer(mGlyphMeshOffset), glyphMeshSize);
+            final GlyphManager glyphManager = GlyphManager.getInstance();
+            final int pendingLookupCount = glyphManager.getPendingLookupCount();
+            for (DrawTextOp textOp : drawTexts) {
                 textOp.writeMeshData(this);
             }
-            if (mGlyphBufferResized) {
-                GLBuffer newBuffer = GLBuffer.make(mServer,
-                        mGlyphStagingBuffer.capacity(),
-                        Engine.BufferUsageFlags.kVertex |
-                                Engine.BufferUsageFlags.kDynamic);
-                if (newBuffer == null) {
-                    throw new IllegalStateException("Failed to create buffer for glyph mesh");
-                }
-                newBuffer.setLabel("GlyphMesh");
-                mGlyphVertexBuffer = GLBuffer.move(mGlyphVertexBuffer, newBuffer);
-                ModernUI.LOGGER.info("Created new glyph mesh buffer: {}, size: {}",
-                        newBuffer.getHandle(), newBuffer.getSize());
-                mGlyphBufferResized = false;
-            }
-            if (mGlyphStagingBuffer.position() > 0) {
-                mGlyphStagingBuffer.flip();
-                mGlyphVertexBuffer.updateData(0, mGlyphStagingBuffer.remaining(),
-                        MemoryUtil.memAddress(mGlyphStagingBuffer)
-                );
-                mGlyphStagingBuffer.clear();
+            mGlyphMeshWriter = null;
+            if (glyphManager.getPendingLookupCount() != pendingLookupCount) {
+                // the pending bounds may be recorded after the glyphs are ready
+                glyphManager.recheckGlyphReady();
             }
         }
 
+        // if not persistently mapped, this uploads all the meshes at once
+        mVertexRing.end();
+
         /*checkModelViewVBO();
         mModelViewData.flip();
         glNamedBufferSubData(mModelViewVBO, 0, mModelViewData);
@@ -1210,7 +1566,6 @@ public final class GLSurfaceCanvas extends GLCanvas {
         if (mColorMeshStagingBuffer.remaining() < 48) {
             int newCap = grow(mColorMeshStagingBuffer.capacity());
             mColorMeshStagingBuffer = memRealloc(mColorMeshStagingBuffer, newCap);
-            mColorMeshBufferResized = true;
             ModernUI.LOGGER.debug(MARKER, "Grow pos color buffer to {} bytes", newCap);
         }
         return mColorMeshStagingBuffer;
@@ -1220,12 +1575,23 @@ public final class GLSurfaceCanvas extends GLCanvas {
         if (mTextureMeshStagingBuffer.remaining() < TEXTURE_RECT_VERTEX_SIZE * 4) {
             int newCap = grow(mTextureMeshStagingBuffer.capacity());
             mTextureMeshStagingBuffer = memRealloc(mTextureMeshStagingBuffer, newCap);
-            mTextureMeshBufferResized = true;
             ModernUI.LOGGER.debug(MARKER, "Grow pos color tex buffer to {} bytes", newCap);
         }
         return mTextureMeshStagingBuffer;
     }
 
+    private ByteBuffer checkShapeStagingBuffer(int instanceSize) {
+        if (mShapeStagingBuffer.remaining() < SHAPE_TEX_INSTANCE_SIZE) {
+            int newCap = grow(mShapeStagingBuffer.capacity());
+            mShapeStagingBuffer = memRealloc(mShapeStagingBuffer, newCap);
+            ModernUI.LOGGER.debug(MARKER, "Grow shape instance buffer to {} bytes", newCap);
+        }
+        // unused params are zero
+        memSet(memAddress(mShapeStagingBuffer), 0, instanceSize);
+        mShapeInstanceEnd = mShapeStagingBuffer.position() + instanceSize;
+        return mShapeStagingBuffer;
+    }
+
     /*private ByteBuffer getModelViewBuffer() {
         if (mModelViewData.remaining() < 64) {
             mModelViewData = memRealloc(mModelViewData, mModelViewData.capacity() << 1);
@@ -1235,17 +1601,6 @@ public final class GLSurfaceCanvas extends GLCanvas {
         return mModelViewData;
     }*/
 
-    @RenderThread
-    private ByteBuffer checkGlyphStagingBuffer() {
-        if (mGlyphStagingBuffer.remaining() < 64) {
-            int newCap = grow(mGlyphStagingBuffer.capacity());
-            mGlyphStagingBuffer = memRealloc(mGlyphStagingBuffer, newCap);
-            mGlyphBufferResized = true;
-            ModernUI.LOGGER.debug(MARKER, "Grow pos tex buffer to {} bytes", newCap);
-        }
-        return mGlyphStagingBuffer;
-    }
-
     private ByteBuffer checkUniformStagingBuffer() {
         if (mUniformRingBuffer.remaining() < 64) {
             int newCap = grow(mUniformRingBuffer.capacity());
@@ -1256,7 +1611,11 @@ public final class GLSurfaceCanvas extends GLCanvas {
     }
 
     public int getNativeMemoryUsage() {
-        return mColorMeshStagingBuffer.capacity() + mTextureMeshStagingBuffer.capacity() + mGlyphStagingBuffer.capacity() + mUniformRingBuffer.capacity();
+        int size = 0;
+        for (Frame frame : mFrames) {
+            size += frame.getNativeMemoryUsage();
+        }
+        return size;
     }
 
     private static int grow(int cap) {
@@ -1447,14 +1806,18 @@ public final class GLSurfaceCanvas extends GLCanvas {
     @Override
     public boolean clipRect(float left, float top, float right, float bottom) {
         final Save save = getSave();
-        // empty rect, ignore it
-        if (right <= left || bottom <= top) {
-            return !save.mClip.isEmpty();
-        }
         // already empty, return false
         if (save.mClip.isEmpty()) {
             return false;
         }
+        // empty rect, the result is empty
+        if (right <= left || bottom <= top) {
+            save.mClipRef++;
+            mClipRefs.add(-save.mClipRef);
+            save.mClip.setEmpty();
+            mDrawOps.add(DRAW_CLIP_PUSH);
+            return false;
+        }
         var temp = mTmpRectF;
         temp.set(left, top, right, bottom);
         temp.inset(-1, -1);
@@ -1687,13 +2050,76 @@ public final class GLSurfaceCanvas extends GLCanvas {
                 .putFloat(u2).putFloat(v1);
     }
 
+    /**
+     * Begins a shape instance, the caller writes the shape params to the returned buffer,
+     * then calls {@link #endShape(byte)}.
+     */
+    private ByteBuffer putShape(float left, float top, float right, float bottom, @NonNull Paint paint) {
+        final ByteBuffer buffer = checkShapeStagingBuffer(SHAPE_INSTANCE_SIZE);
+        buffer.putFloat(left)
+                .putFloat(top)
+                .putFloat(right)
+                .putFloat(bottom);
+        float factor = paint.a() * 255.0f;
+        byte r = (byte) (paint.r() * factor + 0.5f);
+        byte g = (byte) (paint.g() * factor + 0.5f);
+        byte b = (byte) (paint.b() * factor + 0.5f);
+        byte a = (byte) (factor + 0.5f);
+        for (int i = 0; i < 4; i++) {
+            buffer.put(r).put(g).put(b).put(a);
+        }
+        return buffer;
+    }
+
+    private ByteBuffer putShapeGrad(float left, float top, float right, float bottom,
+                                    int colorUL, int colorUR, int colorLR, int colorLL) {
+        final ByteBuffer buffer = checkShapeStagingBuffer(SHAPE_INSTANCE_SIZE);
+        buffer.putFloat(left)
+                .putFloat(top)
+                .putFloat(right)
+                .putFloat(bottom);
+        putShapeColor(buffer, colorUL);
+        putShapeColor(buffer, colorUR);
+        putShapeColor(buffer, colorLR);
+        putShapeColor(buffer, colorLL);
+        return buffer;
+    }
+
+    private ByteBuffer putShapeUV(float left, float top, float right, float bottom, @NonNull Paint paint,
+                                  float u1, float v1, float u2, float v2) {
+        final ByteBuffer buffer = putShape(left, top, right, bottom, paint);
+        // follows the shape params
+        final int pos = mShapeInstanceEnd - 16;
+        buffer.putFloat(pos, u1)
+                .putFloat(pos + 4, v1)
+                .putFloat(pos + 8, u2)
+                .putFloat(pos + 12, v2);
+        return buffer;
+    }
+
+    private static void putShapeColor(@NonNull ByteBuffer buffer, int color) {
+        float alpha = (color >>> 24);
+        float red = ((color >> 16) & 0xff) / 255.0f;
+        float green = ((color >> 8) & 0xff) / 255.0f;
+        float blue = (color & 0xff) / 255.0f;
+        buffer.put((byte) (red * alpha + 0.5f))
+                .put((byte) (green * alpha + 0.5f))
+                .put((byte) (blue * alpha + 0.5f))
+                .put((byte) (alpha + 0.5f));
+    }
+
+    private void endShape(byte op) {
+        mShapeStagingBuffer.position(mShapeInstanceEnd);
+        mDrawOps.add(op);
+    }
+
     @RenderThread
-    private void putGlyph(@NonNull GLBakedGlyph glyph, float left, float top) {
-        ByteBuffer buffer = checkGlyphStagingBuffer();
-        left += glyph.x;
-        top += glyph.y;
-        float right = left + glyph.width;
-        float bottom = top + glyph.height;
+    private void putGlyph(@NonNull GLBakedGlyph glyph, float left, float top, float scale) {
+        ByteBuffer buffer = mGlyphMeshWriter;
+        left += glyph.x * scale;
+        top += glyph.y * scale;
+        float right = left + glyph.width * scale;
+        float bottom = top + glyph.height * scale;
         buffer.putFloat(left)
                 .putFloat(bottom)
                 .putFloat(glyph.u1).putFloat(glyph.v2);
@@ -1831,14 +2257,13 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(radius, paint.getSmoothWidth() / 2));
-        putRectColor(cx - radius, cy - radius, cx + radius, cy + radius, paint);
-        checkUniformStagingBuffer()
+        putShape(cx - radius, cy - radius, cx + radius, cy + radius, paint)
                 .putFloat(cx)
                 .putFloat(cy)
                 .putFloat(middleAngle)
                 .putFloat(sweepAngle)
                 .putFloat(radius);
-        mDrawOps.add(DRAW_ARC_FILL);
+        endShape(DRAW_ARC_FILL);
     }
 
     private void drawArcStroke(float cx, float cy, float radius, float middleAngle,
@@ -1853,15 +2278,14 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(strokeRadius, paint.getSmoothWidth() / 2));
-        putRectColor(cx - maxRadius, cy - maxRadius, cx + maxRadius, cy + maxRadius, paint);
-        checkUniformStagingBuffer()
+        putShape(cx - maxRadius, cy - maxRadius, cx + maxRadius, cy + maxRadius, paint)
                 .putFloat(cx)
                 .putFloat(cy)
                 .putFloat(middleAngle)
                 .putFloat(sweepAngle)
                 .putFloat(radius)
                 .putFloat(strokeRadius);
-        mDrawOps.add(DRAW_ARC_STROKE);
+        endShape(DRAW_ARC_STROKE);
     }
 
     @Override
@@ -1890,14 +2314,13 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(radius, paint.getSmoothWidth() / 2));
-        putRectColor(cx - radius, cy - radius, cx + radius, cy + radius, paint);
-        checkUniformStagingBuffer()
+        putShape(cx - radius, cy - radius, cx + radius, cy + radius, paint)
                 .putFloat(cx)
                 .putFloat(cy)
                 .putFloat(middleAngle)
                 .putFloat(sweepAngle)
                 .putFloat(radius);
-        mDrawOps.add(DRAW_PIE_FILL);
+        endShape(DRAW_PIE_FILL);
     }
 
     private void drawPieStroke(float cx, float cy, float radius, float middleAngle,
@@ -1912,15 +2335,14 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(strokeRadius, paint.getSmoothWidth() / 2));
-        putRectColor(cx - maxRadius, cy - maxRadius, cx + maxRadius, cy + maxRadius, paint);
-        checkUniformStagingBuffer()
+        putShape(cx - maxRadius, cy - maxRadius, cx + maxRadius, cy + maxRadius, paint)
                 .putFloat(cx)
                 .putFloat(cy)
                 .putFloat(middleAngle)
                 .putFloat(sweepAngle)
                 .putFloat(radius)
                 .putFloat(strokeRadius);
-        mDrawOps.add(DRAW_PIE_STROKE);
+        endShape(DRAW_PIE_STROKE);
     }
 
     @Override
@@ -1938,8 +2360,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(strokeRadius, paint.getSmoothWidth() / 2));
-        putRectColor(left, top, right, bottom, paint);
-        checkUniformStagingBuffer()
+        putShape(left, top, right, bottom, paint)
                 .putFloat(x0)
                 .putFloat(y0)
                 .putFloat(x1)
@@ -1947,7 +2368,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
                 .putFloat(x2)
                 .putFloat(y2)
                 .putFloat(strokeRadius);
-        mDrawOps.add(DRAW_BEZIER);
+        endShape(DRAW_BEZIER);
     }
 
     @Override
@@ -1968,12 +2389,11 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(radius, paint.getSmoothWidth() / 2));
-        putRectColor(cx - radius - 1, cy - radius - 1, cx + radius + 1, cy + radius + 1, paint);
-        checkUniformStagingBuffer()
+        putShape(cx - radius - 1, cy - radius - 1, cx + radius + 1, cy + radius + 1, paint)
                 .putFloat(cx)
                 .putFloat(cy)
                 .putFloat(radius);
-        mDrawOps.add(DRAW_CIRCLE_FILL);
+        endShape(DRAW_CIRCLE_FILL);
     }
 
     private void drawCircleStroke(float cx, float cy, float radius, @NonNull Paint paint) {
@@ -1987,13 +2407,12 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(strokeRadius, paint.getSmoothWidth() / 2));
-        putRectColor(cx - maxRadius - 1, cy - maxRadius - 1, cx + maxRadius + 1, cy + maxRadius + 1, paint);
-        checkUniformStagingBuffer()
+        putShape(cx - maxRadius - 1, cy - maxRadius - 1, cx + maxRadius + 1, cy + maxRadius + 1, paint)
                 .putFloat(cx)
                 .putFloat(cy)
                 .putFloat(radius - strokeRadius) // inner radius
                 .putFloat(maxRadius);
-        mDrawOps.add(DRAW_CIRCLE_STROKE);
+        endShape(DRAW_CIRCLE_STROKE);
     }
 
     @Override
@@ -2162,14 +2581,13 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(radius, paint.getSmoothWidth() / 2));
-        putRectColor(left - 1, top - 1, right + 1, bottom + 1, paint);
-        ByteBuffer buffer = checkUniformStagingBuffer();
+        ByteBuffer buffer = putShape(left - 1, top - 1, right + 1, bottom + 1, paint);
         buffer.putFloat(startX)
                 .putFloat(startY)
                 .putFloat(stopX)
                 .putFloat(stopY);
         buffer.putFloat(radius);
-        mDrawOps.add(DRAW_ROUND_LINE_FILL);
+        endShape(DRAW_ROUND_LINE_FILL);
     }
 
     private void drawLineStroke(float startX, float startY, float stopX, float stopY,
@@ -2184,16 +2602,15 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(strokeRadius, paint.getSmoothWidth() / 2));
-        putRectColor(left - strokeRadius - 1, top - strokeRadius - 1, right + strokeRadius + 1,
+        ByteBuffer buffer = putShape(left - strokeRadius - 1, top - strokeRadius - 1, right + strokeRadius + 1,
                 bottom + strokeRadius + 1, paint);
-        ByteBuffer buffer = checkUniformStagingBuffer();
         buffer.putFloat(startX)
                 .putFloat(startY)
                 .putFloat(stopX)
                 .putFloat(stopY);
         buffer.putFloat(radius)
                 .putFloat(strokeRadius);
-        mDrawOps.add(DRAW_ROUND_LINE_STROKE);
+        endShape(DRAW_ROUND_LINE_STROKE);
     }
 
     public void drawRoundLine(float startX, float startY, float stopX, float stopY, @NonNull Paint paint) {
@@ -2273,13 +2690,13 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(radius, paint.getSmoothWidth() / 2));
+        final ByteBuffer buffer;
         if (useGrad) {
-            putRectColorGrad(left - 1, top - 1, right + 1, bottom + 1,
+            buffer = putShapeGrad(left - 1, top - 1, right + 1, bottom + 1,
                     colorUL, colorUR, colorLR, colorLL);
         } else {
-            putRectColor(left - 1, top - 1, right + 1, bottom + 1, paint);
+            buffer = putShape(left - 1, top - 1, right + 1, bottom + 1, paint);
         }
-        ByteBuffer buffer = checkUniformStagingBuffer();
         if ((sides & Gravity.RIGHT) == Gravity.RIGHT) {
             buffer.putFloat(left);
         } else {
@@ -2301,7 +2718,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
             buffer.putFloat(bottom - radius);
         }
         buffer.putFloat(radius);
-        mDrawOps.add(DRAW_ROUND_RECT_FILL);
+        endShape(DRAW_ROUND_RECT_FILL);
     }
 
     private void drawRoundRectStroke(float left, float top, float right, float bottom,
@@ -2317,14 +2734,14 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(strokeRadius, paint.getSmoothWidth() / 2));
+        final ByteBuffer buffer;
         if (useGrad) {
-            putRectColorGrad(left - strokeRadius - 1, top - strokeRadius - 1, right + strokeRadius + 1,
+            buffer = putShapeGrad(left - strokeRadius - 1, top - strokeRadius - 1, right + strokeRadius + 1,
                     bottom + strokeRadius + 1, colorUL, colorUR, colorLR, colorLL);
         } else {
-            putRectColor(left - strokeRadius - 1, top - strokeRadius - 1, right + strokeRadius + 1,
+            buffer = putShape(left - strokeRadius - 1, top - strokeRadius - 1, right + strokeRadius + 1,
                     bottom + strokeRadius + 1, paint);
         }
-        ByteBuffer buffer = checkUniformStagingBuffer();
         if ((sides & Gravity.RIGHT) == Gravity.RIGHT) {
             buffer.putFloat(left);
         } else {
@@ -2347,7 +2764,7 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         buffer.putFloat(radius)
                 .putFloat(strokeRadius);
-        mDrawOps.add(DRAW_ROUND_RECT_STROKE);
+        endShape(DRAW_ROUND_RECT_STROKE);
     }
 
     @Override
@@ -2366,9 +2783,8 @@ public final class GLSurfaceCanvas extends GLCanvas {
         }
         drawMatrix();
         drawSmooth(Math.min(radius, paint.getSmoothWidth() / 2));
-        putRectColorUV(left, top, right, bottom, paint,
-                0, 0, 1, 1);
-        checkUniformStagingBuffer()
+        putShapeUV(left, top, right, bottom, paint,
+                0, 0, 1, 1)
                 .putFloat(left + radius - 1)
                 .putFloat(top + radius - 1)
                 .putFloat(right - radius + 1)
@@ -2376,7 +2792,33 @@ public final class GLSurfaceCanvas extends GLCanvas {
                 .putFloat(radius);
         view.refProxy();
         mTextures.add(view);
-        mDrawOps.add(DRAW_ROUND_IMAGE);
+        endShape(DRAW_ROUND_IMAGE);
+    }
+
+    /**
+     * Takes the device bounds of the text that was drawn without the glyphs being rasterized
+     * asynchronously. This is called when notified by the glyph ready callback, then the
+     * bounds should be redrawn, rather than the whole window.
+     *
+     * @param out the bounds in window coordinates
+     * @return false if there is nothing to redraw
+     * @see GlyphManager#addGlyphReadyCallback(Runnable)
+     */
+    public boolean takePendingGlyphBounds(@NonNull Rect out) {
+        synchronized (mPendingGlyphBounds) {
+            if (mPendingGlyphBounds.isEmpty()) {
+                return false;
+            }
+            out.set(mPendingGlyphBounds.mLeft, mPendingGlyphBounds.mTop,
+                    mPendingGlyphBounds.mRight, mPendingGlyphBounds.mBottom);
+            mPendingGlyphBounds.setEmpty();
+            return true;
+        }
+    }
+
+    private void addDrawText(@NonNull DrawTextOp op) {
+        op.mClip.set(getSave().mClip);
+        mDrawTexts.add(op);
     }
 
     @Override
@@ -2392,15 +2834,98 @@ public final class GLSurfaceCanvas extends GLCanvas {
             float red = ((color >> 16) & 0xff) / 255.0f;
             float green = ((color >> 8) & 0xff) / 255.0f;
             float blue = (color & 0xff) / 255.0f;
-            mDrawTexts.add(new DrawTextOp(glyphs, glyphOffset,
-                    positions, positionOffset, glyphCount,
-                    x, y, ff.chooseFont(paint.getFontSize())));
+            final int fontSize = paint.getFontSize();
+            if (GlyphManager.sDistanceField) {
+                // all sizes share the glyphs at the base size
+                addDrawText(new DrawTextOp(glyphs, glyphOffset,
+                        positions, positionOffset, glyphCount,
+                        x, y, ff.chooseFont(GlyphManager.DISTANCE_FIELD_BASE_SIZE),
+                        (float) fontSize / GlyphManager.DISTANCE_FIELD_BASE_SIZE, true));
+            } else {
+                addDrawText(new DrawTextOp(glyphs, glyphOffset,
+                        positions, positionOffset, glyphCount,
+                        x, y, ff.chooseFont(fontSize), 1, false));
+            }
             checkUniformStagingBuffer()
                     .putFloat(red * alpha)
                     .putFloat(green * alpha)
                     .putFloat(blue * alpha)
                     .putFloat(alpha);
             mDrawOps.add(DRAW_TEXT);
+        } else if (font instanceof EmojiFont ef) {
+            drawMatrix();
+            addDrawText(new DrawTextOp(glyphs, glyphOffset,
+                    positions, positionOffset, glyphCount,
+                    x, y, ef, ef.getEmojiSize(paint.getFontSize(), FontPaint.computeRenderFlags(paint))));
+            // color glyphs are not tinted, only apply the alpha
+            float alpha = (paint.getColor() >>> 24) / 255.0f;
+            checkUniformStagingBuffer()
+                    .putFloat(alpha)
+                    .putFloat(alpha)
+                    .putFloat(alpha)
+                    .putFloat(alpha);
+            mDrawOps.add(DRAW_TEXT);
+        }
+    }
+
+    /**
+     * Recorded commands and client buffers of one frame.
+     */
+    private static final class Frame {
+
+        final ByteArrayList mDrawOps = new ByteArrayList();
+        final IntArrayList mDrawPrims = new IntArrayList();
+        final IntList mClipRefs = new IntArrayList();
+        final IntList mLayerAlphas = new IntArrayList();
+        final Queue<Object> mTextures = new ArrayDeque<>();
+        final List<DrawTextOp> mDrawTexts = new ArrayList<>();
+        final Queue<CustomDrawable.DrawHandler> mCustoms = new ArrayDeque<>();
+
+        // these can be reallocated while recording
+        ByteBuffer mColorMeshStagingBuffer = memAlloc(16384);
+        ByteBuffer mTextureMeshStagingBuffer = memAlloc(4096);
+        ByteBuffer mShapeStagingBuffer = memAlloc(8192);
+        ByteBuffer mUniformRingBuffer = memAlloc(8192);
+
+        int mWidth;
+        int mHeight;
+        // the region to repaint
+        final Rect2i mDamage = new Rect2i();
+
+        void clear() {
+            mDrawOps.clear();
+            mDrawPrims.clear();
+            mClipRefs.clear();
+            mLayerAlphas.clear();
+            mDrawTexts.clear();
+            mColorMeshStagingBuffer.clear();
+            mTextureMeshStagingBuffer.clear();
+            mShapeStagingBuffer.clear();
+            mUniformRingBuffer.clear();
+        }
+
+        int getNativeMemoryUsage() {
+            return mColorMeshStagingBuffer.capacity() + mTextureMeshStagingBuffer.capacity() +
+                    mShapeStagingBuffer.capacity() + mUniformRingBuffer.capacity();
+        }
+    }
+
+    /**
+     * A uniform block shared by the pipelines. With the uniform ring buffer, the whole block is
+     * written to the ring on each update, so a CPU copy is kept. Otherwise, updates are uploaded
+     * to the buffer object.
+     */
+    private static final class UniformBlock {
+
+        final int mBinding;
+        final int mSize;
+        final GLUniformBufferCompat mBuffer = new GLUniformBufferCompat();
+        final ByteBuffer mData;
+
+        UniformBlock(int binding, int size) {
+            mBinding = binding;
+            mSize = size;
+            mData = memCalloc(size);
         }
     }
 
@@ -2414,12 +2939,18 @@ public final class GLSurfaceCanvas extends GLCanvas {
         private final float mOffsetX;
         private final float mOffsetY;
         private final java.awt.Font mFont;
+        private final EmojiFont mEmojiFont;
+        // the font size divided by the size of mFont, or the emoji size for emoji
+        private final float mScale;
+        private final boolean mDistanceField;
+        // the device clip when recorded, the text is redrawn in it if some glyphs are pending
+        private final Rect2i mClip = new Rect2i();
 
         private int mTexture;
         private int mVisibleGlyphCount;
 
         public DrawTextOp(int[] glyphs, int glyphOffset, float[] positions, int positionOffset, int glyphCount,
-                          float offsetX, float offsetY, java.awt.Font font) {
+                          float offsetX, float offsetY, java.awt.Font font, float scale, boolean distanceField) {
             mGlyphs = glyphs;
             mGlyphOffset = glyphOffset;
             mPositions = positions;
@@ -2428,6 +2959,24 @@ public final class GLSurfaceCanvas extends GLCanvas {
             mOffsetX = offsetX;
             mOffsetY = offsetY;
             mFont = font;
+            mEmojiFont = null;
+            mScale = scale;
+            mDistanceField = distanceField;
+        }
+
+        public DrawTextOp(int[] glyphs, int glyphOffset, float[] positions, int positionOffset, int glyphCount,
+                          float offsetX, float offsetY, EmojiFont font, float emojiSize) {
+            mGlyphs = glyphs;
+            mGlyphOffset = glyphOffset;
+            mPositions = positions;
+            mPositionOffset = positionOffset;
+            mGlyphCount = glyphCount;
+            mOffsetX = offsetX;
+            mOffsetY = offsetY;
+            mFont = null;
+            mEmojiFont = font;
+            mScale = emojiSize;
+            mDistanceField = false;
         }
 
         private void writeMeshData(@NonNull GLSurfaceCanvas canvas) {
@@ -2437,12 +2986,22 @@ public final class GLSurfaceCanvas extends GLCanvas {
             final float[] positions = mPositions;
             int positionOffset = mPositionOffset;
             int visibleGlyphCount = 0;
+            final int pendingLookupCount = glyphManager.getPendingLookupCount();
             for (int i = 0; i < mGlyphCount; i++) {
-                GLBakedGlyph bakedGlyph = glyphManager.lookupGlyph(mFont, glyphs[glyphOffset++]);
+                final GLBakedGlyph bakedGlyph;
+                if (mEmojiFont != null) {
+                    bakedGlyph = glyphManager.lookupEmojiGlyph(mEmojiFont, glyphs[glyphOffset++]);
+                } else if (mDistanceField) {
+                    bakedGlyph = glyphManager.lookupDistanceFieldGlyph(mFont, glyphs[glyphOffset++]);
+                } else {
+                    bakedGlyph = glyphManager.lookupGlyph(mFont, glyphs[glyphOffset++]);
+                }
                 if (bakedGlyph != null) {
+                    // emoji images are scaled to the emoji size
                     canvas.putGlyph(bakedGlyph,
                             mOffsetX + positions[positionOffset++],
-                            mOffsetY + positions[positionOffset++]);
+                            mOffsetY + positions[positionOffset++],
+                            mEmojiFont != null ? mScale / bakedGlyph.height : mScale);
                     mTexture = bakedGlyph.texture;
                     visibleGlyphCount++;
                 } else {
@@ -2450,6 +3009,11 @@ public final class GLSurfaceCanvas extends GLCanvas {
                 }
             }
             mVisibleGlyphCount = visibleGlyphCount;
+            if (glyphManager.getPendingLookupCount() != pendingLookupCount) {
+                synchronized (canvas.mPendingGlyphBounds) {
+                    canvas.mPendingGlyphBounds.join(mClip);
+                }
+            }
         }
     }
 
@@ -0,0 +1,459 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.graphics;
+
+import icyllis.arc3d.core.Blender;
+import icyllis.arc3d.core.Matrix4;
+import icyllis.modernui.annotation.NonNull;
+import icyllis.modernui.annotation.Nullable;
+import icyllis.modernui.graphics.text.Font;
+import icyllis.modernui.util.Pools;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A Canvas implementation that records drawing operations into a {@link DisplayList}
+ * of a {@link RenderNode}, the display list can be replayed later to another canvas
+ * without calling the drawing code again.
+ * <p>
+ * The matrix is only recorded when it is changed before a drawing or clipping operation.
+ * Clip state is unknown while recording, so {@link #quickReject(float, float, float, float)}
+ * always returns false and the real rejection is done when replaying.
+ *
+ * @see RenderNode#beginRecording(int, int)
+ */
+@NotThreadSafe
+public final class RecordingCanvas extends Canvas {
+
+    private static final Pools.Pool<RecordingCanvas> sPool = Pools.newSimplePool(25);
+
+    private RenderNode mNode;
+    private int mWidth;
+    private int mHeight;
+
+    // recorded operations
+    private final ByteArrayList mOps = new ByteArrayList();
+    private final FloatArrayList mFloats = new FloatArrayList();
+    private final IntArrayList mInts = new IntArrayList();
+    private final ArrayList<Object> mObjects = new ArrayList<>();
+
+    // local matrix stack, index 0 is the root
+    private final ArrayList<Matrix4> mMatrices = new ArrayList<>();
+    private int mSaveCount;
+
+    // the matrix that will be used by the target canvas when replaying
+    private final Matrix4 mLastMatrix = new Matrix4();
+    private boolean mMatrixDirty;
+
+    private RecordingCanvas() {
+        mMatrices.add(Matrix4.identity());
+    }
+
+    @NonNull
+    static RecordingCanvas obtain(@NonNull RenderNode node, int width, int height) {
+        RecordingCanvas canvas = sPool.acquire();
+        if (canvas == null) {
+            canvas = new RecordingCanvas();
+        }
+        canvas.mNode = node;
+        canvas.mWidth = width;
+        canvas.mHeight = height;
+        canvas.mSaveCount = 1;
+        canvas.mMatrices.get(0).setIdentity();
+        canvas.mLastMatrix.setIdentity();
+        canvas.mMatrixDirty = false;
+        return canvas;
+    }
+
+    /**
+     * Finishes recording and sets the display list of the render node.
+     */
+    void finishRecording(@NonNull RenderNode node) {
+        assert mNode == node;
+        node.setDisplayList(new DisplayList(
+                mOps.toByteArray(),
+                mFloats.toFloatArray(),
+                mInts.toIntArray(),
+                mObjects.toArray(),
+                mWidth, mHeight));
+    }
+
+    void recycle() {
+        mNode = null;
+        mOps.clear();
+        mFloats.clear();
+        mInts.clear();
+        mObjects.clear();
+        sPool.release(this);
+    }
+
+    /**
+     * @return the width of the recording viewport
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the height of the recording viewport
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Records a reference to the display list of the given render node. The render node
+     * will be replayed with its display list at replay time, so the node can be re-recorded
+     * without re-recording this canvas.
+     *
+     * @param node the render node to draw
+     */
+    public void drawRenderNode(@NonNull RenderNode node) {
+        if (node == mNode) {
+            throw new IllegalArgumentException("Recursive render node");
+        }
+        flushMatrix();
+        mObjects.add(node);
+        mOps.add(DisplayList.OP_DRAW_RENDER_NODE);
+    }
+
+    // record the matrix if changed since last recorded
+    private void flushMatrix() {
+        Matrix4 matrix = getMatrix();
+        if (mMatrixDirty || !matrix.isApproxEqual(mLastMatrix)) {
+            mLastMatrix.set(matrix);
+            mMatrixDirty = false;
+            mObjects.add(matrix.clone());
+            mOps.add(DisplayList.OP_SET_MATRIX);
+        }
+    }
+
+    private static Paint copy(@Nullable Paint paint) {
+        return paint == null ? null : new Paint(paint);
+    }
+
+    @Override
+    public int save() {
+        int saveCount = mSaveCount;
+        if (mMatrices.size() <= saveCount) {
+            mMatrices.add(getMatrix().clone());
+        } else {
+            mMatrices.get(saveCount).set(getMatrix());
+        }
+        mSaveCount++;
+        mOps.add(DisplayList.OP_SAVE);
+        return saveCount;
+    }
+
+    @Override
+    public int saveLayer(float left, float top, float right, float bottom, int alpha) {
+        flushMatrix();
+        int saveCount = save();
+        // replace the save op
+        mOps.set(mOps.size() - 1, DisplayList.OP_SAVE_LAYER);
+        mFloats.add(left);
+        mFloats.add(top);
+        mFloats.add(right);
+        mFloats.add(bottom);
+        mInts.add(alpha);
+        return saveCount;
+    }
+
+    @Override
+    public void restore() {
+        if (mSaveCount <= 1) {
+            throw new IllegalStateException("Underflow in restore");
+        }
+        mSaveCount--;
+        // the target matrix will be restored as well
+        mMatrixDirty = true;
+        mOps.add(DisplayList.OP_RESTORE);
+    }
+
+    @Override
+    public int getSaveCount() {
+        return mSaveCount;
+    }
+
+    @Override
+    public void restoreToCount(int saveCount) {
+        if (saveCount < 1) {
+            throw new IllegalArgumentException("Underflow in restoreToCount");
+        }
+        if (saveCount >= mSaveCount) {
+            return;
+        }
+        mSaveCount = saveCount;
+        mMatrixDirty = true;
+        mInts.add(saveCount);
+        mOps.add(DisplayList.OP_RESTORE_TO_COUNT);
+    }
+
+    @NonNull
+    @Override
+    public Matrix4 getMatrix() {
+        return mMatrices.get(mSaveCount - 1);
+    }
+
+    @Override
+    public boolean clipRect(float left, float top, float right, float bottom) {
+        flushMatrix();
+        mFloats.add(left);
+        mFloats.add(top);
+        mFloats.add(right);
+        mFloats.add(bottom);
+        // an empty rect is recorded as well, the replaying canvas rejects the following ops
+        mOps.add(DisplayList.OP_CLIP_RECT);
+        // the real clip is unknown until replaying, unless it's empty
+        return right > left && bottom > top;
+    }
+
+    @Override
+    public boolean quickReject(float left, float top, float right, float bottom) {
+        return right <= left || bottom <= top;
+    }
+
+    @Override
+    public void drawLine(float x0, float y0, float x1, float y1, float thickness, @NonNull Paint paint) {
+        flushMatrix();
+        mFloats.add(x0);
+        mFloats.add(y0);
+        mFloats.add(x1);
+        mFloats.add(y1);
+        mFloats.add(thickness);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_LINE);
+    }
+
+    @Override
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+        flushMatrix();
+        mFloats.add(left);
+        mFloats.add(top);
+        mFloats.add(right);
+        mFloats.add(bottom);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_RECT);
+    }
+
+    @Override
+    public void drawRectGradient(float left, float top, float right, float bottom,
+                                 int colorUL, int colorUR, int colorLR, int colorLL, Paint paint) {
+        flushMatrix();
+        mFloats.add(left);
+        mFloats.add(top);
+        mFloats.add(right);
+        mFloats.add(bottom);
+        mInts.add(colorUL);
+        mInts.add(colorUR);
+        mInts.add(colorLR);
+        mInts.add(colorLL);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_RECT_GRADIENT);
+    }
+
+    @Override
+    public void drawRoundRect(float left, float top, float right, float bottom,
+                              float radius, int sides, Paint paint) {
+        flushMatrix();
+        mFloats.add(left);
+        mFloats.add(top);
+        mFloats.add(right);
+        mFloats.add(bottom);
+        mFloats.add(radius);
+        mInts.add(sides);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_ROUND_RECT);
+    }
+
+    @Override
+    public void drawRoundRectGradient(float left, float top, float right, float bottom,
+                                      int colorUL, int colorUR, int colorLR, int colorLL,
+                                      float radius, Paint paint) {
+        flushMatrix();
+        mFloats.add(left);
+        mFloats.add(top);
+        mFloats.add(right);
+        mFloats.add(bottom);
+        mFloats.add(radius);
+        mInts.add(colorUL);
+        mInts.add(colorUR);
+        mInts.add(colorLR);
+        mInts.add(colorLL);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_ROUND_RECT_GRADIENT);
+    }
+
+    @Override
+    public void drawCircle(float cx, float cy, float radius, @NonNull Paint paint) {
+        flushMatrix();
+        mFloats.add(cx);
+        mFloats.add(cy);
+        mFloats.add(radius);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_CIRCLE);
+    }
+
+    @Override
+    public void drawArc(float cx, float cy, float radius, float startAngle, float sweepAngle,
+                        @NonNull Paint paint) {
+        flushMatrix();
+        mFloats.add(cx);
+        mFloats.add(cy);
+        mFloats.add(radius);
+        mFloats.add(startAngle);
+        mFloats.add(sweepAngle);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_ARC);
+    }
+
+    @Override
+    public void drawPie(float cx, float cy, float radius, float startAngle, float sweepAngle,
+                        @NonNull Paint paint) {
+        flushMatrix();
+        mFloats.add(cx);
+        mFloats.add(cy);
+        mFloats.add(radius);
+        mFloats.add(startAngle);
+        mFloats.add(sweepAngle);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_PIE);
+    }
+
+    @Override
+    public void drawBezier(float x0, float y0, float x1, float y1, float x2, float y2, Paint paint) {
+        flushMatrix();
+        mFloats.add(x0);
+        mFloats.add(y0);
+        mFloats.add(x1);
+        mFloats.add(y1);
+        mFloats.add(x2);
+        mFloats.add(y2);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_BEZIER);
+    }
+
+    @Override
+    public void drawImage(Image image, float left, float top, @Nullable Paint paint) {
+        flushMatrix();
+        mFloats.add(left);
+        mFloats.add(top);
+        mObjects.add(image);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_IMAGE);
+    }
+
+    @Override
+    public void drawImage(Image image, float srcLeft, float srcTop, float srcRight, float srcBottom,
+                          float dstLeft, float dstTop, float dstRight, float dstBottom, @Nullable Paint paint) {
+        flushMatrix();
+        mFloats.add(srcLeft);
+        mFloats.add(srcTop);
+        mFloats.add(srcRight);
+        mFloats.add(srcBottom);
+        mFloats.add(dstLeft);
+        mFloats.add(dstTop);
+        mFloats.add(dstRight);
+        mFloats.add(dstBottom);
+        mObjects.add(image);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_IMAGE_RECT);
+    }
+
+    @Override
+    public void drawRoundImage(Image image, float left, float top, float radius, Paint paint) {
+        flushMatrix();
+        mFloats.add(left);
+        mFloats.add(top);
+        mFloats.add(radius);
+        mObjects.add(image);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_ROUND_IMAGE);
+    }
+
+    @Override
+    public void drawGlyphs(@NonNull int[] glyphs, int glyphOffset,
+                           @NonNull float[] positions, int positionOffset,
+                           int glyphCount, @NonNull Font font,
+                           float x, float y, @NonNull Paint paint) {
+        if (glyphCount <= 0) {
+            return;
+        }
+        flushMatrix();
+        // the arrays may be reused by the caller, copy them
+        mObjects.add(Arrays.copyOfRange(glyphs, glyphOffset, glyphOffset + glyphCount));
+        mObjects.add(Arrays.copyOfRange(positions, positionOffset, positionOffset + glyphCount * 2));
+        mObjects.add(font);
+        mObjects.add(copy(paint));
+        mFloats.add(x);
+        mFloats.add(y);
+        mOps.add(DisplayList.OP_DRAW_GLYPHS);
+    }
+
+    @Override
+    public void drawMesh(@NonNull VertexMode mode, @NonNull FloatBuffer pos,
+                         @Nullable IntBuffer color, @Nullable FloatBuffer tex,
+                         @Nullable ShortBuffer indices, @Nullable Blender blender,
+                         @NonNull Paint paint) {
+        flushMatrix();
+        mObjects.add(mode);
+        mObjects.add(copyOf(pos));
+        mObjects.add(color != null ? copyOf(color) : null);
+        mObjects.add(tex != null ? copyOf(tex) : null);
+        mObjects.add(indices != null ? copyOf(indices) : null);
+        mObjects.add(blender);
+        mObjects.add(copy(paint));
+        mOps.add(DisplayList.OP_DRAW_MESH);
+    }
+
+    @Override
+    public void drawCustomDrawable(@NonNull CustomDrawable drawable, @Nullable Matrix4 matrix) {
+        flushMatrix();
+        mObjects.add(drawable);
+        mObjects.add(matrix != null ? matrix.clone() : null);
+        mOps.add(DisplayList.OP_DRAW_CUSTOM);
+    }
+
+    @NonNull
+    private static FloatBuffer copyOf(@NonNull FloatBuffer buffer) {
+        float[] a = new float[buffer.remaining()];
+        buffer.get(buffer.position(), a);
+        return FloatBuffer.wrap(a);
+    }
+
+    @NonNull
+    private static IntBuffer copyOf(@NonNull IntBuffer buffer) {
+        int[] a = new int[buffer.remaining()];
+        buffer.get(buffer.position(), a);
+        return IntBuffer.wrap(a);
+    }
+
+    @NonNull
+    private static ShortBuffer copyOf(@NonNull ShortBuffer buffer) {
+        short[] a = new short[buffer.remaining()];
+        buffer.get(buffer.position(), a);
+        return ShortBuffer.wrap(a);
+    }
+}
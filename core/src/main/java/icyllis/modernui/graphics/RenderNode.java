@@ -18,12 +18,17 @@
 
 package icyllis.modernui.graphics;
 
+import icyllis.arc3d.core.Matrix4;
+
 import javax.annotation.Nonnull;
 
-//TODO wip
 public final class RenderNode extends RenderProperties {
 
-    private Canvas mCurrentRecordingCanvas;
+    private RecordingCanvas mCurrentRecordingCanvas;
+    private DisplayList mDisplayList;
+
+    // used as the base matrix when replaying
+    private final Matrix4 mBaseMatrix = new Matrix4();
 
     /**
      * Creates a new RenderNode that can be used to record batches of
@@ -56,7 +61,7 @@ public final class RenderNode extends RenderProperties {
         if (mCurrentRecordingCanvas != null) {
             throw new IllegalStateException("Recording currently in progress - missing #endRecording() call?");
         }
-        //mCurrentRecordingCanvas = RecordingCanvas.obtain(this, width, height);
+        mCurrentRecordingCanvas = RecordingCanvas.obtain(this, width, height);
         return mCurrentRecordingCanvas;
     }
 
@@ -71,9 +76,46 @@ public final class RenderNode extends RenderProperties {
         if (mCurrentRecordingCanvas == null) {
             throw new IllegalStateException("No recording in progress, forgot to call #beginRecording()?");
         }
-        Canvas canvas = mCurrentRecordingCanvas;
+        RecordingCanvas canvas = mCurrentRecordingCanvas;
         mCurrentRecordingCanvas = null;
-        //canvas.finishRecording(this);
-        //canvas.recycle();
+        canvas.finishRecording(this);
+        canvas.recycle();
+    }
+
+    void setDisplayList(DisplayList displayList) {
+        mDisplayList = displayList;
+    }
+
+    /**
+     * Returns whether the RenderNode has a display list. If this returns false, the RenderNode
+     * should be re-recorded with {@link #beginRecording(int, int)} and {@link #endRecording()}.
+     *
+     * @return true if the RenderNode has a display list, false otherwise.
+     */
+    public boolean hasDisplayList() {
+        return mDisplayList != null;
+    }
+
+    /**
+     * Reset the RenderNode to the empty state, the display list will be released.
+     */
+    public void discardDisplayList() {
+        mDisplayList = null;
+    }
+
+    /**
+     * Draws this RenderNode to the given canvas. If the canvas is a recording canvas,
+     * a reference to this node is recorded, so that this node can be re-recorded
+     * without re-recording the parent. Otherwise, the display list is replayed to
+     * the canvas, without calling the original drawing code.
+     *
+     * @param canvas the canvas to draw on
+     */
+    public void draw(@Nonnull Canvas canvas) {
+        if (canvas instanceof RecordingCanvas) {
+            ((RecordingCanvas) canvas).drawRenderNode(this);
+        } else if (mDisplayList != null) {
+            mDisplayList.replay(canvas, mBaseMatrix);
+        }
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.graphics.font;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Converts A8 coverage to a signed distance field. The distance to the edge is estimated
+ * from the coverage of the nearest pixels within the spread, which is accurate enough for
+ * anti-aliased glyphs and cheap for the small images of glyphs.
+ * <p>
+ * The result is encoded as 0.5 + distance / (2 * spread), the edge is at 0.5, greater
+ * values are inside the glyph.
+ */
+final class DistanceFieldGenerator {
+
+    private DistanceFieldGenerator() {
+    }
+
+    /**
+     * Generates the distance field. The destination is larger than the source by
+     * spread pixels on each side, pixels outside the source are treated as empty.
+     *
+     * @param src       the address of coverage image
+     * @param srcWidth  the width of coverage image
+     * @param srcHeight the height of coverage image
+     * @param dst       the address of the result, (srcWidth + spread * 2) * (srcHeight + spread * 2)
+     * @param spread    the max distance in pixels
+     */
+    static void generate(long src, int srcWidth, int srcHeight, long dst, int spread) {
+        final int width = srcWidth + spread * 2;
+        final int height = srcHeight + spread * 2;
+        // copy to heap with padding, avoid bounds checks in the inner loop
+        final float[] coverage = new float[width * height];
+        for (int y = 0; y < srcHeight; y++) {
+            int row = (y + spread) * width + spread;
+            long srcRow = src + (long) y * srcWidth;
+            for (int x = 0; x < srcWidth; x++) {
+                coverage[row + x] = (MemoryUtil.memGetByte(srcRow + x) & 0xFF) / 255.0f;
+            }
+        }
+        final float scale = 1.0f / (spread * 2);
+        final int spreadSq = spread * spread;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final float c = coverage[y * width + x];
+                final float dist;
+                if (c > 0 && c < 1) {
+                    // the edge passes through this pixel
+                    dist = c - 0.5f;
+                } else {
+                    final boolean inside = c >= 1;
+                    float minDist = spread;
+                    for (int dy = -spread; dy <= spread; dy++) {
+                        int yy = y + dy;
+                        if (yy < 0 || yy >= height) {
+                            continue;
+                        }
+                        for (int dx = -spread; dx <= spread; dx++) {
+                            int xx = x + dx;
+                            int lenSq = dx * dx + dy * dy;
+                            if (xx < 0 || xx >= width || lenSq > spreadSq) {
+                                continue;
+                            }
+                            float q = coverage[yy * width + xx];
+                            if (inside ? q < 1 : q > 0) {
+                                // the edge is (0.5 - q) beyond the center of the neighbor pixel
+                                float d = (float) Math.sqrt(lenSq) + (inside ? q - 0.5f : 0.5f - q);
+                                if (d < minDist) {
+                                    minDist = d;
+                                }
+                            }
+                        }
+                    }
+                    dist = inside ? minDist : -minDist;
+                }
+                float value = 0.5f + dist * scale;
+                value = Math.max(0, Math.min(1, value));
+                MemoryUtil.memPutByte(dst + (long) y * width + x, (byte) (value * 255.0f + 0.5f));
+            }
+        }
+    }
+}
@@ -74,6 +74,16 @@ public class GLBakedGlyph {
      */
     public float v2;
 
+    /**
+     * The index of the atlas chunk that contains this glyph image.
+     */
+    int chunk;
+
+    /**
+     * Whether this glyph is being rasterized on a worker thread.
+     */
+    boolean pending;
+
     public GLBakedGlyph() {
     }
 
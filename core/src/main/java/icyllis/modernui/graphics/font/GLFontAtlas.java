@@ -28,13 +28,18 @@ import icyllis.modernui.core.Core;
 import icyllis.modernui.graphics.*;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
 import static icyllis.arc3d.opengl.GLCore.*;
+import static org.lwjgl.system.MemoryUtil.*;
 
 /**
  * Maintains a font texture atlas, which is specified with a font strike (style and
@@ -45,11 +50,14 @@ import static icyllis.arc3d.opengl.GLCore.*;
  * alternately. For example, 1024*1024 -> 1024*2048 -> 2048*2048.
  * Each 512*512 area becomes a chunk, and has its {@link RectanglePacker}.
  * The OpenGL texture ID will change due to expanding the texture size.
+ * <p>
+ * The texture cannot exceed the max texture size and {@link #sMaxMemorySize}. Then
+ * the least recently used chunk that is not used in the current generation (frame)
+ * will be evicted and reused, its glyphs will be re-rendered when they are used again.
  *
  * @see GlyphManager
  * @see GLBakedGlyph
  */
-//TODO handle too many glyphs?
 @RenderThread
 public class GLFontAtlas implements AutoCloseable {
 
@@ -65,6 +73,12 @@ public class GLFontAtlas implements AutoCloseable {
      */
     public static volatile boolean sLinearSampling = true;
 
+    /**
+     * Config value. The max GPU memory size of an atlas in bytes, including mipmaps.
+     * When it is reached, cold chunks will be evicted instead of expanding the texture.
+     */
+    public static volatile int sMaxMemorySize = 1 << 24;
+
     /**
      * A framebuffer used to copy texture to texture for compatibility
      */
@@ -84,9 +98,30 @@ public class GLFontAtlas implements AutoCloseable {
 
     private final Rect2i mRect = new Rect2i();
 
-    private record Chunk(int x, int y, RectanglePacker packer) {
+    private boolean mMipmapDirty;
+
+    private static final class Chunk {
+
+        final int mX;
+        final int mY;
+        final RectanglePacker mPacker;
+        // the keys of glyphs in this chunk
+        final LongArrayList mKeys = new LongArrayList();
+        // the generation when this chunk was last used
+        int mLastUsedGeneration;
+
+        Chunk(int x, int y) {
+            mX = x;
+            mY = y;
+            mPacker = RectanglePacker.make(CHUNK_SIZE, CHUNK_SIZE);
+        }
     }
 
+    private int mGeneration;
+
+    private int mEvictedChunkCount;
+    private int mEvictedGlyphCount;
+
     private final int mMaskFormat;
     private final int mMaxTextureSize;
 
@@ -113,16 +148,47 @@ public class GLFontAtlas implements AutoCloseable {
     @Nullable
     public GLBakedGlyph getGlyph(long key) {
         // static factory
-        return mGlyphs.computeIfAbsent(key, __ -> new GLBakedGlyph());
+        GLBakedGlyph glyph = mGlyphs.computeIfAbsent(key, __ -> new GLBakedGlyph());
+        if (glyph != null && glyph.texture != 0) {
+            mChunks.get(glyph.chunk).mLastUsedGeneration = mGeneration;
+        }
+        return glyph;
+    }
+
+    /**
+     * Starts a new generation, typically a new frame. Chunks used in the current
+     * generation will never be evicted.
+     */
+    public void nextGeneration() {
+        mGeneration++;
     }
 
     public void setNoPixels(long key) {
         mGlyphs.put(key, null);
     }
 
-    public boolean stitch(@NonNull GLBakedGlyph glyph, long pixels) {
+    /**
+     * Uploads the glyph image to this atlas. If there's no space, the glyph texture
+     * will be 0 and it will be tried again when used next time.
+     *
+     * @param key    the key of the glyph
+     * @param glyph  the glyph with bounds
+     * @param pixels the glyph image with border
+     * @return true if previous glyphs are invalidated
+     */
+    public boolean stitch(long key, @NonNull GLBakedGlyph glyph, long pixels) {
+        return stitch(key, glyph, pixels, true);
+    }
+
+    /**
+     * Uploads the glyph image to this atlas. When uploading a batch of glyphs, pass false
+     * and call {@link #generateMipmap()} after the batch.
+     *
+     * @param mipmap whether to regenerate mipmaps
+     * @see #stitch(long, GLBakedGlyph, long)
+     */
+    public boolean stitch(long key, @NonNull GLBakedGlyph glyph, long pixels, boolean mipmap) {
         boolean invalidated = false;
-        glyph.texture = mTexture.get();
         if (mWidth == 0) {
             resize(); // first init
         }
@@ -131,37 +197,47 @@ public class GLFontAtlas implements AutoCloseable {
         var rect = mRect;
         rect.set(0, 0,
                 glyph.width + GlyphManager.GLYPH_BORDER * 2, glyph.height + GlyphManager.GLYPH_BORDER * 2);
-        boolean inserted = false;
-        for (Chunk chunk : mChunks) {
-            if (chunk.packer.addRect(rect)) {
-                inserted = true;
-                rect.offset(chunk.x, chunk.y);
-                break;
-            }
-        }
-        if (!inserted) {
+        int chunkIndex = insert(rect);
+        if (chunkIndex < 0 && canExpand()) {
             // add new chunks
             resize();
             invalidated = true;
-            for (Chunk chunk : mChunks) {
-                if (chunk.packer.addRect(rect)) {
-                    inserted = true;
-                    rect.offset(chunk.x, chunk.y);
-                    break;
+            chunkIndex = insert(rect);
+        }
+        if (chunkIndex < 0 && rect.width() <= CHUNK_SIZE && rect.height() <= CHUNK_SIZE) {
+            // reuse the coldest chunk
+            int victim = evictColdChunk();
+            if (victim >= 0) {
+                invalidated = true;
+                Chunk chunk = mChunks.get(victim);
+                if (chunk.mPacker.addRect(rect)) {
+                    rect.offset(chunk.mX, chunk.mY);
+                    chunkIndex = victim;
                 }
             }
         }
-        if (!inserted) {
-            // failed...
+        if (chunkIndex < 0) {
+            // failed, all chunks are used in this generation, try again later
+            mGlyphs.remove(key);
+            glyph.texture = 0;
             return invalidated;
         }
+        Chunk chunk = mChunks.get(chunkIndex);
+        chunk.mKeys.add(key);
+        chunk.mLastUsedGeneration = mGeneration;
+        glyph.texture = mTexture.get();
+        glyph.chunk = chunkIndex;
 
         // include border
         mTexture.upload(0, rect.x(), rect.y(),
                 rect.width(), rect.height(),
                 0, 0, 0, 1,
                 mMaskFormat == Engine.MASK_FORMAT_ARGB ? GL_RGBA : GL_RED, GL_UNSIGNED_BYTE, pixels);
-        mTexture.generateMipmap();
+        if (mipmap) {
+            mTexture.generateMipmap();
+        } else {
+            mMipmapDirty = true;
+        }
 
         // exclude border
         glyph.u1 = (float) (rect.mLeft + GlyphManager.GLYPH_BORDER) / mWidth;
@@ -172,6 +248,102 @@ public class GLFontAtlas implements AutoCloseable {
         return invalidated;
     }
 
+    /**
+     * Generates mipmaps if there are glyphs uploaded without mipmaps.
+     */
+    public void generateMipmap() {
+        if (mMipmapDirty) {
+            mTexture.generateMipmap();
+            mMipmapDirty = false;
+        }
+    }
+
+    // returns the chunk index, or -1
+    private int insert(Rect2i rect) {
+        for (int i = 0, e = mChunks.size(); i < e; i++) {
+            Chunk chunk = mChunks.get(i);
+            if (chunk.mPacker.addRect(rect)) {
+                rect.offset(chunk.mX, chunk.mY);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean canExpand() {
+        int width = mWidth;
+        int height = mHeight;
+        if (height != width) {
+            width <<= 1;
+        } else {
+            height <<= 1;
+        }
+        return width <= mMaxTextureSize && height <= mMaxTextureSize &&
+                computeMemorySize(width, height) <= sMaxMemorySize;
+    }
+
+    /**
+     * Evicts the least recently used chunk that is not used in the current generation.
+     * Evicted glyphs are removed and their texture become 0.
+     *
+     * @return the chunk index, or -1
+     */
+    private int evictColdChunk() {
+        int victim = -1;
+        int oldest = mGeneration;
+        for (int i = 0, e = mChunks.size(); i < e; i++) {
+            Chunk chunk = mChunks.get(i);
+            // overflow-safe comparison
+            if (chunk.mLastUsedGeneration - oldest < 0) {
+                oldest = chunk.mLastUsedGeneration;
+                victim = i;
+            }
+        }
+        if (victim < 0) {
+            return -1;
+        }
+        Chunk chunk = mChunks.get(victim);
+        final LongArrayList keys = chunk.mKeys;
+        for (int i = 0, e = keys.size(); i < e; i++) {
+            GLBakedGlyph glyph = mGlyphs.remove(keys.getLong(i));
+            if (glyph != null) {
+                glyph.texture = 0;
+            }
+        }
+        mEvictedGlyphCount += keys.size();
+        mEvictedChunkCount++;
+        keys.clear();
+        chunk.mPacker.clear();
+        // clear old images, including mipmaps, or they may bleed into new glyphs
+        final int format = mMaskFormat == Engine.MASK_FORMAT_ARGB ? GL_RGBA : GL_RED;
+        final GLCapabilities caps = GL.getCapabilities();
+        if (caps.OpenGL44 || caps.GL_ARB_clear_texture) {
+            for (int level = 0; level <= MIPMAP_LEVEL; level++) {
+                glClearTexSubImage(mTexture.get(), level, chunk.mX >> level, chunk.mY >> level, 0,
+                        CHUNK_SIZE >> level, CHUNK_SIZE >> level, 1,
+                        format, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+            }
+        } else {
+            // GL 3.3, upload zeros, the base level is the largest
+            final int bpp = mMaskFormat == Engine.MASK_FORMAT_ARGB ? 4 : 1;
+            final long zeros = nmemCalloc(1, (long) CHUNK_SIZE * CHUNK_SIZE * bpp);
+            if (zeros == NULL) {
+                throw new OutOfMemoryError();
+            }
+            try {
+                for (int level = 0; level <= MIPMAP_LEVEL; level++) {
+                    mTexture.upload(level, chunk.mX >> level, chunk.mY >> level,
+                            CHUNK_SIZE >> level, CHUNK_SIZE >> level,
+                            0, 0, 0, 1,
+                            format, GL_UNSIGNED_BYTE, zeros);
+                }
+            } finally {
+                nmemFree(zeros);
+            }
+        }
+        return victim;
+    }
+
     private void resize() {
         if (mWidth == 0) {
             // initialize 4 chunks
@@ -180,7 +352,7 @@ public class GLFontAtlas implements AutoCloseable {
                     mWidth, mHeight, MIPMAP_LEVEL);
             for (int x = 0; x < mWidth; x += CHUNK_SIZE) {
                 for (int y = 0; y < mHeight; y += CHUNK_SIZE) {
-                    mChunks.add(new Chunk(x, y, RectanglePacker.make(CHUNK_SIZE, CHUNK_SIZE)));
+                    mChunks.add(new Chunk(x, y));
                 }
             }
         } else {
@@ -192,7 +364,7 @@ public class GLFontAtlas implements AutoCloseable {
                 mWidth <<= 1;
                 for (int x = mWidth / 2; x < mWidth; x += CHUNK_SIZE) {
                     for (int y = 0; y < mHeight; y += CHUNK_SIZE) {
-                        mChunks.add(new Chunk(x, y, RectanglePacker.make(CHUNK_SIZE, CHUNK_SIZE)));
+                        mChunks.add(new Chunk(x, y));
                     }
                 }
                 vertical = false;
@@ -200,7 +372,7 @@ public class GLFontAtlas implements AutoCloseable {
                 mHeight <<= 1;
                 for (int x = 0; x < mWidth; x += CHUNK_SIZE) {
                     for (int y = mHeight / 2; y < mHeight; y += CHUNK_SIZE) {
-                        mChunks.add(new Chunk(x, y, RectanglePacker.make(CHUNK_SIZE, CHUNK_SIZE)));
+                        mChunks.add(new Chunk(x, y));
                     }
                 }
                 vertical = true;
@@ -297,11 +469,27 @@ public class GLFontAtlas implements AutoCloseable {
     }
 
     public int getMemorySize() {
-        int size = mTexture.getWidth() * mTexture.getHeight();
+        return computeMemorySize(mWidth, mHeight);
+    }
+
+    private int computeMemorySize(int width, int height) {
+        int size = width * height;
         if (mMaskFormat == Engine.MASK_FORMAT_ARGB) {
             size <<= 2;
         }
         size = ((size - (size >> ((MIPMAP_LEVEL + 1) << 1))) << 2) / 3;
         return size;
     }
+
+    public int getChunkCount() {
+        return mChunks.size();
+    }
+
+    public int getEvictedChunkCount() {
+        return mEvictedChunkCount;
+    }
+
+    public int getEvictedGlyphCount() {
+        return mEvictedGlyphCount;
+    }
 }
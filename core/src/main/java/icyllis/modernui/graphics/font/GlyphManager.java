@@ -19,8 +19,10 @@
 package icyllis.modernui.graphics.font;
 
 import icyllis.arc3d.engine.Engine;
+import icyllis.modernui.ModernUI;
 import icyllis.modernui.annotation.*;
 import icyllis.modernui.graphics.Bitmap;
+import icyllis.modernui.graphics.text.EmojiFont;
 import icyllis.modernui.graphics.text.FontCollection;
 import icyllis.modernui.text.TextUtils;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
@@ -36,9 +38,13 @@ import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Objects;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.ToIntFunction;
 
+import static org.lwjgl.system.MemoryUtil.NULL;
+
 /**
  * Manages all glyphs, font atlases, measures glyph metrics and draw them of
  * different sizes and styles, and upload them to generated OpenGL textures.
@@ -58,6 +64,17 @@ public class GlyphManager {
      */
     public static final int GLYPH_BORDER = 2;
 
+    /**
+     * The font size in pixels at which distance field glyphs are rasterized, they are
+     * scaled to any other size.
+     */
+    public static final int DISTANCE_FIELD_BASE_SIZE = 32;
+
+    /**
+     * The max distance in pixels (at the base size) encoded in distance field glyphs.
+     */
+    public static final int DISTANCE_FIELD_SPREAD = 4;
+
     /**
      * Transparent (alpha zero) black background color for use with BufferedImage.clearRect().
      */
@@ -71,12 +88,46 @@ public class GlyphManager {
     public static volatile boolean sAntiAliasing = true;
     public static volatile boolean sFractionalMetrics = false;
 
+    /**
+     * Config value. Rasterize glyphs with stb_truetype if the font data is known,
+     * otherwise AWT is used. This only works with anti aliasing on.
+     *
+     * @see TrueTypeRasterizer
+     */
+    public static volatile boolean sTrueTypeRasterizer = true;
+
+    /**
+     * Config value. Rasterize glyph misses on worker threads, the glyphs are skipped
+     * until they are ready, then a redraw is requested. Otherwise, glyph misses are
+     * rasterized on the render thread while drawing.
+     */
+    public static volatile boolean sAsyncRasterization = true;
+
+    /**
+     * Config value. Render glyphs as signed distance fields rasterized at
+     * {@link #DISTANCE_FIELD_BASE_SIZE}, so text of any size or under scale animations
+     * shares the same atlas entries. Bitmap glyphs are sharper at small sizes.
+     */
+    public static volatile boolean sDistanceField = false;
+
+    private static final AtomicInteger sRasterizerThreadCount = new AtomicInteger();
+    private static final ExecutorService RASTERIZER_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), r -> {
+                Thread t = new Thread(r, "Glyph-Rasterizer-" + sRasterizerThreadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static final ThreadLocal<Rasterizer> sWorkerRasterizer = ThreadLocal.withInitial(Rasterizer::new);
+
     /**
      * The global instance.
      */
     private static volatile GlyphManager sInstance;
 
     private GLFontAtlas mA8Atlas;
+    private GLFontAtlas mDistanceFieldAtlas;
+    private GLFontAtlas mEmojiAtlas;
 
     /**
      * Font (with size and style) to int key.
@@ -90,26 +141,31 @@ public class GlyphManager {
     };
 
     /**
-     * Draw a single glyph onto this image and then loaded from here into an OpenGL texture.
+     * Emoji font to int key, the keys are used by the color emoji atlas only.
      */
-    private BufferedImage mImage;
+    private final Object2IntOpenHashMap<EmojiFont> mEmojiFontTable = new Object2IntOpenHashMap<>();
+    private final ToIntFunction<EmojiFont> mEmojiFontTableMapper = f -> mEmojiFontTable.size() + 1;
 
     /**
-     * The Graphics2D associated with glyph image and used for bit blit.
+     * The rasterizer used on the render thread, it also provides the font render context.
      */
-    private Graphics2D mGraphics;
+    private Rasterizer mRasterizer;
 
     /**
-     * Intermediate data array for use with image.
+     * Glyphs rasterized on worker threads, uploaded in batch at the beginning of next frame.
      */
-    private int[] mImageData;
+    private final ConcurrentLinkedQueue<RasterizedGlyph> mRasterizedGlyphs = new ConcurrentLinkedQueue<>();
 
-    /**
-     * A direct buffer used for loading the pre-rendered glyph images into OpenGL textures.
-     */
-    private ByteBuffer mImageBuffer;
+    private final AtomicBoolean mRedrawRequested = new AtomicBoolean();
 
     private final CopyOnWriteArrayList<Runnable> mAtlasInvalidationCallbacks = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Runnable> mGlyphReadyCallbacks = new CopyOnWriteArrayList<>();
+
+    // lookup statistics
+    private long mHitCount;
+    private long mMissCount;
+    // the number of lookups that skipped glyphs being rasterized
+    private int mPendingLookupCount;
 
     private GlyphManager() {
         // init
@@ -136,11 +192,22 @@ public class GlyphManager {
             mA8Atlas.close();
         }
         mA8Atlas = null;
+        if (mDistanceFieldAtlas != null) {
+            mDistanceFieldAtlas.close();
+        }
+        mDistanceFieldAtlas = null;
+        if (mEmojiAtlas != null) {
+            mEmojiAtlas.close();
+        }
+        mEmojiAtlas = null;
         mFontTable.clear();
         mFontTable.trim();
         mReverseFontTable.clear();
         mReverseFontTable.trimToSize();
-        allocateImage(64, 64);
+        mEmojiFontTable.clear();
+        mEmojiFontTable.trim();
+        // results of in-flight glyphs will be discarded, since the atlas changed
+        mRasterizer = new Rasterizer();
     }
 
     /**
@@ -155,7 +222,7 @@ public class GlyphManager {
     @NonNull
     public GlyphVector layoutGlyphVector(@NonNull Font font, @NonNull char[] text,
                                          int start, int limit, boolean isRtl) {
-        return font.layoutGlyphVector(mGraphics.getFontRenderContext(), text, start, limit,
+        return font.layoutGlyphVector(mRasterizer.mGraphics.getFontRenderContext(), text, start, limit,
                 isRtl ? Font.LAYOUT_RIGHT_TO_LEFT : Font.LAYOUT_LEFT_TO_RIGHT);
     }
 
@@ -168,7 +235,7 @@ public class GlyphManager {
      */
     @NonNull
     public GlyphVector createGlyphVector(@NonNull Font font, @NonNull char[] text) {
-        return font.createGlyphVector(mGraphics.getFontRenderContext(), text);
+        return font.createGlyphVector(mRasterizer.mGraphics.getFontRenderContext(), text);
     }
 
     /**
@@ -200,8 +267,10 @@ public class GlyphManager {
         if (glyph != null && glyph.texture == 0) {
             Font font = getFontFromKey(key);
             int glyphCode = getGlyphCodeFromKey(key);
-            return cacheGlyph(font, glyphCode, mA8Atlas, glyph, key);
+            return cacheGlyph(mA8Atlas, glyph, key,
+                    (rasterizer, bounds) -> rasterizer.rasterize(font, glyphCode, bounds));
         }
+        mHitCount++;
         return glyph;
     }
 
@@ -224,11 +293,131 @@ public class GlyphManager {
         }
         GLBakedGlyph glyph = mA8Atlas.getGlyph(key);
         if (glyph != null && glyph.texture == 0) {
-            return cacheGlyph(font, glyphCode, mA8Atlas, glyph, key);
+            return cacheGlyph(mA8Atlas, glyph, key,
+                    (rasterizer, bounds) -> rasterizer.rasterize(font, glyphCode, bounds));
+        }
+        mHitCount++;
+        return glyph;
+    }
+
+    /**
+     * Like {@link #lookupGlyph(Font, int)}, but the glyph is a signed distance field, whose
+     * coverage is 0.5 at the edge. The font should be at {@link #DISTANCE_FIELD_BASE_SIZE},
+     * the bounds of the glyph are in pixels at that size and include the spread.
+     *
+     * @param font      the font at the base size
+     * @param glyphCode the font specific glyph code (should be laid-out) to lookup in the atlas
+     * @return the cached glyph sprite or null if the glyph has nothing to render
+     * @see #sDistanceField
+     */
+    @Nullable
+    @RenderThread
+    public GLBakedGlyph lookupDistanceFieldGlyph(@NonNull Font font, int glyphCode) {
+        long key = computeGlyphKey(font, glyphCode);
+        if (mDistanceFieldAtlas == null) {
+            mDistanceFieldAtlas = new GLFontAtlas(Engine.MASK_FORMAT_A8);
+        }
+        GLBakedGlyph glyph = mDistanceFieldAtlas.getGlyph(key);
+        if (glyph != null && glyph.texture == 0) {
+            return cacheGlyph(mDistanceFieldAtlas, glyph, key,
+                    (rasterizer, bounds) -> rasterizer.rasterizeDistanceField(font, glyphCode, bounds));
+        }
+        mHitCount++;
+        return glyph;
+    }
+
+    /**
+     * Lookup the color glyph of an emoji in the RGBA atlas. The bounds of the glyph are in
+     * pixels of the emoji image, which should be scaled to the emoji size.
+     *
+     * @param font the emoji font
+     * @param id   the glyph ID of emoji
+     * @return the cached glyph sprite or null if the emoji has no image
+     * @see EmojiFont#getEmojiSize(int, int)
+     */
+    @Nullable
+    @RenderThread
+    public GLBakedGlyph lookupEmojiGlyph(@NonNull EmojiFont font, int id) {
+        long key = ((long) mEmojiFontTable.computeIfAbsent(font, mEmojiFontTableMapper) << 32) | id;
+        if (mEmojiAtlas == null) {
+            mEmojiAtlas = new GLFontAtlas(Engine.MASK_FORMAT_ARGB);
+        }
+        GLBakedGlyph glyph = mEmojiAtlas.getGlyph(key);
+        if (glyph != null && glyph.texture == 0) {
+            return cacheGlyph(mEmojiAtlas, glyph, key,
+                    (rasterizer, bounds) -> rasterizer.rasterizeEmoji(font, id, bounds));
         }
+        mHitCount++;
         return glyph;
     }
 
+    /**
+     * Called at the beginning of each frame. Glyphs used in the current frame will
+     * not be evicted from atlases. Glyphs rasterized asynchronously are uploaded here.
+     */
+    @RenderThread
+    public void beginFrame() {
+        if (mA8Atlas != null) {
+            mA8Atlas.nextGeneration();
+        }
+        if (mDistanceFieldAtlas != null) {
+            mDistanceFieldAtlas.nextGeneration();
+        }
+        if (mEmojiAtlas != null) {
+            mEmojiAtlas.nextGeneration();
+        }
+        // reset first, glyphs completed after this will request a new redraw
+        mRedrawRequested.set(false);
+        uploadRasterizedGlyphs();
+    }
+
+    @RenderThread
+    private void uploadRasterizedGlyphs() {
+        boolean invalidated = false;
+        RasterizedGlyph result;
+        while ((result = mRasterizedGlyphs.poll()) != null) {
+            try {
+                final GLFontAtlas atlas = result.atlas;
+                if (atlas != mA8Atlas && atlas != mDistanceFieldAtlas && atlas != mEmojiAtlas) {
+                    // reloaded
+                    continue;
+                }
+                if (result.pixels == NULL) {
+                    atlas.setNoPixels(result.key);
+                    continue;
+                }
+                // the glyph is never evicted while pending
+                GLBakedGlyph glyph = atlas.getGlyph(result.key);
+                if (glyph == null || glyph.texture != 0) {
+                    continue;
+                }
+                glyph.pending = false;
+                glyph.x = result.bounds.x;
+                glyph.y = result.bounds.y;
+                glyph.width = result.bounds.width;
+                glyph.height = result.bounds.height;
+                invalidated |= atlas.stitch(result.key, glyph, result.pixels, false);
+            } finally {
+                if (result.pixels != NULL) {
+                    MemoryUtil.nmemFree(result.pixels);
+                }
+            }
+        }
+        // once per batch
+        if (mA8Atlas != null) {
+            mA8Atlas.generateMipmap();
+        }
+        if (mDistanceFieldAtlas != null) {
+            mDistanceFieldAtlas.generateMipmap();
+        }
+        if (mEmojiAtlas != null) {
+            mEmojiAtlas.generateMipmap();
+        }
+        if (invalidated) {
+            mAtlasInvalidationCallbacks.forEach(Runnable::run);
+        }
+    }
+
     @RenderThread
     public void debug() {
         String basePath = Bitmap.saveDialogGet(Bitmap.SaveFormat.PNG, null, "FontAtlas");
@@ -243,102 +432,132 @@ public class GlyphManager {
                 mA8Atlas.debug(null);
             }
         }
+        if (mDistanceFieldAtlas != null) {
+            if (basePath != null) {
+                mDistanceFieldAtlas.debug(basePath + "_sdf.png");
+            } else {
+                mDistanceFieldAtlas.debug(null);
+            }
+        }
+        if (mEmojiAtlas != null) {
+            if (basePath != null) {
+                mEmojiAtlas.debug(basePath + "_emoji.png");
+            } else {
+                mEmojiAtlas.debug(null);
+            }
+        }
     }
 
     public void dumpInfo(PrintWriter pw) {
         int glyphCount = 0;
+        int chunkCount = 0;
+        int evictedChunks = 0;
+        int evictedGlyphs = 0;
         long memorySize = 0;
         if (mA8Atlas != null) {
             glyphCount += mA8Atlas.getGlyphCount();
+            chunkCount += mA8Atlas.getChunkCount();
+            evictedChunks += mA8Atlas.getEvictedChunkCount();
+            evictedGlyphs += mA8Atlas.getEvictedGlyphCount();
             memorySize += mA8Atlas.getMemorySize();
         }
+        if (mDistanceFieldAtlas != null) {
+            glyphCount += mDistanceFieldAtlas.getGlyphCount();
+            chunkCount += mDistanceFieldAtlas.getChunkCount();
+            evictedChunks += mDistanceFieldAtlas.getEvictedChunkCount();
+            evictedGlyphs += mDistanceFieldAtlas.getEvictedGlyphCount();
+            memorySize += mDistanceFieldAtlas.getMemorySize();
+        }
+        if (mEmojiAtlas != null) {
+            glyphCount += mEmojiAtlas.getGlyphCount();
+            chunkCount += mEmojiAtlas.getChunkCount();
+            evictedChunks += mEmojiAtlas.getEvictedChunkCount();
+            evictedGlyphs += mEmojiAtlas.getEvictedGlyphCount();
+            memorySize += mEmojiAtlas.getMemorySize();
+        }
         pw.print("GlyphManager: ");
-        pw.print("Atlases=" + (mA8Atlas != null ? 1 : 0));
+        pw.print("Atlases=" + ((mA8Atlas != null ? 1 : 0) + (mDistanceFieldAtlas != null ? 1 : 0) +
+                (mEmojiAtlas != null ? 1 : 0)));
         pw.print(", Glyphs=" + glyphCount);
+        pw.print(", Chunks=" + chunkCount);
         pw.println(", GPUMemorySize=" + TextUtils.binaryCompact(memorySize) + " (" + memorySize + " bytes)");
+        pw.print("    Hits=" + mHitCount);
+        pw.print(", Misses=" + mMissCount);
+        pw.print(", EvictedChunks=" + evictedChunks);
+        pw.print(", EvictedGlyphs=" + evictedGlyphs);
+        pw.println(", MemoryBudget=" + TextUtils.binaryCompact(GLFontAtlas.sMaxMemorySize));
     }
 
     @Nullable
     @RenderThread
-    private GLBakedGlyph cacheGlyph(@NonNull Font font, int glyphCode,
-                                    @NonNull GLFontAtlas atlas, @NonNull GLBakedGlyph glyph,
-                                    long key) {
-        // there's no need to layout glyph vector, we only draw the specific glyphCode
-        // which is already laid-out in LayoutEngine
-        GlyphVector vector = font.createGlyphVector(mGraphics.getFontRenderContext(), new int[]{glyphCode});
-
-        Rectangle bounds = vector.getPixelBounds(null, 0, 0);
-
-        if (bounds.width == 0 || bounds.height == 0) {
-            atlas.setNoPixels(key);
+    private GLBakedGlyph cacheGlyph(@NonNull GLFontAtlas atlas, @NonNull GLBakedGlyph glyph,
+                                    long key, @NonNull RasterizeFunc func) {
+        if (sAsyncRasterization) {
+            if (!glyph.pending) {
+                glyph.pending = true;
+                mMissCount++;
+                rasterizeAsync(atlas, key, func);
+            }
+            mPendingLookupCount++;
+            // not ready, skip it in this frame
             return null;
         }
-
-        //glyph.advance = vector.getGlyphMetrics(0).getAdvanceX();
-        glyph.x = bounds.x;
-        glyph.y = bounds.y;
-        glyph.width = bounds.width;
-        glyph.height = bounds.height;
-        int borderedWidth = bounds.width + GLYPH_BORDER * 2;
-        int borderedHeight = bounds.height + GLYPH_BORDER * 2;
-
-        while (borderedWidth > mImage.getWidth() || borderedHeight > mImage.getHeight()) {
-            allocateImage(mImage.getWidth() << 1, mImage.getHeight() << 1);
-        }
-
-        // give it an offset to draw at origin
-        mGraphics.drawGlyphVector(vector, GLYPH_BORDER - bounds.x, GLYPH_BORDER - bounds.y);
-
-        // copy raw pixel data from BufferedImage to imageData array with one integer per pixel in 0xAARRGGBB form
-        mImage.getRGB(0, 0, borderedWidth, borderedHeight, mImageData, 0, borderedWidth);
-
-        final int size = borderedWidth * borderedHeight;
-        for (int i = 0; i < size; i++) {
-            // alpha channel for grayscale texture
-            mImageBuffer.put((byte) (mImageData[i] >>> 24));
+        mMissCount++;
+        ByteBuffer pixels = func.rasterize(mRasterizer, glyph);
+        if (pixels == null) {
+            atlas.setNoPixels(key);
+            return null;
         }
-        mImageBuffer.flip();
 
-        boolean invalidated = atlas.stitch(glyph, MemoryUtil.memAddress(mImageBuffer));
+        boolean invalidated = atlas.stitch(key, glyph, MemoryUtil.memAddress(pixels));
         if (invalidated) {
             mAtlasInvalidationCallbacks.forEach(Runnable::run);
         }
-
-        mGraphics.clearRect(0, 0, mImage.getWidth(), mImage.getHeight());
-        mImageBuffer.clear();
+        if (glyph.texture == 0) {
+            // the atlas is full in this frame
+            return null;
+        }
         return glyph;
     }
 
-    private void allocateImage(int width, int height) {
-        mImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        mGraphics = mImage.createGraphics();
-
-        mImageData = new int[width * height];
-        mImageBuffer = BufferUtils.createByteBuffer(mImageData.length); // auto GC
-
-        // set background color for use with clearRect()
-        mGraphics.setBackground(BG_COLOR);
-
-        // drawImage() to this buffer will copy all source pixels instead of alpha blending them into the current image
-        mGraphics.setComposite(AlphaComposite.Src);
-
-        // this only for shape rendering, so we turn it off
-        mGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+    private void rasterizeAsync(@NonNull GLFontAtlas atlas, long key, @NonNull RasterizeFunc func) {
+        RASTERIZER_EXECUTOR.execute(() -> {
+            final GLBakedGlyph bounds = new GLBakedGlyph();
+            long pixels = NULL;
+            try {
+                ByteBuffer buffer = func.rasterize(sWorkerRasterizer.get(), bounds);
+                if (buffer != null) {
+                    // the buffer is reused by this thread, copy it
+                    final int size = buffer.remaining();
+                    pixels = MemoryUtil.nmemAllocChecked(size);
+                    MemoryUtil.memCopy(MemoryUtil.memAddress(buffer), pixels, size);
+                }
+            } catch (Throwable t) {
+                ModernUI.LOGGER.warn(MARKER, "Failed to rasterize glyph 0x{}", Long.toHexString(key), t);
+            } finally {
+                // always complete, or the glyph will be pending forever
+                mRasterizedGlyphs.offer(new RasterizedGlyph(atlas, key, bounds, pixels));
+            }
+            if (mRedrawRequested.compareAndSet(false, true)) {
+                mGlyphReadyCallbacks.forEach(Runnable::run);
+            }
+        });
+    }
 
-        if (sAntiAliasing) {
-            mGraphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
-                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-        } else {
-            mGraphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
-                    RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
-        }
-        if (sFractionalMetrics) {
-            mGraphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
-                    RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-        } else {
-            mGraphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
-                    RenderingHints.VALUE_FRACTIONALMETRICS_OFF);
-        }
+    /**
+     * Rasterizes a glyph into A8 coverage with a transparent border of {@link #GLYPH_BORDER}.
+     * The pixel bounds of the glyph (w/o border) are written to the given glyph.
+     * <p>
+     * The returned buffer is reused and only valid until the next call.
+     *
+     * @param font      the font (with size and style) to which this glyphCode belongs
+     * @param glyphCode the font specific glyph code
+     * @param glyph     the glyph to receive the bounds
+     * @return the pixels, or null if the glyph has nothing to render
+     */
+    @Nullable
+    public ByteBuffer rasterizeGlyph(@NonNull Font font, int glyphCode, @NonNull GLBakedGlyph glyph) {
+        return mRasterizer.rasterize(font, glyphCode, glyph);
     }
 
     /**
@@ -353,6 +572,56 @@ public class GlyphManager {
         mAtlasInvalidationCallbacks.remove(Objects.requireNonNull(callback));
     }
 
+    /**
+     * Called from worker threads when glyphs rasterized asynchronously are ready,
+     * at most once per frame. The callback should request a redraw, they will be
+     * uploaded at the beginning of next frame.
+     *
+     * @see #sAsyncRasterization
+     */
+    public void addGlyphReadyCallback(Runnable callback) {
+        mGlyphReadyCallbacks.add(Objects.requireNonNull(callback));
+    }
+
+    public void removeGlyphReadyCallback(Runnable callback) {
+        mGlyphReadyCallbacks.remove(Objects.requireNonNull(callback));
+    }
+
+    /**
+     * Returns the number of lookups that returned null because the glyph is being rasterized
+     * asynchronously. The caller may compare the values before and after drawing something
+     * to know whether it should be redrawn when glyphs are ready.
+     */
+    @RenderThread
+    public int getPendingLookupCount() {
+        return mPendingLookupCount;
+    }
+
+    /**
+     * Calls the glyph ready callbacks again if they have been called in this frame. The
+     * glyphs may be completed before the caller records what to redraw, then the callbacks
+     * would miss the record.
+     */
+    @RenderThread
+    public void recheckGlyphReady() {
+        if (mRedrawRequested.get()) {
+            mGlyphReadyCallbacks.forEach(Runnable::run);
+        }
+    }
+
+    private record RasterizedGlyph(GLFontAtlas atlas, long key, GLBakedGlyph bounds, long pixels) {
+    }
+
+    /**
+     * Rasterizes a glyph with the given rasterizer of current thread.
+     */
+    @FunctionalInterface
+    private interface RasterizeFunc {
+
+        @Nullable
+        ByteBuffer rasterize(@NonNull Rasterizer rasterizer, @NonNull GLBakedGlyph glyph);
+    }
+
     /*@SuppressWarnings("MagicConstant")
     public void measure(@NonNull char[] text, int contextStart, int contextEnd, @NonNull FontPaint paint, boolean isRtl,
                         @NonNull BiConsumer<GraphemeMetrics, FontPaint> consumer) {
@@ -368,4 +637,219 @@ public class GlyphManager {
         }
         consumer.accept(new GraphemeMetrics(advance, fm), paint);
     }*/
+
+    /**
+     * Holds the AWT image and the buffer to rasterize glyphs, each thread has its own.
+     */
+    private static final class Rasterizer {
+
+        /**
+         * Draw a single glyph onto this image and then loaded from here into an OpenGL texture.
+         */
+        private BufferedImage mImage;
+
+        /**
+         * The Graphics2D associated with glyph image and used for bit blit.
+         */
+        private Graphics2D mGraphics;
+
+        /**
+         * Intermediate data array for use with image.
+         */
+        private int[] mImageData;
+
+        /**
+         * A direct buffer used for loading the pre-rendered glyph images into OpenGL textures.
+         */
+        private ByteBuffer mImageBuffer;
+
+        /**
+         * A direct buffer to receive distance field images.
+         */
+        private ByteBuffer mDistanceFieldBuffer;
+
+        /**
+         * A direct buffer to receive RGBA images.
+         */
+        private ByteBuffer mColorBuffer;
+
+        private boolean mAntiAliasing;
+        private boolean mFractionalMetrics;
+
+        Rasterizer() {
+            allocate(64, 64);
+        }
+
+        @Nullable
+        ByteBuffer rasterize(@NonNull Font font, int glyphCode, @NonNull GLBakedGlyph glyph) {
+            if (mAntiAliasing != sAntiAliasing || mFractionalMetrics != sFractionalMetrics) {
+                // config changed
+                allocate(mImage.getWidth(), mImage.getHeight());
+            }
+            if (sTrueTypeRasterizer && mAntiAliasing) {
+                TrueTypeRasterizer.Face face = TrueTypeRasterizer.findFace(font);
+                if (face != null) {
+                    float scale = face.getScale(font.getSize2D());
+                    if (!face.getGlyphBounds(glyphCode, scale, glyph)) {
+                        return null;
+                    }
+                    int borderedWidth = glyph.width + GLYPH_BORDER * 2;
+                    int borderedHeight = glyph.height + GLYPH_BORDER * 2;
+                    while (borderedWidth > mImage.getWidth() || borderedHeight > mImage.getHeight()) {
+                        allocate(mImage.getWidth() << 1, mImage.getHeight() << 1);
+                    }
+
+                    final int size = borderedWidth * borderedHeight;
+                    final long address = MemoryUtil.memAddress(mImageBuffer);
+                    // clear the border, then write the coverage without copying
+                    MemoryUtil.memSet(address, 0, size);
+                    face.renderGlyph(glyphCode, scale, glyph,
+                            address + GLYPH_BORDER * borderedWidth + GLYPH_BORDER, borderedWidth);
+                    mImageBuffer.clear();
+                    mImageBuffer.limit(size);
+                    return mImageBuffer;
+                }
+            }
+
+            // there's no need to layout glyph vector, we only draw the specific glyphCode
+            // which is already laid-out in LayoutEngine
+            GlyphVector vector = font.createGlyphVector(mGraphics.getFontRenderContext(), new int[]{glyphCode});
+
+            Rectangle bounds = vector.getPixelBounds(null, 0, 0);
+
+            if (bounds.width == 0 || bounds.height == 0) {
+                return null;
+            }
+
+            //glyph.advance = vector.getGlyphMetrics(0).getAdvanceX();
+            glyph.x = bounds.x;
+            glyph.y = bounds.y;
+            glyph.width = bounds.width;
+            glyph.height = bounds.height;
+            int borderedWidth = bounds.width + GLYPH_BORDER * 2;
+            int borderedHeight = bounds.height + GLYPH_BORDER * 2;
+
+            while (borderedWidth > mImage.getWidth() || borderedHeight > mImage.getHeight()) {
+                allocate(mImage.getWidth() << 1, mImage.getHeight() << 1);
+            }
+
+            mGraphics.clearRect(0, 0, borderedWidth, borderedHeight);
+
+            // give it an offset to draw at origin
+            mGraphics.drawGlyphVector(vector, GLYPH_BORDER - bounds.x, GLYPH_BORDER - bounds.y);
+
+            // copy raw pixel data from BufferedImage to imageData array with one integer per pixel in 0xAARRGGBB form
+            mImage.getRGB(0, 0, borderedWidth, borderedHeight, mImageData, 0, borderedWidth);
+
+            final int size = borderedWidth * borderedHeight;
+            mImageBuffer.clear();
+            for (int i = 0; i < size; i++) {
+                // alpha channel for grayscale texture
+                mImageBuffer.put((byte) (mImageData[i] >>> 24));
+            }
+            mImageBuffer.flip();
+            return mImageBuffer;
+        }
+
+        /**
+         * Rasterizes a glyph and converts it to a signed distance field, the bounds are
+         * expanded by {@link #DISTANCE_FIELD_SPREAD} on each side.
+         */
+        @Nullable
+        ByteBuffer rasterizeDistanceField(@NonNull Font font, int glyphCode, @NonNull GLBakedGlyph glyph) {
+            ByteBuffer coverage = rasterize(font, glyphCode, glyph);
+            if (coverage == null) {
+                return null;
+            }
+            final int spread = DISTANCE_FIELD_SPREAD;
+            final int srcWidth = glyph.width + GLYPH_BORDER * 2;
+            final int srcHeight = glyph.height + GLYPH_BORDER * 2;
+            final int dstWidth = srcWidth + spread * 2;
+            final int dstHeight = srcHeight + spread * 2;
+            final int size = dstWidth * dstHeight;
+            if (mDistanceFieldBuffer == null || mDistanceFieldBuffer.capacity() < size) {
+                mDistanceFieldBuffer = BufferUtils.createByteBuffer(size); // auto GC
+            }
+            DistanceFieldGenerator.generate(MemoryUtil.memAddress(coverage), srcWidth, srcHeight,
+                    MemoryUtil.memAddress(mDistanceFieldBuffer), spread);
+            glyph.x -= spread;
+            glyph.y -= spread;
+            glyph.width += spread * 2;
+            glyph.height += spread * 2;
+            mDistanceFieldBuffer.clear();
+            mDistanceFieldBuffer.limit(size);
+            return mDistanceFieldBuffer;
+        }
+
+        /**
+         * Copies the image of an emoji with a transparent border, the bounds are in pixels
+         * of the image, and the bottom is the descent.
+         */
+        @Nullable
+        ByteBuffer rasterizeEmoji(@NonNull EmojiFont font, int id, @NonNull GLBakedGlyph glyph) {
+            try (Bitmap bitmap = font.decodeImage(id)) {
+                if (bitmap == null) {
+                    return null;
+                }
+                final int width = bitmap.getWidth();
+                final int height = bitmap.getHeight();
+                glyph.x = 0;
+                glyph.y = -Math.round(height * font.getAscentRatio());
+                glyph.width = width;
+                glyph.height = height;
+                final int borderedWidth = width + GLYPH_BORDER * 2;
+                final int borderedHeight = height + GLYPH_BORDER * 2;
+                final int size = borderedWidth * borderedHeight * 4;
+                if (mColorBuffer == null || mColorBuffer.capacity() < size) {
+                    mColorBuffer = BufferUtils.createByteBuffer(size); // auto GC
+                }
+                final long dst = MemoryUtil.memAddress(mColorBuffer);
+                MemoryUtil.memSet(dst, 0, size);
+                final long src = bitmap.getPixels();
+                final int rowStride = bitmap.getRowStride();
+                for (int y = 0; y < height; y++) {
+                    MemoryUtil.memCopy(src + (long) y * rowStride,
+                            dst + ((long) (y + GLYPH_BORDER) * borderedWidth + GLYPH_BORDER) * 4,
+                            width * 4L);
+                }
+                mColorBuffer.clear();
+                mColorBuffer.limit(size);
+                return mColorBuffer;
+            }
+        }
+
+        private void allocate(int width, int height) {
+            mAntiAliasing = sAntiAliasing;
+            mFractionalMetrics = sFractionalMetrics;
+            mImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            mGraphics = mImage.createGraphics();
+
+            mImageData = new int[width * height];
+            mImageBuffer = BufferUtils.createByteBuffer(mImageData.length); // auto GC
+
+            // set background color for use with clearRect()
+            mGraphics.setBackground(BG_COLOR);
+
+            // drawImage() to this buffer will copy all source pixels instead of alpha blending them into the current image
+            mGraphics.setComposite(AlphaComposite.Src);
+
+            // this only for shape rendering, so we turn it off
+            mGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+
+            if (mAntiAliasing) {
+                mGraphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                        RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            } else {
+                mGraphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                        RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+            }
+            if (mFractionalMetrics) {
+                mGraphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
+                        RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            } else {
+                mGraphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
+                        RenderingHints.VALUE_FRACTIONALMETRICS_OFF);
+            }
+        }
+    }
 }
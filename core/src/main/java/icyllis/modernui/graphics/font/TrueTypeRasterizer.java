@@ -0,0 +1,165 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.graphics.font;
+
+import icyllis.modernui.ModernUI;
+import icyllis.modernui.annotation.NonNull;
+import icyllis.modernui.annotation.Nullable;
+import org.lwjgl.stb.STBTTFontinfo;
+import org.lwjgl.system.MemoryStack;
+
+import java.awt.Font;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.lwjgl.stb.STBTruetype.*;
+
+/**
+ * Rasterizes glyphs with stb_truetype, the coverage is written to native memory directly.
+ * This only works for fonts created from font files, whose data are registered by
+ * {@link #registerFont(Font, ByteBuffer, int)}. For system fonts and logical fonts,
+ * {@link GlyphManager} falls back to AWT.
+ *
+ * @see GlyphManager#rasterizeGlyph(Font, int, GLBakedGlyph)
+ */
+public final class TrueTypeRasterizer {
+
+    // full name to face
+    private static final ConcurrentHashMap<String, Face> sFaces = new ConcurrentHashMap<>();
+
+    private TrueTypeRasterizer() {
+    }
+
+    /**
+     * Registers the font file data of a font, so its glyphs can be rasterized by stb_truetype.
+     * The glyph codes laid-out by the font must be the glyph indices in the font file.
+     *
+     * @param font  the font created from the data
+     * @param data  the content of the font file, must be a direct buffer and not be modified
+     * @param index the index of the font in a font collection, or 0
+     */
+    public static void registerFont(@NonNull Font font, @NonNull ByteBuffer data, int index) {
+        if (!data.isDirect()) {
+            throw new IllegalArgumentException("Font data must be a direct buffer");
+        }
+        sFaces.putIfAbsent(font.getFontName(Locale.ROOT), new Face(data, index, font.getStyle()));
+    }
+
+    /**
+     * Finds the face of the given derived font.
+     *
+     * @param font the font with size and style
+     * @return the face, or null if the font is not supported
+     */
+    @Nullable
+    static Face findFace(@NonNull Font font) {
+        if (font.isTransformed()) {
+            return null;
+        }
+        Face face = sFaces.get(font.getFontName(Locale.ROOT));
+        // AWT synthesizes the style that the font file does not have
+        if (face == null || face.mStyle != font.getStyle() || !face.init()) {
+            return null;
+        }
+        return face;
+    }
+
+    static final class Face {
+
+        private final ByteBuffer mData;
+        private final int mIndex;
+        private final int mStyle;
+
+        private volatile STBTTFontinfo mInfo;
+        private boolean mFailed;
+
+        private Face(ByteBuffer data, int index, int style) {
+            mData = data;
+            mIndex = index;
+            mStyle = style;
+        }
+
+        // lazy init, stb_truetype parses the tables
+        private synchronized boolean init() {
+            if (mInfo != null) {
+                return true;
+            }
+            if (mFailed) {
+                return false;
+            }
+            int offset = stbtt_GetFontOffsetForIndex(mData, mIndex);
+            STBTTFontinfo info = STBTTFontinfo.create();
+            if (offset < 0 || !stbtt_InitFont(info, mData, offset)) {
+                ModernUI.LOGGER.warn(GlyphManager.MARKER, "Failed to init font {}, fallback to AWT", mIndex);
+                mFailed = true;
+                return false;
+            }
+            mInfo = info;
+            return true;
+        }
+
+        /**
+         * @param size the font size in pixels
+         * @return the scale factor to map the em square to the font size
+         */
+        float getScale(float size) {
+            return stbtt_ScaleForMappingEmToPixels(mInfo, size);
+        }
+
+        /**
+         * Computes the pixel bounds of a glyph relative to the origin. This method is thread-safe.
+         *
+         * @return false if the glyph has nothing to render
+         */
+        boolean getGlyphBounds(int glyphCode, float scale, @NonNull GLBakedGlyph glyph) {
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                IntBuffer x0 = stack.mallocInt(1);
+                IntBuffer y0 = stack.mallocInt(1);
+                IntBuffer x1 = stack.mallocInt(1);
+                IntBuffer y1 = stack.mallocInt(1);
+                stbtt_GetGlyphBitmapBox(mInfo, glyphCode, scale, scale, x0, y0, x1, y1);
+                int width = x1.get(0) - x0.get(0);
+                int height = y1.get(0) - y0.get(0);
+                if (width <= 0 || height <= 0) {
+                    return false;
+                }
+                glyph.x = x0.get(0);
+                glyph.y = y0.get(0);
+                glyph.width = width;
+                glyph.height = height;
+                return true;
+            }
+        }
+
+        /**
+         * Renders the A8 coverage of a glyph to the given address, the bounds must be
+         * computed by {@link #getGlyphBounds(int, float, GLBakedGlyph)}. This method is thread-safe.
+         *
+         * @param address the address of the upper-left pixel
+         * @param stride  the number of bytes per row
+         */
+        void renderGlyph(int glyphCode, float scale, @NonNull GLBakedGlyph glyph,
+                         long address, int stride) {
+            nstbtt_MakeGlyphBitmap(mInfo.address(), address, glyph.width, glyph.height, stride,
+                    scale, scale, glyphCode);
+        }
+    }
+}
@@ -18,15 +18,17 @@
 
 package icyllis.modernui.graphics.text;
 
-import com.ibm.icu.text.BreakIterator;
 import icyllis.arc3d.core.Strike;
+import icyllis.modernui.ModernUI;
 import icyllis.modernui.annotation.NonNull;
 import icyllis.modernui.annotation.Nullable;
-import icyllis.modernui.graphics.Rect;
+import icyllis.modernui.graphics.*;
+import icyllis.modernui.graphics.font.GlyphManager;
 import it.unimi.dsi.fastutil.floats.FloatArrayList;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.*;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Locale;
 import java.util.Map;
 
@@ -42,7 +44,11 @@ public final class EmojiFont implements Font {
     private final float mBaseDescent;
     private final float mBaseSpacing;
 
-    private final Map<CharSequence, EmojiEntry> mMap;
+    private final EmojiTrie mTrie;
+    private final Int2ObjectOpenHashMap<EmojiEntry> mEntries = new Int2ObjectOpenHashMap<>();
+
+    @Nullable
+    private final ImageSource mImageSource;
 
     /**
      * @param id       used as glyph ID
@@ -52,17 +58,78 @@ public final class EmojiFont implements Font {
     public record EmojiEntry(int id, String image, String sequence) {
     }
 
-    private final CharSequenceBuilder mLookupKey = new CharSequenceBuilder();
+    /**
+     * Opens the image file of emoji, images are rasterized to the color glyph atlas.
+     */
+    @FunctionalInterface
+    public interface ImageSource {
+
+        @NonNull
+        InputStream open(@NonNull String image) throws IOException;
+    }
 
     public EmojiFont(String name, IntSet coverage, int size, int ascent, int spacing,
                      int base, Map<CharSequence, EmojiEntry> map) {
+        this(name, coverage, size, ascent, spacing, base, map, null);
+    }
+
+    public EmojiFont(String name, IntSet coverage, int size, int ascent, int spacing,
+                     int base, Map<CharSequence, EmojiEntry> map, @Nullable ImageSource imageSource) {
         mName = name;
         mCoverage = coverage;
         mBaseSize = (float) size / base;
         mBaseAscent = (float) ascent / base;
         mBaseDescent = (float) (size - ascent) / base;
         mBaseSpacing = (float) spacing / base;
-        mMap = map;
+        for (EmojiEntry entry : map.values()) {
+            mEntries.put(entry.id, entry);
+        }
+        mTrie = new EmojiTrie(map.values());
+        mImageSource = imageSource;
+    }
+
+    /**
+     * Decodes the image of an emoji in RGBA. This method is thread-safe.
+     *
+     * @param id the glyph ID
+     * @return the image, or null if not available
+     */
+    @Nullable
+    public Bitmap decodeImage(int id) {
+        EmojiEntry entry = mEntries.get(id);
+        if (entry == null || mImageSource == null) {
+            return null;
+        }
+        var opts = new BitmapFactory.Options();
+        opts.inPreferredFormat = Bitmap.Format.RGBA_8888;
+        try (InputStream stream = mImageSource.open(entry.image)) {
+            return BitmapFactory.decodeStream(stream, opts);
+        } catch (IOException e) {
+            ModernUI.LOGGER.warn(GlyphManager.MARKER, "Failed to decode emoji {}", entry.image, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the size (width and height) of emoji in pixels, the same as layout.
+     *
+     * @param fontSize    the font size
+     * @param renderFlags the render flags of font paint
+     * @return the size
+     */
+    public float getEmojiSize(int fontSize, int renderFlags) {
+        float sz = mBaseSize * fontSize;
+        if ((renderFlags & FontPaint.RENDER_FLAG_LINEAR_METRICS) == 0) {
+            sz = (int) (0.95 + sz);
+        }
+        return sz;
+    }
+
+    /**
+     * @return the ascent divided by the size of emoji
+     */
+    public float getAscentRatio() {
+        return mBaseAscent / mBaseSize;
     }
 
     @Override
@@ -112,12 +179,6 @@ public final class EmojiFont implements Font {
                                  IntArrayList glyphs, FloatArrayList positions,
                                  float[] advances, int advanceOffset,
                                  Rect bounds, float x, float y) {
-        // Measure grapheme cluster in visual order
-        final var breaker = BreakIterator.getCharacterInstance(paint.mLocale);
-        // We simply ignore the context range
-        final var iterator = new CharArrayIterator(buf, layoutStart, layoutLimit);
-        breaker.setText(iterator);
-
         boolean hint = (paint.getRenderFlags() & FontPaint.RENDER_FLAG_LINEAR_METRICS) == 0;
         float sz = paint.getFontSize();
         float add = mBaseSpacing * sz;
@@ -135,65 +196,66 @@ public final class EmojiFont implements Font {
             y = (int) y;
         }
 
-        int prevPos;
-        int currPos;
-        if (isRtl) {
-            prevPos = layoutLimit;
-        } else {
-            prevPos = layoutStart;
-        }
-
         float currAdvance = 0;
 
-        while ((currPos = isRtl
-                ? breaker.preceding(prevPos)
-                : breaker.following(prevPos)) != BreakIterator.DONE) {
-            int pieceStart = Math.min(prevPos, currPos);
-            int pieceLimit = Math.max(prevPos, currPos);
-
-            EmojiEntry entry;
-            synchronized (mLookupKey) {
-                entry = mMap.get(
-                        mLookupKey.updateChars(buf, pieceStart, pieceLimit)
-                );
-            }
-            if (entry == null) {
-                char vs = buf[pieceLimit - 1];
-                if (vs != Emoji.VARIATION_SELECTOR_15) {
-                    if (vs == Emoji.VARIATION_SELECTOR_16) {
-                        // try w/o
-                        synchronized (mLookupKey) {
-                            entry = mMap.get(
-                                    mLookupKey.updateChars(buf, pieceStart, pieceLimit - 1)
-                            );
-                        }
-                    } else {
-                        // try w/
-                        synchronized (mLookupKey) {
-                            mLookupKey.updateChars(buf, pieceStart, pieceLimit)
-                                    .add((char) Emoji.VARIATION_SELECTOR_16);
-                            entry = mMap.get(mLookupKey);
-                        }
+        // We simply ignore the context range
+        // Match emoji sequences in logical order, the pieces are in visual order
+        IntArrayList rtlPieces = null;
+        int pos = layoutStart;
+        while (pos < layoutLimit) {
+            final int pieceStart = pos;
+            final long match = mTrie.match(buf, pos, layoutLimit);
+            if (match < 0) {
+                // nothing to render, skip the code point, or the pair of regional indicators
+                int c = Character.codePointAt(buf, pos, layoutLimit);
+                pos += Character.charCount(c);
+                if (Emoji.isRegionalIndicatorSymbol(c) && pos < layoutLimit) {
+                    c = Character.codePointAt(buf, pos, layoutLimit);
+                    if (Emoji.isRegionalIndicatorSymbol(c)) {
+                        pos += Character.charCount(c);
                     }
                 }
+                pos = skipExtenders(buf, pos, layoutLimit);
+                continue;
             }
-            if (entry != null) {
-                if (advances != null) {
-                    advances[pieceStart - advanceOffset] = adv;
+            final int id = (int) match;
+            // the remaining part of the grapheme cluster is not rendered
+            pos = skipExtenders(buf, (int) (match >>> 32), layoutLimit);
+            if (isRtl) {
+                if (rtlPieces == null) {
+                    rtlPieces = new IntArrayList();
                 }
+                rtlPieces.add(pieceStart);
+                rtlPieces.add(id);
+                continue;
+            }
+            if (advances != null) {
+                advances[pieceStart - advanceOffset] = adv;
+            }
+            if (glyphs != null) {
+                glyphs.add(id);
+            }
+            if (positions != null) {
+                positions.add(x + currAdvance + add);
+                positions.add(y);
+            }
+            currAdvance += adv;
+        }
 
+        if (rtlPieces != null) {
+            for (int i = rtlPieces.size() - 2; i >= 0; i -= 2) {
+                if (advances != null) {
+                    advances[rtlPieces.getInt(i) - advanceOffset] = adv;
+                }
                 if (glyphs != null) {
-                    glyphs.add(entry.id);
+                    glyphs.add(rtlPieces.getInt(i + 1));
                 }
                 if (positions != null) {
                     positions.add(x + currAdvance + add);
                     positions.add(y);
                 }
-
                 currAdvance += adv;
             }
-
-            prevPos = currPos;
         }
 
         if (bounds != null) {
@@ -209,6 +271,34 @@ public final class EmojiFont implements Font {
         return currAdvance;
     }
 
+    /**
+     * Skips the code points that extend the previous grapheme cluster, such as variation
+     * selectors, emoji modifiers, tags, ZWJ and combining marks. This is used after the longest
+     * match, the unsupported part of a sequence is not rendered, e.g. a ZWJ sequence that is
+     * not in the font is rendered as its components.
+     */
+    private static int skipExtenders(@NonNull char[] buf, int pos, int limit) {
+        while (pos < limit) {
+            final int c = Character.codePointAt(buf, pos, limit);
+            if (c == Emoji.ZERO_WIDTH_JOINER ||
+                    (0xFE00 <= c && c <= 0xFE0F) ||     // VARIATION SELECTOR-1..16
+                    (0x1F3FB <= c && c <= 0x1F3FF) ||   // EMOJI MODIFIER FITZPATRICK TYPE-1-2..6
+                    (0xE0020 <= c && c <= Emoji.CANCEL_TAG)) {
+                pos += Character.charCount(c);
+                continue;
+            }
+            final int type = Character.getType(c);
+            if (type == Character.NON_SPACING_MARK ||
+                    type == Character.ENCLOSING_MARK ||
+                    type == Character.COMBINING_SPACING_MARK) {
+                pos += Character.charCount(c);
+                continue;
+            }
+            break;
+        }
+        return pos;
+    }
+
     @Override
     public Strike findOrCreateStrike(FontPaint paint) {
         return null;
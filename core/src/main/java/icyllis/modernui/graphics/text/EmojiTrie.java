@@ -0,0 +1,163 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.graphics.text;
+
+import icyllis.modernui.annotation.NonNull;
+import it.unimi.dsi.fastutil.ints.Int2ObjectRBTreeMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A precompiled code point trie of emoji sequences, finds the longest sequence at
+ * a position in one pass, without grapheme break iteration and hashing.
+ * <p>
+ * U+FE0F VARIATION SELECTOR-16 is ignored in both sequences and text, so that fully-qualified,
+ * minimally-qualified and unqualified sequences are all matched. The nodes are flattened
+ * into arrays in breadth-first order, edges of a node are contiguous and sorted by code point
+ * for binary search. This class is immutable and thread-safe.
+ */
+final class EmojiTrie {
+
+    // for each node, the index of the first edge and the number of edges
+    private final int[] mFirstEdge;
+    private final int[] mEdgeCount;
+    // for each node, whether a sequence ends at the node, and its value
+    private final boolean[] mTerminal;
+    private final int[] mValues;
+    // for each edge, the code point and the target node
+    private final int[] mEdgeCodePoints;
+    private final int[] mEdgeTargets;
+
+    /**
+     * Builds the trie from the sequences of emoji entries, the values are the IDs.
+     */
+    EmojiTrie(@NonNull Collection<EmojiFont.EmojiEntry> entries) {
+        final Node root = new Node();
+        int nodeCount = 1;
+        for (EmojiFont.EmojiEntry entry : entries) {
+            final String sequence = entry.sequence();
+            Node node = root;
+            for (int i = 0, e = sequence.length(); i < e; ) {
+                int c = sequence.codePointAt(i);
+                i += Character.charCount(c);
+                if (c == Emoji.VARIATION_SELECTOR_16) {
+                    continue;
+                }
+                Node child = node.mChildren.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.mChildren.put(c, child);
+                    nodeCount++;
+                }
+                node = child;
+            }
+            if (node != root && !node.mTerminal) {
+                // the first one wins if sequences differ only in VS16
+                node.mTerminal = true;
+                node.mValue = entry.id();
+            }
+        }
+
+        mFirstEdge = new int[nodeCount];
+        mEdgeCount = new int[nodeCount];
+        mTerminal = new boolean[nodeCount];
+        mValues = new int[nodeCount];
+        // each node except the root has exactly one incoming edge
+        mEdgeCodePoints = new int[nodeCount - 1];
+        mEdgeTargets = new int[nodeCount - 1];
+
+        final ArrayList<Node> queue = new ArrayList<>(nodeCount);
+        queue.add(root);
+        int edge = 0;
+        for (int index = 0; index < queue.size(); index++) {
+            final Node node = queue.get(index);
+            mTerminal[index] = node.mTerminal;
+            mValues[index] = node.mValue;
+            mFirstEdge[index] = edge;
+            mEdgeCount[index] = node.mChildren.size();
+            // tree map iterates in ascending order of code points
+            for (var it = node.mChildren.int2ObjectEntrySet().iterator(); it.hasNext(); ) {
+                var e = it.next();
+                mEdgeCodePoints[edge] = e.getIntKey();
+                mEdgeTargets[edge] = queue.size();
+                queue.add(e.getValue());
+                edge++;
+            }
+        }
+        assert edge == nodeCount - 1;
+    }
+
+    /**
+     * Finds the longest emoji sequence starting at the given index. U+FE0F in the text
+     * is skipped, but it cannot start a sequence.
+     *
+     * @param buf   the text buffer
+     * @param start the start index
+     * @param limit the end index of the text
+     * @return the end index of the match in the higher 32 bits and the value in the lower
+     * 32 bits, or a negative value if nothing matches
+     */
+    long match(@NonNull char[] buf, int start, int limit) {
+        int node = 0;
+        int matchEnd = -1;
+        int matchValue = 0;
+        int i = start;
+        while (i < limit) {
+            final int c = Character.codePointAt(buf, i, limit);
+            final int next = i + Character.charCount(c);
+            if (c == Emoji.VARIATION_SELECTOR_16) {
+                if (i == start) {
+                    break;
+                }
+                i = next;
+                continue;
+            }
+            final int e = findEdge(node, c);
+            if (e < 0) {
+                break;
+            }
+            node = mEdgeTargets[e];
+            i = next;
+            if (mTerminal[node]) {
+                matchEnd = i;
+                matchValue = mValues[node];
+            }
+        }
+        if (matchEnd < 0) {
+            return -1;
+        }
+        return ((long) matchEnd << 32) | (matchValue & 0xFFFFFFFFL);
+    }
+
+    private int findEdge(int node, int c) {
+        final int from = mFirstEdge[node];
+        final int index = Arrays.binarySearch(mEdgeCodePoints, from, from + mEdgeCount[node], c);
+        return index >= 0 ? index : -1;
+    }
+
+    // used only while building
+    private static final class Node {
+
+        final Int2ObjectRBTreeMap<Node> mChildren = new Int2ObjectRBTreeMap<>();
+        boolean mTerminal;
+        int mValue;
+    }
+}
@@ -18,9 +18,12 @@
 
 package icyllis.modernui.graphics.text;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.ibm.icu.impl.UCharacterProperty;
 import com.ibm.icu.lang.*;
 import icyllis.modernui.annotation.NonNull;
+import icyllis.modernui.graphics.MathUtil;
 import org.jetbrains.annotations.ApiStatus;
 import org.jetbrains.annotations.Unmodifiable;
 
@@ -80,10 +83,29 @@ public class FontCollection {
         return UCharacter.hasBinaryProperty(c, UProperty.VARIATION_SELECTOR);
     }
 
+    /**
+     * The max length of text whose itemization result will be cached, longer text
+     * is rarely repeated.
+     */
+    public static final int MAX_CACHED_LENGTH = LayoutCache.MAX_PIECE_LENGTH;
+
+    // the max memory usage of the itemization cache in bytes
+    private static final int ITEMIZATION_CACHE_MEMORY_SIZE = 1 << 20;
+
+    // text content and font collection to itemization result, shared globally
+    private static final Cache<Key, Itemization> sItemizationCache = Caffeine.newBuilder()
+            .maximumWeight(ITEMIZATION_CACHE_MEMORY_SIZE)
+            .weigher((Key k, Itemization v) -> k.getMemoryUsage() + v.getMemoryUsage())
+            .build();
+    private static final ThreadLocal<LookupKey> sLookupKey = ThreadLocal.withInitial(LookupKey::new);
+
     // an array of base fonts
     @NonNull
     private final List<FontFamily> mFamilies;
 
+    // bit set of Latin-1 chars supported by the first family, lazily computed
+    private volatile long[] mLatin1Coverage;
+
     public FontCollection(@NonNull FontFamily... families) {
         if (families.length == 0) {
             throw new IllegalArgumentException("Font set cannot be empty");
@@ -98,10 +120,67 @@ public class FontCollection {
 
     /**
      * Perform the itemization.
+     * <p>
+     * Text fully supported by the first family (e.g. Latin-1 text in a Latin font) is
+     * not itemized. Otherwise, if the length is not greater than {@link #MAX_CACHED_LENGTH},
+     * the result is cached by text content.
      */
     @NonNull
     public List<Run> itemize(@NonNull char[] text, int offset, int limit) {
-        return itemize(text, offset, limit, limit - offset);
+        if (offset < 0 || offset > limit || limit > text.length) {
+            throw new IllegalArgumentException();
+        }
+        if (offset == limit) {
+            return Collections.emptyList();
+        }
+        if (isCoveredByFirstFamily(text, offset, limit)) {
+            // all the chars are in the first family and none of them is a combining mark,
+            // a surrogate or a variation selector, this is the same as the full itemization
+            return List.of(new Run(mFamilies.get(0), offset, limit));
+        }
+        if (limit - offset > MAX_CACHED_LENGTH) {
+            return itemize(text, offset, limit, limit - offset);
+        }
+        final LookupKey key = sLookupKey.get().update(text, offset, limit, this);
+        final Itemization cached = sItemizationCache.getIfPresent(key);
+        if (cached != null) {
+            key.reset();
+            return cached.toRuns(offset);
+        }
+        final Key k = key.copy();
+        key.reset();
+        final List<Run> result = itemize(text, offset, limit, limit - offset);
+        // there may be a race, but we don't care
+        sItemizationCache.put(k, new Itemization(result, offset));
+        return result;
+    }
+
+    private boolean isCoveredByFirstFamily(@NonNull char[] text, int offset, int limit) {
+        long[] coverage = mLatin1Coverage;
+        if (coverage == null) {
+            final FontFamily family = mFamilies.get(0);
+            coverage = new long[4];
+            for (int c = 0; c < 0x100; c++) {
+                if (family.hasGlyph(c)) {
+                    coverage[c >> 6] |= 1L << c;
+                }
+            }
+            mLatin1Coverage = coverage;
+        }
+        for (int i = offset; i < limit; i++) {
+            final char c = text[i];
+            if (c >= 0x100 || (coverage[c >> 6] & (1L << c)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Clear the itemization cache. Call this when the system fonts changed.
+     */
+    public static void clearItemizationCache() {
+        sItemizationCache.invalidateAll();
     }
 
     /**
@@ -311,6 +390,147 @@ public class FontCollection {
         return s.append('}').toString();
     }
 
+    /**
+     * The cached result of itemization, runs are contiguous and relative to the offset.
+     */
+    private static final class Itemization {
+
+        private final FontFamily[] mFamilies;
+        private final int[] mLimits;
+
+        Itemization(@NonNull List<Run> runs, int offset) {
+            final int n = runs.size();
+            mFamilies = new FontFamily[n];
+            mLimits = new int[n];
+            for (int i = 0; i < n; i++) {
+                final Run run = runs.get(i);
+                mFamilies[i] = run.family;
+                mLimits[i] = run.limit - offset;
+            }
+        }
+
+        @NonNull
+        List<Run> toRuns(int offset) {
+            final int n = mLimits.length;
+            final List<Run> result = new ArrayList<>(n);
+            int start = offset;
+            for (int i = 0; i < n; i++) {
+                final int limit = mLimits[i] + offset;
+                result.add(new Run(mFamilies[i], start, limit));
+                start = limit;
+            }
+            return result;
+        }
+
+        int getMemoryUsage() {
+            return MathUtil.align8(12 + 8 + 8) +
+                    MathUtil.align8(16 + (mFamilies.length << 2)) +
+                    MathUtil.align8(16 + (mLimits.length << 2));
+        }
+    }
+
+    /**
+     * The cache key.
+     */
+    private static class Key {
+
+        // for Lookup case, this is only a pointer to the argument
+        char[] mChars;
+        FontCollection mCollection;
+        // cached hash code, the chars are hashed only once per lookup
+        int mHash;
+
+        private Key() {
+        }
+
+        /**
+         * Copy constructor, used as a key stored in the cache
+         */
+        private Key(@NonNull LookupKey key) {
+            // deep copy chars
+            mChars = Arrays.copyOfRange(key.mChars, key.mStart, key.mLimit);
+            mCollection = key.mCollection;
+            mHash = key.mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            // we never compare with a LookupKey
+            if (o.getClass() != Key.class) {
+                throw new IllegalStateException();
+            }
+            Key key = (Key) o;
+
+            if (mHash != key.mHash) return false;
+            if (!Arrays.equals(mChars, key.mChars)) return false;
+            return mCollection.equals(key.mCollection);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        int getMemoryUsage() {
+            // plus the node of the cache
+            return MathUtil.align8(12 + 8 + 8 + 4) + MathUtil.align8(16 + (mChars.length << 1)) + 40;
+        }
+    }
+
+    /**
+     * A reusable key used for looking-up, compared against the base Key class.
+     */
+    private static class LookupKey extends Key {
+
+        private int mStart;
+        private int mLimit;
+
+        @NonNull
+        LookupKey update(@NonNull char[] text, int start, int limit, @NonNull FontCollection collection) {
+            mChars = text;
+            mStart = start;
+            mLimit = limit;
+            mCollection = collection;
+            int result = 1;
+            for (int i = start; i < limit; i++) {
+                result = 31 * result + text[i];
+            }
+            mHash = 31 * result + collection.hashCode();
+            return this;
+        }
+
+        /**
+         * Release the references to the arguments.
+         */
+        void reset() {
+            mChars = null;
+            mCollection = null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            // we never compare with a LookupKey
+            if (o.getClass() != Key.class) {
+                throw new IllegalStateException();
+            }
+            Key key = (Key) o;
+
+            if (mHash != key.mHash) return false;
+            if (!Arrays.equals(mChars, mStart, mLimit,
+                    key.mChars, 0, key.mChars.length)) {
+                return false;
+            }
+            return mCollection.equals(key.mCollection);
+        }
+
+        @NonNull
+        Key copy() {
+            return new Key(this);
+        }
+    }
+
     public static final class Run {
 
         private final FontFamily family;
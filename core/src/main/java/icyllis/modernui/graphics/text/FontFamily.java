@@ -20,9 +20,13 @@ package icyllis.modernui.graphics.text;
 
 import icyllis.modernui.annotation.NonNull;
 import icyllis.modernui.annotation.Nullable;
+import icyllis.modernui.graphics.font.TrueTypeRasterizer;
 import org.jetbrains.annotations.UnmodifiableView;
+import org.lwjgl.BufferUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
@@ -90,9 +94,8 @@ public final class FontFamily {
     @NonNull
     public static FontFamily createFamily(@NonNull File file, boolean register) {
         try {
-            var fonts = java.awt.Font.createFonts(file);
-            return createFamily(fonts, register);
-        } catch (java.awt.FontFormatException | IOException e) {
+            return createFamily(Files.readAllBytes(file.toPath()), register);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
@@ -100,7 +103,21 @@ public final class FontFamily {
     @NonNull
     public static FontFamily createFamily(@NonNull InputStream stream, boolean register) {
         try {
-            var fonts = java.awt.Font.createFonts(stream);
+            return createFamily(stream.readAllBytes(), register);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @NonNull
+    private static FontFamily createFamily(@NonNull byte[] data, boolean register) {
+        try {
+            var fonts = java.awt.Font.createFonts(new ByteArrayInputStream(data));
+            // keep the data for rasterizing glyphs without AWT
+            ByteBuffer buffer = BufferUtils.createByteBuffer(data.length).put(data).flip();
+            for (int i = 0; i < fonts.length; i++) {
+                TrueTypeRasterizer.registerFont(fonts[i], buffer, i);
+            }
             return createFamily(fonts, register);
         } catch (java.awt.FontFormatException | IOException e) {
             throw new RuntimeException(e);
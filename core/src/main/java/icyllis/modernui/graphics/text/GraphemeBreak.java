@@ -19,9 +19,12 @@
 package icyllis.modernui.graphics.text;
 
 import com.ibm.icu.lang.UCharacter;
-import com.ibm.icu.lang.UCharacterCategory;
 import com.ibm.icu.lang.UProperty;
 import com.ibm.icu.text.BreakIterator;
+import com.ibm.icu.text.UnicodeSet;
+import com.ibm.icu.util.CodePointMap;
+import com.ibm.icu.util.CodePointTrie;
+import com.ibm.icu.util.MutableCodePointTrie;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -45,7 +48,10 @@ import static com.ibm.icu.lang.UCharacter.GraphemeClusterBreak;
  * These user-perceived characters are approximated by what is called
  * a grapheme cluster, which can be determined programmatically.
  * <p>
- * Note: this class is not completed, use ICU instead.
+ * This class implements extended grapheme clusters of Unicode Standard Annex #29 over
+ * char arrays, the result is the same as ICU character break iterator. Properties are looked
+ * up in a compact table built from ICU data once, there's no allocation in break iteration.
+ * Set {@link #sUseICU} to use ICU break iterator instead.
  */
 public final class GraphemeBreak {
 
@@ -75,13 +81,64 @@ public final class GraphemeBreak {
     public static final int AT = 4;
 
     /**
-     * Config value, true to use ICU GCB, otherwise this
+     * Config value, true to use ICU break iterator, otherwise the table-driven implementation
+     * of this class, which gives the same result without allocation.
      */
-    public static boolean sUseICU = true;
+    public static boolean sUseICU = false;
+
+    // the property table, the lower 5 bits are Grapheme_Cluster_Break,
+    // and the bit EXTENDED_PICTOGRAPHIC is Extended_Pictographic
+    private static final int GCB_MASK = 0x1F;
+    private static final int EXTENDED_PICTOGRAPHIC = 0x20;
+
+    private static final CodePointTrie.Fast8 sProperties = buildProperties();
+
+    // the states of GB11, \p{Extended_Pictographic} Extend* ZWJ x \p{Extended_Pictographic}
+    private static final int EMOJI_NONE = 0;
+    private static final int EMOJI_PICTOGRAPHIC = 1;   // after ExtPict Extend*
+    private static final int EMOJI_ZWJ = 2;            // after ExtPict Extend* ZWJ
 
     private GraphemeBreak() {
     }
 
+    @Nonnull
+    private static CodePointTrie.Fast8 buildProperties() {
+        final MutableCodePointTrie builder = new MutableCodePointTrie(0, 0);
+        final CodePointMap gcb = UCharacter.getIntPropertyMap(UProperty.GRAPHEME_CLUSTER_BREAK);
+        final CodePointMap.Range range = new CodePointMap.Range();
+        int start = 0;
+        while (gcb.getRange(start, null, range)) {
+            if (range.getValue() != 0) {
+                builder.setRange(range.getStart(), range.getEnd(), range.getValue());
+            }
+            start = range.getEnd() + 1;
+        }
+        final UnicodeSet pictographic = new UnicodeSet("[:Extended_Pictographic:]");
+        for (int i = 0, n = pictographic.getRangeCount(); i < n; i++) {
+            for (int c = pictographic.getRangeStart(i), e = pictographic.getRangeEnd(i); c <= e; c++) {
+                builder.set(c, builder.get(c) | EXTENDED_PICTOGRAPHIC);
+            }
+        }
+        return (CodePointTrie.Fast8) builder.buildImmutable(CodePointTrie.Type.FAST,
+                CodePointTrie.ValueWidth.BITS_8);
+    }
+
+    /**
+     * Returns the Grapheme_Cluster_Break property value of a code point, from the table.
+     *
+     * @see GraphemeClusterBreak
+     */
+    public static int getGraphemeClusterBreak(int c) {
+        return sProperties.get(c) & GCB_MASK;
+    }
+
+    /**
+     * Returns whether a code point has Extended_Pictographic property, from the table.
+     */
+    public static boolean isExtendedPictographic(int c) {
+        return (sProperties.get(c) & EXTENDED_PICTOGRAPHIC) != 0;
+    }
+
     public static int getTextRunCursor(@Nonnull String text, @Nonnull Locale locale, int contextStart, int contextEnd,
                                        int offset, int op) {
         if (((contextStart | contextEnd | offset | (contextEnd - contextStart)
@@ -107,15 +164,36 @@ public final class GraphemeBreak {
                 consumer.accept(prevOffset, offset);
                 prevOffset = offset;
             }
-        } else {
-            final int count = contextEnd - contextStart;
-            int prevOffset = contextStart;
-            int offset;
-            while ((offset = getTextRunCursorImpl(null, text, contextStart, count, prevOffset, AFTER))
-                    != prevOffset) {
-                consumer.accept(prevOffset, offset);
-                prevOffset = offset;
+        } else if (contextStart < contextEnd) {
+            // iterate forward with the states of GB11 and GB12/13, no look back
+            int clusterStart = contextStart;
+            int c = Character.codePointAt(text, contextStart, contextEnd);
+            int offset = contextStart + Character.charCount(c);
+            int v = sProperties.get(c);
+            int p = v & GCB_MASK;
+            int emoji = (v & EXTENDED_PICTOGRAPHIC) != 0 ? EMOJI_PICTOGRAPHIC : EMOJI_NONE;
+            int riCount = p == GraphemeClusterBreak.REGIONAL_INDICATOR ? 1 : 0;
+            while (offset < contextEnd) {
+                c = Character.codePointAt(text, offset, contextEnd);
+                v = sProperties.get(c);
+                final int p2 = v & GCB_MASK;
+                final boolean pictographic = (v & EXTENDED_PICTOGRAPHIC) != 0;
+                if (isBoundary(p, p2, pictographic, false, emoji, riCount)) {
+                    consumer.accept(clusterStart, offset);
+                    clusterStart = offset;
+                }
+                if (pictographic) {
+                    emoji = EMOJI_PICTOGRAPHIC;
+                } else if (emoji == EMOJI_PICTOGRAPHIC && p2 == GraphemeClusterBreak.ZWJ) {
+                    emoji = EMOJI_ZWJ;
+                } else if (emoji != EMOJI_PICTOGRAPHIC || p2 != GraphemeClusterBreak.EXTEND) {
+                    emoji = EMOJI_NONE;
+                }
+                riCount = p2 == GraphemeClusterBreak.REGIONAL_INDICATOR ? riCount + 1 : 0;
+                p = p2;
+                offset += Character.charCount(c);
             }
+            consumer.accept(clusterStart, contextEnd);
         }
     }
 
@@ -189,7 +267,7 @@ public final class GraphemeBreak {
                                           final int offset) {
         // This implementation closely follows Unicode Standard Annex #29 on
         // Unicode Text Segmentation (http://www.unicode.org/reports/tr29/),
-        // implementing a tailored version of extended grapheme clusters.
+        // implementing extended grapheme clusters.
         // The GB rules refer to section 3.1.1, Grapheme Cluster Boundary Rules.
 
         // Rule GB1, sot ÷; Rule GB2, ÷ eot
@@ -200,36 +278,71 @@ public final class GraphemeBreak {
             // Don't break a surrogate pair, but a lonely trailing surrogate pair is a break
             return !Character.isHighSurrogate(buf[offset - 1]);
         }
-        int c1;
-        int c2;
-        int offsetBack = offset;
+        final int c2 = Character.codePointAt(buf, offset, start + count);
+        final int c1 = Character.codePointBefore(buf, offset, start);
+        final int offsetBack = offset - Character.charCount(c1);
 
-        char _c1;
-        char _c2;
-        // NEXT ONCE
+        final int v2 = sProperties.get(c2);
+        final int p1 = sProperties.get(c1) & GCB_MASK;
+        final int p2 = v2 & GCB_MASK;
+        final boolean pictographic = (v2 & EXTENDED_PICTOGRAPHIC) != 0;
 
-        c2 = _c1 = buf[offsetBack++];
-        if (Character.isHighSurrogate(_c1))
-            if (offsetBack != start + count &&
-                    Character.isLowSurrogate(_c2 = buf[offsetBack])) {
-                ++offsetBack;
-                c2 = Character.toCodePoint(_c1, _c2);
+        // This is used to decide font-dependent grapheme clusters. If we don't have the advance
+        // information, we become conservative in grapheme breaking and assume that it has no advance.
+        final boolean hasAdvance = advances != null && advances[offset - start] != 0.0;
+
+        // Look back for the states of GB11 and GB12/13 only when needed
+        int emoji = EMOJI_NONE;
+        if (!hasAdvance && p1 == GraphemeClusterBreak.ZWJ && pictographic) {
+            // \p{Extended_Pictographic} Extend* ZWJ x \p{Extended_Pictographic}
+            int i = offsetBack;
+            while (i > start) {
+                final int c0 = Character.codePointBefore(buf, i, start);
+                final int v0 = sProperties.get(c0);
+                if ((v0 & EXTENDED_PICTOGRAPHIC) != 0) {
+                    emoji = EMOJI_ZWJ;
+                    break;
+                }
+                if ((v0 & GCB_MASK) != GraphemeClusterBreak.EXTEND) {
+                    break;
+                }
+                i -= Character.charCount(c0);
             }
-
-        offsetBack = offset;
-
-        // PREV
-        c1 = _c1 = buf[--offsetBack];
-        if (Character.isLowSurrogate(_c1))
-            if (offsetBack > start &&
-                    Character.isHighSurrogate(_c2 = buf[offsetBack - 1])) {
-                --offsetBack;
-                c1 = Character.toCodePoint(_c2, _c1);
+        }
+        int riCount = 0;
+        if (!hasAdvance && p1 == GraphemeClusterBreak.REGIONAL_INDICATOR &&
+                p2 == GraphemeClusterBreak.REGIONAL_INDICATOR) {
+            if (advances != null) {
+                // We have advances information. But if we are here, we already know c2 has no advance.
+                // So we should definitely disallow a break.
+                return false;
             }
+            // sot (RI RI)* RI x RI; [^RI] (RI RI)* RI x RI
+            int i = offset;
+            while (i > start) {
+                final int c0 = Character.codePointBefore(buf, i, start);
+                if ((sProperties.get(c0) & GCB_MASK) != GraphemeClusterBreak.REGIONAL_INDICATOR) {
+                    break;
+                }
+                riCount++;
+                i -= Character.charCount(c0);
+            }
+        }
+        return isBoundary(p1, p2, pictographic, hasAdvance, emoji, riCount);
+    }
 
-        int p1 = tailoredGraphemeClusterBreak(c1);
-        int p2 = tailoredGraphemeClusterBreak(c2);
-
+    /**
+     * Decides whether there is a boundary between two code points.
+     *
+     * @param p1           the Grapheme_Cluster_Break of the code point before
+     * @param p2           the Grapheme_Cluster_Break of the code point after
+     * @param pictographic whether the code point after is Extended_Pictographic
+     * @param hasAdvance   whether the code point after is known to have an advance
+     * @param emoji        the state of GB11 at the code point before
+     * @param riCount      the number of consecutive regional indicators ending at the code point before
+     */
+    private static boolean isBoundary(int p1, int p2, boolean pictographic, boolean hasAdvance,
+                                      int emoji, int riCount) {
         // Rule GB3, CR x LF
         if (p1 == GraphemeClusterBreak.CR && p2 == GraphemeClusterBreak.LF) {
             return false;
@@ -254,125 +367,27 @@ public final class GraphemeBreak {
         if ((p1 == GraphemeClusterBreak.LVT || p1 == GraphemeClusterBreak.T) && p2 == GraphemeClusterBreak.T) {
             return false;
         }
-
-        // This is used to decide font-dependent grapheme clusters. If we don't have the advance
-        // information, we become conservative in grapheme breaking and assume that it has no advance.
-        boolean c2_has_advance = (advances != null && advances[offset - start] != 0.0);
-
         // All the following rules are font-dependent, in the way that if we know c2 has an advance,
         // we definitely know that it cannot form a grapheme with the character(s) before it. So we
         // make the decision in favor a grapheme break early.
-        if (c2_has_advance) {
+        if (hasAdvance) {
             return true;
         }
-
         // Rule GB9, x (Extend | ZWJ); Rule GB9a, x SpacingMark; Rule GB9b, Prepend x
         if (p2 == GraphemeClusterBreak.EXTEND || p2 == GraphemeClusterBreak.ZWJ || p2 == GraphemeClusterBreak.SPACING_MARK || p1 == GraphemeClusterBreak.PREPEND) {
             return false;
         }
-
-        // Tailored version of Rule GB11
-        // \p{Extended_Pictographic} Extend* ZWJ x \p{Extended_Pictographic}
-        if (offsetBack > start && p1 == GraphemeClusterBreak.ZWJ &&
-                UCharacter.hasBinaryProperty(c2, UProperty.EXTENDED_PICTOGRAPHIC)) {
-            int offsetBack1 = offsetBack;
-            int p0;
-
-            int c0 = _c1 = buf[--offsetBack1];
-            if (Character.isLowSurrogate(_c1))
-                if (offsetBack1 > start &&
-                        Character.isHighSurrogate(_c2 = buf[offsetBack1 - 1])) {
-                    --offsetBack1;
-                    c0 = Character.toCodePoint(_c2, _c1);
-                }
-
-            p0 = tailoredGraphemeClusterBreak(c0);
-            while (p0 == GraphemeClusterBreak.EXTEND && offsetBack1 > start) {
-                c0 = _c1 = buf[--offsetBack1];
-                if (Character.isLowSurrogate(_c1))
-                    if (offsetBack1 > start &&
-                            Character.isHighSurrogate(_c2 = buf[offsetBack1 - 1])) {
-                        --offsetBack1;
-                        c0 = Character.toCodePoint(_c2, _c1);
-                    }
-                p0 = tailoredGraphemeClusterBreak(c0);
-            }
-            if (UCharacter.hasBinaryProperty(c0, UProperty.EXTENDED_PICTOGRAPHIC)) {
-                return false;
-            }
+        // Rule GB11, \p{Extended_Pictographic} Extend* ZWJ x \p{Extended_Pictographic}
+        if (emoji == EMOJI_ZWJ && pictographic) {
+            return false;
         }
-
-        // Tailored version of Rule GB12 and Rule GB13 that look at even-odd cases.
+        // Rule GB12 and Rule GB13, break between pairs of regional indicators
         // sot   (RI RI)*  RI x RI
         // [^RI] (RI RI)*  RI x RI
-        //
-        // If we have font information, we have already broken the cluster if and only if the second
-        // character had no advance, which means a ligature was formed. If we don't, we look back like
-        // UAX #29 recommends, but only up to 1000 code units.
         if (p1 == GraphemeClusterBreak.REGIONAL_INDICATOR && p2 == GraphemeClusterBreak.REGIONAL_INDICATOR) {
-            if (advances != null) {
-                // We have advances information. But if we are here, we already know c2 has no advance.
-                // So we should definitely disallow a break.
-                return false;
-            } else {
-                // Look at up to 1000 code units.
-                final int backBarrier = Math.max(start, offsetBack - 1000);
-                int offsetBack1 = offsetBack;
-                while (offsetBack1 > backBarrier) {
-                    int c0 = _c1 = buf[--offsetBack1];
-                    if (Character.isLowSurrogate(_c1))
-                        if (offsetBack1 > backBarrier &&
-                                Character.isHighSurrogate(_c2 = buf[offsetBack1 - 1])) {
-                            --offsetBack1;
-                            c0 = Character.toCodePoint(_c2, _c1);
-                        }
-                    if (tailoredGraphemeClusterBreak(c0) != GraphemeClusterBreak.REGIONAL_INDICATOR) {
-                        offsetBack1 += Character.charCount(c0);
-                        break;
-                    }
-                }
-                // The number 4 comes from the number of code units in a whole flag.
-                return (offset - offsetBack1) % 4 == 0;
-            }
+            return (riCount & 1) == 0;
         }
-        // Cluster Indic syllables together (tailoring of UAX #29).
-        // Immediately after each virama (that is not just a pure killer) followed by a letter, we
-        // disallow grapheme breaks (if we are here, we don't know about advances, or we already know
-        // that c2 has no advance). Or Rule GB999, Any ÷ Any
-        return UCharacter.getIntPropertyValue(c1, UProperty.CANONICAL_COMBINING_CLASS) != 9  // virama
-                || isPureKiller(c1) ||
-                UCharacter.getIntPropertyValue(c2, UProperty.GENERAL_CATEGORY) != UCharacterCategory.OTHER_LETTER;
-    }
-
-    // Returns true for all characters whose IndicSyllabicCategory is Pure_Killer.
-    // From http://www.unicode.org/Public/9.0.0/ucd/IndicSyllabicCategory.txt
-    public static boolean isPureKiller(int c) {
-        return (c == 0x0E3A || c == 0x0E4E || c == 0x0F84 || c == 0x103A || c == 0x1714 ||
-                c == 0x1734 || c == 0x17D1 || c == 0x1BAA || c == 0x1BF2 || c == 0x1BF3 ||
-                c == 0xA806 || c == 0xA953 || c == 0xABED || c == 0x11134 || c == 0x112EA ||
-                c == 0x1172B);
-    }
-
-    public static int tailoredGraphemeClusterBreak(int c) {
-        // Characters defined as Control that we want to treat them as Extend.
-        // These are curated manually.
-        if (c == 0x00AD                      // SHY
-                || c == 0x061C                   // ALM
-                || c == 0x180E                   // MONGOLIAN VOWEL SEPARATOR
-                || c == 0x200B                   // ZWSP
-                || c == 0x200E                   // LRM
-                || c == 0x200F                   // RLM
-                || (0x202A <= c && c <= 0x202E)  // LRE, RLE, PDF, LRO, RLO
-                || ((c | 0xF) == 0x206F)         // WJ, invisible math operators, LRI, RLI, FSI, PDI,
-                // and the deprecated invisible format controls
-                || c == 0xFEFF                   // BOM
-                || ((c | 0x7F) == 0xE007F))      // recently undeprecated tag characters in Plane 14
-            return GraphemeClusterBreak.EXTEND;
-            // THAI CHARACTER SARA AM is treated as a normal letter by most other implementations: they
-            // allow a grapheme break before it.
-        else if (c == 0x0E33)
-            return GraphemeClusterBreak.OTHER;
-        else
-            return UCharacter.getIntPropertyValue(c, UProperty.GRAPHEME_CLUSTER_BREAK);
+        // Rule GB999, Any ÷ Any
+        return true;
     }
 }
@@ -22,15 +22,21 @@ import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import icyllis.modernui.annotation.NonNull;
 import icyllis.modernui.graphics.MathUtil;
-import icyllis.modernui.util.Pools;
+import icyllis.modernui.text.TextUtils;
 
 import javax.annotation.concurrent.ThreadSafe;
+import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Globally shared layout cache. Useful when recycling layouts, or raw data source and
- * layout information are separated. Max memory usage: 3~4 MB.
+ * layout information are separated. The cache is weighed by the memory usage of keys
+ * and layout pieces, see {@link #setMaxMemorySize(int)}.
+ * <p>
+ * Each thread has a small direct-mapped cache in front of the global cache, which
+ * requires no synchronization and is not counted in the memory budget.
  *
  * @see LayoutPiece
  * @since 2.6
@@ -57,8 +63,22 @@ public final class LayoutCache {
      */
     public static final int COMPUTE_GLYPHS_PIXEL_BOUNDS = 0x2;
 
-    private static final Pools.Pool<LookupKey> sLookupKeys = Pools.newSynchronizedPool(3);
-    private static volatile Cache<Key, LayoutPiece> sCache;
+    // the max memory usage of the global cache in bytes, guarded by LayoutCache.class
+    private static volatile int sMaxMemorySize = 1 << 22;
+
+    // the number of entries of the per-thread cache, must be a power of 2
+    private static final int LOCAL_CACHE_SIZE = 32;
+    // the approximate memory usage of a node and its entry in the global cache
+    private static final int NODE_MEMORY_USAGE = 56;
+
+    private static volatile Cache<Key, Entry> sCache;
+    private static final ThreadLocal<LocalCache> sLocalCache = ThreadLocal.withInitial(LocalCache::new);
+    // local caches are invalidated when this changes
+    private static volatile int sGeneration;
+
+    private static final LongAdder sHitCount = new LongAdder();
+    private static final LongAdder sMissCount = new LongAdder();
+    private static final LongAdder sEvictionCount = new LongAdder();
 
     /**
      * Get or create the layout piece from the global cache with given requirements.
@@ -89,73 +109,208 @@ public final class LayoutCache {
             return new LayoutPiece(buf, contextStart, contextLimit, start, limit, isRtl, paint,
                     null, computeFlags);
         }
-        if (sCache == null) {
+        final Cache<Key, Entry> cache = getCache();
+        final LocalCache local = sLocalCache.get();
+        if (local.mGeneration != sGeneration) {
+            local.clear();
+        }
+        final LookupKey key = local.mLookupKey.update(buf, contextStart, contextLimit,
+                start, limit, paint, isRtl);
+        final int slot = (key.mHash ^ (key.mHash >>> 16)) & (LOCAL_CACHE_SIZE - 1);
+
+        // fast path, no synchronization
+        Key localKey = local.mKeys[slot];
+        if (localKey != null && key.equals(localKey)) {
+            LayoutPiece piece = local.mPieces[slot];
+            if ((piece.mComputeFlags & computeFlags) == computeFlags) {
+                key.reset();
+                sHitCount.increment();
+                return piece;
+            }
+        }
+
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && (entry.piece.mComputeFlags & computeFlags) == computeFlags) {
+            // the cached key is shared with the local cache, no copy
+            key.reset();
+            sHitCount.increment();
+        } else {
+            // the key stored in the caches must be a copy, creating layout is heavier anyway
+            final Key k = entry != null ? entry.key : key.copy();
+            key.reset();
+            sMissCount.increment();
+            final LayoutPiece piece;
+            if (entry == null) {
+                // create new
+                piece = new LayoutPiece(buf, contextStart, contextLimit, start, limit, isRtl, paint,
+                        null, computeFlags);
+            } else {
+                // re-compute for more info
+                int currFlags = (entry.piece.mComputeFlags & computeFlags);
+                piece = new LayoutPiece(buf, contextStart, contextLimit, start, limit, isRtl, paint,
+                        entry.piece, currFlags ^ computeFlags); // <- compute the difference
+            }
+            entry = new Entry(k, piece);
+            // there may be a race, but we don't care
+            cache.put(k, entry);
+        }
+        local.mKeys[slot] = entry.key;
+        local.mPieces[slot] = entry.piece;
+        return entry.piece;
+    }
+
+    @NonNull
+    private static Cache<Key, Entry> getCache() {
+        Cache<Key, Entry> cache = sCache;
+        if (cache == null) {
             synchronized (LayoutCache.class) {
-                if (sCache == null) {
-                    sCache = Caffeine.newBuilder()
-                            .maximumSize(2000)
+                cache = sCache;
+                if (cache == null) {
+                    sCache = cache = Caffeine.newBuilder()
+                            .maximumWeight(sMaxMemorySize)
+                            .weigher((Key k, Entry v) ->
+                                    k.getMemoryUsage() + v.piece.getMemoryUsage() + NODE_MEMORY_USAGE)
+                            .evictionListener((k, v, cause) -> sEvictionCount.increment())
                             //.expireAfterAccess(5, TimeUnit.MINUTES)
                             .build();
                 }
             }
         }
-        LookupKey key = sLookupKeys.acquire();
-        if (key == null) {
-            key = new LookupKey();
+        return cache;
+    }
+
+    /**
+     * Sets the max memory usage of the global cache in bytes, this takes effect
+     * immediately, layout pieces will be evicted if the new size is smaller.
+     *
+     * @param size the max memory usage in bytes
+     * @see #getMaxMemorySize()
+     */
+    public static void setMaxMemorySize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException();
         }
-        LayoutPiece piece = sCache.getIfPresent(
-                key.update(buf, contextStart, contextLimit, start, limit, paint, isRtl));
-        if (piece == null) {
-            // create new
-            final Key k = key.copy();
-            // recycle the lookup key earlier, since creating layout is heavy
-            sLookupKeys.release(key);
-            piece = new LayoutPiece(buf, contextStart, contextLimit, start, limit, isRtl, paint,
-                    null, computeFlags);
-            // there may be a race, but we don't care
-            sCache.put(k, piece);
-        } else {
-            int currFlags = (piece.mComputeFlags & computeFlags);
-            if (currFlags != computeFlags) {
-                // re-compute for more info
-                final Key k = key.copy();
-                // recycle the lookup key earlier, since creating layout is heavy
-                sLookupKeys.release(key);
-                piece = new LayoutPiece(buf, contextStart, contextLimit, start, limit, isRtl, paint,
-                        piece, currFlags ^ computeFlags); // <- compute the difference
-                // override old value
-                sCache.put(k, piece);
-            } else {
-                sLookupKeys.release(key);
+        synchronized (LayoutCache.class) {
+            sMaxMemorySize = size;
+            if (sCache != null) {
+                sCache.policy().eviction().ifPresent(e -> e.setMaximum(size));
             }
         }
-        return piece;
     }
 
     /**
-     * This only returns measurable memory usage, in other words, at least
+     * Returns the max memory usage of the global cache in bytes, the least recently used
+     * layout pieces will be evicted when exceeded. Default value is 4 MB.
+     *
+     * @return the max memory usage in bytes
+     * @see #setMaxMemorySize(int)
+     */
+    public static int getMaxMemorySize() {
+        return sMaxMemorySize;
+    }
+
+    /**
+     * This only returns measurable memory usage of the global cache, in other words, at least.
+     * The value is tracked by the cache, so this method is cheap.
      *
      * @return memory usage in bytes
      */
     public static int getMemoryUsage() {
-        if (sCache == null) {
+        final Cache<Key, Entry> cache = sCache;
+        if (cache == null) {
             return 0;
         }
-        int size = 0;
-        for (var entry : sCache.asMap().entrySet()) {
-            size += entry.getKey().getMemoryUsage();
-            size += entry.getValue().getMemoryUsage();
-            size += 40; // a node object
-        }
-        return size;
+        return (int) cache.policy().eviction()
+                .map(e -> e.weightedSize().orElse(0))
+                .orElse(0L)
+                .longValue();
+    }
+
+    /**
+     * @return the approximate number of layout pieces in the global cache
+     */
+    public static long getEntryCount() {
+        final Cache<Key, Entry> cache = sCache;
+        return cache != null ? cache.estimatedSize() : 0;
+    }
+
+    /**
+     * @return the number of lookups that returned a cached layout piece
+     */
+    public static long getHitCount() {
+        return sHitCount.sum();
+    }
+
+    /**
+     * @return the number of lookups that created a layout piece, including the lookups
+     * that re-computed a cached layout piece for more info
+     */
+    public static long getMissCount() {
+        return sMissCount.sum();
+    }
+
+    /**
+     * @return the number of layout pieces evicted from the global cache because of
+     * the memory budget
+     */
+    public static long getEvictionCount() {
+        return sEvictionCount.sum();
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters.
+     */
+    public static void resetStats() {
+        sHitCount.reset();
+        sMissCount.reset();
+        sEvictionCount.reset();
+    }
+
+    public static void dumpInfo(@NonNull PrintWriter pw) {
+        final long memoryUsage = getMemoryUsage();
+        pw.print("LayoutCache: ");
+        pw.print("Entries=" + getEntryCount());
+        pw.print(", MemoryUsage=" + TextUtils.binaryCompact(memoryUsage) + " (" + memoryUsage + " bytes)");
+        pw.println(", MemoryBudget=" + TextUtils.binaryCompact(sMaxMemorySize));
+        pw.print("    Hits=" + getHitCount());
+        pw.print(", Misses=" + getMissCount());
+        pw.println(", Evictions=" + getEvictionCount());
     }
 
     /**
-     * Clear the cache.
+     * Clear the cache. The per-thread caches will be cleared on the next lookup
+     * of each thread.
      */
     public static void clear() {
-        if (sCache != null) {
-            sCache.invalidateAll();
+        synchronized (LayoutCache.class) {
+            if (sCache != null) {
+                sCache.invalidateAll();
+            }
+            sGeneration++;
+        }
+    }
+
+    /**
+     * The value of the global cache, the key is kept so that it can be shared with
+     * the per-thread cache when hit.
+     */
+    private record Entry(Key key, LayoutPiece piece) {
+    }
+
+    /**
+     * The per-thread cache, direct-mapped by hash code.
+     */
+    private static final class LocalCache {
+
+        final LookupKey mLookupKey = new LookupKey();
+        final Key[] mKeys = new Key[LOCAL_CACHE_SIZE];
+        final LayoutPiece[] mPieces = new LayoutPiece[LOCAL_CACHE_SIZE];
+        int mGeneration = sGeneration;
+
+        void clear() {
+            Arrays.fill(mKeys, null);
+            Arrays.fill(mPieces, null);
+            mGeneration = sGeneration;
         }
     }
 
@@ -173,6 +328,8 @@ public final class LayoutCache {
         int mSize;
         Locale mLocale;
         boolean mIsRtl;
+        // cached hash code, the chars are hashed only once per lookup
+        int mHash;
 
         private Key() {
         }
@@ -193,6 +350,7 @@ public final class LayoutCache {
             mSize = key.mSize;
             mLocale = key.mLocale;
             mIsRtl = key.mIsRtl;
+            mHash = key.mHash;
         }
 
         @Override
@@ -204,6 +362,7 @@ public final class LayoutCache {
             }
             Key key = (Key) o;
 
+            if (mHash != key.mHash) return false;
             if (mStart != key.mStart) return false;
             if (mLimit != key.mLimit) return false;
             if (mFlags != key.mFlags) return false;
@@ -217,22 +376,11 @@ public final class LayoutCache {
 
         @Override
         public int hashCode() {
-            int result = 1;
-            for (char c : mChars) {
-                result = 31 * result + c;
-            }
-            result = 31 * result + mFont.hashCode();
-            result = 31 * result + mFlags;
-            result = 31 * result + mSize;
-            result = 31 * result + mStart;
-            result = 31 * result + mLimit;
-            result = 31 * result + mLocale.hashCode();
-            result = 31 * result + (mIsRtl ? 1 : 0);
-            return result;
+            return mHash;
         }
 
         private int getMemoryUsage() {
-            return MathUtil.align8(12 + 16 + 8 + 8 + 4 + 4 + 8 + 1 + (mChars.length << 1));
+            return MathUtil.align8(12 + 16 + 8 + 8 + 4 + 4 + 8 + 4 + 1 + (mChars.length << 1));
         }
     }
 
@@ -248,7 +396,7 @@ public final class LayoutCache {
         }
 
         @NonNull
-        public Key update(@NonNull char[] text, int contextStart, int contextLimit,
+        public LookupKey update(@NonNull char[] text, int contextStart, int contextLimit,
                           int start, int limit, @NonNull FontPaint paint, boolean dir) {
             mChars = text;
             mContextStart = contextStart;
@@ -261,9 +409,19 @@ public final class LayoutCache {
             mSize = paint.mSize;
             mLocale = paint.mLocale;
             mIsRtl = dir;
+            mHash = computeHash();
             return this;
         }
 
+        /**
+         * Release the references to the arguments.
+         */
+        public void reset() {
+            mChars = null;
+            mFont = null;
+            mLocale = null;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -273,6 +431,7 @@ public final class LayoutCache {
             }
             Key key = (Key) o;
 
+            if (mHash != key.mHash) return false;
             if (mStart != key.mStart) return false;
             if (mLimit != key.mLimit) return false;
             if (mFlags != key.mFlags) return false;
@@ -286,8 +445,7 @@ public final class LayoutCache {
             return mLocale.equals(key.mLocale);
         }
 
-        @Override
-        public int hashCode() {
+        private int computeHash() {
             int result = 1;
             for (int i = mContextStart; i < mContextLimit; i++) {
                 result = 31 * result + mChars[i];
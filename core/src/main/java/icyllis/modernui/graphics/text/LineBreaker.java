@@ -20,14 +20,15 @@ package icyllis.modernui.graphics.text;
 
 import com.ibm.icu.text.BreakIterator;
 import icyllis.modernui.text.TabStops;
+import icyllis.modernui.util.Pools;
 import it.unimi.dsi.fastutil.ints.IntArrays;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.text.CharacterIterator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides automatic line breaking for a <em>single</em> paragraph.
@@ -36,7 +37,9 @@ public class LineBreaker {
 
     private static final int NOWHERE = 0xFFFFFFFF;
 
-    private static final BreakIterator sBreaker = BreakIterator.getLineInstance(Locale.ROOT);
+    // per-locale pools, creating a line instance is expensive
+    private static final ConcurrentHashMap<Locale, Pools.Pool<BreakIterator>> sLineInstancePools =
+            new ConcurrentHashMap<>();
 
     // This function determines whether a character is a space that disappears at end of line.
     // It is the Unicode set: [[:General_Category=Space_Separator:]-[:Line_Break=Glue:]], plus '\n'.
@@ -57,6 +60,8 @@ public class LineBreaker {
     @Nonnull
     private final MeasuredText mMeasuredText;
     @Nonnull
+    private final float[] mAdvances;
+    @Nonnull
     private final LineWidth mLineWidthLimits;
     @Nonnull
     private final TabStops mTabStops;
@@ -76,6 +81,7 @@ public class LineBreaker {
                        @Nonnull TabStops tabStops) {
         mTextBuf = textBuf;
         mMeasuredText = measuredText;
+        mAdvances = measuredText.getLineBreakData().mAdvances;
         mLineWidthLimits = lineWidthLimits;
         mTabStops = tabStops;
         mLineWidthLimit = lineWidthLimits.getAt(0);
@@ -110,34 +116,45 @@ public class LineBreaker {
         return breaker.getResult();
     }
 
-    private void process() {
-        BreakIterator breaker = sBreaker;
-        final CharacterIterator iterator = new CharArrayIterator(mTextBuf);
-
-        Locale locale = null;
-        int nextBoundary = 0;
-        for (var run : mMeasuredText.getRuns()) {
-
-            Locale newLocale = run.getLocale();
-            if (locale != newLocale) {
-                locale = newLocale;
-                breaker = BreakIterator.getLineInstance(locale);
-                breaker.setText(iterator);
-                nextBoundary = breaker.following(run.mStart);
+    /**
+     * Obtains a line break iterator of the given locale from the pool.
+     */
+    @Nonnull
+    static BreakIterator obtainLineInstance(@Nonnull Locale locale) {
+        var pool = sLineInstancePools.get(locale);
+        if (pool != null) {
+            BreakIterator breaker = pool.acquire();
+            if (breaker != null) {
+                return breaker;
             }
+        }
+        return BreakIterator.getLineInstance(locale);
+    }
 
-            for (int i = run.mStart; i < run.mEnd; i++) {
-                updateLineWidth(mTextBuf[i], mMeasuredText.getAdvance(i));
-
-                if (i + 1 == nextBoundary) {
-                    if (run.canBreak() || nextBoundary == run.mEnd) {
-                        processLineBreak(i + 1);
-                    }
-                    nextBoundary = breaker.next();
-                    if (nextBoundary == BreakIterator.DONE) {
-                        nextBoundary = mTextBuf.length;
-                    }
-                }
+    /**
+     * Returns a line break iterator obtained by {@link #obtainLineInstance(Locale)}.
+     */
+    static void recycleLineInstance(@Nonnull Locale locale, @Nonnull BreakIterator breaker) {
+        // release the text
+        breaker.setText("");
+        sLineInstancePools.computeIfAbsent(locale, __ -> Pools.newSynchronizedPool(4))
+                .release(breaker);
+    }
+
+    private void process() {
+        // break opportunities are computed once by MeasuredText
+        final int[] breakOffsets = mMeasuredText.getLineBreakData().mBreakOffsets;
+        final float[] advances = mAdvances;
+        final char[] text = mTextBuf;
+
+        int breakIndex = 0;
+        int nextBreak = breakOffsets.length > 0 ? breakOffsets[0] : NOWHERE;
+        for (int i = 0; i < text.length; i++) {
+            updateLineWidth(text[i], advances[i]);
+
+            if (i + 1 == nextBreak) {
+                processLineBreak(i + 1);
+                nextBreak = ++breakIndex < breakOffsets.length ? breakOffsets[breakIndex] : NOWHERE;
             }
         }
 
@@ -178,11 +195,12 @@ public class LineBreaker {
 
     //TODO: Respect trailing line end spaces.
     private boolean doLineBreakWithGraphemeBounds(int start, int end) {
-        float width = mMeasuredText.getAdvance(start);
+        final float[] advances = mAdvances;
+        float width = advances[start];
 
         // Starting from + 1 since at least one character needs to be assigned to a line.
         for (int i = start + 1; i < end; i++) {
-            final float w = mMeasuredText.getAdvance(i);
+            final float w = advances[i];
             if (w == 0) {
                 // w == 0 means here is not a grapheme bounds. Don't break here.
                 continue;
@@ -18,11 +18,13 @@
 
 package icyllis.modernui.graphics.text;
 
+import com.ibm.icu.text.BreakIterator;
 import icyllis.modernui.annotation.*;
 import icyllis.modernui.text.TextPaint;
 import icyllis.modernui.util.AlgorithmUtils;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 
+import java.text.CharacterIterator;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -41,6 +43,9 @@ public class MeasuredText {
     private Run mLastSeenRun;
     private int mLastSeenRunIndex;
 
+    // lazily computed, immutable
+    private LineBreakData mLineBreakData;
+
     private MeasuredText(@NonNull char[] textBuf,
                          @NonNull Run[] runs,
                          boolean computeLayout) {
@@ -235,16 +240,82 @@ public class MeasuredText {
         return null;
     }
 
+    /**
+     * Returns the width-independent data for line breaking. It is computed on first use
+     * and kept, so that re-wrapping the text at a new width doesn't need to advance
+     * the ICU break iterator and search the runs again.
+     *
+     * @return the line break data
+     */
+    @NonNull
+    LineBreakData getLineBreakData() {
+        LineBreakData data = mLineBreakData;
+        if (data == null) {
+            // benign race, the data is immutable
+            mLineBreakData = data = computeLineBreakData();
+        }
+        return data;
+    }
+
+    @NonNull
+    private LineBreakData computeLineBreakData() {
+        final char[] text = mTextBuf;
+        final float[] advances = new float[text.length];
+        final IntArrayList breakOffsets = new IntArrayList();
+        final CharacterIterator iterator = new CharArrayIterator(text);
+
+        Locale locale = null;
+        BreakIterator breaker = null;
+        int nextBoundary = 0;
+        try {
+            for (Run run : mRuns) {
+                Locale newLocale = run.getLocale();
+                if (locale != newLocale) {
+                    if (breaker != null) {
+                        LineBreaker.recycleLineInstance(locale, breaker);
+                    }
+                    locale = newLocale;
+                    breaker = LineBreaker.obtainLineInstance(locale);
+                    breaker.setText(iterator);
+                    nextBoundary = breaker.following(run.mStart);
+                }
+
+                for (int i = run.mStart; i < run.mEnd; i++) {
+                    advances[i] = run.getAdvance(text, i);
+
+                    if (i + 1 == nextBoundary) {
+                        if (run.canBreak() || nextBoundary == run.mEnd) {
+                            breakOffsets.add(nextBoundary);
+                        }
+                        nextBoundary = breaker.next();
+                        if (nextBoundary == BreakIterator.DONE) {
+                            nextBoundary = text.length;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (breaker != null) {
+                LineBreaker.recycleLineInstance(locale, breaker);
+            }
+        }
+        return new LineBreakData(advances, breakOffsets.toIntArray());
+    }
+
     /**
      * Note: The text buffer is not within the calculation range.
      *
      * @return memory usage in bytes
      */
     public int getMemoryUsage() {
-        int size = 12 + 8 + 8 + 16;
+        int size = 12 + 8 + 8 + 16 + 4;
         for (Run run : mRuns) {
             size += run.getMemoryUsage();
         }
+        LineBreakData data = mLineBreakData;
+        if (data != null) {
+            size += data.getMemoryUsage();
+        }
         return size;
     }
 
@@ -255,6 +326,31 @@ public class MeasuredText {
                 '}';
     }
 
+    /**
+     * Line break opportunities and char advances, which are independent of the line width.
+     */
+    static final class LineBreakData {
+
+        /**
+         * The advance of each char, see {@link #getAdvance(int)}.
+         */
+        final float[] mAdvances;
+
+        /**
+         * The offsets at which a line can be broken, in ascending order.
+         */
+        final int[] mBreakOffsets;
+
+        LineBreakData(float[] advances, int[] breakOffsets) {
+            mAdvances = advances;
+            mBreakOffsets = breakOffsets;
+        }
+
+        int getMemoryUsage() {
+            return 16 + 16 + (mAdvances.length << 2) + 16 + (mBreakOffsets.length << 2);
+        }
+    }
+
     /**
      * For creating a MeasuredText.
      */
@@ -19,6 +19,7 @@
 package icyllis.modernui.text;
 
 import icyllis.modernui.graphics.text.FontMetricsInt;
+import icyllis.modernui.text.style.ReplacementSpan;
 import icyllis.modernui.text.style.UpdateLayout;
 import icyllis.modernui.text.style.WrapTogetherSpan;
 import icyllis.modernui.util.GrowingArrayUtils;
@@ -56,6 +57,7 @@ public class DynamicLayout extends Layout {
         b.mFallbackLineSpacing = true; // default true
         b.mEllipsizedWidth = width;
         b.mEllipsize = null;
+        b.mVirtualized = false;
         return b;
     }
 
@@ -83,6 +85,7 @@ public class DynamicLayout extends Layout {
         private boolean mFallbackLineSpacing;
         private TextUtils.TruncateAt mEllipsize;
         private int mEllipsizedWidth;
+        private boolean mVirtualized;
 
         private Builder() {
         }
@@ -199,6 +202,25 @@ public class DynamicLayout extends Layout {
             return this;
         }
 
+        /**
+         * Set whether to lay out only the text near the visible range. If set and the text is
+         * long, paragraphs are not measured at build time, their heights are estimated instead,
+         * and they will be laid out by {@link #layoutEstimatedLines(int, int)} when they are
+         * about to be displayed. The paragraphs far away from the displayed range are estimated
+         * again, so both time and memory are bounded by the displayed text.
+         * <p>
+         * The layout width should be fixed, the estimated lines have no meaningful width.
+         * The default is {@code false}.
+         *
+         * @param virtualized whether to estimate the offscreen paragraphs
+         * @return this builder, useful for chaining
+         */
+        @Nonnull
+        public Builder setVirtualized(boolean virtualized) {
+            mVirtualized = virtualized;
+            return this;
+        }
+
         /**
          * Build the {@link DynamicLayout} after options have been set.
          *
@@ -243,6 +265,26 @@ public class DynamicLayout extends Layout {
 
     private static final int ELLIPSIS_UNDEFINED = 0x80000000;
 
+    /**
+     * Texts shorter than this are always laid out at build time.
+     */
+    private static final int VIRTUALIZED_MIN_LENGTH = 65536;
+    /**
+     * The min number of chars in an estimated line, aligned on the ends of paragraphs.
+     */
+    private static final int ESTIMATED_LINE_MIN_LENGTH = 4096;
+    /**
+     * The lines farther than this number of visible ranges from the visible range are
+     * estimated again, so that memory does not grow with the text that has been displayed.
+     */
+    private static final int LAID_OUT_RANGE_COUNT = 8;
+    /**
+     * The directions of the estimated lines, identified by reference. Each estimated line
+     * contains whole paragraphs that are not laid out yet.
+     */
+    private static final Directions ESTIMATED_DIRECTIONS =
+            new Directions(new int[]{0, Directions.RUN_LENGTH_MASK});
+
     //// Member Variables \\\\
 
     private CharSequence mBase;
@@ -276,6 +318,11 @@ public class DynamicLayout extends Layout {
 
     private int mTopPadding, mBottomPadding;
 
+    // whether the lines are estimated and laid out lazily
+    private boolean mVirtualized;
+    // the number of lines whose directions are ESTIMATED_DIRECTIONS
+    private int mEstimatedLineCount;
+
     private DynamicLayout(@Nonnull Builder b) {
         super(createEllipsizer(b.mEllipsize, b.mDisplay),
                 b.mPaint, b.mWidth, b.mAlignment, b.mTextDir);
@@ -352,18 +399,22 @@ public class DynamicLayout extends Layout {
         final int asc = fm.ascent;
         final int desc = fm.descent;
 
-        start[DIR] = DIR_LEFT_TO_RIGHT << DIR_SHIFT;
-        start[TOP] = 0;
-        start[DESCENT] = desc;
-        mInts.insertAt(0, start);
+        if (b.mVirtualized && mDisplay.length() >= VIRTUALIZED_MIN_LENGTH) {
+            generateEstimated(b, start, desc - asc);
+        } else {
+            start[DIR] = DIR_LEFT_TO_RIGHT << DIR_SHIFT;
+            start[TOP] = 0;
+            start[DESCENT] = desc;
+            mInts.insertAt(0, start);
 
-        start[TOP] = desc - asc;
-        mInts.insertAt(1, start);
+            start[TOP] = desc - asc;
+            mInts.insertAt(1, start);
 
-        mObjects.insertAt(0, dirs);
+            mObjects.insertAt(0, dirs);
 
-        // Update from 0 characters to whatever the displayed text is
-        reflow(mBase, 0, 0, mDisplay.length());
+            // Update from 0 characters to whatever the displayed text is
+            reflow(0, 0, mDisplay.length());
+        }
 
         if (mBase instanceof final Spannable sp) {
             if (mWatcher == null)
@@ -382,10 +433,277 @@ public class DynamicLayout extends Layout {
         }
     }
 
+    /**
+     * Split the text into estimated lines, each of them contains whole paragraphs of at least
+     * ESTIMATED_LINE_MIN_LENGTH characters. The height of a paragraph is estimated from
+     * the average advance of the beginning of the text.
+     */
+    private void generateEstimated(@Nonnull Builder b, @Nonnull int[] ints, int lineHeight) {
+        final CharSequence text = mDisplay;
+        final int len = text.length();
+
+        // sample the first paragraphs to estimate the number of chars per line
+        final int sampleEnd = Math.min(len, 512);
+        float sampleWidth = 0;
+        int sampleCount = 0;
+        int paraEnd;
+        for (int paraStart = 0; paraStart < sampleEnd; paraStart = paraEnd + 1) {
+            paraEnd = TextUtils.indexOf(text, '\n', paraStart, sampleEnd);
+            if (paraEnd < 0) {
+                paraEnd = sampleEnd;
+            }
+            if (paraEnd > paraStart) {
+                sampleWidth += getDesiredWidth(text, paraStart, paraEnd, b.mPaint);
+                sampleCount += paraEnd - paraStart;
+            }
+        }
+        final float advance = sampleCount > 0 && sampleWidth > 0
+                ? sampleWidth / sampleCount
+                : b.mPaint.getTextSize() * 0.5f;
+        final float charsPerLine = Math.max(1, b.mWidth / advance);
+
+        final Directions[] objects = new Directions[]{ESTIMATED_DIRECTIONS};
+        ints[DIR] = DIR_LEFT_TO_RIGHT << DIR_SHIFT;
+        ints[DESCENT] = 0;
+
+        int line = 0;
+        int top = 0;
+        int lineStart = 0;
+        int paraLines = 0;
+        for (int paraStart = 0; paraStart < len; ) {
+            paraEnd = TextUtils.indexOf(text, '\n', paraStart);
+            if (paraEnd < 0) {
+                paraEnd = len;
+            } else {
+                paraEnd++;
+            }
+            paraLines += Math.max(1, (int) Math.ceil((paraEnd - paraStart) / charsPerLine));
+            paraStart = paraEnd;
+            if (paraStart - lineStart >= ESTIMATED_LINE_MIN_LENGTH || paraStart == len) {
+                ints[START] = lineStart | (DIR_LEFT_TO_RIGHT << DIR_SHIFT);
+                ints[TOP] = top;
+                mInts.insertAt(line, ints);
+                mObjects.insertAt(line, objects);
+                line++;
+                top += paraLines * lineHeight;
+                lineStart = paraStart;
+                paraLines = 0;
+            }
+        }
+
+        // the end of the last line
+        ints[START] = len | (DIR_LEFT_TO_RIGHT << DIR_SHIFT);
+        ints[TOP] = top;
+        mInts.insertAt(line, ints);
+
+        mEstimatedLineCount = line;
+        mVirtualized = true;
+        updateBlocks(0, 0, line);
+    }
+
+    /**
+     * Returns whether the lines of this layout are estimated and laid out lazily, the text
+     * is long enough and the builder enables virtualization.
+     *
+     * @see Builder#setVirtualized(boolean)
+     * @see #layoutEstimatedLines(int, int)
+     */
+    public boolean isVirtualized() {
+        return mVirtualized;
+    }
+
+    /**
+     * Returns whether the height of the given line is estimated, its paragraphs are not
+     * laid out yet.
+     *
+     * @see Builder#setVirtualized(boolean)
+     */
+    public boolean isLineEstimated(int line) {
+        return mObjects.getValue(line, 0) == ESTIMATED_DIRECTIONS;
+    }
+
+    /**
+     * Returns whether there are lines whose heights are estimated.
+     *
+     * @see Builder#setVirtualized(boolean)
+     */
+    public boolean hasEstimatedLines() {
+        return mEstimatedLineCount > 0;
+    }
+
+    /**
+     * Returns the number of lines whose heights are estimated.
+     *
+     * @see Builder#setVirtualized(boolean)
+     */
+    public int getEstimatedLineCount() {
+        return mEstimatedLineCount;
+    }
+
+    /**
+     * Lay out the estimated lines near the given vertical range, typically the visible range.
+     * One more range height is laid out above and below, so that scrolling by small amounts
+     * does not reach estimated lines. The height of the layout may be changed. The lines
+     * farther than several range heights are estimated again, their heights are kept.
+     * <p>
+     * The returned value is the height change of the lines above <var>top</var>, the caller
+     * may scroll by this amount to keep the visible text in place.
+     *
+     * @param top    the top of the visible range
+     * @param bottom the bottom of the visible range
+     * @return the height change above top
+     * @see Builder#setVirtualized(boolean)
+     */
+    public int layoutEstimatedLines(int top, int bottom) {
+        if (!mVirtualized) {
+            return 0;
+        }
+        final int margin = Math.max(bottom - top, 0);
+        int shift = 0;
+        int line = getLineForVertical(Math.max(top - margin, 0));
+        while (line < getLineCount() && getLineTop(line) < bottom + margin) {
+            if (!isLineEstimated(line)) {
+                line++;
+                continue;
+            }
+            final int lineStart = getLineStart(line);
+            final int lineEnd = getLineStart(line + 1);
+            final int oldBottom = getLineTop(line + 1);
+            final int oldLineCount = getLineCount();
+            // end before the terminating line feed, reflow() extends the range to the end of
+            // the paragraph, otherwise it would reflow the next paragraph as well
+            int count = lineEnd - lineStart;
+            if (count > 0 && mDisplay.charAt(lineEnd - 1) == '\n') {
+                count--;
+            }
+            reflow(lineStart, count, count);
+            // the estimated line is replaced by the lines of its paragraphs
+            final int next = line + 1 + getLineCount() - oldLineCount;
+            final int delta = getLineTop(next) - oldBottom;
+            if (oldBottom <= top) {
+                // the visible range moves along with the content
+                shift += delta;
+                top += delta;
+                bottom += delta;
+            }
+            line = next;
+        }
+        final long far = (long) margin * LAID_OUT_RANGE_COUNT;
+        estimateFarLines((int) Math.max(top - far, 0), (int) Math.min(bottom + far, Integer.MAX_VALUE));
+        return shift;
+    }
+
+    /**
+     * Replace the laid out lines outside the given vertical range with estimated lines. The
+     * real heights are known, so the estimated lines have the same heights and nothing moves.
+     * This is skipped until the laid out lines outside the range are as many as the lines
+     * inside, to avoid scanning the lines on every call.
+     */
+    private void estimateFarLines(int top, int bottom) {
+        final int lineCount = getLineCount();
+        final int firstLine = getLineForVertical(top);
+        final int lastLine = getLineForVertical(bottom);
+        if (lineCount - mEstimatedLineCount <= (lastLine - firstLine + 1) * 2) {
+            return;
+        }
+        // below first, this does not change the line numbers above
+        estimateLines(lastLine + 1, lineCount);
+        estimateLines(0, firstLine);
+    }
+
+    /**
+     * Replace the runs of laid out lines in the given range [startLine, endLine) with
+     * estimated lines, each of them contains whole paragraphs.
+     */
+    private void estimateLines(int startLine, int endLine) {
+        int line = endLine;
+        while (line > startLine) {
+            // find a run of laid out lines backwards
+            int runEnd = line;
+            while (runEnd > startLine && isLineEstimated(runEnd - 1)) {
+                runEnd--;
+            }
+            int runStart = runEnd;
+            while (runStart > startLine && !isLineEstimated(runStart - 1)) {
+                runStart--;
+            }
+            line = runStart;
+            // align on the ends of paragraphs
+            while (runStart < runEnd && !isParagraphStart(runStart)) {
+                runStart++;
+            }
+            while (runEnd > runStart && runEnd < getLineCount() && !isParagraphStart(runEnd)) {
+                runEnd--;
+            }
+            if (runEnd - runStart > 1) {
+                replaceWithEstimated(runStart, runEnd);
+            }
+        }
+    }
+
+    private boolean isParagraphStart(int line) {
+        final int start = getLineStart(line);
+        return start == 0 || mDisplay.charAt(start - 1) == '\n';
+    }
+
+    private void replaceWithEstimated(int startLine, int endLine) {
+        // the start lines of the estimated lines, each of them has at least
+        // ESTIMATED_LINE_MIN_LENGTH characters
+        final IntArrayList starts = new IntArrayList();
+        starts.add(startLine);
+        int lineStart = getLineStart(startLine);
+        for (int i = startLine + 1; i < endLine; i++) {
+            final int start = getLineStart(i);
+            if (start - lineStart >= ESTIMATED_LINE_MIN_LENGTH && isParagraphStart(i)) {
+                starts.add(i);
+                lineStart = start;
+            }
+        }
+        final int n = starts.size();
+        if (n == endLine - startLine) {
+            // each paragraph is long enough, nothing to save
+            return;
+        }
+
+        final int[] ints;
+        if (mEllipsize) {
+            ints = new int[COLUMNS_ELLIPSIZE];
+            ints[ELLIPSIS_START] = ELLIPSIS_UNDEFINED;
+        } else {
+            ints = new int[COLUMNS_NORMAL];
+        }
+        ints[DESCENT] = 0;
+        final Directions[] objects = new Directions[]{ESTIMATED_DIRECTIONS};
+
+        // read before deleting
+        final int[] tops = new int[n];
+        for (int i = 0; i < n; i++) {
+            int line = starts.getInt(i);
+            starts.set(i, getLineStart(line));
+            tops[i] = getLineTop(line);
+        }
+
+        mInts.deleteAt(startLine, endLine - startLine);
+        mObjects.deleteAt(startLine, endLine - startLine);
+        for (int i = 0; i < n; i++) {
+            ints[START] = starts.getInt(i) | (DIR_LEFT_TO_RIGHT << DIR_SHIFT);
+            ints[TOP] = tops[i];
+            mInts.insertAt(startLine + i, ints);
+            mObjects.insertAt(startLine + i, objects);
+        }
+        mEstimatedLineCount += n;
+
+        updateBlocks(startLine, endLine - 1, n);
+    }
+
     public void reflow(CharSequence s, int where, int before, int after) {
         if (s != mBase)
             return;
 
+        reflow(where, before, after);
+    }
+
+    private void reflow(int where, int before, int after) {
         CharSequence text = mDisplay;
         int len = text.length();
 
@@ -454,9 +772,23 @@ public class DynamicLayout extends Layout {
         // find affected region of old layout
 
         int startline = getLineForOffset(where);
+        if (mEstimatedLineCount > 0 && isLineEstimated(startline)) {
+            // estimated lines are laid out as a whole
+            int diff = where - getLineStart(startline);
+            before += diff;
+            after += diff;
+            where -= diff;
+        }
         int startv = getLineTop(startline);
 
         int endline = getLineForOffset(where + before);
+        if (mEstimatedLineCount > 0 && endline < getLineCount() && isLineEstimated(endline) &&
+                getLineStart(endline) < where + before) {
+            int diff = getLineStart(endline + 1) - (where + before);
+            before += diff;
+            after += diff;
+            endline++;
+        }
         if (where + after == len)
             endline = getLineCount();
         int endv = getLineTop(endline);
@@ -497,6 +829,13 @@ public class DynamicLayout extends Layout {
             n--;
 
         // remove affected lines from old layout
+        if (mEstimatedLineCount > 0) {
+            for (int i = startline; i < endline; i++) {
+                if (isLineEstimated(i)) {
+                    mEstimatedLineCount--;
+                }
+            }
+        }
         mInts.deleteAt(startline, endline - startline);
         mObjects.deleteAt(startline, endline - startline);
 
@@ -600,12 +939,27 @@ public class DynamicLayout extends Layout {
         return mBlocksAlwaysNeedToBeRedrawn;
     }
 
+    /**
+     * A block always needs to be redrawn if it contains replacement spans, which draw
+     * dynamic content that is not tracked by the layout, such as animated images.
+     */
     private void updateAlwaysNeedsToBeRedrawn(int blockIndex) {
-        if (mBlocksAlwaysNeedToBeRedrawn == null) {
-            mBlocksAlwaysNeedToBeRedrawn = new IntArrayList();
+        boolean needsRedraw = false;
+        if (mDisplay instanceof Spanned sp) {
+            final int startLine = blockIndex == 0 ? 0 : mBlockEndLines[blockIndex - 1] + 1;
+            final int endLine = mBlockEndLines[blockIndex];
+            needsRedraw = !sp.getSpans(getLineStart(startLine), getLineEnd(endLine),
+                    ReplacementSpan.class).isEmpty();
         }
-        if (!mBlocksAlwaysNeedToBeRedrawn.contains(blockIndex)) {
-            mBlocksAlwaysNeedToBeRedrawn.add(blockIndex);
+        if (needsRedraw) {
+            if (mBlocksAlwaysNeedToBeRedrawn == null) {
+                mBlocksAlwaysNeedToBeRedrawn = new IntArrayList();
+            }
+            if (!mBlocksAlwaysNeedToBeRedrawn.contains(blockIndex)) {
+                mBlocksAlwaysNeedToBeRedrawn.add(blockIndex);
+            }
+        } else if (mBlocksAlwaysNeedToBeRedrawn != null) {
+            mBlocksAlwaysNeedToBeRedrawn.rem(blockIndex);
         }
     }
 
@@ -30,6 +30,7 @@ import icyllis.modernui.util.GrowingArrayUtils;
 import icyllis.modernui.view.KeyEvent;
 import it.unimi.dsi.fastutil.floats.FloatArrayList;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -61,6 +62,8 @@ public abstract class Layout {
     private boolean mSpannedText;
     private final TextDirectionHeuristic mTextDir;
     private SpanSet<LineBackgroundSpan> mLineBackgroundSpans;
+    // reused by drawText() to avoid creating a list for each paragraph
+    private ArrayList<ParagraphStyle> mParagraphStyleSpans;
 
     private static final LineBackgroundSpan[] EMPTY_BACKGROUND_SPANS = {};
 
@@ -287,7 +290,11 @@ public abstract class Layout {
                 if (start >= spanEnd && (lineNum == firstLine || isFirstParaLine)) {
                     spanEnd = sp.nextSpanTransition(start, textLength,
                             ParagraphStyle.class);
-                    spans = getParagraphSpans(sp, start, spanEnd, ParagraphStyle.class);
+                    if (mParagraphStyleSpans == null) {
+                        mParagraphStyleSpans = new ArrayList<>();
+                    }
+                    spans = getParagraphSpans(sp, start, spanEnd, ParagraphStyle.class,
+                            mParagraphStyleSpans);
 
                     paraAlign = mAlignment;
                     for (int n = spans.size() - 1; n >= 0; n--) {
@@ -303,8 +310,8 @@ public abstract class Layout {
                 // Draw all leading margin spans.  Adjust left or right according
                 // to the paragraph direction of the line.
                 boolean useFirstLineMargin = isFirstParaLine;
-                for (ParagraphStyle span : spans) {
-                    if (span instanceof LeadingMarginSpan2 margin) {
+                for (int n = 0, e = spans.size(); n < e; n++) {
+                    if (spans.get(n) instanceof LeadingMarginSpan2 margin) {
                         int count = margin.getLeadingMarginLineCount();
                         int startLine = getLineForOffset(sp.getSpanStart(margin));
                         // if there is more than one LeadingMarginSpan2, use
@@ -315,7 +322,8 @@ public abstract class Layout {
                         }
                     }
                 }
-                for (ParagraphStyle span : spans) {
+                for (int n = 0, e = spans.size(); n < e; n++) {
+                    final ParagraphStyle span = spans.get(n);
                     // sometimes a span can implement both LMS and TMS
                     if (span instanceof LeadingMarginSpan lms) {
                         lms.drawMargin(canvas, paint, left, right, dir, ltop,
@@ -400,6 +408,9 @@ public abstract class Layout {
 
         paint.recycle();
         tl.recycle();
+        if (mParagraphStyleSpans != null) {
+            mParagraphStyleSpans.clear();
+        }
     }
 
     /**
@@ -1997,14 +2008,29 @@ public abstract class Layout {
      */
     @NonNull
     static <T> List<T> getParagraphSpans(@NonNull Spanned text, int start, int end, Class<T> type) {
+        return getParagraphSpans(text, start, end, type, null);
+    }
+
+    /**
+     * Same as {@link #getParagraphSpans(Spanned, int, int, Class)}, but fills the given
+     * list if non-null, so drawing a static text produces no garbage.
+     */
+    @NonNull
+    static <T> List<T> getParagraphSpans(@NonNull Spanned text, int start, int end, Class<T> type,
+                                         @Nullable List<T> dest) {
         if (start == end && start > 0) {
+            if (dest != null) {
+                dest.clear();
+                return dest;
+            }
             return Collections.emptyList();
         }
 
         if (text instanceof SpannableStringBuilder) {
-            return ((SpannableStringBuilder) text).getSpans(start, end, type, false, null);
+            // no sort by insertion order, only priority matters for paragraph styles
+            return ((SpannableStringBuilder) text).getSpans(start, end, type, false, dest);
         } else {
-            return text.getSpans(start, end, type);
+            return text.getSpans(start, end, type, dest);
         }
     }
 
@@ -2115,6 +2141,12 @@ public abstract class Layout {
             return mSpanned.getSpans(start, end, type, out);
         }
 
+        @Override
+        public <T> void forEachSpan(int start, int end, Class<? extends T> type,
+                                    @NonNull SpanVisitor<? super T> visitor) {
+            mSpanned.forEachSpan(start, end, type, visitor);
+        }
+
         @Override
         public int getSpanStart(@NonNull Object tag) {
             return mSpanned.getSpanStart(tag);
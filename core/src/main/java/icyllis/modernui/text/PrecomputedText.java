@@ -22,12 +22,16 @@ import icyllis.modernui.annotation.*;
 import icyllis.modernui.graphics.text.FontMetricsInt;
 import icyllis.modernui.graphics.text.LineBreakConfig;
 import icyllis.modernui.text.style.MetricAffectingSpan;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.intellij.lang.annotations.MagicConstant;
 import org.jetbrains.annotations.ApiStatus;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A text which has the character metrics data.
@@ -293,6 +297,17 @@ public class PrecomputedText implements Spannable {
     // The list of measured paragraph info.
     private final @NonNull ParagraphInfo[] mParagraphInfo;
 
+    /**
+     * Texts shorter than this are always measured on the calling thread.
+     */
+    private static final int PARALLEL_MIN_TEXT_LENGTH = 8192;
+
+    /**
+     * The min number of chars measured by a task, consecutive paragraphs are batched
+     * to reduce the overhead of scheduling.
+     */
+    private static final int PARALLEL_MIN_BATCH_LENGTH = 2048;
+
     /**
      * Create a new {@link PrecomputedText} which will pre-compute text measurement and glyph
      * positioning information.
@@ -309,6 +324,31 @@ public class PrecomputedText implements Spannable {
      * @return A {@link PrecomputedText}
      */
     public static PrecomputedText create(@NonNull CharSequence text, @NonNull Params params) {
+        return create(text, params, null);
+    }
+
+    /**
+     * Create a new {@link PrecomputedText} which will pre-compute text measurement and glyph
+     * positioning information.
+     * <p>
+     * Paragraphs are independent of each other, if an executor is given and the text is long,
+     * paragraphs will be measured in parallel on the executor and the calling thread, for
+     * example, {@link java.util.concurrent.ForkJoinPool#commonPool()}. The result is the same
+     * as the sequential one. This method still blocks until all paragraphs are measured,
+     * the calling thread takes the remaining work if the executor is busy or rejects it.
+     * The calling thread is one of the workers, a {@link ForkJoinPool} is given as many
+     * tasks as its parallelism, other executors are given one less than the processors.
+     * <p>
+     * The text must not be modified until this method returns.
+     *
+     * @param text     the text to be measured
+     * @param params   parameters that define how text will be precomputed
+     * @param executor the executor to measure paragraphs in parallel, or null
+     * @return A {@link PrecomputedText}
+     * @see #create(CharSequence, Params)
+     */
+    public static PrecomputedText create(@NonNull CharSequence text, @NonNull Params params,
+                                         @Nullable Executor executor) {
         ParagraphInfo[] paraInfo = null;
         if (text instanceof final PrecomputedText hintPct) {
             final PrecomputedText.Params hintParams = hintPct.getParams();
@@ -322,7 +362,7 @@ public class PrecomputedText implements Spannable {
                     // To be able to use PrecomputedText for new params, at least break strategy and
                     // hyphenation frequency must be the same.
                     paraInfo = createMeasuredParagraphsFromPrecomputedText(
-                            hintPct, params, true /* compute layout */);
+                            hintPct, params, true /* compute layout */, executor);
                     break;
                 case Params.UNUSABLE:
                     // Unable to use anything in PrecomputedText. Create PrecomputedText as the
@@ -332,34 +372,62 @@ public class PrecomputedText implements Spannable {
         }
         if (paraInfo == null) {
             paraInfo = createMeasuredParagraphs(
-                    text, params, 0, text.length(), true /* computeLayout */);
+                    text, params, 0, text.length(), true /* computeLayout */, executor);
         }
         return new PrecomputedText(text, 0, text.length(), params, paraInfo);
     }
 
+    /**
+     * Create a {@link PrecomputedText} on the given executor, typically a background
+     * thread pool. The returned future can be passed to
+     * {@link icyllis.modernui.widget.TextView#setTextFuture(CompletableFuture)}, or be
+     * created ahead of time to prefetch text of list items that will be shown soon.
+     * <p>
+     * Cancelling the future before the computation starts skips the computation.
+     * The text must not be modified until the future is completed, use an immutable
+     * copy if the text is mutable.
+     *
+     * @param text     the text to be measured
+     * @param params   parameters that define how text will be precomputed
+     * @param executor the executor to run the computation
+     * @return the future of {@link PrecomputedText}
+     * @see #create(CharSequence, Params)
+     */
+    @NonNull
+    public static CompletableFuture<PrecomputedText> createAsync(@NonNull CharSequence text,
+                                                                 @NonNull Params params,
+                                                                 @NonNull Executor executor) {
+        Objects.requireNonNull(text);
+        Objects.requireNonNull(params);
+        return CompletableFuture.supplyAsync(() -> create(text, params), executor);
+    }
+
     private static ParagraphInfo[] createMeasuredParagraphsFromPrecomputedText(
-            @NonNull PrecomputedText pct, @NonNull Params params, boolean computeLayout) {
-        ArrayList<ParagraphInfo> result = new ArrayList<>();
-        for (int i = 0; i < pct.getParagraphCount(); ++i) {
-            final int paraStart = pct.getParagraphStart(i);
-            final int paraEnd = pct.getParagraphEnd(i);
-            result.add(new ParagraphInfo(paraEnd, MeasuredParagraph.buildForStaticLayout(
-                    params.getTextPaint(), params.getLineBreakConfig(), pct, paraStart, paraEnd,
-                    params.getTextDirection(), computeLayout,
-                    null /* no recycle */)));
+            @NonNull PrecomputedText pct, @NonNull Params params, boolean computeLayout,
+            @Nullable Executor executor) {
+        final int[] paraEnds = new int[pct.getParagraphCount()];
+        for (int i = 0; i < paraEnds.length; ++i) {
+            paraEnds[i] = pct.getParagraphEnd(i);
         }
-        return result.toArray(new ParagraphInfo[0]);
+        return measureParagraphs(pct, params, pct.getStart(), paraEnds, computeLayout, executor);
     }
 
     @ApiStatus.Internal
     public static ParagraphInfo[] createMeasuredParagraphs(
             @NonNull CharSequence text, @NonNull Params params,
             @IntRange(from = 0) int start, @IntRange(from = 0) int end, boolean computeLayout) {
-        ArrayList<ParagraphInfo> result = new ArrayList<>();
+        return createMeasuredParagraphs(text, params, start, end, computeLayout, null);
+    }
 
+    @ApiStatus.Internal
+    public static ParagraphInfo[] createMeasuredParagraphs(
+            @NonNull CharSequence text, @NonNull Params params,
+            @IntRange(from = 0) int start, @IntRange(from = 0) int end, boolean computeLayout,
+            @Nullable Executor executor) {
         Objects.requireNonNull(text);
         Objects.requireNonNull(params);
 
+        final IntArrayList paraEnds = new IntArrayList();
         int paraEnd;
         for (int paraStart = start; paraStart < end; paraStart = paraEnd) {
             paraEnd = TextUtils.indexOf(text, '\n', paraStart, end);
@@ -370,12 +438,115 @@ public class PrecomputedText implements Spannable {
             } else {
                 paraEnd++;  // Includes LINE_FEED(U+000A) to the prev paragraph.
             }
+            paraEnds.add(paraEnd);
+        }
+        return measureParagraphs(text, params, start, paraEnds.toIntArray(), computeLayout, executor);
+    }
+
+    /**
+     * Returns the number of tasks to submit to the executor, besides the calling thread.
+     */
+    private static int getHelperCount(@NonNull Executor executor) {
+        if (executor instanceof ForkJoinPool pool) {
+            return pool.getParallelism();
+        }
+        return Runtime.getRuntime().availableProcessors() - 1;
+    }
+
+    @NonNull
+    private static ParagraphInfo[] measureParagraphs(
+            @NonNull CharSequence text, @NonNull Params params, int start, @NonNull int[] paraEnds,
+            boolean computeLayout, @Nullable Executor executor) {
+        final ParagraphInfo[] result = new ParagraphInfo[paraEnds.length];
+        if (executor == null || paraEnds.length <= 1 ||
+                paraEnds[paraEnds.length - 1] - start < PARALLEL_MIN_TEXT_LENGTH) {
+            measureParagraphs(text, params, start, paraEnds, 0, paraEnds.length, computeLayout, result);
+            return result;
+        }
+
+        // batch consecutive paragraphs, the batch i is [batchStarts[i], batchStarts[i+1])
+        final IntArrayList batchStarts = new IntArrayList();
+        int batchTextStart = start;
+        batchStarts.add(0);
+        for (int i = 0; i < paraEnds.length - 1; i++) {
+            if (paraEnds[i] - batchTextStart >= PARALLEL_MIN_BATCH_LENGTH) {
+                batchStarts.add(i + 1);
+                batchTextStart = paraEnds[i];
+            }
+        }
+        batchStarts.add(paraEnds.length);
+        final int batchCount = batchStarts.size() - 1;
+        if (batchCount == 1) {
+            measureParagraphs(text, params, start, paraEnds, 0, paraEnds.length, computeLayout, result);
+            return result;
+        }
 
-            result.add(new ParagraphInfo(paraEnd, MeasuredParagraph.buildForStaticLayout(
+        // each paragraph writes to its own slot, so the order is deterministic,
+        // the caller also claims batches, queued tasks that start late simply find nothing to do
+        final AtomicInteger nextBatch = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(batchCount);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Runnable task = () -> {
+            int batch;
+            while ((batch = nextBatch.getAndIncrement()) < batchCount) {
+                try {
+                    if (error.get() == null) {
+                        measureParagraphs(text, params, start, paraEnds,
+                                batchStarts.getInt(batch), batchStarts.getInt(batch + 1),
+                                computeLayout, result);
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    latch.countDown();
+                }
+            }
+        };
+        final int helpers = Math.min(batchCount - 1, getHelperCount(executor));
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        task.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final Throwable t = error.get();
+        if (t instanceof RuntimeException e) {
+            throw e;
+        }
+        if (t instanceof Error e) {
+            throw e;
+        }
+        if (t != null) {
+            throw new RuntimeException(t);
+        }
+        return result;
+    }
+
+    private static void measureParagraphs(
+            @NonNull CharSequence text, @NonNull Params params, int start, @NonNull int[] paraEnds,
+            int fromIndex, int toIndex, boolean computeLayout, @NonNull ParagraphInfo[] result) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            final int paraStart = i == 0 ? start : paraEnds[i - 1];
+            final int paraEnd = paraEnds[i];
+            result[i] = new ParagraphInfo(paraEnd, MeasuredParagraph.buildForStaticLayout(
                     params.getTextPaint(), params.getLineBreakConfig(), text, paraStart, paraEnd,
-                    params.getTextDirection(), computeLayout, null /* no recycle */)));
+                    params.getTextDirection(), computeLayout, null /* no recycle */));
         }
-        return result.toArray(new ParagraphInfo[0]);
     }
 
     // Use PrecomputedText.create instead.
@@ -595,6 +766,12 @@ public class PrecomputedText implements Spannable {
         return mText.getSpans(start, end, type, dest);
     }
 
+    @Override
+    public <T> void forEachSpan(int start, int end, @Nullable Class<? extends T> type,
+                                @NonNull SpanVisitor<? super T> visitor) {
+        mText.forEachSpan(start, end, type, visitor);
+    }
+
     @Override
     public int getSpanStart(@NonNull Object tag) {
         return mText.getSpanStart(tag);
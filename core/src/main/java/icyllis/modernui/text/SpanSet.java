@@ -20,7 +20,6 @@ package icyllis.modernui.text;
 
 import javax.annotation.Nonnull;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 /**
  * A cached set of spans. Caches the result of {@link Spanned#getSpans(int, int, Class, java.util.List)} and then
@@ -38,43 +37,95 @@ public class SpanSet<E> extends ArrayList<E> {
     public int[] mSpanEnds;
     public int[] mSpanFlags;
 
+    // insertion order reported by the visitor, used to restore the order of getSpans()
+    private int[] mSpanOrders;
+
+    private final Spanned.SpanVisitor<E> mCollector = this::collect;
+
     public SpanSet(@Nonnull Class<? extends E> type) {
         mType = type;
     }
 
     public boolean init(@Nonnull Spanned spanned, int start, int limit) {
-        spanned.getSpans(start, limit, mType, this);
-        final int length = size();
-
-        if (length > 0) {
-            if (mSpanStarts == null || mSpanStarts.length < length) {
-                // These arrays may end up being too large because of the discarded empty spans
-                mSpanStarts = new int[length];
-                mSpanEnds = new int[length];
-                mSpanFlags = new int[length];
-            }
-
-            int size = 0;
-            for (Iterator<E> it = iterator(); it.hasNext(); ) {
-                E span = it.next();
-                final int spanStart = spanned.getSpanStart(span);
-                final int spanEnd = spanned.getSpanEnd(span);
-                if (spanStart == spanEnd) {
-                    it.remove();
-                    continue;
-                }
+        // the arrays and the list are reused, no garbage in steady state
+        clear();
+        spanned.forEachSpan(start, limit, mType, mCollector);
+        final int size = size();
+        if (size > 1) {
+            sort(size);
+        }
+        return size > 0;
+    }
 
-                final int spanFlag = spanned.getSpanFlags(span);
+    private void collect(E span, int spanStart, int spanEnd, int spanFlags, int order) {
+        if (spanStart == spanEnd) {
+            return;
+        }
+        final int size = size();
+        if (mSpanStarts == null || mSpanStarts.length == size) {
+            final int newLength = size == 0 ? 4 : size << 1;
+            mSpanStarts = grow(mSpanStarts, size, newLength);
+            mSpanEnds = grow(mSpanEnds, size, newLength);
+            mSpanFlags = grow(mSpanFlags, size, newLength);
+            mSpanOrders = grow(mSpanOrders, size, newLength);
+        }
+        mSpanStarts[size] = spanStart;
+        mSpanEnds[size] = spanEnd;
+        mSpanFlags[size] = spanFlags;
+        mSpanOrders[size] = order;
+        add(span);
+    }
 
-                mSpanStarts[size] = spanStart;
-                mSpanEnds[size] = spanEnd;
-                mSpanFlags[size] = spanFlag;
+    @Nonnull
+    private static int[] grow(int[] a, int size, int newLength) {
+        final int[] b = new int[newLength];
+        if (size > 0) {
+            System.arraycopy(a, 0, b, 0, size);
+        }
+        return b;
+    }
 
-                size++;
+    /**
+     * Sorts by priority (descending) and then by insertion order (ascending),
+     * the same order as getSpans(). Insertion sort, the set is small and usually
+     * almost sorted.
+     */
+    private void sort(int size) {
+        final int[] starts = mSpanStarts;
+        final int[] ends = mSpanEnds;
+        final int[] flags = mSpanFlags;
+        final int[] orders = mSpanOrders;
+        for (int i = 1; i < size; i++) {
+            final int start = starts[i];
+            final int end = ends[i];
+            final int flag = flags[i];
+            final int order = orders[i];
+            final int priority = flag & Spanned.SPAN_PRIORITY;
+            int j = i - 1;
+            while (j >= 0) {
+                final int p = flags[j] & Spanned.SPAN_PRIORITY;
+                if (p > priority || (p == priority && orders[j] < order)) {
+                    break;
+                }
+                j--;
+            }
+            if (++j == i) {
+                continue;
             }
-            return size > 0;
+            final E span = get(i);
+            for (int k = i; k > j; k--) {
+                starts[k] = starts[k - 1];
+                ends[k] = ends[k - 1];
+                flags[k] = flags[k - 1];
+                orders[k] = orders[k - 1];
+                set(k, get(k - 1));
+            }
+            starts[j] = start;
+            ends[j] = end;
+            flags[j] = flag;
+            orders[j] = order;
+            set(j, span);
         }
-        return false;
     }
 
     /**
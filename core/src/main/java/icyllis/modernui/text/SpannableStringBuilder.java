@@ -1125,6 +1125,60 @@ public class SpannableStringBuilder implements Editable, Spannable, GetChars, Ap
         return count;
     }
 
+    /**
+     * Visit the spans of the specified type that overlap the specified range
+     * of the buffer by a traversal of the interval tree, without sorting and
+     * allocation. The order passed to the visitor is the insertion order.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> void forEachSpan(int queryStart, int queryEnd, @Nullable Class<? extends T> kind,
+                                @Nonnull SpanVisitor<? super T> visitor) {
+        if (mSpanCount == 0) {
+            return;
+        }
+        if (kind == null) {
+            kind = (Class<? extends T>) Object.class;
+        }
+        forEachSpanRec(queryStart, queryEnd, kind, treeRoot(), (SpanVisitor<Object>) visitor);
+    }
+
+    private void forEachSpanRec(int queryStart, int queryEnd, @Nonnull Class<?> kind, int i,
+                                @Nonnull SpanVisitor<Object> visitor) {
+        if ((i & 1) != 0) {
+            // internal tree node
+            int left = leftChild(i);
+            int spanMax = mSpanMax[left];
+            if (spanMax > mGapStart) {
+                spanMax -= mGapLength;
+            }
+            if (spanMax >= queryStart) {
+                forEachSpanRec(queryStart, queryEnd, kind, left, visitor);
+            }
+        }
+        if (i < mSpanCount) {
+            int spanStart = mSpanStarts[i];
+            if (spanStart > mGapStart) {
+                spanStart -= mGapLength;
+            }
+            if (spanStart <= queryEnd) {
+                int spanEnd = mSpanEnds[i];
+                if (spanEnd > mGapStart) {
+                    spanEnd -= mGapLength;
+                }
+                if (spanEnd >= queryStart &&
+                        (spanStart == spanEnd || queryStart == queryEnd ||
+                                (spanStart != queryEnd && spanEnd != queryStart)) &&
+                        (Object.class == kind || kind.isInstance(mSpans[i]))) {
+                    visitor.visitSpan(mSpans[i], spanStart, spanEnd, mSpanFlags[i], mSpanOrder[i]);
+                }
+                if ((i & 1) != 0) {
+                    forEachSpanRec(queryStart, queryEnd, kind, rightChild(i), visitor);
+                }
+            }
+        }
+    }
+
     /**
      * Obtain a temporary sort buffer.
      *
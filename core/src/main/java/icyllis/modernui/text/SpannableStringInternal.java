@@ -365,6 +365,39 @@ abstract class SpannableStringInternal implements Spanned, GetChars {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public final <T> void forEachSpan(int start, int end, @Nullable Class<? extends T> type,
+                                      @Nonnull SpanVisitor<? super T> visitor) {
+        final int count = mSpanCount;
+        final Object[] spans = mSpans;
+        final int[] data = mSpanData;
+
+        final boolean check = type != null && type != Object.class;
+
+        for (int i = 0; i < count; i++) {
+            int spanStart = data[i * COLUMNS + START];
+            int spanEnd = data[i * COLUMNS + END];
+
+            if (spanStart > end || spanEnd < start) {
+                continue;
+            }
+
+            if (spanStart != spanEnd && start != end) {
+                if (spanStart == end || spanEnd == start) {
+                    continue;
+                }
+            }
+
+            if (check && !type.isInstance(spans[i])) {
+                continue;
+            }
+
+            // the array index is the insertion order
+            visitor.visitSpan((T) spans[i], spanStart, spanEnd, data[i * COLUMNS + FLAGS], i);
+        }
+    }
+
     @Override
     public int getSpanStart(@Nonnull Object span) {
         final Object[] spans = mSpans;
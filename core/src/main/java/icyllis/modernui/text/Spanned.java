@@ -217,6 +217,33 @@ public interface Spanned extends CharSequence {
         return getSpans(start, end, type, null);
     }
 
+    /**
+     * Visit the markup objects attached to the specified slice of this
+     * {@link CharSequence} and whose type is the specified type or a subclass
+     * of it, the matching rule is the same as {@link #getSpans(int, int, Class, List)}.
+     * <p>
+     * Unlike getSpans(), this method creates no list and does no sorting, the
+     * spans are visited in an unspecified order, together with their ranges
+     * and flags. Sort by priority (descending) and then by the order value
+     * (ascending) to get the same order as getSpans(). This is intended for
+     * text layout and drawing that query spans frequently.
+     * <p>
+     * The text must not be modified during the visit.
+     *
+     * @param start   start char index of the slice
+     * @param end     end char index of the slice
+     * @param type    markup class
+     * @param visitor the visitor to receive spans
+     */
+    default <T> void forEachSpan(int start, int end, @Nullable Class<? extends T> type,
+                                 @NonNull SpanVisitor<? super T> visitor) {
+        final List<T> spans = getSpans(start, end, type);
+        for (int i = 0, e = spans.size(); i < e; i++) {
+            final T span = spans.get(i);
+            visitor.visitSpan(span, getSpanStart(span), getSpanEnd(span), getSpanFlags(span), i);
+        }
+    }
+
     /**
      * Return the beginning of the range of text to which the specified
      * markup object is attached, or {@code -1} if the object is not attached.
@@ -258,4 +285,25 @@ public interface Spanned extends CharSequence {
      * @return transition point
      */
     int nextSpanTransition(int start, int limit, @Nullable Class<?> type);
+
+    /**
+     * Receives spans from {@link #forEachSpan(int, int, Class, SpanVisitor)}.
+     *
+     * @param <T> markup type
+     */
+    @FunctionalInterface
+    interface SpanVisitor<T> {
+
+        /**
+         * Called for each matching span.
+         *
+         * @param span  markup object
+         * @param start the start char index of the span
+         * @param end   the end char index of the span
+         * @param flags the flags of the span
+         * @param order a value that increases with insertion order of spans,
+         *              only meaningful when comparing spans of the same query
+         */
+        void visitSpan(T span, int start, int end, int flags, int order);
+    }
 }
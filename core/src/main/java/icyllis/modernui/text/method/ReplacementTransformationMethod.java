@@ -192,6 +192,12 @@ public abstract class ReplacementTransformationMethod implements TransformationM
             return mSpanned.getSpans(start, end, type, out);
         }
 
+        @Override
+        public <T> void forEachSpan(int start, int end, Class<? extends T> type,
+                                    @Nonnull SpanVisitor<? super T> visitor) {
+            mSpanned.forEachSpan(start, end, type, visitor);
+        }
+
         @Override
         public int getSpanStart(@Nonnull Object tag) {
             return mSpanned.getSpanStart(tag);
@@ -2447,15 +2447,47 @@ public class View implements Drawable.Callback {
                 canvas.saveLayer(sx, sy, sx + mRight - mLeft, sy + mBottom - mTop, (int) (alpha * 255));
             }
 
-            if ((mPrivateFlags & PFLAG_SKIP_DRAW) == PFLAG_SKIP_DRAW) {
-                dispatchDraw(canvas);
-            } else {
-                draw(canvas);
-            }
+            // replay the display list, or record a reference to it
+            updateDisplayListIfDirty().draw(canvas);
         }
         canvas.restoreToCount(saveCount);
     }
 
+    /**
+     * Gets the RenderNode for this view, and re-records its display list if this view
+     * was invalidated. Otherwise, the display list is reused and only the descendants
+     * are checked.
+     */
+    @NonNull
+    final RenderNode updateDisplayListIfDirty() {
+        final RenderNode renderNode = mRenderNode;
+        if ((mPrivateFlags & PFLAG_DRAWING_CACHE_VALID) == 0
+                || !renderNode.hasDisplayList()) {
+            // set before drawing, invalidate() may be called while drawing
+            mPrivateFlags |= PFLAG_DRAWN | PFLAG_DRAWING_CACHE_VALID;
+            final Canvas canvas = renderNode.beginRecording(mRight - mLeft, mBottom - mTop);
+            try {
+                if ((mPrivateFlags & PFLAG_SKIP_DRAW) == PFLAG_SKIP_DRAW) {
+                    dispatchDraw(canvas);
+                } else {
+                    draw(canvas);
+                }
+            } finally {
+                renderNode.endRecording();
+            }
+        } else {
+            dispatchGetDisplayList();
+        }
+        return renderNode;
+    }
+
+    /**
+     * Called by {@link #updateDisplayListIfDirty()} when this view's display list is valid,
+     * ViewGroup uses this to update the display lists of its children.
+     */
+    void dispatchGetDisplayList() {
+    }
+
     /**
      * Base method that directly draws this view and its background, foreground,
      * overlay and all children to the given canvas. When implementing a view,
@@ -2810,6 +2842,8 @@ public class View implements Drawable.Callback {
             mRight = right;
             mBottom = bottom;
             mRenderNode.setPosition(mLeft, mTop, mRight, mBottom);
+            // the old area was damaged by invalidate()
+            damageInParent();
 
             mPrivateFlags |= PFLAG_HAS_BOUNDS;
 
@@ -3909,15 +3943,55 @@ public class View implements Drawable.Callback {
      * {@link #postInvalidate()}.
      */
     public final void invalidate() {
+        // the parent records our transformation, scroll and alpha in its display list
+        mPrivateFlags &= ~PFLAG_DRAWING_CACHE_VALID;
+        if (mParent instanceof View) {
+            ((View) mParent).mPrivateFlags &= ~PFLAG_DRAWING_CACHE_VALID;
+        }
+
         if ((mViewFlags & VISIBILITY_MASK) != VISIBLE &&
                 (!(mParent instanceof ViewGroup) ||
                         !((ViewGroup) mParent).isViewTransitioning(this))) {
             return;
         }
 
-        if (mAttachInfo != null) {
-            mAttachInfo.mViewRoot.invalidate();
+        damageInParent();
+    }
+
+    /**
+     * Damages the area this view currently covers in the window, so that area will be
+     * repainted in the next frame. This is called before this view is moved or transformed,
+     * since {@link #invalidate()} only damages the area after the change.
+     * <p>
+     * The area is clipped to the bounds of this view. If this view may draw outside its
+     * bounds, that is, its parent does not clip its children or this view casts a shadow,
+     * the area is clipped to the bounds of the nearest ancestor whose parent clips it.
+     */
+    final void damageInParent() {
+        final AttachInfo info = mAttachInfo;
+        if (info != null) {
+            final Rect r = info.mTmpInvalRect;
+            if (getDrawingBoundsView().getGlobalVisibleRect(r)) {
+                info.mViewRoot.invalidateRect(r);
+            }
+        }
+    }
+
+    /**
+     * Returns the view whose bounds enclose everything this view draws, this view or the
+     * nearest ancestor whose parent clips its children.
+     */
+    @NonNull
+    private View getDrawingBoundsView() {
+        View view = this;
+        if (getZ() > 0 && mParent instanceof ViewGroup group) {
+            // the shadow is outside the bounds
+            view = group;
         }
+        while (view.mParent instanceof ViewGroup group && !group.getClipChildren()) {
+            view = group;
+        }
+        return view;
     }
 
     /**
@@ -6536,6 +6610,7 @@ public class View implements Drawable.Callback {
 
             mLeft = left;
             mRenderNode.setLeft(left);
+            damageInParent();
 
             sizeChange(mRight - mLeft, height, oldWidth, height);
 
@@ -6572,6 +6647,7 @@ public class View implements Drawable.Callback {
 
             mTop = top;
             mRenderNode.setTop(mTop);
+            damageInParent();
 
             sizeChange(width, mBottom - mTop, width, oldHeight);
 
@@ -6608,6 +6684,7 @@ public class View implements Drawable.Callback {
 
             mRight = right;
             mRenderNode.setRight(mRight);
+            damageInParent();
 
             sizeChange(mRight - mLeft, height, oldWidth, height);
 
@@ -6644,6 +6721,7 @@ public class View implements Drawable.Callback {
 
             mBottom = bottom;
             mRenderNode.setBottom(mBottom);
+            damageInParent();
 
             sizeChange(width, mBottom - mTop, width, oldHeight);
 
@@ -6829,7 +6907,9 @@ public class View implements Drawable.Callback {
      *                     in pixels.
      */
     public void setTranslationX(float translationX) {
-        if (mRenderNode.setTranslationX(translationX)) {
+        if (translationX != mRenderNode.getTranslationX()) {
+            damageInParent();
+            mRenderNode.setTranslationX(translationX);
             invalidate();
         }
     }
@@ -6855,7 +6935,9 @@ public class View implements Drawable.Callback {
      *                     in pixels.
      */
     public void setTranslationY(float translationY) {
-        if (mRenderNode.setTranslationY(translationY)) {
+        if (translationY != mRenderNode.getTranslationY()) {
+            damageInParent();
+            mRenderNode.setTranslationY(translationY);
             invalidate();
         }
     }
@@ -6902,7 +6984,9 @@ public class View implements Drawable.Callback {
      * @see #setRotationY(float)
      */
     public void setRotation(float rotation) {
-        if (mRenderNode.setRotationZ(rotation)) {
+        if (rotation != mRenderNode.getRotationZ()) {
+            damageInParent();
+            mRenderNode.setRotationZ(rotation);
             invalidate();
         }
     }
@@ -6932,7 +7016,9 @@ public class View implements Drawable.Callback {
      * @see #setRotationX(float)
      */
     public void setRotationY(float rotationY) {
-        if (mRenderNode.setRotationY(rotationY)) {
+        if (rotationY != mRenderNode.getRotationY()) {
+            damageInParent();
+            mRenderNode.setRotationY(rotationY);
             invalidate();
         }
     }
@@ -6962,7 +7048,9 @@ public class View implements Drawable.Callback {
      * @see #setRotationY(float)
      */
     public void setRotationX(float rotationX) {
-        if (mRenderNode.setRotationX(rotationX)) {
+        if (rotationX != mRenderNode.getRotationX()) {
+            damageInParent();
+            mRenderNode.setRotationX(rotationX);
             invalidate();
         }
     }
@@ -6990,7 +7078,9 @@ public class View implements Drawable.Callback {
      * @see #getPivotY()
      */
     public void setScaleX(float scaleX) {
-        if (mRenderNode.setScaleX(scaleX)) {
+        if (scaleX != mRenderNode.getScaleX()) {
+            damageInParent();
+            mRenderNode.setScaleX(scaleX);
             invalidate();
         }
     }
@@ -7018,7 +7108,9 @@ public class View implements Drawable.Callback {
      * @see #getPivotY()
      */
     public void setScaleY(float scaleY) {
-        if (mRenderNode.setScaleY(scaleY)) {
+        if (scaleY != mRenderNode.getScaleY()) {
+            damageInParent();
+            mRenderNode.setScaleY(scaleY);
             invalidate();
         }
     }
@@ -7051,6 +7143,10 @@ public class View implements Drawable.Callback {
      * @see #getPivotY()
      */
     public void setPivotX(float pivotX) {
+        if (!hasIdentityMatrix()) {
+            // the pivot has no effect on identity matrix
+            damageInParent();
+        }
         if (mRenderNode.setPivotX(pivotX)) {
             invalidate();
         }
@@ -7083,6 +7179,10 @@ public class View implements Drawable.Callback {
      * @see #getPivotY()
      */
     public void setPivotY(float pivotY) {
+        if (!hasIdentityMatrix()) {
+            // the pivot has no effect on identity matrix
+            damageInParent();
+        }
         if (mRenderNode.setPivotY(pivotY)) {
             invalidate();
         }
@@ -7105,6 +7205,9 @@ public class View implements Drawable.Callback {
      * and the pivot used for rotation will return to default of being centered on the view.
      */
     public void resetPivot() {
+        if (!hasIdentityMatrix()) {
+            damageInParent();
+        }
         if (mRenderNode.resetPivot()) {
             invalidate();
         }
@@ -7221,7 +7324,14 @@ public class View implements Drawable.Callback {
      * @see #getAnimationMatrix()
      */
     public final void setAnimationMatrix(@Nullable Matrix matrix) {
-        mRenderNode.setAnimationMatrix(matrix);
+        if (mRenderNode.setAnimationMatrix(matrix)) {
+            // the animation matrix is not taken into account by getGlobalVisibleRect(),
+            // damage the parent instead
+            if (mParent instanceof View) {
+                ((View) mParent).damageInParent();
+            }
+            invalidate();
+        }
     }
 
     /**
@@ -7363,6 +7473,8 @@ public class View implements Drawable.Callback {
         jumpDrawablesToCurrentState();
 
         /*cleanupDraw();*/
+        mPrivateFlags &= ~PFLAG_DRAWING_CACHE_VALID;
+        mRenderNode.discardDisplayList();
         if ((mViewFlags & TOOLTIP) == TOOLTIP) {
             hideTooltip();
         }
@@ -11671,6 +11783,7 @@ public class View implements Drawable.Callback {
      */
     public void offsetTopAndBottom(int offset) {
         if (offset != 0) {
+            damageInParent();
             mTop += offset;
             mBottom += offset;
             mRenderNode.offsetTopAndBottom(offset);
@@ -11685,6 +11798,7 @@ public class View implements Drawable.Callback {
      */
     public void offsetLeftAndRight(int offset) {
         if (offset != 0) {
+            damageInParent();
             mLeft += offset;
             mRight += offset;
             mRenderNode.offsetLeftAndRight(offset);
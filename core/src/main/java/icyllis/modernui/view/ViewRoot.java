@@ -56,6 +56,9 @@ public abstract class ViewRoot implements ViewParent, AttachInfo.Callbacks {
     private boolean mInvalidated;
     private boolean mKeepInvalidated;
 
+    // the region to repaint in window coordinates, unioned by invalidated views
+    private final Rect mDirty = new Rect();
+
     private boolean mInLayout = false;
     ArrayList<View> mLayoutRequesters = new ArrayList<>();
     boolean mHandlingLayoutInLayoutRequest = false;
@@ -64,9 +67,6 @@ public abstract class ViewRoot implements ViewParent, AttachInfo.Callbacks {
 
     boolean mProcessInputEventsScheduled;
 
-    protected final Object mRenderLock = new Object();
-    protected boolean mRedrawn;
-
     private int mPointerIconType = PointerIcon.TYPE_DEFAULT;
 
     protected View mView;
@@ -152,6 +152,7 @@ public abstract class ViewRoot implements ViewParent, AttachInfo.Callbacks {
         if (width != mWidth || height != mHeight) {
             mWidth = width;
             mHeight = height;
+            mDirty.set(0, 0, width, height);
             requestLayout();
         }
     }
@@ -307,37 +308,49 @@ public abstract class ViewRoot implements ViewParent, AttachInfo.Callbacks {
 
         boolean cancelDraw = mAttachInfo.mTreeObserver.dispatchOnPreDraw();
 
-        synchronized (mRenderLock) {
-            if (!cancelDraw && !mRedrawn) {
-                if (mPendingTransitions != null && mPendingTransitions.size() > 0) {
-                    for (LayoutTransition pendingTransition : mPendingTransitions) {
-                        pendingTransition.startChangingAnimations();
-                    }
-                    mPendingTransitions.clear();
+        if (!cancelDraw) {
+            if (mPendingTransitions != null && mPendingTransitions.size() > 0) {
+                for (LayoutTransition pendingTransition : mPendingTransitions) {
+                    pendingTransition.startChangingAnimations();
                 }
+                mPendingTransitions.clear();
+            }
 
-                if (mAttachInfo.mViewScrollChanged) {
-                    mAttachInfo.mViewScrollChanged = false;
-                    mAttachInfo.mTreeObserver.dispatchOnScrollChanged();
-                }
+            if (mAttachInfo.mViewScrollChanged) {
+                mAttachInfo.mViewScrollChanged = false;
+                mAttachInfo.mTreeObserver.dispatchOnScrollChanged();
+            }
 
-                if (mInvalidated) {
-                    mIsDrawing = true;
-                    Canvas canvas = beginRecording(width, height);
+            if (mInvalidated) {
+                final Rect dirty = mTempRect;
+                dirty.set(mDirty);
+                if (!dirty.intersect(0, 0, width, height)) {
+                    // nothing visible was damaged, the last frame is still valid
+                    mDirty.setEmpty();
+                    mInvalidated = false;
+                } else {
+                    Canvas canvas = beginRecording(width, height, dirty);
                     if (canvas != null) {
-                        host.draw(canvas);
-                    }
-                    mIsDrawing = false;
-                    if (mKeepInvalidated) {
-                        mKeepInvalidated = false;
+                        // views invalidated while drawing will be repainted in the next frame
+                        mDirty.setEmpty();
+                        mIsDrawing = true;
+                        // only invalidated views are re-recorded, others are replayed
+                        host.updateDisplayListIfDirty().draw(canvas);
+                        mIsDrawing = false;
+                        endRecording(canvas);
+                        if (mKeepInvalidated) {
+                            mKeepInvalidated = false;
+                        } else {
+                            mInvalidated = false;
+                        }
                     } else {
-                        mInvalidated = false;
+                        // the renderer falls behind, all frames are in flight, try again later
+                        scheduleTraversals();
                     }
-                    mRedrawn = true;
                 }
-            } else {
-                scheduleTraversals();
             }
+        } else {
+            scheduleTraversals();
         }
     }
 
@@ -445,8 +458,28 @@ public abstract class ViewRoot implements ViewParent, AttachInfo.Callbacks {
         return !mHandlingLayoutInLayoutRequest;
     }
 
+    /**
+     * Begins recording a new frame. This may return null if the renderer cannot accept
+     * a new frame now, then the traversal will be rescheduled.
+     * <p>
+     * Only the dirty region needs to be repainted, the content outside it is retained
+     * from the last frame.
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @param dirty  the region to repaint in window coordinates
+     * @return the canvas to record into, or null
+     */
     @Nullable
-    protected abstract Canvas beginRecording(int width, int height);
+    protected abstract Canvas beginRecording(int width, int height, @Nonnull Rect dirty);
+
+    /**
+     * Ends recording and submits the frame recorded by the canvas returned from
+     * {@link #beginRecording(int, int, Rect)}.
+     *
+     * @param canvas the recording canvas
+     */
+    protected abstract void endRecording(@Nonnull Canvas canvas);
 
     @MainThread
     public void enqueueInputEvent(@Nonnull InputEvent event) {
@@ -671,7 +704,27 @@ public abstract class ViewRoot implements ViewParent, AttachInfo.Callbacks {
         }
     }
 
-    void invalidate() {
+    /**
+     * Invalidates the whole window.
+     */
+    protected void invalidate() {
+        mDirty.set(0, 0, mWidth, mHeight);
+        scheduleInvalidate();
+    }
+
+    /**
+     * Invalidates a region of the window. Views outside the region are not repainted,
+     * and the rest of the last frame is retained.
+     *
+     * @param dirty the damaged region in window coordinates
+     */
+    protected void invalidateRect(@Nonnull Rect dirty) {
+        // outset by 1 pixel for antialiasing
+        mDirty.union(dirty.left - 1, dirty.top - 1, dirty.right + 1, dirty.bottom + 1);
+        scheduleInvalidate();
+    }
+
+    private void scheduleInvalidate() {
         Core.checkUiThread();
         mInvalidated = true;
         if (!mWillDrawSoon) {
@@ -33,9 +33,16 @@ import icyllis.modernui.text.style.*;
 import icyllis.modernui.util.ColorStateList;
 import icyllis.modernui.view.*;
 import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.jetbrains.annotations.VisibleForTesting;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
 
 /**
  * A user interface element that displays text to the user. To provide user-editable text,
@@ -123,6 +130,11 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
     private Spannable mSpannable;
     @Nullable
     private PrecomputedText mPrecomputed;
+    // the pending text computed in background, see setTextFuture()
+    @Nullable
+    private CompletableFuture<PrecomputedText> mTextFuture;
+    // whether mTextFuture was created by setTextAsync(), only then it can be cancelled
+    private boolean mTextFutureOwned;
 
     @NonNull
     private CharSequence mTransformed = "";
@@ -149,6 +161,17 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
     // True if fallback fonts that end up getting used should be allowed to affect line spacing.
     boolean mUseFallbackLineSpacing = true;
 
+    private boolean mVirtualizedLayout;
+
+    // recorded text of the blocks of DynamicLayout, indexed by the block index, see drawBlocks()
+    private RenderNode[] mBlockNodes;
+    // the text colors that the block nodes were recorded with
+    private int mBlockNodesColor;
+    private int mBlockNodesLinkColor;
+    // lays out the lines that are scrolled into view, if the layout is virtualized
+    private ViewTreeObserver.OnScrollChangedListener mVirtualizedScrollListener;
+    private ViewTreeObserver.OnPreDrawListener mVirtualizedPreDrawListener;
+
     private int mGravity = Gravity.TOP | Gravity.START;
     private boolean mHorizontallyScrolling;
 
@@ -1129,6 +1152,100 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
         return mUseFallbackLineSpacing;
     }
 
+    /**
+     * Set whether to lay out only the text near the visible range. For very large texts
+     * (e.g. log files), this makes layout time and memory independent of the document size.
+     * The heights of offscreen paragraphs are estimated and refined lazily as they are
+     * scrolled into view, so the height of this view may change while scrolling.
+     * <p>
+     * This works best with a fixed layout width. The width must be bounded, and a
+     * {@code WRAP_CONTENT} width fills the available width, because measuring the desired
+     * width needs the whole text. When this view scrolls its own content, the scroll
+     * position is adjusted to keep the visible text in place.
+     *
+     * @param virtualized whether to lay out the visible text only, {@code false} by default
+     * @see DynamicLayout.Builder#setVirtualized(boolean)
+     */
+    public void setVirtualizedLayout(boolean virtualized) {
+        if (mVirtualizedLayout != virtualized) {
+            mVirtualizedLayout = virtualized;
+            if (isAttachedToWindow()) {
+                if (virtualized) {
+                    registerVirtualizedScrollListener();
+                } else {
+                    unregisterVirtualizedScrollListener();
+                }
+            }
+            if (mLayout != null) {
+                nullLayouts();
+                requestLayout();
+                invalidate();
+            }
+        }
+    }
+
+    /**
+     * @return whether the layout is virtualized, {@code false} by default
+     * @see #setVirtualizedLayout(boolean)
+     */
+    public boolean isVirtualizedLayout() {
+        return mVirtualizedLayout;
+    }
+
+    private void registerVirtualizedScrollListener() {
+        if (mVirtualizedScrollListener == null) {
+            mVirtualizedScrollListener = this::layoutVisibleLines;
+            mVirtualizedPreDrawListener = () -> {
+                layoutVisibleLines();
+                return true;
+            };
+        }
+        final ViewTreeObserver observer = getViewTreeObserver();
+        observer.addOnScrollChangedListener(mVirtualizedScrollListener);
+        observer.addOnPreDrawListener(mVirtualizedPreDrawListener);
+    }
+
+    private void unregisterVirtualizedScrollListener() {
+        if (mVirtualizedScrollListener != null) {
+            final ViewTreeObserver observer = getViewTreeObserver();
+            observer.removeOnScrollChangedListener(mVirtualizedScrollListener);
+            observer.removeOnPreDrawListener(mVirtualizedPreDrawListener);
+        }
+    }
+
+    /**
+     * Lay out the estimated lines of a virtualized layout that are near the visible range,
+     * this is called when the view or its parents are scrolled, and before drawing. This may
+     * scroll the view and request a layout, so it must not be called while drawing.
+     */
+    private void layoutVisibleLines() {
+        if (!(mLayout instanceof DynamicLayout layout) || !layout.isVirtualized()) {
+            return;
+        }
+        if (mTempRect == null) mTempRect = new Rect();
+        final Rect r = mTempRect;
+        if (!getLocalVisibleRect(r)) {
+            return;
+        }
+        int offset = getExtendedPaddingTop();
+        if ((mGravity & Gravity.VERTICAL_GRAVITY_MASK) != Gravity.TOP) {
+            offset += getVerticalOffset(false);
+        }
+        final int oldHeight = layout.getHeight();
+        final int oldEstimatedLineCount = layout.getEstimatedLineCount();
+        final int shift = layout.layoutEstimatedLines(r.top - offset, r.bottom - offset);
+        if (layout.getHeight() != oldHeight) {
+            if (shift != 0 && mScrollY > 0) {
+                scrollTo(mScrollX, Math.max(mScrollY + shift, 0));
+            }
+            requestLayout();
+            invalidate();
+        } else if (layout.getEstimatedLineCount() != oldEstimatedLineCount) {
+            // the recorded text does not contain the new lines
+            invalidate();
+        }
+    }
+
     /**
      * Gets the parameters for text layout pre-computation, for use with {@link PrecomputedText}.
      *
@@ -1751,6 +1868,128 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
         setText(text, mBufferType);
     }
 
+    /**
+     * Sets the text to be displayed, the text is measured on a background thread by
+     * {@link ForkJoinPool#commonPool()}, and then displayed on the UI thread.
+     * Until then, the old text is displayed.
+     *
+     * @param text text to be displayed
+     * @see #setTextAsync(CharSequence, Executor)
+     */
+    public final void setTextAsync(@NonNull CharSequence text) {
+        setTextAsync(text, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sets the text to be displayed, the text is measured on the given executor by
+     * {@link PrecomputedText#createAsync(CharSequence, PrecomputedText.Params, Executor)}
+     * with the current {@link #getTextMetricsParams()}, and then displayed on the UI thread.
+     * Until then, the old text is displayed.
+     * <p>
+     * Mutable text is copied, later changes to it are not reflected.
+     *
+     * @param text     text to be displayed
+     * @param executor the executor to measure text
+     * @see #setTextFuture(CompletableFuture)
+     */
+    public void setTextAsync(@NonNull CharSequence text, @NonNull Executor executor) {
+        // stringOrSpannedString() gives an immutable copy for the background thread
+        final CharSequence source = TextUtils.stringOrSpannedString(text);
+        setTextFuture(PrecomputedText.createAsync(source, getTextMetricsParams(), executor),
+                source, true);
+    }
+
+    /**
+     * Sets the future of {@link PrecomputedText} to be displayed when completed. The text
+     * is set on the UI thread by {@link #setText(CharSequence)} once the future is completed,
+     * and the old text is displayed until then. If the future is already completed, the
+     * text is set immediately.
+     * <p>
+     * The pending future is dropped when a new text or future is set, so a stale result
+     * will never be displayed. The future itself is not cancelled, since it may be shared.
+     * This makes it suitable for list items, the adapter can create futures with
+     * {@link PrecomputedText#createAsync(CharSequence, PrecomputedText.Params, Executor)}
+     * for items that will be shown soon, and pass them to recycled views.
+     * <p>
+     * If the parameters of the PrecomputedText mismatch with this TextView when completed
+     * (for example, the text size was changed), the text is measured again on the UI thread.
+     * If the future completes exceptionally or is cancelled, the text is cleared, so that
+     * the old text is not displayed for the new content.
+     * This method must be called on the UI thread.
+     *
+     * @param future the future of PrecomputedText, or null to drop the pending one
+     */
+    public void setTextFuture(@Nullable CompletableFuture<PrecomputedText> future) {
+        setTextFuture(future, null, false);
+    }
+
+    /**
+     * @param source the source text, displayed if the future fails, or null to clear the text
+     * @param owned  whether the future is created by this view and can be cancelled
+     */
+    private void setTextFuture(@Nullable CompletableFuture<PrecomputedText> future,
+                               @Nullable CharSequence source, boolean owned) {
+        cancelTextFuture();
+        if (future == null) {
+            return;
+        }
+        mTextFuture = future;
+        mTextFutureOwned = owned;
+        final BiConsumer<PrecomputedText, Throwable> action = (result, exception) -> {
+            if (mTextFuture != future) {
+                // cancelled or superseded
+                return;
+            }
+            mTextFuture = null;
+            if (exception != null) {
+                final Throwable cause = exception instanceof CompletionException &&
+                        exception.getCause() != null ? exception.getCause() : exception;
+                if (!(cause instanceof CancellationException)) {
+                    ModernUI.LOGGER.error(VIEW_MARKER, "Failed to precompute text", cause);
+                }
+                // don't keep displaying the old text
+                setText(source != null ? source : "");
+                return;
+            }
+            if (mTextDir == null) {
+                mTextDir = getTextDirectionHeuristic();
+            }
+            if (result.getParams().checkResultUsable(getPaint(), mTextDir, LineBreakConfig.NONE) ==
+                    PrecomputedText.Params.UNUSABLE) {
+                // the TextView was changed, give up the precomputed result
+                setText(result.getText());
+            } else {
+                setText(result);
+            }
+        };
+        if (future.isDone()) {
+            // we are on the UI thread, set the text immediately
+            future.whenComplete(action);
+        } else {
+            future.whenCompleteAsync(action, Core.getUiThreadExecutor());
+        }
+    }
+
+    /**
+     * @return whether there is a pending text that is being measured in background
+     * @see #setTextFuture(CompletableFuture)
+     */
+    public boolean hasPendingText() {
+        return mTextFuture != null;
+    }
+
+    private void cancelTextFuture() {
+        final CompletableFuture<PrecomputedText> future = mTextFuture;
+        if (future != null) {
+            mTextFuture = null;
+            // a future passed in may be shared, just drop the reference
+            if (mTextFutureOwned) {
+                future.cancel(false);
+            }
+            mTextFutureOwned = false;
+        }
+    }
+
     /**
      * Sets the text to be displayed but retains the cursor position. Same as
      * {@link #setText(CharSequence)} except that the cursor position (if any) is retained in the
@@ -1822,6 +2061,8 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
      * @see #setEditableFactory(Editable.Factory)
      */
     public void setText(@NonNull CharSequence text, @NonNull BufferType type) {
+        // a newer text is set, drop the pending one
+        cancelTextFuture();
         for (InputFilter filter : mFilters) {
             CharSequence out = filter.filter(text, 0, text.length(), EMPTY_SPANNED, 0, 0);
             if (out != null) {
@@ -2126,6 +2367,10 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
             getViewTreeObserver().addOnPreDrawListener(this);
             mPreDrawListenerDetached = false;
         }
+
+        if (mVirtualizedLayout) {
+            registerVirtualizedScrollListener();
+        }
     }
 
     @Override
@@ -2135,6 +2380,10 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
             mPreDrawListenerDetached = true;
         }
 
+        if (mVirtualizedLayout) {
+            unregisterVirtualizedScrollListener();
+        }
+
         resetResolvedDrawables();
 
         if (mEditor != null) {
@@ -2473,12 +2722,168 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
 
             drawHighlight(canvas, vOffsetCursor - vOffsetText);
 
-            layout.drawText(canvas, firstLine, lastLine);
+            if (layout == mLayout && layout instanceof DynamicLayout dynamicLayout &&
+                    canvas instanceof RecordingCanvas) {
+                drawBlocks(canvas, dynamicLayout, firstLine, lastLine);
+            } else {
+                layout.drawText(canvas, firstLine, lastLine);
+            }
         }
 
         canvas.restore();
     }
 
+    /**
+     * Draw the text of a DynamicLayout block by block. The text of each block is recorded
+     * into its own render node, and re-recorded only when the block is invalidated by
+     * a reflow, so editing a paragraph only re-records the block of the paragraph.
+     */
+    private void drawBlocks(@NonNull Canvas canvas, @NonNull DynamicLayout layout,
+                            int firstLine, int lastLine) {
+        final int[] blockEndLines = layout.getBlockEndLines();
+        final int[] blockIndices = layout.getBlockIndices();
+        final int numberOfBlocks = layout.getNumberOfBlocks();
+        // these blocks have dynamic content, they are recorded on every draw
+        final IntArrayList blocksAlwaysRedrawn = layout.getBlocksAlwaysNeedToBeRedrawn();
+
+        if (mBlockNodes == null) {
+            mBlockNodes = new RenderNode[Math.max(numberOfBlocks, 4)];
+        }
+        // the paint is copied when recording
+        if (mBlockNodesColor != mTextPaint.getColor() ||
+                mBlockNodesLinkColor != mTextPaint.linkColor) {
+            mBlockNodesColor = mTextPaint.getColor();
+            mBlockNodesLinkColor = mTextPaint.linkColor;
+            invalidateBlocks();
+        }
+
+        int startBlock = Arrays.binarySearch(blockEndLines, 0, numberOfBlocks, firstLine);
+        if (startBlock < 0) {
+            startBlock = -(startBlock + 1);
+        }
+        // lazily computed, the node indices that are in use
+        boolean[] used = null;
+        int nextIndex = 0;
+        for (int i = startBlock; i < numberOfBlocks; i++) {
+            final int blockFirstLine = i == 0 ? 0 : blockEndLines[i - 1] + 1;
+            final int blockLastLine = blockEndLines[i];
+            if (blockFirstLine > lastLine) {
+                break;
+            }
+            int blockIndex = blockIndices[i];
+            if (blockIndex == DynamicLayout.INVALID_BLOCK_INDEX) {
+                // the block is created or changed by a reflow, find a node that is not in use
+                if (used == null) {
+                    used = new boolean[mBlockNodes.length];
+                    for (int j = 0; j < numberOfBlocks; j++) {
+                        int index = blockIndices[j];
+                        if (index >= 0 && index < used.length) {
+                            used[index] = true;
+                        }
+                    }
+                }
+                while (nextIndex < used.length && used[nextIndex]) {
+                    nextIndex++;
+                }
+                blockIndex = nextIndex++;
+                if (blockIndex >= mBlockNodes.length) {
+                    mBlockNodes = Arrays.copyOf(mBlockNodes,
+                            Math.max(mBlockNodes.length << 1, blockIndex + 1));
+                }
+                if (mBlockNodes[blockIndex] == null) {
+                    mBlockNodes[blockIndex] = new RenderNode();
+                } else {
+                    mBlockNodes[blockIndex].discardDisplayList();
+                }
+                layout.setBlockIndex(i, blockIndex);
+            }
+
+            final RenderNode node = mBlockNodes[blockIndex];
+            final int blockTop = layout.getLineTop(blockFirstLine);
+            if (!node.hasDisplayList() ||
+                    (blocksAlwaysRedrawn != null && blocksAlwaysRedrawn.contains(i))) {
+                final int blockBottom = layout.getLineTop(blockLastLine + 1);
+                final Canvas c = node.beginRecording(layout.getWidth(), blockBottom - blockTop);
+                try {
+                    // the node is positioned when drawing, so it stays valid if the block moves
+                    c.translate(0, -blockTop);
+                    if (layout.hasEstimatedLines()) {
+                        drawLaidOutLines(c, layout, blockFirstLine, blockLastLine);
+                    } else {
+                        layout.drawText(c, blockFirstLine, blockLastLine);
+                    }
+                } finally {
+                    node.endRecording();
+                }
+            }
+            canvas.save();
+            canvas.translate(0, blockTop);
+            node.draw(canvas);
+            canvas.restore();
+        }
+    }
+
+    // estimated lines contain paragraphs that are not laid out, never draw them
+    private static void drawLaidOutLines(@NonNull Canvas canvas, @NonNull DynamicLayout layout,
+                                         int firstLine, int lastLine) {
+        int line = firstLine;
+        while (line <= lastLine) {
+            if (layout.isLineEstimated(line)) {
+                line++;
+                continue;
+            }
+            int end = line;
+            while (end < lastLine && !layout.isLineEstimated(end + 1)) {
+                end++;
+            }
+            layout.drawText(canvas, line, end);
+            line = end + 1;
+        }
+    }
+
+    /**
+     * Invalidate the recorded text of all blocks.
+     */
+    private void invalidateBlocks() {
+        if (mBlockNodes != null) {
+            for (RenderNode node : mBlockNodes) {
+                if (node != null) {
+                    node.discardDisplayList();
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidate the recorded text of the blocks that contain the given range,
+     * this is required when the appearance of the text is changed without a reflow.
+     */
+    private void invalidateBlocks(int start, int end) {
+        if (mBlockNodes == null || !(mLayout instanceof DynamicLayout layout)) {
+            return;
+        }
+        final int length = layout.getText().length();
+        start = Math.min(Math.max(start, 0), length);
+        end = Math.min(Math.max(end, start), length);
+        final int firstLine = layout.getLineForOffset(start);
+        final int lastLine = layout.getLineForOffset(end);
+        final int[] blockEndLines = layout.getBlockEndLines();
+        final int numberOfBlocks = layout.getNumberOfBlocks();
+        for (int i = 0; i < numberOfBlocks; i++) {
+            if (blockEndLines[i] < firstLine) {
+                continue;
+            }
+            final int blockIndex = layout.getBlockIndex(i);
+            if (blockIndex != DynamicLayout.INVALID_BLOCK_INDEX &&
+                    blockIndex < mBlockNodes.length && mBlockNodes[blockIndex] != null) {
+                mBlockNodes[blockIndex].discardDisplayList();
+            }
+            if (blockEndLines[i] >= lastLine) {
+                break;
+            }
+        }
+    }
+
     @Override
     public void getFocusedRect(@NonNull Rect r) {
         if (mLayout == null) {
@@ -2758,7 +3163,7 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
                                     Layout.Alignment alignment, boolean shouldEllipsize,
                                     TextUtils.TruncateAt effectiveEllipsize, boolean useSaved) {
         Layout result = null;
-        if (useDynamicLayout()) {
+        if (useDynamicLayout() || mVirtualizedLayout) {
             final DynamicLayout.Builder builder = DynamicLayout.builder(mText, mTextPaint,
                             wantWidth)
                     .setDisplayText(mTransformed)
@@ -2767,7 +3172,8 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
                     .setIncludePad(mIncludePad)
                     .setFallbackLineSpacing(mUseFallbackLineSpacing)
                     .setEllipsize(mBufferType != BufferType.EDITABLE ? effectiveEllipsize : null)
-                    .setEllipsizedWidth(ellipsisWidth);
+                    .setEllipsizedWidth(ellipsisWidth)
+                    .setVirtualized(mVirtualizedLayout);
             result = builder.build();
         } else {
             if (boring == UNKNOWN_BORING) {
@@ -2901,27 +3307,36 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
             // Parent has told us how big to be. So be it.
             width = widthSize;
         } else {
-            if (mLayout != null && mEllipsize == null) {
-                des = desired(mLayout);
-            }
-
-            if (des < 0) {
-                boring = BoringLayout.isBoring(mTransformed, mTextPaint, mTextDir, mBoring);
-                if (boring != null) {
-                    mBoring = boring;
+            if (mVirtualizedLayout) {
+                // the desired width is measured over the whole text, this is what
+                // virtualization avoids, so fill the available width instead
+                if (widthMode != MeasureSpec.AT_MOST) {
+                    throw new IllegalStateException("Virtualized layout requires a bounded width");
                 }
+                width = widthSize;
             } else {
-                fromexisting = true;
-            }
+                if (mLayout != null && mEllipsize == null) {
+                    des = desired(mLayout);
+                }
 
-            if (boring == null || boring == UNKNOWN_BORING) {
                 if (des < 0) {
-                    des = (int) Math.ceil(Layout.getDesiredWidthWithLimit(mTransformed, 0,
-                            mTransformed.length(), mTextPaint, mTextDir, widthLimit));
+                    boring = BoringLayout.isBoring(mTransformed, mTextPaint, mTextDir, mBoring);
+                    if (boring != null) {
+                        mBoring = boring;
+                    }
+                } else {
+                    fromexisting = true;
+                }
+
+                if (boring == null || boring == UNKNOWN_BORING) {
+                    if (des < 0) {
+                        des = (int) Math.ceil(Layout.getDesiredWidthWithLimit(mTransformed, 0,
+                                mTransformed.length(), mTextPaint, mTextDir, widthLimit));
+                    }
+                    width = des;
+                } else {
+                    width = boring.width;
                 }
-                width = des;
-            } else {
-                width = boring.width;
             }
 
             final Drawables dr = mDrawables;
@@ -3897,6 +4312,17 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
 
         if (what instanceof UpdateAppearance || what instanceof ParagraphStyle
                 || what instanceof CharacterStyle) {
+            if (what instanceof ParagraphStyle) {
+                // may affect the lines around
+                invalidateBlocks();
+            } else {
+                if (oldStart >= 0) {
+                    invalidateBlocks(oldStart, oldEnd);
+                }
+                if (newStart >= 0) {
+                    invalidateBlocks(newStart, newEnd);
+                }
+            }
             invalidate();
             mHighlightPathBogus = true;
             checkForResize();
@@ -3,29 +3,26 @@
 layout(std140) uniform SmoothBlock {
     float u_SmoothRadius;
 };
-layout(std140) uniform PaintBlock {
-    vec2 u_CenterPos;
-    float u_MiddleAngle;
-    float u_SweepAngle;
-    float u_Radius;
-};
 
 in vec2 f_Position;
 in vec4 f_Color;
+// per-instance shape params: (center pos, middle angle, sweep angle), (radius)
+flat in vec4 f_Params0;
+flat in vec4 f_Params1;
 
 out vec4 fragColor;
 
 void main() {
-    vec2 v = f_Position - u_CenterPos;
+    vec2 v = f_Position - f_Params0.xy;
 
     // smoothing normal direction
-    float d1 = length(v) - u_Radius;
+    float d1 = length(v) - f_Params1.x;
     float a1 = smoothstep(-u_SmoothRadius, 0.0, d1);
 
     // sweep angle (0,360) in degrees
-    float c = cos(u_SweepAngle * 0.00872664626);
+    float c = cos(f_Params0.w * 0.00872664626);
 
-    float f = u_MiddleAngle * 0.01745329252;
+    float f = f_Params0.z * 0.01745329252;
     // normalized vector from the center to the middle of the arc
     vec2 up = vec2(cos(f), sin(f));
 
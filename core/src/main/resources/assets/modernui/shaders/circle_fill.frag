@@ -3,13 +3,12 @@
 layout(std140, binding = 1) uniform SmoothBlock {
     float u_SmoothRadius;
 };
-layout(std140, binding = 4) uniform PaintBlock {
-    vec2 u_CenterPos;
-    float u_Radius;
-};
 
 layout(location = 0) smooth in vec2 f_Position;
 layout(location = 1) smooth in vec4 f_Color;
+// per-instance shape params: (center pos, radius), unused
+layout(location = 2) flat in vec4 f_Params0;
+layout(location = 3) flat in vec4 f_Params1;
 
 layout(location = 0, index = 0) out vec4 fragColor;
 
@@ -20,7 +19,7 @@ float aastep(float x) {
 }
 
 void main() {
-    float dis = length(f_Position - u_CenterPos) - u_Radius;
+    float dis = length(f_Position - f_Params0.xy) - f_Params0.z;
 
     float a = u_SmoothRadius > 0.0
             ? 1.0 - smoothstep(-u_SmoothRadius, 0.0, dis)
@@ -3,13 +3,12 @@
 layout(std140) uniform SmoothBlock {
     float u_SmoothRadius;
 };
-layout(std140) uniform PaintBlock {
-    vec2 u_CenterPos;
-    vec2 u_Radius;
-};
 
 in vec2 f_Position;
 in vec4 f_Color;
+// per-instance shape params: (center pos, inner radius, outer radius), unused
+flat in vec4 f_Params0;
+flat in vec4 f_Params1;
 
 out vec4 fragColor;
 
@@ -20,11 +19,11 @@ float aastep(float x) {
 }
 
 void main() {
-    float dis = length(f_Position - u_CenterPos) - (u_Radius.x + u_Radius.y) * 0.5;
-    dis = abs(dis) - (u_Radius.y - u_Radius.x) * 0.5;
+    float dis = length(f_Position - f_Params0.xy) - (f_Params0.z + f_Params0.w) * 0.5;
+    dis = abs(dis) - (f_Params0.w - f_Params0.z) * 0.5;
 
-    /*float a1 = smoothstep(u_Radius.x, u_Radius.x + u_SmoothRadius, v);
-    float a2 = smoothstep(u_Radius.y - u_SmoothRadius, u_Radius.y, v);
+    /*float a1 = smoothstep(f_Params0.z, f_Params0.z + u_SmoothRadius, v);
+    float a2 = smoothstep(f_Params0.w - u_SmoothRadius, f_Params0.w, v);
     float a = a1 * (1.0 - a2);*/
 
     float a = u_SmoothRadius > 0.0
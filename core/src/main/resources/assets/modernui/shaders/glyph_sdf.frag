@@ -0,0 +1,17 @@
+#version 450 core
+
+layout(binding = 0) uniform sampler2D u_Sampler;
+
+layout(location = 0) flat in vec4 f_Color;
+layout(location = 1) smooth in vec2 f_TexCoord;
+
+layout(location = 0, index = 0) out vec4 fragColor;
+
+void main() {
+    // signed distance field, the edge is at 0.5
+    float dist = texture(u_Sampler, f_TexCoord).a;
+    // anti-aliasing width in screen space, this works for any scale
+    float aa = 0.7 * length(vec2(dFdx(dist), dFdy(dist)));
+    float alpha = smoothstep(0.5 - aa, 0.5 + aa, dist);
+    fragColor = f_Color * alpha;
+}
@@ -3,16 +3,12 @@
 layout(std140) uniform SmoothBlock {
     float u_SmoothRadius;
 };
-layout(std140) uniform PaintBlock {
-    vec2 u_CenterPos;
-    float u_MiddleAngle;
-    float u_SweepAngle;
-    float u_Radius;
-    float u_StrokeRadius;
-};
 
 in vec2 f_Position;
 in vec4 f_Color;
+// per-instance shape params: (center pos, middle angle, sweep angle), (radius, stroke radius)
+flat in vec4 f_Params0;
+flat in vec4 f_Params1;
 
 out vec4 fragColor;
 
@@ -36,11 +32,11 @@ float sdPie(vec2 p, vec2 c, float r) {
 }
 
 void main() {
-    vec2 v = f_Position - u_CenterPos;
-    float ang = u_SweepAngle * 0.00872664626;
-    vec2 p = rotate2D(v, 1.570796326 - u_MiddleAngle * 0.01745329252);
-    float dis = sdPie(p, vec2(sin(ang), cos(ang)), u_Radius);
-    dis = abs(dis) - u_StrokeRadius;
+    vec2 v = f_Position - f_Params0.xy;
+    float ang = f_Params0.w * 0.00872664626;
+    vec2 p = rotate2D(v, 1.570796326 - f_Params0.z * 0.01745329252);
+    float dis = sdPie(p, vec2(sin(ang), cos(ang)), f_Params1.x);
+    dis = abs(dis) - f_Params1.y;
 
     float a = u_SmoothRadius > 0.0
     ? 1.0 - smoothstep(-u_SmoothRadius, 0.0, dis)
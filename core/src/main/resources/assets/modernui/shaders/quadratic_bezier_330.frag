@@ -3,15 +3,12 @@
 layout(std140) uniform SmoothBlock {
     float u_SmoothRadius;
 };
-layout(std140) uniform PaintBlock {
-    vec2 u_Bezier0;
-    vec2 u_Bezier1;
-    vec2 u_Bezier2;
-    float u_StrokeRadius;
-};
 
 in vec2 f_Position;
 in vec4 f_Color;
+// per-instance shape params: (bezier0, bezier1), (bezier2, stroke radius)
+flat in vec4 f_Params0;
+flat in vec4 f_Params1;
 
 out vec4 fragColor;
 
@@ -46,7 +43,7 @@ float distanceToBezier(vec2 A, vec2 B, vec2 C, vec2 p) {
 
 void main() {
     // distance to the curve border
-    float v = distanceToBezier(u_Bezier0, u_Bezier1, u_Bezier2, f_Position) - u_StrokeRadius;
+    float v = distanceToBezier(f_Params0.xy, f_Params0.zw, f_Params1.xy, f_Position) - f_Params1.z;
     // out of the curve, discard it
     if (v >= 0.0) discard;
     fragColor = f_Color * (1.0 - smoothstep(-u_SmoothRadius, 0.0, v));
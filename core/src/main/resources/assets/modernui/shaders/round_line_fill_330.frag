@@ -3,13 +3,12 @@
 layout(std140) uniform SmoothBlock {
     float u_SmoothRadius;
 };
-layout(std140) uniform PaintBlock {
-    vec4 u_Points;
-    float u_Radius;
-};
 
 in vec2 f_Position;
 in vec4 f_Color;
+// per-instance shape params: points, (radius)
+flat in vec4 f_Params0;
+flat in vec4 f_Params1;
 
 out vec4 fragColor;
 
@@ -26,7 +25,7 @@ float sdLine(vec2 p, vec2 a, vec2 b) {
 }
 
 void main() {
-    float dis = sdLine(f_Position, u_Points.xy, u_Points.zw) - u_Radius;
+    float dis = sdLine(f_Position, f_Params0.xy, f_Params0.zw) - f_Params1.x;
 
     float a = u_SmoothRadius > 0.0
     ? 1.0 - smoothstep(-u_SmoothRadius, 0.0, dis)
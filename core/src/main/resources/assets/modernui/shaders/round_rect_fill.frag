@@ -3,13 +3,12 @@
 layout(std140, binding = 1) uniform SmoothBlock {
     float u_SmoothRadius;
 };
-layout(std140, binding = 5) uniform PaintBlock {
-    vec4 u_InnerRect;
-    float u_Radius;
-};
 
 layout(location = 0) smooth in vec2 f_Position;
 layout(location = 1) smooth in vec4 f_Color;
+// per-instance shape params: inner rect, (radius)
+layout(location = 2) flat in vec4 f_Params0;
+layout(location = 3) flat in vec4 f_Params1;
 
 layout(location = 0, index = 0) out vec4 fragColor;
 
@@ -20,12 +19,12 @@ float aastep(float x) {
 }
 
 void main() {
-    vec2 tl = u_InnerRect.xy - f_Position;
-    vec2 br = f_Position - u_InnerRect.zw;
+    vec2 tl = f_Params0.xy - f_Position;
+    vec2 br = f_Position - f_Params0.zw;
 
     vec2 dis = max(br, tl);
 
-    float v = length(max(vec2(0.0), dis)) - u_Radius;
+    float v = length(max(vec2(0.0), dis)) - f_Params1.x;
 
     float a = u_SmoothRadius > 0.0
             ? 1.0 - smoothstep(-u_SmoothRadius, 0.0, v)
@@ -3,16 +3,15 @@
 layout(std140) uniform SmoothBlock {
     float u_SmoothRadius;
 };
-layout(std140) uniform PaintBlock {
-    vec4 u_InnerRect;
-    float u_Radius;
-};
 
 uniform sampler2D u_Sampler;
 
 in vec2 f_Position;
 in vec4 f_Color;
 in vec2 f_TexCoord;
+// per-instance shape params: inner rect, (radius)
+flat in vec4 f_Params0;
+flat in vec4 f_Params1;
 
 out vec4 fragColor;
 
@@ -23,12 +22,12 @@ float aastep(float x) {
 }
 
 void main() {
-    vec2 tl = u_InnerRect.xy - f_Position;
-    vec2 br = f_Position - u_InnerRect.zw;
+    vec2 tl = f_Params0.xy - f_Position;
+    vec2 br = f_Position - f_Params0.zw;
 
     vec2 dis = max(br, tl);
 
-    float v = length(max(vec2(0.0), dis)) - u_Radius;
+    float v = length(max(vec2(0.0), dis)) - f_Params1.x;
 
     float a = u_SmoothRadius > 0.0
     ? 1.0 - smoothstep(-u_SmoothRadius, 0.0, v)
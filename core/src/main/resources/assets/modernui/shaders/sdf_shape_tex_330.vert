@@ -0,0 +1,37 @@
+#version 330 core
+
+layout(std140) uniform MatrixBlock {
+    mat4 u_Projection;
+    mat4 u_ModelView;
+    vec4 u_Color;
+};
+
+// per-vertex
+layout(location = 0) in vec2 a_Corner;
+// per-instance
+layout(location = 1) in vec4 a_Bounds;
+layout(location = 2) in vec4 a_ColorUL;
+layout(location = 3) in vec4 a_ColorUR;
+layout(location = 4) in vec4 a_ColorLR;
+layout(location = 5) in vec4 a_ColorLL;
+layout(location = 6) in vec4 a_Params0;
+layout(location = 7) in vec4 a_Params1;
+layout(location = 8) in vec4 a_TexRect;
+
+out vec2 f_Position;
+out vec4 f_Color;
+out vec2 f_TexCoord;
+flat out vec4 f_Params0;
+flat out vec4 f_Params1;
+
+void main() {
+    vec2 pos = mix(a_Bounds.xy, a_Bounds.zw, a_Corner);
+    f_Position = pos;
+    f_Color = mix(mix(a_ColorUL, a_ColorUR, a_Corner.x),
+                  mix(a_ColorLL, a_ColorLR, a_Corner.x), a_Corner.y);
+    f_TexCoord = mix(a_TexRect.xy, a_TexRect.zw, a_Corner);
+    f_Params0 = a_Params0;
+    f_Params1 = a_Params1;
+
+    gl_Position = u_Projection * u_ModelView * vec4(pos, 0.0, 1.0);
+}
\ No newline at end of file
@@ -0,0 +1,143 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.test;
+
+import com.ibm.icu.text.BreakIterator;
+import com.ibm.icu.text.UnicodeSet;
+import icyllis.modernui.graphics.text.*;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+
+/**
+ * Compares the emoji sequence matching of {@link EmojiFont}, which uses a code point trie,
+ * with the previous implementation, which iterates grapheme clusters with ICU and looks up
+ * a hash map. The emoji set is all the RGI emoji of ICU.
+ */
+@Fork(1)
+@Threads(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Thread)
+public class TestEmojiMatcher {
+
+    // the number of emoji in the text
+    @Param({"8", "64"})
+    public int count;
+
+    private EmojiFont mFont;
+    private Map<CharSequence, EmojiFont.EmojiEntry> mMap;
+    private final CharSequenceBuilder mLookupKey = new CharSequenceBuilder();
+    private final FontPaint mPaint = new FontPaint();
+    private final IntArrayList mGlyphs = new IntArrayList();
+
+    private char[] mText;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TestEmojiMatcher.class.getSimpleName())
+                .shouldFailOnError(true).shouldDoGC(true)
+                .build())
+                .run();
+    }
+
+    @Setup
+    public void setup() {
+        final Map<CharSequence, EmojiFont.EmojiEntry> map = new HashMap<>();
+        final IntOpenHashSet coverage = new IntOpenHashSet();
+        final List<String> sequences = new ArrayList<>();
+        int id = 0;
+        for (String s : new UnicodeSet("[:RGI_Emoji:]")) {
+            map.put(s, new EmojiFont.EmojiEntry(++id, "", s));
+            coverage.add(s.codePointAt(0));
+            sequences.add(s);
+        }
+        mMap = map;
+        mFont = new EmojiFont("Emoji", coverage, 72, 56, 4, 72, map);
+        mPaint.setFontSize(16);
+        mPaint.setLocale(Locale.ROOT);
+
+        // flags, ZWJ sequences, skin tones and single emoji
+        final Random random = new Random(1);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(sequences.get(random.nextInt(sequences.size())));
+        }
+        mText = text.toString().toCharArray();
+
+        // both should produce the same glyphs for RGI emoji
+        final IntArrayList expected = new IntArrayList();
+        legacy(expected);
+        mGlyphs.clear();
+        mFont.doComplexLayout(mText, 0, mText.length, 0, mText.length, false, mPaint,
+                mGlyphs, null, null, 0, null, 0, 0);
+        if (!expected.equals(mGlyphs)) {
+            throw new IllegalStateException("Mismatched glyphs");
+        }
+    }
+
+    @Benchmark
+    public void trie(Blackhole bh) {
+        mGlyphs.clear();
+        bh.consume(mFont.doComplexLayout(mText, 0, mText.length, 0, mText.length, false, mPaint,
+                mGlyphs, null, null, 0, null, 0, 0));
+    }
+
+    @Benchmark
+    public void breakIterator(Blackhole bh) {
+        mGlyphs.clear();
+        legacy(mGlyphs);
+        bh.consume(mGlyphs);
+    }
+
+    // the previous implementation of EmojiFont, without metrics
+    private void legacy(IntArrayList glyphs) {
+        final char[] buf = mText;
+        final var breaker = BreakIterator.getCharacterInstance(Locale.ROOT);
+        breaker.setText(new CharArrayIterator(buf, 0, buf.length));
+        int prevPos = 0;
+        int currPos;
+        while ((currPos = breaker.following(prevPos)) != BreakIterator.DONE) {
+            EmojiFont.EmojiEntry entry = mMap.get(mLookupKey.updateChars(buf, prevPos, currPos));
+            if (entry == null) {
+                char vs = buf[currPos - 1];
+                if (vs != Emoji.VARIATION_SELECTOR_15) {
+                    if (vs == Emoji.VARIATION_SELECTOR_16) {
+                        entry = mMap.get(mLookupKey.updateChars(buf, prevPos, currPos - 1));
+                    } else {
+                        mLookupKey.updateChars(buf, prevPos, currPos)
+                                .add((char) Emoji.VARIATION_SELECTOR_16);
+                        entry = mMap.get(mLookupKey);
+                    }
+                }
+            }
+            if (entry != null) {
+                glyphs.add(entry.id());
+            }
+            prevPos = currPos;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.test;
+
+import icyllis.modernui.graphics.font.GLBakedGlyph;
+import icyllis.modernui.graphics.font.GlyphManager;
+import icyllis.modernui.graphics.font.TrueTypeRasterizer;
+import org.lwjgl.BufferUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.Font;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares glyphs/sec of AWT and stb_truetype rasterizers, pass the font file
+ * with -Dfont=path, the default is a common CJK font on Windows.
+ */
+@Fork(1)
+@Threads(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Thread)
+public class TestGlyphRasterizer {
+
+    @Param({"false", "true"})
+    public boolean trueType;
+
+    @Param({"16", "32"})
+    public int size;
+
+    private Font mFont;
+    private int mNumGlyphs;
+    private int mGlyphCode;
+
+    private GlyphManager mGlyphManager;
+    private final GLBakedGlyph mGlyph = new GLBakedGlyph();
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TestGlyphRasterizer.class.getSimpleName())
+                .shouldFailOnError(true).shouldDoGC(true)
+                .build())
+                .run();
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] data = Files.readAllBytes(Path.of(System.getProperty("font", "C:/Windows/Fonts/msyh.ttc")));
+        Font font = Font.createFonts(new ByteArrayInputStream(data))[0];
+        TrueTypeRasterizer.registerFont(font,
+                BufferUtils.createByteBuffer(data.length).put(data).flip(), 0);
+        mFont = font.deriveFont((float) size);
+        mNumGlyphs = font.getNumGlyphs();
+        GlyphManager.sTrueTypeRasterizer = trueType;
+        mGlyphManager = GlyphManager.getInstance();
+    }
+
+    // one glyph per invocation, the result is glyphs/sec
+    @Benchmark
+    public void rasterize(Blackhole bh) {
+        // there's no cache, iterate all the glyphs like a CJK-heavy UI
+        int glyphCode = mGlyphCode;
+        mGlyphCode = (glyphCode + 1) % mNumGlyphs;
+        bh.consume(mGlyphManager.rasterizeGlyph(mFont, glyphCode, mGlyph));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.test;
+
+import com.ibm.icu.text.BreakIterator;
+import icyllis.modernui.graphics.text.CharArrayIterator;
+import icyllis.modernui.graphics.text.GraphemeBreak;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Validates the table-driven {@link GraphemeBreak} against ICU. Pass the Unicode test file
+ * (ucd/auxiliary/GraphemeBreakTest.txt of the Unicode version of ICU) with -Dfile=path,
+ * otherwise only random text is compared with ICU.
+ */
+public class TestGraphemeBreak {
+
+    public static void main(String[] args) throws Exception {
+        int failures = 0;
+        String file = System.getProperty("file");
+        if (file != null) {
+            List<String> lines = Files.readAllLines(Path.of(file));
+            int cases = 0;
+            for (String line : lines) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                // e.g. ÷ 0020 × 0308 ÷
+                StringBuilder text = new StringBuilder();
+                IntArrayList expected = new IntArrayList();
+                for (String token : line.split("\\s+")) {
+                    if (token.equals("÷")) {
+                        expected.add(text.length());
+                    } else if (!token.equals("×")) {
+                        text.appendCodePoint(Integer.parseInt(token, 16));
+                    }
+                }
+                cases++;
+                if (!check(text.toString().toCharArray(), expected, line)) {
+                    failures++;
+                }
+            }
+            System.out.println("GraphemeBreakTest: " + cases + " cases");
+        }
+
+        // random text, biased to the interesting code points
+        final int[] samples = {
+                0x0D, 0x0A, 0x01, 0x41, 0x300, 0x903, 0x600, 0x1100, 0x1160, 0x11A8, 0xAC00, 0xAC01,
+                0x200D, 0xFE0F, 0x1F1E6, 0x1F1E7, 0x1F466, 0x1F3FB, 0x2764, 0xE0020, 0xD800, 0xDC00,
+                0x0E33, 0x094D, 0x0915, 0x00AD, 0x200B
+        };
+        final Random random = new Random(1);
+        for (int n = 0; n < 100000; n++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0, e = 1 + random.nextInt(8); i < e; i++) {
+                text.appendCodePoint(random.nextInt(4) == 0
+                        ? random.nextInt(0x20000)
+                        : samples[random.nextInt(samples.length)]);
+            }
+            char[] buf = text.toString().toCharArray();
+            IntArrayList expected = new IntArrayList();
+            BreakIterator breaker = BreakIterator.getCharacterInstance(Locale.ROOT);
+            breaker.setText(new CharArrayIterator(buf, 0, buf.length));
+            for (int b = breaker.first(); b != BreakIterator.DONE; b = breaker.next()) {
+                expected.add(b);
+            }
+            if (!check(buf, expected, text.codePoints()
+                    .mapToObj(Integer::toHexString).toList().toString())) {
+                failures++;
+            }
+        }
+        System.out.println(failures == 0 ? "All passed" : failures + " failures");
+    }
+
+    private static boolean check(char[] buf, IntArrayList expected, String message) {
+        // forward iteration
+        IntArrayList actual = new IntArrayList();
+        actual.add(0);
+        GraphemeBreak.sUseICU = false;
+        GraphemeBreak.forTextRun(buf, Locale.ROOT, 0, buf.length,
+                (clusterStart, clusterEnd) -> actual.add(clusterEnd));
+        if (buf.length == 0) {
+            actual.add(0);
+        }
+        boolean passed = expected.equals(actual);
+        // random access
+        for (int i = 0; i <= buf.length && passed; i++) {
+            boolean isBreak = GraphemeBreak.isGraphemeBreak(null, buf, 0, buf.length, i);
+            if (isBreak != expected.contains(i)) {
+                passed = false;
+            }
+        }
+        if (!passed) {
+            System.out.println("Failed: " + message + ", expected " + expected + ", actual " + actual);
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.test;
+
+import icyllis.modernui.graphics.text.LayoutCache;
+import icyllis.modernui.text.PrecomputedText;
+import icyllis.modernui.text.TextPaint;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time of creating a PrecomputedText for a log-like long text, by the
+ * number of threads, 1 means sequential measurement on the calling thread. The calling
+ * thread is one of the workers, so the pool has one less thread.
+ */
+@Fork(1)
+@Threads(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class TestPrecomputedText {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"262144"})
+    public int length;
+
+    private String mText;
+    private PrecomputedText.Params mParams;
+    private ForkJoinPool mPool;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TestPrecomputedText.class.getSimpleName())
+                .shouldFailOnError(true).shouldDoGC(true)
+                .build())
+                .run();
+    }
+
+    @Setup
+    public void setup() {
+        // fixed seed, each line has different numbers so that the layout cache hardly hits
+        Random random = new Random(0x5EED);
+        StringBuilder b = new StringBuilder(length + 128);
+        while (b.length() < length) {
+            b.append('[').append(random.nextInt(24)).append(':').append(random.nextInt(60))
+                    .append(':').append(random.nextInt(60)).append("] [Render thread/INFO] ")
+                    .append("Loaded ").append(random.nextInt(100000)).append(" resources in ")
+                    .append(random.nextInt(1000)).append(" ms, id=")
+                    .append(Long.toHexString(random.nextLong())).append('\n');
+        }
+        mText = b.toString();
+        mParams = new PrecomputedText.Params.Builder(new TextPaint()).build();
+        mPool = threads > 1 ? new ForkJoinPool(threads - 1) : null;
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() {
+        LayoutCache.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public PrecomputedText create() {
+        return PrecomputedText.create(mText, mParams, mPool);
+    }
+}
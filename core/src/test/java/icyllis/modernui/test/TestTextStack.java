@@ -0,0 +1,228 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.test;
+
+import icyllis.modernui.graphics.Canvas;
+import icyllis.modernui.graphics.Paint;
+import icyllis.modernui.graphics.RenderNode;
+import icyllis.modernui.graphics.text.*;
+import icyllis.modernui.text.*;
+import icyllis.modernui.text.style.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+
+/**
+ * Benchmarks for each stage of the text stack, from shaping a single piece to recording
+ * the draw operations of a line, over Latin, CJK, mixed bidi and emoji text. The texts are
+ * generated with a fixed seed, so results of different builds are comparable.
+ * <p>
+ * Run {@code gradlew :ModernUI-Core:jmhText} to get the JSON results, see core/build.gradle.
+ */
+@Fork(1)
+@Threads(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Thread)
+public class TestTextStack {
+
+    @Param({"latin", "cjk", "bidi", "emoji"})
+    public String corpus;
+
+    // the length of a paragraph
+    @Param({"1024"})
+    public int length;
+
+    private final TextPaint mPaint = new TextPaint();
+    private FontPaint mFontPaint;
+
+    private String mText;
+    private char[] mChars;
+    // the end of a piece that can be cached by LayoutCache
+    private int mPieceEnd;
+
+    // a single line, laid out in setup
+    private String mLine;
+    private int mLineDir;
+    private Directions mLineDirections;
+    private final RenderNode mRenderNode = new RenderNode();
+
+    private final LineBreaker.ParagraphConstraints mConstraints = new LineBreaker.ParagraphConstraints();
+    private MeasuredText mMeasuredText;
+
+    private SpannableStringBuilder mSpanned;
+    private int mVisitedSpans;
+    private final Spanned.SpanVisitor<CharacterStyle> mSpanVisitor =
+            (span, start, end, flags, order) -> mVisitedSpans++;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TestTextStack.class.getSimpleName())
+                .shouldFailOnError(true).shouldDoGC(true)
+                .build())
+                .run();
+    }
+
+    @Setup
+    public void setup() {
+        mPaint.setFontSize(16);
+        mFontPaint = mPaint.createInternalPaint();
+
+        mText = generate(corpus, length);
+        mChars = mText.toCharArray();
+        int pieceEnd = Math.min(mChars.length, LayoutCache.MAX_PIECE_LENGTH);
+        if (Character.isHighSurrogate(mChars[pieceEnd - 1])) {
+            pieceEnd--;
+        }
+        mPieceEnd = pieceEnd;
+
+        mLine = generate(corpus, 80);
+        Layout layout = StaticLayout.builder(mLine, 0, mLine.length(), mPaint, Integer.MAX_VALUE)
+                .build();
+        mLineDir = layout.getParagraphDirection(0);
+        mLineDirections = layout.getLineDirections(0);
+
+        mConstraints.setWidth(400);
+        mMeasuredText = buildMeasuredText();
+
+        mSpanned = new SpannableStringBuilder(mText);
+        for (int i = 0, e = mText.length() - 8; i < e; i += 12) {
+            Object span = switch (i % 3) {
+                case 0 -> new ForegroundColorSpan(0xFF4080C0);
+                case 1 -> new StyleSpan(Paint.BOLD);
+                default -> new UnderlineSpan();
+            };
+            mSpanned.setSpan(span, i, i + 8, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    /**
+     * Generates a paragraph without line feeds of the given corpus.
+     */
+    public static String generate(String corpus, int length) {
+        final Random random = new Random(0x5EED);
+        final String[] latin = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog",
+                "render", "layout", "glyph", "measure", "paragraph", "Modern", "UI,", "text."};
+        final String[] rtl = {"שלום", "עולם", "טקסט", "مرحبا", "بالعالم", "النص", "123"};
+        final String[] emoji = {"😀", "👍🏽", "❤️",
+                "👨‍👩‍👧", "🇯🇵",
+                "🏳️‍🌈"};
+        final StringBuilder b = new StringBuilder(length + 32);
+        while (b.length() < length) {
+            switch (corpus) {
+                case "latin" -> b.append(latin[random.nextInt(latin.length)]).append(' ');
+                case "cjk" -> {
+                    for (int i = 0, e = 4 + random.nextInt(12); i < e; i++) {
+                        b.append((char) (0x4E00 + random.nextInt(0x51A6)));
+                    }
+                    b.append(random.nextBoolean() ? '，' : '。');
+                }
+                case "bidi" -> b.append(random.nextInt(3) == 0
+                        ? latin[random.nextInt(latin.length)]
+                        : rtl[random.nextInt(rtl.length)]).append(' ');
+                case "emoji" -> {
+                    b.append(latin[random.nextInt(latin.length)]).append(' ');
+                    if (random.nextBoolean()) {
+                        b.append(emoji[random.nextInt(emoji.length)]).append(' ');
+                    }
+                }
+                default -> throw new IllegalArgumentException(corpus);
+            }
+        }
+        return b.toString();
+    }
+
+    private MeasuredText buildMeasuredText() {
+        return new MeasuredText.Builder(mChars)
+                .appendStyleRun(mPaint, mChars.length, false)
+                .build();
+    }
+
+    @Benchmark
+    public LayoutPiece layoutCacheHit() {
+        return LayoutCache.getOrCreate(mChars, 0, mPieceEnd, 0, mPieceEnd, false, mFontPaint, 0);
+    }
+
+    /**
+     * Includes the cost of invalidating the only entry in the cache.
+     */
+    @Benchmark
+    public LayoutPiece layoutCacheMiss() {
+        LayoutCache.clear();
+        return LayoutCache.getOrCreate(mChars, 0, mPieceEnd, 0, mPieceEnd, false, mFontPaint, 0);
+    }
+
+    @Benchmark
+    public MeasuredText measuredText() {
+        return buildMeasuredText();
+    }
+
+    @Benchmark
+    public LineBreaker.Result lineBreaks() {
+        return LineBreaker.computeLineBreaks(mMeasuredText, mConstraints, null, 0);
+    }
+
+    @Benchmark
+    public StaticLayout staticLayout() {
+        return StaticLayout.builder(mText, 0, mText.length(), mPaint, 400).build();
+    }
+
+    @Benchmark
+    public float textLineMeasure() {
+        TextLine tl = TextLine.obtain();
+        tl.set(mPaint, mLine, 0, mLine.length(), mLineDir, mLineDirections,
+                false, null, 0, 0);
+        float width = tl.metrics(null);
+        tl.recycle();
+        return width;
+    }
+
+    @Benchmark
+    public RenderNode textLineDraw() {
+        TextLine tl = TextLine.obtain();
+        tl.set(mPaint, mLine, 0, mLine.length(), mLineDir, mLineDirections,
+                false, null, 0, 0);
+        Canvas canvas = mRenderNode.beginRecording(2000, 32);
+        tl.draw(canvas, 0, 0, 24, 32);
+        mRenderNode.endRecording();
+        tl.recycle();
+        return mRenderNode;
+    }
+
+    @Benchmark
+    public void spanGetSpans(Blackhole bh) {
+        for (int i = 0, e = mSpanned.length(); i < e; i += 64) {
+            bh.consume(mSpanned.getSpans(i, Math.min(i + 64, e), CharacterStyle.class));
+        }
+    }
+
+    @Benchmark
+    public int spanForEachSpan() {
+        mVisitedSpans = 0;
+        for (int i = 0, e = mSpanned.length(); i < e; i += 64) {
+            mSpanned.forEachSpan(i, Math.min(i + 64, e), CharacterStyle.class, mSpanVisitor);
+        }
+        return mVisitedSpans;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2019-2023 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.test;
+
+import icyllis.modernui.text.DynamicLayout;
+import icyllis.modernui.text.StaticLayout;
+import icyllis.modernui.text.TextPaint;
+
+/**
+ * Validates the estimated lines of a virtualized {@link DynamicLayout} against a
+ * {@link StaticLayout} of the same text. The first paragraphs are narrow, so the height
+ * of the later wide paragraphs is underestimated, and laying them out must shift the
+ * content below by exactly the height change.
+ */
+public class TestVirtualizedLayout {
+
+    public static final int WIDTH = 400;
+
+    public static void main(String[] args) {
+        final StringBuilder b = new StringBuilder();
+        // the sample for estimation, narrow
+        while (b.length() < 1024) {
+            b.append("i i i i i i i i i i i i i i i i i i i i\n");
+        }
+        // wide, each paragraph wraps to several lines
+        for (int i = 0; b.length() < 131072; i++) {
+            for (int j = 0; j < 20; j++) {
+                b.append("WWWW ").append(i).append(' ');
+            }
+            b.append('\n');
+        }
+        final String text = b.toString();
+
+        final TextPaint paint = new TextPaint();
+        paint.setFontSize(16);
+        final StaticLayout expected = StaticLayout.builder(text, 0, text.length(), paint, WIDTH)
+                .setIncludePad(false)
+                .build();
+        final DynamicLayout layout = DynamicLayout.builder(text, paint, WIDTH)
+                .setIncludePad(false)
+                .setVirtualized(true)
+                .build();
+
+        int failures = 0;
+        if (!layout.hasEstimatedLines()) {
+            System.out.println("Failed: no estimated lines");
+            failures++;
+        }
+
+        // lay out the middle, the content above the visible top must move by the returned shift
+        final int top = layout.getHeight() / 2;
+        final int bottom = top + 600;
+        final int topOffset = layout.getLineStart(layout.getLineForVertical(top));
+        final int oldTop = layout.getLineTop(layout.getLineForVertical(top));
+        final int shift = layout.layoutEstimatedLines(top, bottom);
+        final int newTop = layout.getLineTop(layout.getLineForOffset(topOffset));
+        if (shift <= 0) {
+            System.out.println("Failed: expected the estimate to be exceeded, shift " + shift);
+            failures++;
+        }
+        if (newTop != oldTop + shift) {
+            System.out.println("Failed: line at " + topOffset + " moved from " + oldTop +
+                    " to " + newTop + ", but shift is " + shift);
+            failures++;
+        }
+
+        // lay out everything, this must be the same as the static layout
+        layout.layoutEstimatedLines(0, Integer.MAX_VALUE / 4);
+        if (layout.hasEstimatedLines()) {
+            System.out.println("Failed: " + layout.getEstimatedLineCount() + " estimated lines left");
+            failures++;
+        }
+        if (layout.getHeight() != expected.getHeight()) {
+            System.out.println("Failed: height " + layout.getHeight() + ", expected " + expected.getHeight());
+            failures++;
+        }
+        if (layout.getLineCount() != expected.getLineCount()) {
+            System.out.println("Failed: line count " + layout.getLineCount() +
+                    ", expected " + expected.getLineCount());
+            failures++;
+        } else {
+            for (int i = 0; i < expected.getLineCount(); i++) {
+                if (layout.getLineStart(i) != expected.getLineStart(i) ||
+                        layout.getLineTop(i) != expected.getLineTop(i)) {
+                    System.out.println("Failed: line " + i + " starts at " + layout.getLineStart(i) +
+                            ", top " + layout.getLineTop(i) + ", expected " + expected.getLineStart(i) +
+                            ", top " + expected.getLineTop(i));
+                    failures++;
+                    break;
+                }
+            }
+        }
+        System.out.println(failures == 0 ? "All passed" : failures + " failures");
+    }
+}